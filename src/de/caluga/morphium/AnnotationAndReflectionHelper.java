@@ -35,6 +35,7 @@ public class AnnotationAndReflectionHelper {
     private Map<String, List<String>> fieldAnnotationListCache = new ConcurrentHashMap<>();
     private Map<Class<?>, Map<Class<? extends Annotation>, Method>> lifeCycleMethods;
     private Map<Class<?>, Boolean> hasAdditionalData;
+    private final Map<Class<?>, Boolean> hasReferences = new ConcurrentHashMap<>();
     private boolean ccc = true;
 
     public AnnotationAndReflectionHelper(boolean convertCamelCase) {
@@ -142,6 +143,85 @@ public class AnnotationAndReflectionHelper {
         return hasAdditionalData.get(clz);
     }
 
+    /**
+     * checks the whole mapped type graph of the class: true, if the class or any embedded type, element type of lists,
+     * maps and arrays has a field annotated with @Reference. Fields, which might hold any mapped object (Object,
+     * interfaces, abstract classes, type variables, raw collections, polymorph entities) are considered to have
+     * references, as this cannot be checked on class level. The same applies to the class itself, if it is polymorph -
+     * results might contain subclasses with references.
+     * Result is cached per class.
+     */
+    public boolean hasReferences(Class<?> clz) {
+        Boolean ret = hasReferences.get(clz);
+        if (ret == null) {
+            ret = isPolymorph(clz) || hasReferences(clz, new HashSet<>());
+            hasReferences.put(clz, ret);
+        }
+        return ret;
+    }
+
+    private boolean hasReferences(Class<?> clz, Set<Class<?>> visited) {
+        Boolean known = hasReferences.get(clz);
+        if (known != null) {
+            return known;
+        }
+        if (!visited.add(clz)) {
+            //cycle, checked already
+            return false;
+        }
+        for (String f : getFields(clz)) {
+            Field fld = getField(clz, f);
+            if (fld == null || Modifier.isStatic(fld.getModifiers())) {
+                continue;
+            }
+            if (fld.isAnnotationPresent(Reference.class) || mayHoldReferences(fld.getGenericType(), visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mayHoldReferences(Type t, Set<Class<?>> visited) {
+        if (t instanceof ParameterizedType) {
+            Class<?> raw = (Class<?>) ((ParameterizedType) t).getRawType();
+            if (!Collection.class.isAssignableFrom(raw) && !Map.class.isAssignableFrom(raw)) {
+                return mayHoldReferences(raw, visited);
+            }
+            for (Type arg : ((ParameterizedType) t).getActualTypeArguments()) {
+                if (mayHoldReferences(arg, visited)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (t instanceof GenericArrayType) {
+            return mayHoldReferences(((GenericArrayType) t).getGenericComponentType(), visited);
+        }
+        if (!(t instanceof Class)) {
+            //type variable or wildcard
+            return true;
+        }
+        Class<?> cls = (Class<?>) t;
+        if (cls.isArray()) {
+            return mayHoldReferences(cls.getComponentType(), visited);
+        }
+        if (cls.isPrimitive() || cls.isEnum()) {
+            return false;
+        }
+        if (getAnnotationFromHierarchy(cls, Entity.class) != null || getAnnotationFromHierarchy(cls, Embedded.class) != null) {
+            return isPolymorph(cls) || hasReferences(cls, visited);
+        }
+        //raw collection or a type, that might be any mapped class
+        return Collection.class.isAssignableFrom(cls) || Map.class.isAssignableFrom(cls) || cls == Object.class
+                || cls.isInterface() || Modifier.isAbstract(cls.getModifiers());
+    }
+
+    private boolean isPolymorph(Class<?> cls) {
+        Entity e = getAnnotationFromHierarchy(cls, Entity.class);
+        Embedded emb = getAnnotationFromHierarchy(cls, Embedded.class);
+        return (e != null && e.polymorph()) || (emb != null && emb.polymorph());
+    }
+
     @SuppressWarnings("StatementWithEmptyBody")
     public String getFieldName(Class clz, String field) {
         Class cls = getRealClass(clz);
@@ -579,7 +659,9 @@ public class AnnotationAndReflectionHelper {
             throw new IllegalArgumentException("Object ID field not found " + o.getClass().getSimpleName());
         }
         try {
-            o = getRealObject(o);
+            //the id is never unmarshalled lazily
+            Object unmarshalled = LazyUnmarshallingProxy.getUnmarshalledPart(o);
+            o = unmarshalled != null ? unmarshalled : getRealObject(o);
             if (o != null) {
                 return f.get(o);
             } else {
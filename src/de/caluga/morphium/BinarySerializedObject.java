@@ -5,10 +5,17 @@ import de.caluga.morphium.annotations.Property;
 
 /**
  * Created by stephan on 17.11.14.
+ * <p>
+ * Format of serialized values written by older versions (java serialization, base64 encoded), still read. Values
+ * are now stored as BSON binary in DATA_FIELD, see ObjectSerializer.
  */
 @SuppressWarnings({"WeakerAccess", "DefaultFileTemplate"})
 @Embedded
 public class BinarySerializedObject {
+    /**
+     * field holding the bytes written by the ObjectSerializer
+     */
+    public static final String DATA_FIELD = "_bdata";
     @Property(fieldName = "_b64data")
     private String b64Data;
     private String originalClassName;
@@ -0,0 +1,318 @@
+package de.caluga.morphium;
+
+import de.caluga.morphium.driver.bson.MorphiumId;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Default ObjectSerializer: writes common JDK types (strings, numbers, dates, UUIDs, enums, primitive arrays and
+ * ArrayList, HashMap, LinkedHashMap, HashSet, LinkedHashSet of those) as a tag byte followed by the raw value,
+ * everything else with java serialization. This is a lot smaller and faster than java serialization, which
+ * writes class descriptors and object headers even for a single Integer.
+ * <p>
+ * Data written by java serialization only (i.e. ObjectOutputStream) is still read.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CompactObjectSerializer implements ObjectSerializer {
+    private static final byte MAGIC = 'C';
+    private static final int MAX_DEPTH = 64;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte STRING = 3;
+    private static final byte INT = 4;
+    private static final byte LONG = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte FLOAT = 7;
+    private static final byte SHORT = 8;
+    private static final byte BYTE = 9;
+    private static final byte CHAR = 10;
+    private static final byte DATE = 11;
+    private static final byte BIG_INTEGER = 12;
+    private static final byte BIG_DECIMAL = 13;
+    private static final byte UUID_VALUE = 14;
+    private static final byte MORPHIUM_ID = 15;
+    private static final byte ENUM = 16;
+    private static final byte BYTES = 17;
+    private static final byte INTS = 18;
+    private static final byte LONGS = 19;
+    private static final byte DOUBLES = 20;
+    private static final byte FLOATS = 21;
+    private static final byte ARRAY_LIST = 22;
+    private static final byte HASH_MAP = 23;
+    private static final byte LINKED_HASH_MAP = 24;
+    private static final byte HASH_SET = 25;
+    private static final byte LINKED_HASH_SET = 26;
+    private static final byte JAVA = 27;
+
+    @Override
+    public byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeByte(MAGIC);
+        try {
+            write(out, o, 0);
+        } catch (TooDeepException e) {
+            //maybe cyclic - java serialization handles that
+            return javaSerialize(o);
+        }
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    @Override
+    public Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        if (data.length > 1 && data[0] == (byte) 0xac && data[1] == (byte) 0xed) {
+            //java serialization stream
+            return javaDeserialize(data);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readByte() != MAGIC) {
+            throw new StreamCorruptedException("unknown format");
+        }
+        return read(in);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(DataOutputStream out, Object o, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new TooDeepException();
+        }
+        if (o == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Class<?> c = o.getClass();
+        if (c == String.class) {
+            out.writeByte(STRING);
+            writeString(out, (String) o);
+        } else if (c == Integer.class) {
+            out.writeByte(INT);
+            out.writeInt((Integer) o);
+        } else if (c == Long.class) {
+            out.writeByte(LONG);
+            out.writeLong((Long) o);
+        } else if (c == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) o);
+        } else if (c == Boolean.class) {
+            out.writeByte((Boolean) o ? TRUE : FALSE);
+        } else if (c == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) o);
+        } else if (c == Short.class) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) o);
+        } else if (c == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) o);
+        } else if (c == Character.class) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) o);
+        } else if (c == Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) o).getTime());
+        } else if (c == BigInteger.class) {
+            out.writeByte(BIG_INTEGER);
+            writeBytes(out, ((BigInteger) o).toByteArray());
+        } else if (c == BigDecimal.class) {
+            out.writeByte(BIG_DECIMAL);
+            out.writeInt(((BigDecimal) o).scale());
+            writeBytes(out, ((BigDecimal) o).unscaledValue().toByteArray());
+        } else if (c == UUID.class) {
+            out.writeByte(UUID_VALUE);
+            out.writeLong(((UUID) o).getMostSignificantBits());
+            out.writeLong(((UUID) o).getLeastSignificantBits());
+        } else if (c == MorphiumId.class) {
+            out.writeByte(MORPHIUM_ID);
+            out.write(((MorphiumId) o).getBytes());
+        } else if (o instanceof Enum) {
+            out.writeByte(ENUM);
+            writeString(out, ((Enum) o).getDeclaringClass().getName());
+            writeString(out, ((Enum) o).name());
+        } else if (c == byte[].class) {
+            out.writeByte(BYTES);
+            writeBytes(out, (byte[]) o);
+        } else if (c == int[].class) {
+            out.writeByte(INTS);
+            out.writeInt(((int[]) o).length);
+            for (int v : (int[]) o) {
+                out.writeInt(v);
+            }
+        } else if (c == long[].class) {
+            out.writeByte(LONGS);
+            out.writeInt(((long[]) o).length);
+            for (long v : (long[]) o) {
+                out.writeLong(v);
+            }
+        } else if (c == double[].class) {
+            out.writeByte(DOUBLES);
+            out.writeInt(((double[]) o).length);
+            for (double v : (double[]) o) {
+                out.writeDouble(v);
+            }
+        } else if (c == float[].class) {
+            out.writeByte(FLOATS);
+            out.writeInt(((float[]) o).length);
+            for (float v : (float[]) o) {
+                out.writeFloat(v);
+            }
+        } else if (c == ArrayList.class || c == HashSet.class || c == LinkedHashSet.class) {
+            out.writeByte(c == ArrayList.class ? ARRAY_LIST : c == HashSet.class ? HASH_SET : LINKED_HASH_SET);
+            Collection<Object> col = (Collection<Object>) o;
+            out.writeInt(col.size());
+            for (Object v : col) {
+                write(out, v, depth + 1);
+            }
+        } else if (c == HashMap.class || c == LinkedHashMap.class) {
+            out.writeByte(c == HashMap.class ? HASH_MAP : LINKED_HASH_MAP);
+            Map<Object, Object> m = (Map<Object, Object>) o;
+            out.writeInt(m.size());
+            for (Map.Entry<Object, Object> e : m.entrySet()) {
+                write(out, e.getKey(), depth + 1);
+                write(out, e.getValue(), depth + 1);
+            }
+        } else {
+            out.writeByte(JAVA);
+            writeBytes(out, javaSerialize(o));
+        }
+    }
+
+    private Object read(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case STRING:
+                return readString(in);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case SHORT:
+                return in.readShort();
+            case BYTE:
+                return in.readByte();
+            case CHAR:
+                return in.readChar();
+            case DATE:
+                return new Date(in.readLong());
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(in));
+            case BIG_DECIMAL:
+                int scale = in.readInt();
+                return new BigDecimal(new BigInteger(readBytes(in)), scale);
+            case UUID_VALUE:
+                return new UUID(in.readLong(), in.readLong());
+            case MORPHIUM_ID:
+                byte[] id = new byte[12];
+                in.readFully(id);
+                return new MorphiumId(id);
+            case ENUM:
+                return readEnum(in);
+            case BYTES:
+                return readBytes(in);
+            case INTS:
+                int[] ints = new int[in.readInt()];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = in.readInt();
+                }
+                return ints;
+            case LONGS:
+                long[] longs = new long[in.readInt()];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = in.readLong();
+                }
+                return longs;
+            case DOUBLES:
+                double[] doubles = new double[in.readInt()];
+                for (int i = 0; i < doubles.length; i++) {
+                    doubles[i] = in.readDouble();
+                }
+                return doubles;
+            case FLOATS:
+                float[] floats = new float[in.readInt()];
+                for (int i = 0; i < floats.length; i++) {
+                    floats[i] = in.readFloat();
+                }
+                return floats;
+            case ARRAY_LIST:
+            case HASH_SET:
+            case LINKED_HASH_SET:
+                int size = in.readInt();
+                Collection<Object> col = tag == ARRAY_LIST ? new ArrayList<>(size) : tag == HASH_SET ? new HashSet<>() : new LinkedHashSet<>();
+                for (int i = 0; i < size; i++) {
+                    col.add(read(in));
+                }
+                return col;
+            case HASH_MAP:
+            case LINKED_HASH_MAP:
+                int entries = in.readInt();
+                Map<Object, Object> m = tag == HASH_MAP ? new HashMap<>() : new LinkedHashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    m.put(read(in), read(in));
+                }
+                return m;
+            case JAVA:
+                return javaDeserialize(readBytes(in));
+            default:
+                throw new StreamCorruptedException("unknown tag " + tag);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object readEnum(DataInputStream in) throws IOException, ClassNotFoundException {
+        Class cls = Class.forName(readString(in));
+        return Enum.valueOf(cls, readString(in));
+    }
+
+    private void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return b;
+    }
+
+    private byte[] javaSerialize(Object o) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (ObjectOutputStream oout = new ObjectOutputStream(bout)) {
+            oout.writeObject(o);
+        }
+        return bout.toByteArray();
+    }
+
+    private Object javaDeserialize(byte[] b) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(b))) {
+            return in.readObject();
+        }
+    }
+
+    private static class TooDeepException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+}
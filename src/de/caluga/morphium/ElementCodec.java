@@ -0,0 +1,134 @@
+package de.caluga.morphium;
+
+import de.caluga.morphium.annotations.Embedded;
+import de.caluga.morphium.annotations.Entity;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.*;
+
+/**
+ * Element type of a collection or map, resolved once from the generic signature of a field, e.g.
+ * <code>List&lt;String&gt;</code>, <code>Map&lt;String,EmbeddedObject&gt;</code> or
+ * <code>List&lt;List&lt;Long&gt;&gt;</code>. The ObjectMapperImpl uses it to map the elements in a tight loop,
+ * without checking annotations and instanceof chains for every element and without re-resolving the type arguments.
+ * <p>
+ * Elements not matching the resolved type (subclasses, values converted by the driver...) and all types not
+ * covered (kind GENERIC) are mapped by the generic code as before.
+ */
+final class ElementCodec {
+    enum Kind {
+        /**
+         * values stored as they are: String, Integer, Long, Double...
+         */
+        VALUE,
+        /**
+         * entities or embedded objects
+         */
+        ENTITY,
+        /**
+         * list of elements, see getElement
+         */
+        LIST,
+        /**
+         * map with string keys, see getElement
+         */
+        MAP,
+        /**
+         * not specialised
+         */
+        GENERIC
+    }
+
+    private static final ElementCodec GENERIC_CODEC = new ElementCodec(Kind.GENERIC, Object.class, Object.class, null);
+    private static final Set<Class<?>> VALUE_TYPES = new HashSet<>(Arrays.asList(String.class, Character.class, Integer.class,
+            Long.class, Float.class, Double.class, Date.class, Boolean.class, Byte.class));
+
+    private final Kind kind;
+    private final Class<?> type;
+    private final Type genericType;
+    private final ElementCodec element;
+
+    private ElementCodec(Kind kind, Class<?> type, Type genericType, ElementCodec element) {
+        this.kind = kind;
+        this.type = type;
+        this.genericType = genericType;
+        this.element = element;
+    }
+
+    /**
+     * @param t - the element type, i.e. the type argument of a list or the value type argument of a map
+     */
+    static ElementCodec of(Type t, AnnotationAndReflectionHelper hlp) {
+        if (t instanceof Class) {
+            Class<?> c = (Class<?>) t;
+            if (VALUE_TYPES.contains(c)) {
+                return new ElementCodec(Kind.VALUE, c, c, null);
+            }
+            if (hlp.isAnnotationPresentInHierarchy(c, Entity.class) || hlp.isAnnotationPresentInHierarchy(c, Embedded.class)) {
+                return new ElementCodec(Kind.ENTITY, c, c, null);
+            }
+            return GENERIC_CODEC;
+        }
+        if (!(t instanceof ParameterizedType) || !(((ParameterizedType) t).getRawType() instanceof Class)) {
+            //wildcards, type variables
+            return GENERIC_CODEC;
+        }
+        ParameterizedType pt = (ParameterizedType) t;
+        Class<?> raw = (Class<?>) pt.getRawType();
+        Type[] args = pt.getActualTypeArguments();
+        if (List.class.isAssignableFrom(raw) && args.length == 1) {
+            return new ElementCodec(Kind.LIST, raw, pt, of(args[0], hlp));
+        }
+        if (Map.class.isAssignableFrom(raw) && args.length == 2 && String.class.equals(args[0])) {
+            return new ElementCodec(Kind.MAP, raw, pt, of(args[1], hlp));
+        }
+        return GENERIC_CODEC;
+    }
+
+    /**
+     * codec for the elements of a collection or array field or the values of a map field
+     *
+     * @return null, if there is nothing to specialise
+     */
+    static ElementCodec forField(Type fieldType, AnnotationAndReflectionHelper hlp) {
+        ElementCodec ret = GENERIC_CODEC;
+        if (fieldType instanceof Class && ((Class<?>) fieldType).isArray() && !((Class<?>) fieldType).getComponentType().isPrimitive()) {
+            ret = of(((Class<?>) fieldType).getComponentType(), hlp);
+        } else if (fieldType instanceof ParameterizedType && ((ParameterizedType) fieldType).getRawType() instanceof Class) {
+            Class<?> raw = (Class<?>) ((ParameterizedType) fieldType).getRawType();
+            Type[] args = ((ParameterizedType) fieldType).getActualTypeArguments();
+            if (Collection.class.isAssignableFrom(raw) && args.length == 1) {
+                ret = of(args[0], hlp);
+            } else if (Map.class.isAssignableFrom(raw) && args.length == 2 && String.class.equals(args[0])) {
+                ret = of(args[1], hlp);
+            }
+        }
+        return ret.kind == Kind.GENERIC ? null : ret;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return raw element class
+     */
+    Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * @return generic element type, a ParameterizedType for LIST and MAP
+     */
+    Type getGenericType() {
+        return genericType;
+    }
+
+    /**
+     * @return codec of the elements of a LIST or the values of a MAP, null otherwise
+     */
+    ElementCodec getElement() {
+        return element;
+    }
+}
@@ -0,0 +1,122 @@
+package de.caluga.morphium;
+
+import net.sf.cglib.proxy.Callback;
+import net.sf.cglib.proxy.Factory;
+import net.sf.cglib.proxy.MethodInterceptor;
+import net.sf.cglib.proxy.MethodProxy;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Proxy for entities with @LazyUnmarshalling fields: holds the values of those fields as read from mongo and
+ * unmarshalls them into the real object on first access. Getters of lazy fields only unmarshall their field, getters
+ * of the other fields nothing, any other method (and __getDeref, used for storing) unmarshalls all pending fields
+ * first.
+ */
+public class LazyUnmarshallingProxy<T> implements MethodInterceptor, Serializable {
+    private static final long serialVersionUID = -4306517262981934817L;
+    private static final Logger log = new Logger(LazyUnmarshallingProxy.class);
+    private final transient ObjectMapperImpl mapper;
+    private final transient MappingPlan plan;
+    private final transient Map<MappingPlan.Property, Object> pending;
+    private final T reference;
+
+    LazyUnmarshallingProxy(ObjectMapperImpl mapper, MappingPlan plan, T reference, Map<MappingPlan.Property, Object> pending) {
+        this.mapper = mapper;
+        this.plan = plan;
+        this.reference = reference;
+        this.pending = new HashMap<>(pending);
+    }
+
+    /**
+     * @return the real object without unmarshalling pending fields, null if o is not a LazyUnmarshallingProxy
+     */
+    public static Object getUnmarshalledPart(Object o) {
+        if (!(o instanceof Factory)) {
+            return null;
+        }
+        Callback cb = ((Factory) o).getCallback(0);
+        if (cb instanceof LazyUnmarshallingProxy) {
+            return ((LazyUnmarshallingProxy) cb).reference;
+        }
+        return null;
+    }
+
+    public T __getDeref() {
+        unmarshallAll();
+        return reference;
+    }
+
+    @SuppressWarnings("unused")
+    public T __getPureDeref() {
+        return reference;
+    }
+
+    @Override
+    public Object intercept(Object o, Method method, Object[] objects, MethodProxy methodProxy) throws Throwable {
+        String n = method.getName();
+        if (n.equals("finalize")) {
+            return methodProxy.invokeSuper(o, objects);
+        }
+        if (n.equals("__getType")) {
+            return reference.getClass();
+        }
+        if (n.equals("__getPureDeref")) {
+            return reference;
+        }
+        if (n.equals("__getDeref")) {
+            return __getDeref();
+        }
+        MappingPlan.Property p = objects.length == 0 && plan != null ? plan.getLazyProperty(n) : null;
+        if (p != null) {
+            unmarshall(p);
+        } else if (objects.length != 0 || plan == null || !plan.isPlainGetter(n)) {
+            unmarshallAll();
+        }
+        return methodProxy.invoke(reference, objects);
+    }
+
+    private void unmarshall(MappingPlan.Property p) {
+        synchronized (pending) {
+            if (!pending.containsKey(p)) {
+                return;
+            }
+            Object value = pending.remove(p);
+            try {
+                mapper.unmarshallLazyProperty(plan, p, value, reference);
+            } catch (Exception e) {
+                log.error("Could not unmarshall " + p.name, e);
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void unmarshallAll() {
+        if (pending == null) {
+            //deserialized
+            return;
+        }
+        List<MappingPlan.Property> props;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            props = new ArrayList<>(pending.keySet());
+        }
+        for (MappingPlan.Property p : props) {
+            unmarshall(p);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        unmarshallAll();
+        out.defaultWriteObject();
+    }
+}
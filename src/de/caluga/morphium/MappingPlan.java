@@ -0,0 +1,406 @@
+package de.caluga.morphium;
+
+import de.caluga.morphium.annotations.*;
+import de.caluga.morphium.annotations.lifecycle.Lifecycle;
+import de.caluga.morphium.mapping.EntityAccessor;
+import sun.reflect.ReflectionFactory;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Mapping of one class, built once by the ObjectMapperImpl: the persistent properties in field order with their
+ * mongo names, annotations and method handle based accessors, and a factory for new instances. Marshalling and
+ * unmarshalling just iterate over the properties, no field lookup by name, no annotation check per object.
+ * <p>
+ * Instances are created by a LambdaMetafactory generated Supplier, if the class has a public no-arg constructor,
+ * otherwise (like Class.newInstance would fail) by a serialization constructor, which does not call any constructor
+ * of the class.
+ * <p>
+ * If there is an EntityAccessor generated at compile time for the class, it is used for the fields it covers and
+ * for creating instances instead.
+ * <p>
+ * For documents with only some of the fields (projections) only the properties present are processed.
+ */
+@SuppressWarnings("WeakerAccess")
+final class MappingPlan {
+    private static final Logger log = new Logger(MappingPlan.class);
+
+    private final Class<?> type;
+    private final Property[] properties;
+    private final Set<String> names;
+    private final Map<String, Property> byName;
+    private final Map<String, Property> lazyGetters;
+    //getters of the other properties, those do not need to unmarshall lazy properties
+    private final Set<String> plainGetters;
+    private final Property idProperty;
+    private final boolean entity;
+    private final boolean polymorph;
+    private final boolean partialUpdate;
+    private final Supplier<Object> factory;
+    private volatile Supplier<Object> fallbackFactory;
+    private final EntityAccessor<Object> accessor;
+
+    MappingPlan(Class<?> type, AnnotationAndReflectionHelper hlp) {
+        this.type = type;
+        List<String> flds = hlp.getFields(type);
+        if (flds == null) {
+            throw new IllegalArgumentException("Fields not found? " + type.getName());
+        }
+        accessor = findAccessor(type);
+        Map<String, Integer> accessible = new HashMap<>();
+        if (accessor != null) {
+            String[] names = accessor.getFields();
+            for (int i = 0; i < names.length; i++) {
+                accessible.put(names[i], i);
+            }
+        }
+        List<Property> props = new ArrayList<>();
+        Property id = null;
+        for (String f : flds) {
+            Field fld = hlp.getField(type, f);
+            if (fld == null) {
+                log.error("Field not found " + f);
+                continue;
+            }
+            //static fields are not stored
+            if (Modifier.isStatic(fld.getModifiers())) {
+                continue;
+            }
+            Integer idx = accessible.get(fld.getName());
+            Property p = idx == null ? new Property(f, fld, hlp) : new Property(f, fld, hlp, accessor, idx);
+            props.add(p);
+            if (p.id && id == null) {
+                id = p;
+            }
+        }
+        properties = props.toArray(new Property[props.size()]);
+        names = new HashSet<>(flds);
+        idProperty = id;
+        Entity e = hlp.getAnnotationFromHierarchy(type, Entity.class);
+        Embedded emb = hlp.getAnnotationFromHierarchy(type, Embedded.class);
+        entity = e != null;
+        polymorph = (e != null && e.polymorph()) || (emb != null && emb.polymorph());
+        partialUpdate = hlp.isAnnotationPresentInHierarchy(type, PartialUpdate.class);
+
+        byName = new HashMap<>();
+        Map<String, Property> getters = new HashMap<>();
+        Set<String> plain = new HashSet<>();
+        boolean lazyAllowed = !partialUpdate && !hlp.isAnnotationPresentInHierarchy(type, Lifecycle.class) && !Modifier.isFinal(type.getModifiers());
+        for (Property p : properties) {
+            byName.putIfAbsent(p.name, p);
+            String n = p.field.getName();
+            n = n.substring(0, 1).toUpperCase() + n.substring(1);
+            if (p.lazy && lazyAllowed) {
+                getters.put("get" + n, p);
+                getters.put("is" + n, p);
+            } else {
+                plain.add("get" + n);
+                plain.add("is" + n);
+            }
+        }
+        lazyGetters = getters;
+        plain.removeAll(getters.keySet());
+        plainGetters = plain;
+        //generated accessors use the same constructors as createFactory
+        factory = accessor != null ? accessor::newInstance : createFactory(type);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static EntityAccessor<Object> findAccessor(Class<?> type) {
+        if (type.getClassLoader() == null) {
+            return null;
+        }
+        String n = type.getName();
+        int idx = n.lastIndexOf('.');
+        String name = n.substring(0, idx + 1) + n.substring(idx + 1).replace('$', '_') + EntityAccessor.SUFFIX;
+        try {
+            return (EntityAccessor<Object>) Class.forName(name, true, type.getClassLoader()).newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception | LinkageError e) {
+            log.warn("Could not use generated accessor " + name, e);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Supplier<Object> createFactory(Class<?> type) {
+        Constructor<?> c;
+        try {
+            c = type.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        if (!Modifier.isPublic(c.getModifiers()) || !Modifier.isPublic(type.getModifiers()) || Modifier.isAbstract(type.getModifiers())) {
+            return null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle mh = lookup.unreflectConstructor(c);
+            try {
+                CallSite site = LambdaMetafactory.metafactory(lookup, "get", MethodType.methodType(Supplier.class),
+                        MethodType.methodType(Object.class), mh, MethodType.methodType(type));
+                return (Supplier<Object>) site.getTarget().invoke();
+            } catch (Throwable t) {
+                //e.g. class not visible from this class loader
+                MethodHandle generic = mh.asType(MethodType.methodType(Object.class));
+                return () -> {
+                    try {
+                        return generic.invokeExact();
+                    } catch (RuntimeException | Error e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new RuntimeException(e);
+                    }
+                };
+            }
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static Supplier<Object> createSerializationFactory(Class<?> type) {
+        Constructor<?> constructor;
+        try {
+            constructor = ReflectionFactory.getReflectionFactory().newConstructorForSerialization(type, Object.class.getDeclaredConstructor());
+        } catch (Exception e) {
+            log.error(e);
+            return () -> null;
+        }
+        return () -> {
+            try {
+                return constructor.newInstance();
+            } catch (Exception e) {
+                log.error(e);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @return new instance or null, if the class cannot be instantiated
+     */
+    Object newInstance() {
+        if (factory != null) {
+            try {
+                Object ret = factory.get();
+                if (ret != null) {
+                    return ret;
+                }
+            } catch (Exception ignored) {
+                //constructor failed, like Class.newInstance
+            }
+        }
+        if (fallbackFactory == null) {
+            //only needed now, sun.reflect might not be available
+            fallbackFactory = createSerializationFactory(type);
+        }
+        return fallbackFactory.get();
+    }
+
+    Class<?> getType() {
+        return type;
+    }
+
+    Property[] getProperties() {
+        return properties;
+    }
+
+    /**
+     * properties to be read from the given document: for projections or sparse documents only the ones present in
+     * the document (and the additional data), all otherwise
+     */
+    Property[] getProperties(Map<String, Object> doc) {
+        if (doc.size() >= properties.length || byName.size() != properties.length) {
+            //not worth it or shadowed fields
+            return properties;
+        }
+        List<Property> ret = new ArrayList<>(doc.size() + 1);
+        for (Property p : properties) {
+            if (p.additionalData != null) {
+                ret.add(p);
+            }
+        }
+        for (String k : doc.keySet()) {
+            Property p = byName.get(k);
+            if (p != null && p.additionalData == null) {
+                ret.add(p);
+            }
+        }
+        return ret.toArray(new Property[ret.size()]);
+    }
+
+    /**
+     * @return true, if properties marked with @LazyUnmarshalling are unmarshalled on first access
+     */
+    boolean hasLazyProperties() {
+        return !lazyGetters.isEmpty();
+    }
+
+    /**
+     * @return the lazy property read by the getter with that name, null if there is none
+     */
+    Property getLazyProperty(String getter) {
+        return lazyGetters.get(getter);
+    }
+
+    /**
+     * @return true, if there is a property, which is not lazy, read by the getter with that name
+     */
+    boolean isPlainGetter(String getter) {
+        return plainGetters.contains(getter);
+    }
+
+    /**
+     * @return true, if name is the mongo name of a property
+     */
+    boolean isProperty(String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * @return property stored as name in mongo, null if there is none
+     */
+    Property getProperty(String name) {
+        if (idProperty != null && idProperty.dbName.equals(name)) {
+            return idProperty;
+        }
+        return byName.get(name);
+    }
+
+    Property getIdProperty() {
+        return idProperty;
+    }
+
+    boolean isEntity() {
+        return entity;
+    }
+
+    boolean isPolymorph() {
+        return polymorph;
+    }
+
+    boolean isPartialUpdate() {
+        return partialUpdate;
+    }
+
+    /**
+     * one persistent field
+     */
+    static final class Property {
+        final String name;
+        final String dbName;
+        final Field field;
+        final Class<?> type;
+        final boolean id;
+        final boolean readOnly;
+        final boolean writeOnly;
+        final boolean useIfNull;
+        final AdditionalData additionalData;
+        final Reference reference;
+        final boolean collection;
+        /**
+         * elements of collections and arrays, values of maps - null if not specialised or a reference
+         */
+        final ElementCodec elements;
+        final boolean lazy;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+        private final EntityAccessor<Object> accessor;
+        private final int index;
+
+        private Property(String name, Field field, AnnotationAndReflectionHelper hlp) {
+            this(name, field, hlp, null, -1);
+        }
+
+        private Property(String name, Field field, AnnotationAndReflectionHelper hlp, EntityAccessor<Object> accessor, int index) {
+            this.name = name;
+            this.field = field;
+            type = field.getType();
+            id = field.isAnnotationPresent(Id.class);
+            dbName = id ? "_id" : name;
+            readOnly = field.isAnnotationPresent(ReadOnly.class);
+            writeOnly = field.isAnnotationPresent(WriteOnly.class);
+            useIfNull = field.isAnnotationPresent(UseIfnull.class);
+            additionalData = field.getAnnotation(AdditionalData.class);
+            reference = field.getAnnotation(Reference.class);
+            collection = Collection.class.isAssignableFrom(type);
+            elements = reference == null ? ElementCodec.forField(field.getGenericType(), hlp) : null;
+            lazy = field.isAnnotationPresent(LazyUnmarshalling.class) && !id && reference == null && additionalData == null;
+            this.accessor = accessor;
+            this.index = index;
+            field.setAccessible(true);
+            getter = accessor == null ? getter(field) : null;
+            setter = accessor == null ? setter(field) : null;
+        }
+
+        private static MethodHandle getter(Field f) {
+            try {
+                return MethodHandles.lookup().unreflectGetter(f).asType(MethodType.methodType(Object.class, Object.class));
+            } catch (IllegalAccessException e) {
+                return null;
+            }
+        }
+
+        private static MethodHandle setter(Field f) {
+            try {
+                return MethodHandles.lookup().unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, Object.class));
+            } catch (IllegalAccessException e) {
+                //final fields
+                return null;
+            }
+        }
+
+        Object get(Object o) throws IllegalAccessException {
+            if (accessor != null) {
+                return accessor.get(o, index);
+            }
+            if (getter == null) {
+                return field.get(o);
+            }
+            try {
+                return getter.invokeExact(o);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+
+        /**
+         * sets the value without any conversion
+         *
+         * @return false, if value does not fit the field type
+         */
+        boolean set(Object o, Object value) {
+            if (value == null && type.isPrimitive()) {
+                return false;
+            }
+            try {
+                if (accessor != null) {
+                    accessor.set(o, index, value);
+                } else if (setter == null) {
+                    field.set(o, value);
+                } else {
+                    setter.invokeExact(o, value);
+                }
+                return true;
+            } catch (ClassCastException | IllegalArgumentException e) {
+                return false;
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+}
@@ -11,6 +11,7 @@ import de.caluga.morphium.async.AsyncOperationCallback;
 import de.caluga.morphium.bulk.MorphiumBulkContext;
 import de.caluga.morphium.cache.MorphiumCache;
 import de.caluga.morphium.cache.MorphiumCacheImpl;
+import de.caluga.morphium.cache.OffHeapCache;
 import de.caluga.morphium.driver.MorphiumDriver;
 import de.caluga.morphium.driver.MorphiumDriverException;
 import de.caluga.morphium.driver.ReadPreference;
@@ -254,6 +255,14 @@ public class Morphium {
         config.getCache().setAnnotationAndReflectionHelper(getARHelper());
         config.getCache().setGlobalCacheTimeout(config.getGlobalCacheValidTime());
         config.getCache().setHouskeepingIntervalPause(config.getHousekeepingTimeout());
+        config.getCache().setWeigher(config.getCacheWeigher());
+        config.getCache().setMaxBytes(config.getCacheMaxBytes());
+        config.getCache().setMaxBytesPerType(config.getCacheMaxBytesPerType());
+        config.getCache().setRefreshAheadPercent(config.getCacheRefreshAheadPercent());
+        config.getCache().setIdCacheMaxEntries(config.getIdCacheMaxEntries());
+        config.getCache().setIdCacheMaxBytes(config.getIdCacheMaxBytes());
+        config.getCache().setIdCacheSoftReferences(config.isIdCacheSoftReferences());
+        config.getCache().setStatisticsJmx(config.isCacheStatisticsJmx());
 
         if (hasValidationSupport()) {
             logger.info("Adding javax.validation Support...");
@@ -265,6 +274,10 @@ public class Morphium {
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        config.getCache().setObjectMapper(objectMapper);
+        if (config.getCacheOffHeapBytes() > 0) {
+            config.getCache().setOffHeapCache(new OffHeapCache(objectMapper, config.getCacheOffHeapBytes(), config.getCacheOffHeapFile()));
+        }
 
 
         if (isReplicaSet()) {
@@ -2225,6 +2238,7 @@ public class Morphium {
         config.getAsyncWriter().close();
         config.getBufferedWriter().close();
         config.getWriter().close();
+        config.getCache().close();
         try {
             getDriver().close();
         } catch (MorphiumDriverException e) {
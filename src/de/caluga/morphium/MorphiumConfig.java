@@ -8,7 +8,9 @@ import de.caluga.morphium.aggregation.AggregatorImpl;
 import de.caluga.morphium.annotations.AdditionalData;
 import de.caluga.morphium.annotations.Embedded;
 import de.caluga.morphium.annotations.Transient;
+import de.caluga.morphium.cache.CacheWeigher;
 import de.caluga.morphium.cache.MorphiumCache;
+import de.caluga.morphium.cache.ObjectSizeWeigher;
 import de.caluga.morphium.driver.ReadPreference;
 import de.caluga.morphium.driver.ReadPreferenceType;
 import de.caluga.morphium.driver.mongodb.Driver;
@@ -89,6 +91,23 @@ public class MorphiumConfig {
     private AggregatorFactory aggregatorFactory;
     @Transient
     private MorphiumCache cache;
+    @Transient
+    private CacheWeigher cacheWeigher;
+    @Transient
+    private ObjectSerializer objectSerializer;
+    private long cacheMaxBytes = -1;
+    private long cacheMaxBytesPerType = -1;
+    private long cacheOffHeapBytes = 0;
+    private String cacheOffHeapFile = null;
+    private int cacheRefreshAheadPercent = 0;
+    private int idCacheMaxEntries = -1;
+    private long idCacheMaxBytes = -1;
+    private boolean idCacheSoftReferences = false;
+    private boolean cacheStatisticsJmx = false;
+    private int cacheSyncCoalesceWindow = 0;
+    private int cacheSyncMaxDocumentSize = 16 * 1024;
+    private int parallelUnmarshallingThreshold = 0;
+    private int parallelUnmarshallingMinTime = 20;
     private int replicaSetMonitoringTimeout = 5000;
     private int retriesOnNetworkError = 1;
     private int sleepBetweenNetworkErrorRetries = 1000;
@@ -318,6 +337,174 @@ public class MorphiumConfig {
         this.cache = cache;
     }
 
+    public CacheWeigher getCacheWeigher() {
+        if (cacheWeigher == null) {
+            cacheWeigher = new ObjectSizeWeigher();
+        }
+        return cacheWeigher;
+    }
+
+    /**
+     * @param cacheWeigher estimates the size of cached results for the byte budgets
+     */
+    public void setCacheWeigher(CacheWeigher cacheWeigher) {
+        this.cacheWeigher = cacheWeigher;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    /**
+     * @param cacheMaxBytes budget for all cached results in bytes (as estimated by the cache weigher). If exceeded,
+     *                      entries of the type using most memory are evicted. &lt;=0 for no limit
+     */
+    public void setCacheMaxBytes(long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+    }
+
+    public long getCacheMaxBytesPerType() {
+        return cacheMaxBytesPerType;
+    }
+
+    /**
+     * @param cacheMaxBytesPerType budget for the cached results of one type in bytes, if not set by @Cache(maxBytes).
+     *                             &lt;=0 for no limit
+     */
+    public void setCacheMaxBytesPerType(long cacheMaxBytesPerType) {
+        this.cacheMaxBytesPerType = cacheMaxBytesPerType;
+    }
+
+    public long getCacheOffHeapBytes() {
+        return cacheOffHeapBytes;
+    }
+
+    /**
+     * @param cacheOffHeapBytes size of the second level cache outside of the java heap, evicted entries are moved
+     *                          there. 0 to disable
+     */
+    public void setCacheOffHeapBytes(long cacheOffHeapBytes) {
+        this.cacheOffHeapBytes = cacheOffHeapBytes;
+    }
+
+    public String getCacheOffHeapFile() {
+        return cacheOffHeapFile;
+    }
+
+    /**
+     * @param cacheOffHeapFile if set, the second level cache uses this memory mapped file instead of direct buffers
+     */
+    public void setCacheOffHeapFile(String cacheOffHeapFile) {
+        this.cacheOffHeapFile = cacheOffHeapFile;
+    }
+
+    public int getCacheRefreshAheadPercent() {
+        return cacheRefreshAheadPercent;
+    }
+
+    /**
+     * @param cacheRefreshAheadPercent cache entries older than this percentage of their timeout are reloaded in
+     *                                 background when read, the old result is returned meanwhile. 0 to disable
+     */
+    public void setCacheRefreshAheadPercent(int cacheRefreshAheadPercent) {
+        this.cacheRefreshAheadPercent = cacheRefreshAheadPercent;
+    }
+
+    public int getIdCacheMaxEntries() {
+        return idCacheMaxEntries;
+    }
+
+    /**
+     * @param idCacheMaxEntries maximum number of entities in the id cache of one type, &lt;=0 for no limit
+     */
+    public void setIdCacheMaxEntries(int idCacheMaxEntries) {
+        this.idCacheMaxEntries = idCacheMaxEntries;
+    }
+
+    public long getIdCacheMaxBytes() {
+        return idCacheMaxBytes;
+    }
+
+    /**
+     * @param idCacheMaxBytes budget for the id cache of one type in bytes (as estimated by the cache weigher), &lt;=0
+     *                        for no limit
+     */
+    public void setIdCacheMaxBytes(long idCacheMaxBytes) {
+        this.idCacheMaxBytes = idCacheMaxBytes;
+    }
+
+    public boolean isIdCacheSoftReferences() {
+        return idCacheSoftReferences;
+    }
+
+    /**
+     * @param idCacheSoftReferences if true, entities in id cache are only soft referenced, so GC may reclaim them
+     */
+    public void setIdCacheSoftReferences(boolean idCacheSoftReferences) {
+        this.idCacheSoftReferences = idCacheSoftReferences;
+    }
+
+    public boolean isCacheStatisticsJmx() {
+        return cacheStatisticsJmx;
+    }
+
+    /**
+     * @param cacheStatisticsJmx if true, cache statistics of each type are registered as JMX MBeans. They are
+     *                           unregistered, when the cache is reset or morphium is closed
+     */
+    public void setCacheStatisticsJmx(boolean cacheStatisticsJmx) {
+        this.cacheStatisticsJmx = cacheStatisticsJmx;
+    }
+
+    public int getCacheSyncCoalesceWindow() {
+        return cacheSyncCoalesceWindow;
+    }
+
+    /**
+     * @param cacheSyncCoalesceWindow ms the CacheSynchronizer collects clear requests, sending one message per type
+     *                                afterwards. 0 sends a message for every write
+     */
+    public void setCacheSyncCoalesceWindow(int cacheSyncCoalesceWindow) {
+        this.cacheSyncCoalesceWindow = cacheSyncCoalesceWindow;
+    }
+
+    public int getCacheSyncMaxDocumentSize() {
+        return cacheSyncMaxDocumentSize;
+    }
+
+    /**
+     * @param cacheSyncMaxDocumentSize documents of UPDATE_ENTRY types up to this size (bytes) are sent along with cache
+     *                                 sync messages, larger ones are reread by the receivers. 0 to always reread
+     */
+    public void setCacheSyncMaxDocumentSize(int cacheSyncMaxDocumentSize) {
+        this.cacheSyncMaxDocumentSize = cacheSyncMaxDocumentSize;
+    }
+
+    public int getParallelUnmarshallingThreshold() {
+        return parallelUnmarshallingThreshold;
+    }
+
+    /**
+     * @param parallelUnmarshallingThreshold results of asList with at least this many documents are unmarshalled
+     *                                       in parallel, if it is worth it (see parallelUnmarshallingMinTime).
+     *                                       0 to always unmarshall in the calling thread (default)
+     */
+    public void setParallelUnmarshallingThreshold(int parallelUnmarshallingThreshold) {
+        this.parallelUnmarshallingThreshold = parallelUnmarshallingThreshold;
+    }
+
+    public int getParallelUnmarshallingMinTime() {
+        return parallelUnmarshallingMinTime;
+    }
+
+    /**
+     * @param parallelUnmarshallingMinTime ms unmarshalling of a result is estimated to take (extrapolated from the
+     *                                     first documents) at least, before it is done in parallel
+     */
+    public void setParallelUnmarshallingMinTime(int parallelUnmarshallingMinTime) {
+        this.parallelUnmarshallingMinTime = parallelUnmarshallingMinTime;
+    }
+
     public int getWriteBufferTime() {
         return writeBufferTime;
     }
@@ -723,6 +910,14 @@ public class MorphiumConfig {
             //noinspection unchecked
             p.put("cache_I_ClassName", getCache().getClass().getName());
         }
+        if (!defaults.getCacheWeigher().getClass().equals(getCacheWeigher().getClass())) {
+            //noinspection unchecked
+            p.put("cacheWeigher_I_ClassName", getCacheWeigher().getClass().getName());
+        }
+        if (!defaults.getObjectSerializer().getClass().equals(getObjectSerializer().getClass())) {
+            //noinspection unchecked
+            p.put("objectSerializer_I_ClassName", getObjectSerializer().getClass().getName());
+        }
         if (!defaults.getAggregatorClass().equals(getAggregatorClass())) {
             //noinspection unchecked
             p.put("aggregatorClass_C_ClassName", getAggregatorClass().getName());
@@ -960,6 +1155,20 @@ public class MorphiumConfig {
         this.threadPoolAsyncOpKeepAliveTime = threadPoolAsyncOpKeepAliveTime;
     }
 
+    public ObjectSerializer getObjectSerializer() {
+        if (objectSerializer == null) {
+            objectSerializer = new CompactObjectSerializer();
+        }
+        return objectSerializer;
+    }
+
+    /**
+     * @param objectSerializer codec for values that are neither entities nor embedded, if objectSerializationEnabled
+     */
+    public void setObjectSerializer(ObjectSerializer objectSerializer) {
+        this.objectSerializer = objectSerializer;
+    }
+
     public boolean isObjectSerializationEnabled() {
         return objectSerializationEnabled;
     }
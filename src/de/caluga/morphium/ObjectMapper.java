@@ -1,7 +1,11 @@
 package de.caluga.morphium;
 
+import de.caluga.morphium.mapping.JsonReader;
+import de.caluga.morphium.mapping.JsonWriter;
 import org.json.simple.parser.ParseException;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.Map;
 
 /**
@@ -25,6 +29,37 @@ public interface ObjectMapper {
 
     <T> T unmarshall(Class<? extends T> cls, String json) throws ParseException;
 
+    /**
+     * read the next document from a json stream, see JsonReader for the extended json supported. The document is
+     * read into a map first (with values of the types the fields need) and unmarshalled like any other document
+     *
+     * @param cls  - type to unmarshall
+     * @param json - reader positioned at a document
+     * @return the unmarshalled object
+     */
+    default <T> T unmarshall(Class<? extends T> cls, JsonReader json) throws IOException {
+        return unmarshall(cls, json.readDocument());
+    }
+
+    default <T> T unmarshall(Class<? extends T> cls, Reader json) throws IOException {
+        return unmarshall(cls, new JsonReader(json));
+    }
+
+    /**
+     * marshall o to json, MorphiumIds, dates and binary data are written as extended json. o is marshalled to a
+     * document first, which is then written without creating strings per level
+     *
+     * @param o   - object to marshall
+     * @param out - where to write to
+     */
+    default void writeJson(Object o, Appendable out) throws IOException {
+        new JsonWriter(out).write(marshall(o));
+    }
+
+    default String toJson(Object o) {
+        return JsonWriter.toJson(marshall(o));
+    }
+
     /**
      * get current name provider for class
      *
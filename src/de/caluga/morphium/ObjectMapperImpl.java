@@ -1,21 +1,20 @@
 package de.caluga.morphium;
 
 import de.caluga.morphium.annotations.*;
+import de.caluga.morphium.driver.bson.MongoBob;
 import de.caluga.morphium.driver.bson.MorphiumId;
 import de.caluga.morphium.mapping.BigIntegerTypeMapper;
+import de.caluga.morphium.mapping.JsonReader;
 import de.caluga.morphium.query.Query;
-import org.json.simple.parser.ContainerFactory;
-import org.json.simple.parser.JSONParser;
+import net.sf.cglib.proxy.Enhancer;
 import org.json.simple.parser.ParseException;
-import sun.misc.BASE64Decoder;
-import sun.misc.BASE64Encoder;
-import sun.reflect.ReflectionFactory;
 
 import java.io.*;
 import java.lang.reflect.*;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -27,13 +26,14 @@ import java.util.stream.Collectors;
 @SuppressWarnings({"ConstantConditions", "MismatchedQueryAndUpdateOfCollection", "unchecked", "MismatchedReadAndWriteOfArray", "RedundantCast"})
 public class ObjectMapperImpl implements ObjectMapper {
     private static final Logger log = new Logger(ObjectMapperImpl.class);
-    private final ReflectionFactory reflection = ReflectionFactory.getReflectionFactory();
+    private static final Object NOT_DECODED = new Object();
+    private static final ObjectSerializer DEFAULT_SERIALIZER = new CompactObjectSerializer();
     private final Map<Class<?>, NameProvider> nameProviders;
-    private final JSONParser jsonParser = new JSONParser();
     private final Map<Class, TypeMapper> customMapper;
     private final List<Class<?>> mongoTypes;
-    private final ContainerFactory containerFactory;
     private AnnotationAndReflectionHelper annotationHelper = new AnnotationAndReflectionHelper(true);
+    private final Map<Class<?>, MappingPlan> plans = new ConcurrentHashMap<>();
+    private final Map<Class<?>, JsonTypeHints> jsonHints = new ConcurrentHashMap<>();
     private Morphium morphium;
 
     public ObjectMapperImpl() {
@@ -52,17 +52,6 @@ public class ObjectMapperImpl implements ObjectMapper {
         mongoTypes.add(Byte.class);
         customMapper = new Hashtable<>();
         customMapper.put(BigInteger.class, new BigIntegerTypeMapper());
-        containerFactory = new ContainerFactory() {
-            @Override
-            public Map createObjectContainer() {
-                return new HashMap<>();
-            }
-
-            @Override
-            public List creatArrayContainer() {
-                return new ArrayList();
-            }
-        };
 
 
     }
@@ -86,6 +75,17 @@ public class ObjectMapperImpl implements ObjectMapper {
         } else {
             annotationHelper = new AnnotationAndReflectionHelper(true);
         }
+        plans.clear();
+        jsonHints.clear();
+    }
+
+    private MappingPlan getMappingPlan(Class<?> cls) {
+        MappingPlan p = plans.get(cls);
+        if (p == null) {
+            p = new MappingPlan(cls, annotationHelper);
+            plans.put(cls, p);
+        }
+        return p;
     }
 
     /**
@@ -204,19 +204,10 @@ public class ObjectMapperImpl implements ObjectMapper {
             if (morphium.getConfig().isObjectSerializationEnabled()) {
                 if (o instanceof Serializable) {
                     try {
-                        BinarySerializedObject obj = new BinarySerializedObject();
-                        obj.setOriginalClassName(o.getClass().getName());
-                        ByteArrayOutputStream out = new ByteArrayOutputStream();
-                        ObjectOutputStream oout = new ObjectOutputStream(out);
-                        oout.writeObject(o);
-                        oout.flush();
-
-                        BASE64Encoder enc = new BASE64Encoder();
-
-                        String str = enc.encode(out.toByteArray());
-                        obj.setB64Data(str);
-                        return marshall(obj);
-
+                        Map<String, Object> obj = new HashMap<>();
+                        obj.put(BinarySerializedObject.DATA_FIELD, new MongoBob(morphium.getConfig().getObjectSerializer().serialize(o)));
+                        obj.put(annotationHelper.getFieldName(BinarySerializedObject.class, "originalClassName"), o.getClass().getName());
+                        return obj;
                     } catch (IOException e) {
                         throw new IllegalArgumentException("Binary serialization failed! " + o.getClass().getName(), e);
                     }
@@ -236,59 +227,40 @@ public class ObjectMapperImpl implements ObjectMapper {
             throw new IllegalArgumentException("No real class?");
         }
         o = annotationHelper.getRealObject(o);
-        List<String> flds = annotationHelper.getFields(cls);
-        if (flds == null) {
-            throw new IllegalArgumentException("Fields not found? " + cls.getName());
-        }
-        Entity e = annotationHelper.getAnnotationFromHierarchy(o.getClass(), Entity.class); //o.getClass().getAnnotation(Entity.class);
-        Embedded emb = annotationHelper.getAnnotationFromHierarchy(o.getClass(), Embedded.class); //o.getClass().getAnnotation(Embedded.class);
-
-        if (e != null && e.polymorph()) {
-            dbo.put("class_name", cls.getName());
-        }
+        MappingPlan plan = getMappingPlan(cls);
 
-        if (emb != null && emb.polymorph()) {
+        if (plan.isPolymorph()) {
             dbo.put("class_name", cls.getName());
         }
 
-        for (String f : flds) {
-            String fName = f;
+        for (MappingPlan.Property p : plan.getProperties()) {
             try {
-                Field fld = annotationHelper.getField(cls, f);
-                if (fld == null) {
-                    log.error("Field not found");
-                    continue;
-                }
-                //do not store static fields!
-                if (Modifier.isStatic(fld.getModifiers())) {
-                    continue;
-                }
-                if (fld.isAnnotationPresent(ReadOnly.class)) {
+                if (p.readOnly) {
                     continue; //do not write value
                 }
-                AdditionalData ad = fld.getAnnotation(AdditionalData.class);
+                AdditionalData ad = p.additionalData;
                 if (ad != null) {
                     if (!ad.readOnly()) {
                         //storing additional data
-                        if (fld.get(o) != null) {
-                            dbo.putAll((Map) createDBMap((Map<String, Object>) fld.get(o)));
+                        Object data = p.get(o);
+                        if (data != null) {
+                            dbo.putAll((Map) createDBMap((Map<String, Object>) data));
                         }
                     }
                     //additional data is usually transient
                     continue;
                 }
-                if (dbo.containsKey(fName)) {
+                if (dbo.containsKey(p.name)) {
                     //already stored, skip it
-                    log.warn("Field " + fName + " is shadowed - inherited values?");
+                    log.warn("Field " + p.name + " is shadowed - inherited values?");
                     continue;
                 }
-                if (fld.isAnnotationPresent(Id.class)) {
-                    fName = "_id";
-                }
+                String fName = p.dbName;
+                Field fld = p.field;
                 Object v = null;
-                Object value = fld.get(o);
-                if (fld.isAnnotationPresent(Reference.class)) {
-                    Reference r = fld.getAnnotation(Reference.class);
+                Object value = p.get(o);
+                if (p.reference != null) {
+                    Reference r = p.reference;
                     //reference handling...
                     //field should point to a certain type - store ObjectID only
                     if (value == null) {
@@ -379,21 +351,25 @@ public class ObjectMapperImpl implements ObjectMapper {
                         if (v != null) {
                             if (v instanceof Map) {
                                 //create MongoHashMap<String,Object>-Map
-                                v = createDBMap((Map) v);
+                                v = createDBMap((Map) v, p.elements);
                             } else if (v.getClass().isArray()) {
-                                List lst = new ArrayList<>();
-                                for (int i = 0; i < Array.getLength(v); i++) {
-                                    lst.add(marshallIfNecessary(Array.get(v, i)));
+                                List lst = fromPrimitiveArray(v);
+                                if (lst == null) {
+                                    lst = new ArrayList<>();
+                                    for (int i = 0; i < Array.getLength(v); i++) {
+                                        lst.add(marshallIfNecessary(Array.get(v, i)));
+                                    }
+                                    lst = createDBList(lst);
                                 }
-                                v = createDBList(lst);
+                                v = lst;
                             } else if (v instanceof List) {
-                                v = createDBList((List) v);
+                                v = createDBList((List) v, p.elements);
                             } else if (v instanceof Iterable) {
                                 ArrayList lst = new ArrayList();
                                 for (Object i : (Iterable) v) {
                                     lst.add(i);
                                 }
-                                v = createDBList(lst);
+                                v = createDBList(lst, p.elements);
                             } else if (v.getClass().equals(GregorianCalendar.class)) {
                                 v = ((GregorianCalendar) v).getTime();
                             } else if (v.getClass().isEnum()) {
@@ -403,7 +379,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                     }
                 }
                 if (v == null) {
-                    if (!fld.isAnnotationPresent(UseIfnull.class)) {
+                    if (!p.useIfNull) {
                         //Do not put null-Values into dbo => not storing null-Values to db
                         continue;
                     }
@@ -411,7 +387,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                 dbo.put(fName, v);
 
             } catch (IllegalAccessException exc) {
-                log.fatal("Illegal Access to field " + f);
+                log.fatal("Illegal Access to field " + p.name);
             }
 
         }
@@ -419,95 +395,189 @@ public class ObjectMapperImpl implements ObjectMapper {
     }
 
     private List<Object> createDBList(List v) {
-        List<Object> lst = new ArrayList<>();
+        return createDBList(v, null);
+    }
+
+    /**
+     * @param codec - element type of the list, if known. Elements matching it exactly are mapped without further
+     *              checks, all others by addDBListElement
+     */
+    private List<Object> createDBList(List v, ElementCodec codec) {
+        List<Object> lst = new ArrayList<>(v.size());
         for (Object lo : v) {
-            if (lo != null) {
-                if (annotationHelper.isAnnotationPresentInHierarchy(lo.getClass(), Entity.class) ||
-                        annotationHelper.isAnnotationPresentInHierarchy(lo.getClass(), Embedded.class)) {
-                    Map<String, Object> marshall = marshall(lo);
-                    marshall.put("class_name", lo.getClass().getName());
-                    lst.add(marshall);
-                } else if (lo instanceof List) {
-                    lst.add(createDBList((List) lo));
-                } else if (lo instanceof Map) {
-                    lst.add(createDBMap(((Map) lo)));
-                } else if (lo.getClass().isEnum()) {
-                    Map<String, Object> obj = new HashMap<>();
-                    obj.put("class_name", lo.getClass().getName());
-                    obj.put("name", ((Enum) lo).name());
-                    lst.add(obj);
-                    //throw new IllegalArgumentException("List of enums not supported yet");
-                } else if (lo.getClass().isPrimitive()
-                        || mongoTypes.contains(lo.getClass())) {
-                    lst.add(lo);
-                } else if (lo.getClass().isArray()) {
-                    for (int i = 0; i < Array.getLength(lo); i++) {
-                        try {
-                            lst.add(marshallIfNecessary(Array.get(lo, i)));
-                        } catch (Exception e) {
-                            lst.add(marshallIfNecessary(((Integer) Array.get(lo, i)).byteValue()));
+            if (lo != null && codec != null) {
+                switch (codec.getKind()) {
+                    case VALUE:
+                        if (lo.getClass() == codec.getType()) {
+                            lst.add(lo);
+                            continue;
                         }
-                    }
+                        break;
+                    case ENTITY:
+                        if (lo.getClass() == codec.getType()) {
+                            Map<String, Object> marshall = marshall(lo);
+                            marshall.put("class_name", codec.getType().getName());
+                            lst.add(marshall);
+                            continue;
+                        }
+                        break;
+                    case LIST:
+                        if (lo instanceof List) {
+                            lst.add(createDBList((List) lo, codec.getElement()));
+                            continue;
+                        }
+                        break;
+                    case MAP:
+                        if (lo instanceof Map) {
+                            lst.add(createDBMap((Map) lo, codec.getElement()));
+                            continue;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            addDBListElement(lst, lo);
+        }
+        return lst;
+    }
 
-                } else {
-                    lst.add(marshall(lo));
+    private void addDBListElement(List<Object> lst, Object lo) {
+        if (lo != null) {
+            if (annotationHelper.isAnnotationPresentInHierarchy(lo.getClass(), Entity.class) ||
+                    annotationHelper.isAnnotationPresentInHierarchy(lo.getClass(), Embedded.class)) {
+                Map<String, Object> marshall = marshall(lo);
+                marshall.put("class_name", lo.getClass().getName());
+                lst.add(marshall);
+            } else if (lo instanceof List) {
+                lst.add(createDBList((List) lo));
+            } else if (lo instanceof Map) {
+                lst.add(createDBMap(((Map) lo)));
+            } else if (lo.getClass().isEnum()) {
+                Map<String, Object> obj = new HashMap<>();
+                obj.put("class_name", lo.getClass().getName());
+                obj.put("name", ((Enum) lo).name());
+                lst.add(obj);
+                //throw new IllegalArgumentException("List of enums not supported yet");
+            } else if (lo.getClass().isPrimitive()
+                    || mongoTypes.contains(lo.getClass())) {
+                lst.add(lo);
+            } else if (lo.getClass().isArray()) {
+                for (int i = 0; i < Array.getLength(lo); i++) {
+                    try {
+                        lst.add(marshallIfNecessary(Array.get(lo, i)));
+                    } catch (Exception e) {
+                        lst.add(marshallIfNecessary(((Integer) Array.get(lo, i)).byteValue()));
+                    }
                 }
+
             } else {
-                lst.add(null);
+                lst.add(marshall(lo));
             }
+        } else {
+            lst.add(null);
         }
-        return lst;
     }
 
-    @SuppressWarnings("unchecked")
     private Map<String, Object> createDBMap(Map v) {
+        return createDBMap(v, null);
+    }
+
+    /**
+     * @param codec - value type of the map, if known. Values matching it exactly are mapped without further checks,
+     *              all others by putDBMapEntry
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> createDBMap(Map v, ElementCodec codec) {
         Map<String, Object> dbMap = new HashMap<>();
         for (Map.Entry<Object, Object> es : ((Map<Object, Object>) v).entrySet()) {
             Object k = es.getKey();
-            if (!(k instanceof String)) {
-                log.warn("Map in Mongodb needs to have String as keys - using toString");
-                k = k.toString();
-                if (((String) k).contains(".")) {
-                    log.warn(". not allowed as Key in Maps - converting to _");
-                    k = ((String) k).replaceAll("\\.", "_");
+            Object mval = es.getValue();
+            if (codec != null && mval != null && k instanceof String) {
+                switch (codec.getKind()) {
+                    case VALUE:
+                        if (mval.getClass() == codec.getType()) {
+                            dbMap.put((String) k, mval);
+                            continue;
+                        }
+                        break;
+                    case ENTITY:
+                        if (mval.getClass() == codec.getType()) {
+                            Map<String, Object> obj = marshall(mval);
+                            obj.put("class_name", codec.getType().getName());
+                            dbMap.put((String) k, obj);
+                            continue;
+                        }
+                        break;
+                    case LIST:
+                        if (mval instanceof List) {
+                            dbMap.put((String) k, createDBList((List) mval, codec.getElement()));
+                            continue;
+                        }
+                        break;
+                    case MAP:
+                        if (mval instanceof Map) {
+                            dbMap.put((String) k, createDBMap((Map) mval, codec.getElement()));
+                            continue;
+                        }
+                        break;
+                    default:
+                        break;
                 }
             }
-            Object mval = es.getValue(); // ((Map) v).get(k);
-            if (mval != null) {
-                if (annotationHelper.isAnnotationPresentInHierarchy(mval.getClass(), Entity.class) || annotationHelper.isAnnotationPresentInHierarchy(mval.getClass(), Embedded.class)) {
-                    Map<String, Object> obj = marshall(mval);
-                    obj.put("class_name", mval.getClass().getName());
-                    mval = obj;
-                } else if (mval instanceof Map) {
-                    mval = createDBMap((Map) mval);
-                } else if (mval instanceof List) {
-                    mval = createDBList((List) mval);
-                } else if (mval.getClass().isArray()) {
-                    ArrayList lst = new ArrayList();
-                    for (int i = 0; i < Array.getLength(mval); i++) {
-                        lst.add(marshallIfNecessary(Array.get(mval, i)));
-                    }
-                    mval = createDBList(lst);
-                } else if (mval.getClass().isEnum()) {
-                    Map<String, Object> obj = new HashMap<>();
-                    obj.put("class_name", mval.getClass().getName());
-                    obj.put("name", ((Enum) mval).name());
-                } else if (!mval.getClass().isPrimitive() && !mongoTypes.contains(mval.getClass())) {
-                    mval = marshall(mval);
+            putDBMapEntry(dbMap, k, mval);
+        }
+        return dbMap;
+    }
+
+    private void putDBMapEntry(Map<String, Object> dbMap, Object k, Object mval) {
+        if (!(k instanceof String)) {
+            log.warn("Map in Mongodb needs to have String as keys - using toString");
+            k = k.toString();
+            if (((String) k).contains(".")) {
+                log.warn(". not allowed as Key in Maps - converting to _");
+                k = ((String) k).replaceAll("\\.", "_");
+            }
+        }
+        if (mval != null) {
+            if (annotationHelper.isAnnotationPresentInHierarchy(mval.getClass(), Entity.class) || annotationHelper.isAnnotationPresentInHierarchy(mval.getClass(), Embedded.class)) {
+                Map<String, Object> obj = marshall(mval);
+                obj.put("class_name", mval.getClass().getName());
+                mval = obj;
+            } else if (mval instanceof Map) {
+                mval = createDBMap((Map) mval);
+            } else if (mval instanceof List) {
+                mval = createDBList((List) mval);
+            } else if (mval.getClass().isArray()) {
+                ArrayList lst = new ArrayList();
+                for (int i = 0; i < Array.getLength(mval); i++) {
+                    lst.add(marshallIfNecessary(Array.get(mval, i)));
                 }
+                mval = createDBList(lst);
+            } else if (mval.getClass().isEnum()) {
+                Map<String, Object> obj = new HashMap<>();
+                obj.put("class_name", mval.getClass().getName());
+                obj.put("name", ((Enum) mval).name());
+            } else if (!mval.getClass().isPrimitive() && !mongoTypes.contains(mval.getClass())) {
+                mval = marshall(mval);
             }
-            dbMap.put((String) k, mval);
         }
-        return dbMap;
+        dbMap.put((String) k, mval);
     }
 
     @Override
     public <T> T unmarshall(Class<? extends T> cls, String jsonString) throws ParseException {
+        JsonReader r = new JsonReader(jsonString);
+        try {
+            return unmarshall(cls, r);
+        } catch (IOException e) {
+            throw new ParseException((int) r.getPosition(), ParseException.ERROR_UNEXPECTED_EXCEPTION, e);
+        }
+    }
 
-        HashMap<String, Object> obj = (HashMap<String, Object>) jsonParser.parse(jsonString, containerFactory);
-        return unmarshall(cls, obj);
-
-
+    @Override
+    public <T> T unmarshall(Class<? extends T> cls, JsonReader json) throws IOException {
+        return unmarshall(cls, json.readDocument(getJsonHints(cls)));
     }
 
     @SuppressWarnings("unchecked")
@@ -522,6 +592,10 @@ public class ObjectMapperImpl implements ObjectMapper {
                 return (T) customMapper.get(cls).unmarshall(o.get("value"));
             }
             if (morphium != null && morphium.getConfig().isObjectSerializationEnabled() && !annotationHelper.isAnnotationPresentInHierarchy(cls, Entity.class) && !(annotationHelper.isAnnotationPresentInHierarchy(cls, Embedded.class))) {
+                if (o.containsKey(BinarySerializedObject.DATA_FIELD)) {
+                    return (T) deserialize(o.get(BinarySerializedObject.DATA_FIELD));
+                }
+                //written by older versions
                 cls = BinarySerializedObject.class;
             }
             if (o.get("class_name") != null || o.get("className") != null) {
@@ -547,359 +621,392 @@ public class ObjectMapperImpl implements ObjectMapper {
                 }
             }
 
-            Object ret = null;
+            MappingPlan plan = getMappingPlan(cls);
+            Object ret = plan.newInstance();
+            if (ret == null) {
+                throw new IllegalArgumentException("Could not instanciate " + cls.getName());
+            }
 
-            try {
-                ret = cls.newInstance();
-            } catch (Exception ignored) {
+            Map<MappingPlan.Property, Object> lazyValues = plan.hasLazyProperties() ? new HashMap<>() : null;
+            if (!unmarshallProperties(plan, plan.getProperties(o), o, ret, lazyValues)) {
+                return null;
             }
-            if (ret == null) {
-                final Constructor<Object> constructor;
-                try {
-                    constructor = (Constructor<Object>) reflection.newConstructorForSerialization(
-                            cls, Object.class.getDeclaredConstructor());
-                    ret = constructor.newInstance();
-                } catch (Exception e) {
-                    log.error(e);
+
+            if (plan.isEntity()) {
+                if (plan.getIdProperty() == null) {
+                    throw new RuntimeException("Error - class does not have an ID field!");
+                }
+                Field field = plan.getIdProperty().field;
+                if (o.get("_id") != null) {  //Embedded entitiy?
+                    if (o.get("_id").getClass().equals(field.getType())) {
+                        field.set(ret, o.get("_id"));
+                    } else if (field.getType().equals(String.class) && o.get("_id").getClass().equals(MorphiumId.class)) {
+                        log.warn("ID type missmatch - field is string but got objectId from mongo - converting");
+                        field.set(ret, o.get("_id").toString());
+                    } else if (field.getType().equals(MorphiumId.class) && o.get("_id").getClass().equals(String.class)) {
+                        //                        log.warn("ID type missmatch - field is objectId but got string from db - trying conversion");
+                        field.set(ret, new MorphiumId((String) o.get("_id")));
+                    } else {
+                        log.error("ID type missmatch");
+                        throw new IllegalArgumentException("ID type missmatch. Field in '" + ret.getClass().toString() + "' is '" + field.getType().toString() + "' but we got '" + o.get("_id").getClass().toString() + "' from Mongo!");
+                    }
                 }
             }
-            if (ret == null) {
-                throw new IllegalArgumentException("Could not instanciate " + cls.getName());
+            if (plan.isPartialUpdate() || cls.isInstance(PartiallyUpdateable.class)) {
+                return (T) morphium.createPartiallyUpdateableEntity(ret);
+            }
+            if (lazyValues != null && !lazyValues.isEmpty()) {
+                return (T) createLazyUnmarshallingProxy(plan, ret, lazyValues);
             }
-            List<String> flds = annotationHelper.getFields(cls);
+            if (ret instanceof BinarySerializedObject) {
+                BinarySerializedObject bso = (BinarySerializedObject) ret;
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(Base64.getMimeDecoder().decode(bso.getB64Data())));
+                return (T) in.readObject();
+            }
+            return (T) ret;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
 
-            for (String f : flds) {
+        //recursively fill class
 
-                Object valueFromDb = o.get(f);
-                Field fld = annotationHelper.getField(cls, f);
-                if (Modifier.isStatic(fld.getModifiers())) {
-                    //skip static fields
-                    continue;
-                }
+    }
 
-                if (fld.isAnnotationPresent(WriteOnly.class)) {
-                    continue;//do not read from DB
+    /**
+     * reads the properties from the document into ret
+     *
+     * @param lazyValues - if not null, the values of lazy properties are put there instead of being unmarshalled
+     * @return false, if the id could not be converted
+     */
+    @SuppressWarnings("unchecked")
+    private boolean unmarshallProperties(MappingPlan plan, MappingPlan.Property[] properties, Map<String, Object> o, Object ret, Map<MappingPlan.Property, Object> lazyValues) throws Exception {
+        for (MappingPlan.Property p : properties) {
+            String f = p.name;
+            Object valueFromDb = o.get(f);
+            Field fld = p.field;
+
+            if (p.writeOnly) {
+                continue;//do not read from DB
+            }
+            if (p.additionalData != null) {
+                //this field should store all data that is not put to fields
+                if (!Map.class.isAssignableFrom(fld.getType())) {
+                    log.error("Could not unmarshall additional data into fld of type " + fld.getType().toString());
+                    continue;
                 }
-                if (fld.isAnnotationPresent(AdditionalData.class)) {
-                    //this field should store all data that is not put to fields
-                    if (!Map.class.isAssignableFrom(fld.getType())) {
-                        log.error("Could not unmarshall additional data into fld of type " + fld.getType().toString());
+                Set<String> keys = o.keySet();
+                Map<String, Object> data = new HashMap<>();
+                for (String k : keys) {
+                    if (plan.isProperty(k)) {
+                        continue;
+                    }
+                    if (k.equals("_id")) {
+                        //id already mapped
                         continue;
                     }
-                    Set<String> keys = o.keySet();
-                    Map<String, Object> data = new HashMap<>();
-                    for (String k : keys) {
-                        if (flds.contains(k)) {
-                            continue;
-                        }
-                        if (k.equals("_id")) {
-                            //id already mapped
-                            continue;
-                        }
 
-                        if (o.get(k) instanceof Map) {
-                            if (((Map<String, Object>) o.get(k)).get("class_name") != null) {
-                                data.put(k, unmarshall(Class.forName((String) ((Map<String, Object>) o.get(k)).get("class_name")), (Map<String, Object>) o.get(k)));
-                            } else {
-                                data.put(k, createMap((Map<String, Object>) o.get(k)));
-                            }
-                        } else if (o.get(k) instanceof List && !((List) o.get(k)).isEmpty() && ((List) o.get(k)).get(0) instanceof Map) {
-                            data.put(k, createList((List<Map<String, Object>>) o.get(k)));
+                    if (o.get(k) instanceof Map) {
+                        if (((Map<String, Object>) o.get(k)).get("class_name") != null) {
+                            data.put(k, unmarshall(Class.forName((String) ((Map<String, Object>) o.get(k)).get("class_name")), (Map<String, Object>) o.get(k)));
                         } else {
-                            data.put(k, o.get(k));
+                            data.put(k, createMap((Map<String, Object>) o.get(k)));
                         }
-
+                    } else if (o.get(k) instanceof List && !((List) o.get(k)).isEmpty() && ((List) o.get(k)).get(0) instanceof Map) {
+                        data.put(k, createList((List<Map<String, Object>>) o.get(k)));
+                    } else {
+                        data.put(k, o.get(k));
                     }
-                    fld.set(ret, data);
-                    continue;
+
                 }
-                if (valueFromDb == null) {
-                    continue;
+                if (!p.set(ret, data)) {
+                    fld.set(ret, data);
                 }
-                Object value = null;
-                if (!Collection.class.isAssignableFrom(fld.getType()) && fld.isAnnotationPresent(Reference.class)) {
-                    //A reference - only id stored
-                    Reference reference = fld.getAnnotation(Reference.class);
-                    MorphiumReference r = null;
-                    if (morphium == null) {
-                        log.fatal("Morphium not set - could not de-reference!");
+                continue;
+            }
+            if (valueFromDb == null) {
+                continue;
+            }
+            if (p.lazy && lazyValues != null) {
+                lazyValues.put(p, valueFromDb);
+                continue;
+            }
+            Object value = null;
+            if (!p.collection && p.reference != null) {
+                //A reference - only id stored
+                Reference reference = p.reference;
+                MorphiumReference r = null;
+                if (morphium == null) {
+                    log.fatal("Morphium not set - could not de-reference!");
+                } else {
+                    Object id;
+                    if (!(valueFromDb instanceof Map)) {
+                        id = valueFromDb;
                     } else {
-                        Object id;
-                        if (!(valueFromDb instanceof Map)) {
-                            id = valueFromDb;
+                        Map<String, Object> ref = (Map<String, Object>) valueFromDb;
+                        r = unmarshall(MorphiumReference.class, ref);
+                        id = r.getId();
+                    }
+                    String collection = getCollectionName(fld.getType());
+                    if (r != null && r.getCollectionName() != null) {
+                        collection = r.getCollectionName();
+                    }
+                    if (id != null) {
+                        if (reference.lazyLoading()) {
+                            List<String> lst = annotationHelper.getFields(fld.getType(), Id.class);
+                            if (lst.isEmpty()) {
+                                throw new IllegalArgumentException("Referenced object does not have an ID? Is it an Entity?");
+                            }
+                            if (id instanceof String && annotationHelper.getField(fld.getType(), lst.get(0)).getType().equals(MorphiumId.class)) {
+                                id = new MorphiumId(id.toString());
+                            }
+                            value = morphium.createLazyLoadedEntity(fld.getType(), id, ret, f, collection);
                         } else {
-                            Map<String, Object> ref = (Map<String, Object>) valueFromDb;
-                            r = unmarshall(MorphiumReference.class, ref);
-                            id = r.getId();
-                        }
-                        String collection = getCollectionName(fld.getType());
-                        if (r != null && r.getCollectionName() != null) {
-                            collection = r.getCollectionName();
+                            //                                Query q = morphium.createQueryFor(fld.getSearchType());
+                            //                                q.f("_id").eq(id);
+                            try {
+                                morphium.fireWouldDereference(ret, f, id, fld.getType(), false);
+                                value = morphium.findById(fld.getType(), id, collection);
+                                morphium.fireDidDereference(ret, f, value, false);
+                            } catch (MorphiumAccessVetoException e) {
+                                log.info("not dereferencing due to veto from listener", e);
+                            }
                         }
-                        if (id != null) {
-                            if (reference.lazyLoading()) {
-                                List<String> lst = annotationHelper.getFields(fld.getType(), Id.class);
-                                if (lst.isEmpty()) {
-                                    throw new IllegalArgumentException("Referenced object does not have an ID? Is it an Entity?");
-                                }
-                                if (id instanceof String && annotationHelper.getField(fld.getType(), lst.get(0)).getType().equals(MorphiumId.class)) {
-                                    id = new MorphiumId(id.toString());
-                                }
-                                value = morphium.createLazyLoadedEntity(fld.getType(), id, ret, f, collection);
-                            } else {
-                                //                                Query q = morphium.createQueryFor(fld.getSearchType());
-                                //                                q.f("_id").eq(id);
-                                try {
-                                    morphium.fireWouldDereference(ret, f, id, fld.getType(), false);
-                                    value = morphium.findById(fld.getType(), id, collection);
-                                    morphium.fireDidDereference(ret, f, value, false);
-                                } catch (MorphiumAccessVetoException e) {
-                                    log.info("not dereferencing due to veto from listener", e);
-                                }
+                    } else {
+                        value = null;
+                    }
+
+                }
+            } else if (p.id) {
+                value = o.get("_id");
+                if (!value.getClass().equals(fld.getType())) {
+                    log.warn("read value and field type differ...");
+                    if (fld.getType().equals(MorphiumId.class)) {
+                        log.warn("trying objectID conversion");
+                        if (value.getClass().equals(String.class)) {
+                            try {
+                                value = new MorphiumId((String) value);
+                            } catch (Exception e) {
+                                log.error("Id conversion failed - setting returning null", e);
+                                return false;
                             }
+                        }
+                    } else if (value.getClass().equals(MorphiumId.class)) {
+                        if (fld.getType().equals(String.class)) {
+                            value = value.toString();
+                        } else if (fld.getType().equals(Long.class) || fld.getType().equals(long.class)) {
+                            value = ((MorphiumId) value).getTime();
                         } else {
-                            value = null;
+                            log.error("cannot convert - ID IS SET TO NULL. Type read from db is " + value.getClass().getName() + " - expected value is " + fld.getType().getName());
+                            return false;
                         }
-
                     }
-                } else if (fld.isAnnotationPresent(Id.class)) {
-                    value = o.get("_id");
-                    if (!value.getClass().equals(fld.getType())) {
-                        log.warn("read value and field type differ...");
-                        if (fld.getType().equals(MorphiumId.class)) {
-                            log.warn("trying objectID conversion");
-                            if (value.getClass().equals(String.class)) {
-                                try {
-                                    value = new MorphiumId((String) value);
-                                } catch (Exception e) {
-                                    log.error("Id conversion failed - setting returning null", e);
-                                    return null;
-                                }
+                }
+            } else if (annotationHelper.isAnnotationPresentInHierarchy(fld.getType(), Entity.class) || annotationHelper.isAnnotationPresentInHierarchy(fld.getType(), Embedded.class)) {
+                //entity! embedded
+                value = unmarshall(fld.getType(), (HashMap<String, Object>) valueFromDb);
+                //                    List lst = new ArrayList<Object>();
+                //                    lst.add(value);
+                //                    morphium.firePostLoad(lst);
+            } else if (hasCustomMapper(fld.getType())) {
+                if (valueFromDb instanceof Map) {
+                    value = unmarshall(fld.getType(), (HashMap<String, Object>) valueFromDb);
+                } else {
+                    value = customMapper.get(fld.getType()).unmarshall(valueFromDb);
+                }
+            } else if (Map.class.isAssignableFrom(fld.getType())) {
+                Map<String, Object> map = (Map<String, Object>) valueFromDb;
+                Map toFill = new HashMap();
+                if (map != null) {
+                    fillMap((ParameterizedType) fld.getGenericType(), p.elements, map, toFill, ret);
+                }
+                value = toFill;
+            } else if (Collection.class.isAssignableFrom(fld.getType()) || fld.getType().isArray()) {
+                Object primitives = toPrimitiveArray(fld.getType(), valueFromDb);
+                if (primitives != null) {
+                    p.set(ret, primitives);
+                    continue;
+                }
+
+                List lst = new ArrayList();
+                if (valueFromDb.getClass().isArray()) {
+                    //a real array!
+                    if (valueFromDb.getClass().getComponentType().isPrimitive()) {
+                        if (valueFromDb.getClass().getComponentType().equals(int.class)) {
+                            for (int i : (int[]) valueFromDb) {
+                                lst.add(i);
+                            }
+                        } else if (valueFromDb.getClass().getComponentType().equals(double.class)) {
+                            for (double i : (double[]) valueFromDb) {
+                                lst.add(i);
+                            }
+                        } else if (valueFromDb.getClass().getComponentType().equals(float.class)) {
+                            for (float i : (float[]) valueFromDb) {
+                                lst.add(i);
                             }
-                        } else if (value.getClass().equals(MorphiumId.class)) {
-                            if (fld.getType().equals(String.class)) {
-                                value = value.toString();
-                            } else if (fld.getType().equals(Long.class) || fld.getType().equals(long.class)) {
-                                value = ((MorphiumId) value).getTime();
-                            } else {
-                                log.error("cannot convert - ID IS SET TO NULL. Type read from db is " + value.getClass().getName() + " - expected value is " + fld.getType().getName());
-                                return null;
+                        } else if (valueFromDb.getClass().getComponentType().equals(boolean.class)) {
+                            for (boolean i : (boolean[]) valueFromDb) {
+                                lst.add(i);
+                            }
+                        } else if (valueFromDb.getClass().getComponentType().equals(byte.class)) {
+                            for (byte i : (byte[]) valueFromDb) {
+                                lst.add(i);
+                            }
+                        } else if (valueFromDb.getClass().getComponentType().equals(char.class)) {
+                            for (char i : (char[]) valueFromDb) {
+                                lst.add(i);
+                            }
+                        } else if (valueFromDb.getClass().getComponentType().equals(long.class)) {
+                            for (long i : (long[]) valueFromDb) {
+                                lst.add(i);
                             }
                         }
-                    }
-                } else if (annotationHelper.isAnnotationPresentInHierarchy(fld.getType(), Entity.class) || annotationHelper.isAnnotationPresentInHierarchy(fld.getType(), Embedded.class)) {
-                    //entity! embedded
-                    value = unmarshall(fld.getType(), (HashMap<String, Object>) valueFromDb);
-                    //                    List lst = new ArrayList<Object>();
-                    //                    lst.add(value);
-                    //                    morphium.firePostLoad(lst);
-                } else if (hasCustomMapper(fld.getType())) {
-                    if (valueFromDb instanceof Map) {
-                        value = unmarshall(fld.getType(), (HashMap<String, Object>) valueFromDb);
                     } else {
-                        value = customMapper.get(fld.getType()).unmarshall(valueFromDb);
+                        Collections.addAll(lst, (Object[]) valueFromDb);
                     }
-                } else if (Map.class.isAssignableFrom(fld.getType())) {
-                    Map<String, Object> map = (Map<String, Object>) valueFromDb;
-                    Map toFill = new HashMap();
-                    if (map != null) {
-                        fillMap((ParameterizedType) fld.getGenericType(), map, toFill, ret);
-                    }
-                    value = toFill;
-                } else if (Collection.class.isAssignableFrom(fld.getType()) || fld.getType().isArray()) {
-
-                    List lst = new ArrayList();
-                    if (valueFromDb.getClass().isArray()) {
-                        //a real array!
-                        if (valueFromDb.getClass().getComponentType().isPrimitive()) {
-                            if (valueFromDb.getClass().getComponentType().equals(int.class)) {
-                                for (int i : (int[]) valueFromDb) {
-                                    lst.add(i);
-                                }
-                            } else if (valueFromDb.getClass().getComponentType().equals(double.class)) {
-                                for (double i : (double[]) valueFromDb) {
-                                    lst.add(i);
-                                }
-                            } else if (valueFromDb.getClass().getComponentType().equals(float.class)) {
-                                for (float i : (float[]) valueFromDb) {
-                                    lst.add(i);
-                                }
-                            } else if (valueFromDb.getClass().getComponentType().equals(boolean.class)) {
-                                for (boolean i : (boolean[]) valueFromDb) {
-                                    lst.add(i);
-                                }
-                            } else if (valueFromDb.getClass().getComponentType().equals(byte.class)) {
-                                for (byte i : (byte[]) valueFromDb) {
-                                    lst.add(i);
-                                }
-                            } else if (valueFromDb.getClass().getComponentType().equals(char.class)) {
-                                for (char i : (char[]) valueFromDb) {
-                                    lst.add(i);
-                                }
-                            } else if (valueFromDb.getClass().getComponentType().equals(long.class)) {
-                                for (long i : (long[]) valueFromDb) {
-                                    lst.add(i);
+                } else {
+                    List<Map<String, Object>> l = (List<Map<String, Object>>) valueFromDb;
+                    if (l != null) {
+                        // type is List<?> or ?[]
+                        ParameterizedType type;
+                        if (fld.getGenericType() instanceof ParameterizedType) {
+                            type = (ParameterizedType) fld.getGenericType();
+                        } else
+                        // a real array! time to create a custom parameterized type!
+                        {
+                            type = new ParameterizedType() {
+
+                                @Override
+                                public Type getRawType() {
+                                    return Array.class;
                                 }
-                            }
-                        } else {
-                            Collections.addAll(lst, (Object[]) valueFromDb);
-                        }
-                    } else {
-                        List<Map<String, Object>> l = (List<Map<String, Object>>) valueFromDb;
-                        if (l != null) {
-                            // type is List<?> or ?[]
-                            ParameterizedType type;
-                            if (fld.getGenericType() instanceof ParameterizedType) {
-                                type = (ParameterizedType) fld.getGenericType();
-                            } else
-                            // a real array! time to create a custom parameterized type!
-                            {
-                                type = new ParameterizedType() {
-
-                                    @Override
-                                    public Type getRawType() {
-                                        return Array.class;
-                                    }
 
-                                    @Override
-                                    public Type getOwnerType() {
-                                        return null;
-                                    }
+                                @Override
+                                public Type getOwnerType() {
+                                    return null;
+                                }
 
-                                    @Override
-                                    public Type[] getActualTypeArguments() {
-                                        return new Type[]{fld.getType().getComponentType()};
-                                    }
-                                };
-                            }
-                            fillList(fld, fld.getAnnotation(Reference.class), type, l, lst, ret);
+                                @Override
+                                public Type[] getActualTypeArguments() {
+                                    return new Type[]{fld.getType().getComponentType()};
+                                }
+                            };
                         }
+                        fillList(fld, fld.getAnnotation(Reference.class), type, p.elements, l, lst, ret);
                     }
-                    if (fld.getType().isArray()) {
-                        Object arr = Array.newInstance(fld.getType().getComponentType(), lst.size());
-                        for (int i = 0; i < lst.size(); i++) {
-                            if (fld.getType().getComponentType().isPrimitive()) {
-                                if (fld.getType().getComponentType().equals(int.class)) {
-                                    if (lst.get(i) instanceof Double) {
-                                        Array.set(arr, i, ((Double) lst.get(i)).intValue());
-                                    } else if (lst.get(i) instanceof Integer) {
-                                        Array.set(arr, i, (Integer) lst.get(i));
-                                    } else if (lst.get(i) instanceof Long) {
-                                        Array.set(arr, i, ((Long) lst.get(i)).intValue());
-                                    } else {
-                                        //noinspection RedundantCast
-                                        Array.set(arr, i, lst.get(i));
-                                    }
-
-                                } else if (fld.getType().getComponentType().equals(long.class)) {
-                                    if (lst.get(i) instanceof Double) {
-                                        Array.set(arr, i, ((Double) lst.get(i)).longValue());
-                                    } else if (lst.get(i) instanceof Integer) {
-                                        Array.set(arr, i, ((Integer) lst.get(i)).longValue());
-                                    } else if (lst.get(i) instanceof Long) {
-                                        Array.set(arr, i, (Long) lst.get(i));
-                                    } else {
-                                        Array.set(arr, i, lst.get(i));
-                                    }
+                }
+                if (fld.getType().isArray()) {
+                    Object arr = Array.newInstance(fld.getType().getComponentType(), lst.size());
+                    for (int i = 0; i < lst.size(); i++) {
+                        if (fld.getType().getComponentType().isPrimitive()) {
+                            if (fld.getType().getComponentType().equals(int.class)) {
+                                if (lst.get(i) instanceof Double) {
+                                    Array.set(arr, i, ((Double) lst.get(i)).intValue());
+                                } else if (lst.get(i) instanceof Integer) {
+                                    Array.set(arr, i, (Integer) lst.get(i));
+                                } else if (lst.get(i) instanceof Long) {
+                                    Array.set(arr, i, ((Long) lst.get(i)).intValue());
+                                } else {
+                                    //noinspection RedundantCast
+                                    Array.set(arr, i, lst.get(i));
+                                }
 
-                                } else if (fld.getType().getComponentType().equals(float.class)) {
-                                    //Driver sends doubles instead of floats
-                                    if (lst.get(i) instanceof Double) {
-                                        Array.set(arr, i, ((Double) lst.get(i)).floatValue());
-                                    } else if (lst.get(i) instanceof Integer) {
-                                        Array.set(arr, i, ((Integer) lst.get(i)).floatValue());
-                                    } else if (lst.get(i) instanceof Long) {
-                                        Array.set(arr, i, ((Long) lst.get(i)).floatValue());
-                                    } else {
-                                        Array.set(arr, i, lst.get(i));
-                                    }
+                            } else if (fld.getType().getComponentType().equals(long.class)) {
+                                if (lst.get(i) instanceof Double) {
+                                    Array.set(arr, i, ((Double) lst.get(i)).longValue());
+                                } else if (lst.get(i) instanceof Integer) {
+                                    Array.set(arr, i, ((Integer) lst.get(i)).longValue());
+                                } else if (lst.get(i) instanceof Long) {
+                                    Array.set(arr, i, (Long) lst.get(i));
+                                } else {
+                                    Array.set(arr, i, lst.get(i));
+                                }
 
-                                } else if (fld.getType().getComponentType().equals(double.class)) {
-                                    if (lst.get(i) instanceof Float) {
-                                        Array.set(arr, i, ((Float) lst.get(i)).doubleValue());
-                                    } else if (lst.get(i) instanceof Integer) {
-                                        Array.set(arr, i, ((Integer) lst.get(i)).doubleValue());
-                                    } else if (lst.get(i) instanceof Long) {
-                                        Array.set(arr, i, ((Long) lst.get(i)).doubleValue());
-                                    } else {
-                                        Array.set(arr, i, lst.get(i));
-                                    }
+                            } else if (fld.getType().getComponentType().equals(float.class)) {
+                                //Driver sends doubles instead of floats
+                                if (lst.get(i) instanceof Double) {
+                                    Array.set(arr, i, ((Double) lst.get(i)).floatValue());
+                                } else if (lst.get(i) instanceof Integer) {
+                                    Array.set(arr, i, ((Integer) lst.get(i)).floatValue());
+                                } else if (lst.get(i) instanceof Long) {
+                                    Array.set(arr, i, ((Long) lst.get(i)).floatValue());
+                                } else {
+                                    Array.set(arr, i, lst.get(i));
+                                }
 
-                                } else if (fld.getType().getComponentType().equals(byte.class)) {
-                                    if (lst.get(i) instanceof Integer) {
-                                        Array.set(arr, i, ((Integer) lst.get(i)).byteValue());
-                                    } else if (lst.get(i) instanceof Long) {
-                                        Array.set(arr, i, ((Long) lst.get(i)).byteValue());
-                                    } else {
-                                        Array.set(arr, i, lst.get(i));
-                                    }
-                                } else if (fld.getType().getComponentType().equals(boolean.class)) {
-                                    if (lst.get(i) instanceof String) {
-                                        Array.set(arr, i, lst.get(i).toString().equalsIgnoreCase("true"));
-                                    } else if (lst.get(i) instanceof Integer) {
-                                        Array.set(arr, i, (Integer) lst.get(i) == 1);
-                                    } else {
-                                        Array.set(arr, i, lst.get(i));
-                                    }
+                            } else if (fld.getType().getComponentType().equals(double.class)) {
+                                if (lst.get(i) instanceof Float) {
+                                    Array.set(arr, i, ((Float) lst.get(i)).doubleValue());
+                                } else if (lst.get(i) instanceof Integer) {
+                                    Array.set(arr, i, ((Integer) lst.get(i)).doubleValue());
+                                } else if (lst.get(i) instanceof Long) {
+                                    Array.set(arr, i, ((Long) lst.get(i)).doubleValue());
+                                } else {
+                                    Array.set(arr, i, lst.get(i));
+                                }
 
+                            } else if (fld.getType().getComponentType().equals(byte.class)) {
+                                if (lst.get(i) instanceof Integer) {
+                                    Array.set(arr, i, ((Integer) lst.get(i)).byteValue());
+                                } else if (lst.get(i) instanceof Long) {
+                                    Array.set(arr, i, ((Long) lst.get(i)).byteValue());
+                                } else {
+                                    Array.set(arr, i, lst.get(i));
                                 }
-                            } else {
-                                Array.set(arr, i, lst.get(i));
+                            } else if (fld.getType().getComponentType().equals(boolean.class)) {
+                                if (lst.get(i) instanceof String) {
+                                    Array.set(arr, i, lst.get(i).toString().equalsIgnoreCase("true"));
+                                } else if (lst.get(i) instanceof Integer) {
+                                    Array.set(arr, i, (Integer) lst.get(i) == 1);
+                                } else {
+                                    Array.set(arr, i, lst.get(i));
+                                }
+
                             }
+                        } else {
+                            Array.set(arr, i, lst.get(i));
                         }
-                        value = arr;
-                    } else {
-                        value = lst;
                     }
+                    value = arr;
+                } else {
+                    value = lst;
+                }
 
 
+            } else {
+                if (fld.getType().isEnum()) {
+                    value = Enum.valueOf((Class<? extends Enum>) fld.getType(), (String) valueFromDb);
                 } else {
-                    if (fld.getType().isEnum()) {
-                        value = Enum.valueOf((Class<? extends Enum>) fld.getType(), (String) valueFromDb);
-                    } else {
-                        value = valueFromDb;
-                    }
+                    value = valueFromDb;
                 }
+            }
+            if (!p.set(ret, value)) {
+                //type conversion necessary
                 annotationHelper.setValue(ret, value, f);
             }
+        }
+        return true;
+    }
 
-            if (annotationHelper.isAnnotationPresentInHierarchy(cls, Entity.class)) {
-                flds = annotationHelper.getFields(cls, Id.class);
-                if (flds.isEmpty()) {
-                    throw new RuntimeException("Error - class does not have an ID field!");
-                }
-                Field field = annotationHelper.getField(cls, flds.get(0));
-                if (o.get("_id") != null) {  //Embedded entitiy?
-                    if (o.get("_id").getClass().equals(field.getType())) {
-                        field.set(ret, o.get("_id"));
-                    } else if (field.getType().equals(String.class) && o.get("_id").getClass().equals(MorphiumId.class)) {
-                        log.warn("ID type missmatch - field is string but got objectId from mongo - converting");
-                        field.set(ret, o.get("_id").toString());
-                    } else if (field.getType().equals(MorphiumId.class) && o.get("_id").getClass().equals(String.class)) {
-                        //                        log.warn("ID type missmatch - field is objectId but got string from db - trying conversion");
-                        field.set(ret, new MorphiumId((String) o.get("_id")));
-                    } else {
-                        log.error("ID type missmatch");
-                        throw new IllegalArgumentException("ID type missmatch. Field in '" + ret.getClass().toString() + "' is '" + field.getType().toString() + "' but we got '" + o.get("_id").getClass().toString() + "' from Mongo!");
-                    }
-                }
-            }
-            if (annotationHelper.isAnnotationPresentInHierarchy(cls, PartialUpdate.class) || cls.isInstance(PartiallyUpdateable.class)) {
-                return (T) morphium.createPartiallyUpdateableEntity(ret);
-            }
-            if (ret instanceof BinarySerializedObject) {
-                BinarySerializedObject bso = (BinarySerializedObject) ret;
-                BASE64Decoder dec = new BASE64Decoder();
-                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(dec.decodeBuffer(bso.getB64Data())));
-                return (T) in.readObject();
+    private Object createLazyUnmarshallingProxy(MappingPlan plan, Object ret, Map<MappingPlan.Property, Object> lazyValues) throws Exception {
+        try {
+            return Enhancer.create(plan.getType(), new Class[]{Serializable.class}, new LazyUnmarshallingProxy<>(this, plan, ret, lazyValues));
+        } catch (Exception | LinkageError e) {
+            //no accessible constructor for the proxy
+            log.warn("Cannot create proxy for " + plan.getType().getName() + " - unmarshalling lazy fields now");
+            for (Map.Entry<MappingPlan.Property, Object> v : lazyValues.entrySet()) {
+                unmarshallLazyProperty(plan, v.getKey(), v.getValue(), ret);
             }
-            return (T) ret;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return ret;
         }
+    }
 
-        //recursively fill class
-
+    /**
+     * unmarshalls the value of a @LazyUnmarshalling property, called by the LazyUnmarshallingProxy on first access
+     */
+    void unmarshallLazyProperty(MappingPlan plan, MappingPlan.Property p, Object valueFromDb, Object ret) throws Exception {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put(p.name, valueFromDb);
+        unmarshallProperties(plan, new MappingPlan.Property[]{p}, doc, ret, null);
     }
 
     private Map createMap(Map<String, Object> dbObject) {
@@ -932,15 +1039,16 @@ public class ObjectMapperImpl implements ObjectMapper {
                 } catch (ClassNotFoundException e) {
                     throw new RuntimeException(e);
                 }
+            } else if (mapVal.containsKey(BinarySerializedObject.DATA_FIELD)) {
+                return deserialize(mapVal.get(BinarySerializedObject.DATA_FIELD));
             } else if (mapVal.containsKey("_b64data") || mapVal.containsKey("b64Data")) {
                 String d = (String) mapVal.get("_b64data");
                 if (d == null) {
                     d = (String) mapVal.get("b64Data");
                 }
-                BASE64Decoder dec = new BASE64Decoder();
                 ObjectInputStream in;
                 try {
-                    in = new ObjectInputStream(new ByteArrayInputStream(dec.decodeBuffer(d)));
+                    in = new ObjectInputStream(new ByteArrayInputStream(Base64.getMimeDecoder().decode(d)));
                     return in.readObject();
                 } catch (IOException | ClassNotFoundException e) {
                     throw new RuntimeException(e);
@@ -956,12 +1064,144 @@ public class ObjectMapperImpl implements ObjectMapper {
         return val;
     }
 
+    /**
+     * @param data - stored as BSON binary: MongoBob or byte[], depending on the driver
+     */
+    private Object deserialize(Object data) {
+        byte[] b = data instanceof MongoBob ? ((MongoBob) data).getData() : (byte[]) data;
+        ObjectSerializer ser = morphium != null ? morphium.getConfig().getObjectSerializer() : DEFAULT_SERIALIZER;
+        try {
+            return ser.deserialize(b);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private List createList(List<Map<String, Object>> lst) {
         return lst.stream().map(this::unmarshallInternal).collect(Collectors.toList());
     }
 
+    /**
+     * @return values of a double[], long[], int[] or float[] as list, null for all other types
+     */
+    private List<Object> fromPrimitiveArray(Object arr) {
+        List<Object> ret;
+        if (arr instanceof double[]) {
+            ret = new ArrayList<>(((double[]) arr).length);
+            for (double d : (double[]) arr) {
+                ret.add(d);
+            }
+        } else if (arr instanceof long[]) {
+            ret = new ArrayList<>(((long[]) arr).length);
+            for (long l : (long[]) arr) {
+                ret.add(l);
+            }
+        } else if (arr instanceof int[]) {
+            ret = new ArrayList<>(((int[]) arr).length);
+            for (int i : (int[]) arr) {
+                ret.add(i);
+            }
+        } else if (arr instanceof float[]) {
+            ret = new ArrayList<>(((float[]) arr).length);
+            for (float f : (float[]) arr) {
+                ret.add(f);
+            }
+        } else {
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * creates a double[], long[], int[] or float[] from a list of numbers directly, without an intermediate list
+     * and Array.set for every element
+     *
+     * @return null, if type is not one of those or the value contains anything else than numbers
+     */
+    private Object toPrimitiveArray(Class<?> type, Object valueFromDb) {
+        if (valueFromDb.getClass() == type && type.isArray() && type.getComponentType().isPrimitive()) {
+            return valueFromDb;
+        }
+        if (!(valueFromDb instanceof List) || !type.isArray()) {
+            return null;
+        }
+        List l = (List) valueFromDb;
+        Class<?> comp = type.getComponentType();
+        Object ret;
+        if (comp == double.class) {
+            ret = new double[l.size()];
+        } else if (comp == long.class) {
+            ret = new long[l.size()];
+        } else if (comp == int.class) {
+            ret = new int[l.size()];
+        } else if (comp == float.class) {
+            ret = new float[l.size()];
+        } else {
+            return null;
+        }
+        int i = 0;
+        for (Object o : l) {
+            if (!(o instanceof Number)) {
+                return null;
+            }
+            Number n = (Number) o;
+            if (comp == double.class) {
+                ((double[]) ret)[i] = n.doubleValue();
+            } else if (comp == long.class) {
+                ((long[]) ret)[i] = n.longValue();
+            } else if (comp == int.class) {
+                ((int[]) ret)[i] = n.intValue();
+            } else {
+                ((float[]) ret)[i] = n.floatValue();
+            }
+            i++;
+        }
+        return ret;
+    }
+
+    /**
+     * maps an element of a list or a value of a map using the codec resolved from the field type
+     *
+     * @return the mapped value or NOT_DECODED, if the generic mapping is needed
+     */
+    @SuppressWarnings("unchecked")
+    private Object decodeElement(ElementCodec codec, Field forField, Object val, Object containerEntity) {
+        if (codec == null) {
+            return NOT_DECODED;
+        }
+        switch (codec.getKind()) {
+            case VALUE:
+                if (val == null || val.getClass() == codec.getType()) {
+                    return val;
+                }
+                break;
+            case ENTITY:
+                if (val instanceof Map) {
+                    return unmarshall(codec.getType(), (Map<String, Object>) val);
+                }
+                break;
+            case LIST:
+                if (val instanceof List) {
+                    ArrayList lt = new ArrayList();
+                    fillList(forField, null, (ParameterizedType) codec.getGenericType(), codec.getElement(), (List<Map<String, Object>>) val, lt, containerEntity);
+                    return lt;
+                }
+                break;
+            case MAP:
+                if (val instanceof Map) {
+                    HashMap mp = new HashMap();
+                    fillMap((ParameterizedType) codec.getGenericType(), codec.getElement(), (Map<String, Object>) val, mp, containerEntity);
+                    return mp;
+                }
+                break;
+            default:
+                break;
+        }
+        return NOT_DECODED;
+    }
+
     @SuppressWarnings({"unchecked", "ConstantConditions"})
-    private void fillList(Field forField, Reference ref, ParameterizedType listType, List<Map<String, Object>> fromDB, List toFillIn, Object containerEntity) {
+    private void fillList(Field forField, Reference ref, ParameterizedType listType, ElementCodec codec, List<Map<String, Object>> fromDB, List toFillIn, Object containerEntity) {
         if (ref != null) {
             for (Map<String, Object> obj : fromDB) {
                 if (obj == null) {
@@ -992,6 +1232,11 @@ public class ObjectMapperImpl implements ObjectMapper {
             return;
         }
         for (Object val : fromDB) {
+            Object decoded = decodeElement(codec, forField, val, containerEntity);
+            if (decoded != NOT_DECODED) {
+                toFillIn.add(decoded);
+                continue;
+            }
             if (val instanceof Map) {
                 if (listType != null) {
                     //have a list of something
@@ -999,7 +1244,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                     if (Map.class.isAssignableFrom(cls)) {
                         // that is an actual map!
                         HashMap mp = new HashMap();
-                        fillMap((ParameterizedType) listType.getActualTypeArguments()[0], (Map<String, Object>) val, mp, containerEntity);
+                        fillMap((ParameterizedType) listType.getActualTypeArguments()[0], null, (Map<String, Object>) val, mp, containerEntity);
                         toFillIn.add(mp);
                         continue;
                     } else {
@@ -1012,7 +1257,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                     }
                 } else {
                     HashMap mp = new HashMap();
-                    fillMap((ParameterizedType) listType.getActualTypeArguments()[0], (Map<String, Object>) val, mp, containerEntity);
+                    fillMap((ParameterizedType) listType.getActualTypeArguments()[0], null, (Map<String, Object>) val, mp, containerEntity);
                     toFillIn.add(mp);
                     continue;
                 }
@@ -1036,7 +1281,7 @@ public class ObjectMapperImpl implements ObjectMapper {
             } else if (val instanceof List) {
                 //list in list
                 ArrayList lt = new ArrayList();
-                fillList(forField, ref, (ParameterizedType) listType.getActualTypeArguments()[0], (List<Map<String, Object>>) val, lt, containerEntity);
+                fillList(forField, ref, (ParameterizedType) listType.getActualTypeArguments()[0], null, (List<Map<String, Object>>) val, lt, containerEntity);
                 toFillIn.add(lt);
                 continue;
 
@@ -1055,10 +1300,15 @@ public class ObjectMapperImpl implements ObjectMapper {
     }
 
     @SuppressWarnings({"unchecked", "ConstantConditions"})
-    private void fillMap(ParameterizedType mapType, Map<String, Object> fromDB, Map toFillIn, Object containerEntity) {
+    private void fillMap(ParameterizedType mapType, ElementCodec codec, Map<String, Object> fromDB, Map toFillIn, Object containerEntity) {
         for (Entry<String, Object> entry : fromDB.entrySet()) {
             String key = entry.getKey();
             Object val = entry.getValue();
+            Object decoded = decodeElement(codec, null, val, containerEntity);
+            if (decoded != NOT_DECODED) {
+                toFillIn.put(key, decoded);
+                continue;
+            }
             if (val instanceof Map) {
                 if (mapType != null) {
                     //have a list of something
@@ -1066,7 +1316,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                     if (Map.class.isAssignableFrom(cls)) {
                         // this is an actual map
                         HashMap mp = new HashMap();
-                        fillMap((ParameterizedType) mapType.getActualTypeArguments()[1], (Map<String, Object>) val, mp, containerEntity);
+                        fillMap((ParameterizedType) mapType.getActualTypeArguments()[1], null, (Map<String, Object>) val, mp, containerEntity);
                         toFillIn.put(key, mp);
                         continue;
                     } else {
@@ -1079,7 +1329,7 @@ public class ObjectMapperImpl implements ObjectMapper {
                     }
                 } else {
                     HashMap mp = new HashMap();
-                    fillMap((ParameterizedType) mapType.getActualTypeArguments()[1], (Map<String, Object>) val, mp, containerEntity);
+                    fillMap((ParameterizedType) mapType.getActualTypeArguments()[1], null, (Map<String, Object>) val, mp, containerEntity);
                     toFillIn.put(key, mp);
                     continue;
                 }
@@ -1104,7 +1354,7 @@ public class ObjectMapperImpl implements ObjectMapper {
             } else if (val instanceof List) {
                 //list in list
                 ArrayList lt = new ArrayList();
-                fillList(null, null, (ParameterizedType) mapType.getActualTypeArguments()[1], (List<Map<String, Object>>) val, lt, containerEntity);
+                fillList(null, null, (ParameterizedType) mapType.getActualTypeArguments()[1], null, (List<Map<String, Object>>) val, lt, containerEntity);
                 toFillIn.put(key, lt);
                 continue;
 
@@ -1112,4 +1362,91 @@ public class ObjectMapperImpl implements ObjectMapper {
             toFillIn.put(key, unmarshallInternal(val));
         }
     }
+
+    private JsonTypeHints getJsonHints(Class<?> type) {
+        JsonTypeHints h = jsonHints.get(type);
+        if (h == null) {
+            h = new JsonTypeHints(type, null);
+            jsonHints.put(type, h);
+        }
+        return h;
+    }
+
+    /**
+     * expected types for the JsonReader, taken from the mapping plans: the type of a field, the element type of
+     * collections, arrays and maps and the properties of entities and embedded objects. Hints for the properties and
+     * elements are created once on first use and kept, hints for types are cached in jsonHints, so reading a document
+     * does not create any of them.
+     */
+    private final class JsonTypeHints implements JsonReader.TypeHints {
+        private final Class<?> type;
+        private final ElementCodec elements;
+        private final boolean mapped;
+        private volatile Map<String, JsonReader.TypeHints> fields;
+        private volatile JsonReader.TypeHints element;
+
+        /**
+         * @param elements - codec of the elements or map values, may be null
+         */
+        private JsonTypeHints(Class<?> type, ElementCodec elements) {
+            this.type = type;
+            this.elements = elements;
+            mapped = annotationHelper.isAnnotationPresentInHierarchy(type, Entity.class) || annotationHelper.isAnnotationPresentInHierarchy(type, Embedded.class);
+        }
+
+        private JsonTypeHints(ElementCodec codec) {
+            this(codec.getType(), codec.getKind() == ElementCodec.Kind.LIST || codec.getKind() == ElementCodec.Kind.MAP ? codec.getElement() : null);
+        }
+
+        @Override
+        public Class<?> getType() {
+            return type;
+        }
+
+        @Override
+        public JsonReader.TypeHints getField(String key) {
+            if (Map.class.isAssignableFrom(type)) {
+                return getElement();
+            }
+            if (!mapped) {
+                return null;
+            }
+            Map<String, JsonReader.TypeHints> f = fields;
+            if (f == null) {
+                f = new HashMap<>();
+                MappingPlan plan = getMappingPlan(type);
+                for (MappingPlan.Property p : plan.getProperties()) {
+                    if (p.reference == null && !f.containsKey(p.name)) {
+                        f.put(p.name, getHints(p.type, p.elements));
+                    }
+                }
+                MappingPlan.Property id = plan.getIdProperty();
+                if (id != null && id.reference == null) {
+                    f.put(id.dbName, getHints(id.type, id.elements));
+                }
+                fields = f;
+            }
+            return f.get(key);
+        }
+
+        @Override
+        public JsonReader.TypeHints getElement() {
+            JsonReader.TypeHints e = element;
+            if (e == null) {
+                if (elements != null) {
+                    e = new JsonTypeHints(elements);
+                } else if (type.isArray()) {
+                    e = getJsonHints(type.getComponentType());
+                } else {
+                    return null;
+                }
+                element = e;
+            }
+            return e;
+        }
+
+        private JsonReader.TypeHints getHints(Class<?> t, ElementCodec codec) {
+            return codec == null ? getJsonHints(t) : new JsonTypeHints(t, codec);
+        }
+    }
 }
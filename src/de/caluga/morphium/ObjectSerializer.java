@@ -0,0 +1,16 @@
+package de.caluga.morphium;
+
+import java.io.IOException;
+
+/**
+ * Codec for values, that are neither entities nor embedded objects, used if objectSerializationEnabled is set in
+ * the MorphiumConfig. The bytes are stored as BSON binary. Default is the CompactObjectSerializer, set a different
+ * one (e.g. a schema based format for your own classes) with MorphiumConfig.setObjectSerializer.
+ * <p>
+ * Implementations have to be thread safe.
+ */
+public interface ObjectSerializer {
+    byte[] serialize(Object o) throws IOException;
+
+    Object deserialize(byte[] data) throws IOException, ClassNotFoundException;
+}
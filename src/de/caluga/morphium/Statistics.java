@@ -1,6 +1,7 @@
 package de.caluga.morphium;
 
 import de.caluga.morphium.cache.CacheElement;
+import de.caluga.morphium.cache.CacheKey;
 
 import java.util.Arrays;
 import java.util.HashMap;
@@ -19,9 +20,9 @@ public class Statistics extends HashMap<String, Double> {
             super.put(et.getKey().name(), (double) et.getValue().get());
         }
         double entries = 0;
-        Map<Class<?>, Map<String, CacheElement>> cc = morphium.getCache().getCache();
-        for (Map.Entry<Class<?>, Map<String, CacheElement>> en : cc.entrySet()) {
-            Map<String, CacheElement> lst = en.getValue();
+        Map<Class<?>, Map<CacheKey, CacheElement>> cc = morphium.getCache().getCacheEntries();
+        for (Map.Entry<Class<?>, Map<CacheKey, CacheElement>> en : cc.entrySet()) {
+            Map<CacheKey, CacheElement> lst = en.getValue();
             entries += lst.size();
             super.put("X-Entries for: " + en.getKey().getName(), (double) lst.size());
         }
@@ -0,0 +1,112 @@
+package de.caluga.morphium;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Simple hashed timer wheel. Elements are scheduled for a point in time in O(1) and put into the slot of that tick.
+ * Calling advance returns all elements due until then, only looking at the slots of the ticks passed since the last
+ * call. Elements scheduled more than one rotation ahead stay in their slot until their round comes.
+ * <p>
+ * The wheel has no thread of its own, advance needs to be called regularly by the owner. Elements are never
+ * cancelled, the owner should check if a returned element is still valid.
+ */
+@SuppressWarnings("WeakerAccess")
+public class TimerWheel<T> {
+    private final long tickMs;
+    private final List<Entry<T>>[] slots;
+    private volatile long processedTick;
+    private volatile int size = 0;
+
+    /**
+     * @param tickMs    resolution of the wheel in ms
+     * @param slotCount number of slots - one rotation covers tickMs*slotCount ms
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMs, int slotCount) {
+        this.tickMs = tickMs;
+        slots = new List[slotCount];
+        processedTick = System.currentTimeMillis() / tickMs;
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    /**
+     * @return number of scheduled elements
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * schedules element to be returned by advance at or after dueAt. Elements due in the past are returned by the
+     * next call to advance
+     */
+    public void schedule(T element, long dueAt) {
+        long tick = Math.max(dueAt / tickMs, processedTick + 1);
+        int idx = (int) (tick % slots.length);
+        synchronized (slots) {
+            if (slots[idx] == null) {
+                slots[idx] = new ArrayList<>();
+            }
+            slots[idx].add(new Entry<>(element, dueAt));
+            size++;
+        }
+    }
+
+    /**
+     * @param now current time in ms
+     * @return all elements that are due
+     */
+    public List<T> advance(long now) {
+        List<T> ret = new ArrayList<>();
+        long nowTick = now / tickMs;
+        long from = processedTick + 1;
+        if (nowTick - from >= slots.length) {
+            //more than one rotation passed, every slot needs to be checked once
+            from = nowTick - slots.length + 1;
+        }
+        synchronized (slots) {
+            for (long t = from; t <= nowTick; t++) {
+                List<Entry<T>> slot = slots[(int) (t % slots.length)];
+                if (slot == null) {
+                    continue;
+                }
+                for (Iterator<Entry<T>> it = slot.iterator(); it.hasNext(); ) {
+                    Entry<T> e = it.next();
+                    if (e.dueAt <= now) {
+                        ret.add(e.element);
+                        it.remove();
+                        size--;
+                    }
+                }
+            }
+            if (nowTick > processedTick) {
+                processedTick = nowTick;
+            }
+        }
+        return ret;
+    }
+
+    public void clear() {
+        synchronized (slots) {
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = null;
+            }
+            size = 0;
+        }
+    }
+
+    private static class Entry<T> {
+        private final T element;
+        private final long dueAt;
+
+        private Entry(T element, long dueAt) {
+            this.element = element;
+            this.dueAt = dueAt;
+        }
+    }
+}
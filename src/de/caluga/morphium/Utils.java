@@ -15,10 +15,19 @@ public class Utils {
 
     public static final String[] hexChars = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F",};
 
-    @SuppressWarnings({"unchecked", "UnusedDeclaration"})
+    /**
+     * readable json like representation of maps and collections, for logging. Not escaped, use the
+     * ObjectMapper.toJson for real json.
+     */
+    @SuppressWarnings("UnusedDeclaration")
     public static String toJsonString(Object o) {
-
         StringBuilder b = new StringBuilder();
+        appendJsonString(b, o);
+        return b.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendJsonString(StringBuilder b, Object o) {
         boolean comma = false;
         if (o instanceof Collection) {
             b.append(" [ ");
@@ -28,19 +37,20 @@ public class Utils {
                     b.append(", ");
                 }
                 comma = true;
-                b.append(toJsonString(obj));
+                appendJsonString(b, obj);
             }
             b.append("]");
-            return b.toString();
+            return;
         } else if (o instanceof String) {
-            return "\"" + o.toString() + "\"";
+            b.append("\"").append((String) o).append("\"");
+            return;
         } else if (!(o instanceof Map)) {
-            return o.toString();
+            b.append(o);
+            return;
         }
         Map<String, Object> db = (Map<String, Object>) o;
 
         b.append("{ ");
-        comma = false;
         for (Map.Entry<String, Object> e : db.entrySet()) {
             if (comma) {
                 b.append(", ");
@@ -63,12 +73,11 @@ public class Utils {
                 b.append(e.getValue().toString());
                 b.append("\"");
             } else {
-                b.append(toJsonString(e.getValue()));
+                appendJsonString(b, e.getValue());
             }
 
         }
         b.append(" } ");
-        return b.toString();
     }
 
     public static <K, V> Map<K, V> getMap(K key, V value) {
@@ -0,0 +1,21 @@
+package de.caluga.morphium.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+
+/**
+ * Mark a rarely used, expensive field (large embedded lists, blobs...) to be unmarshalled on first access only.
+ * The value is kept as read from mongo and the entity is returned as proxy, which unmarshalls the field, when its
+ * getter (getXxx / isXxx) is called. Getters of other fields are assumed to read only their field and unmarshall
+ * nothing, any other method call unmarshalls all pending fields.
+ * <p>
+ * Like for @PartialUpdate, access has to go through methods, fields of the proxy itself are not set. Ignored for
+ * ids, references, @AdditionalData and in entities with @Lifecycle or @PartialUpdate.
+ */
+@Target({FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface LazyUnmarshalling {
+}
@@ -15,10 +15,15 @@ import static java.lang.annotation.ElementType.TYPE;
  * Define the caching configuration of a given MongoDbObject. The options are as follows:
  * timeout: int timout in ms when a cache entry becomes invalid
  * maxEntries: default -1 means unlimited (Only limited by Memory, uses SoftReferences!)
+ * maxBytes: maximum estimated size of all cached results of this type, default -1 means the per type budget of
+ * MorphiumConfig is used
  * clearOnWrite: clear cache if one element is written
  * strategy: when using fixed number of entries, define how to remove additional entries
  * readCache: use cache for reading
  * writeCache: use cache for writing (schedule write as background job), default false
+ * readMode: how cached results are handed out. SHARED (default) returns the cached list itself, UNMODIFIABLE an
+ * unmodifiable list of the shared entities, COPY new entities for each read, re-created from a BSON snapshot taken
+ * when the result was cached. Only the snapshot is kept for COPY, so reads cost an unmarshall each
  *
  * @author stephan
  */
@@ -31,6 +36,8 @@ public @interface Cache {
 
     int maxEntries() default -1;
 
+    long maxBytes() default -1;
+
     //    boolean overridable() default false;
 
     ClearStrategy strategy() default ClearStrategy.FIFO;
@@ -39,8 +46,12 @@ public @interface Cache {
 
     SyncCacheStrategy syncCache() default SyncCacheStrategy.NONE;
 
+    ReadMode readMode() default ReadMode.SHARED;
+
     enum ClearStrategy {LRU, FIFO, RANDOM}
 
     enum SyncCacheStrategy {NONE, CLEAR_TYPE_CACHE, REMOVE_ENTRY_FROM_TYPE_CACHE, UPDATE_ENTRY}
 
+    enum ReadMode {SHARED, UNMODIFIABLE, COPY}
+
 }
\ No newline at end of file
@@ -13,8 +13,10 @@ import java.util.List;
 public class CacheElement<T> {
 
     private long created;
-    private List<T> found;
+    private volatile List<T> found;
     private long lru;
+    private long weight;
+    private volatile byte[][] snapshot;
 
     public CacheElement(List<T> found) {
         this.found = found;
@@ -38,6 +40,10 @@ public class CacheElement<T> {
         return created;
     }
 
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
     public long getLru() {
         return lru;
     }
@@ -45,4 +51,26 @@ public class CacheElement<T> {
     public void setLru(long lru) {
         this.lru = lru;
     }
+
+    /**
+     * @return estimated size of this element, as determined by the CacheWeigher
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    public void setWeight(long weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return BSON encoded entities, if cached with ReadMode.COPY. null otherwise
+     */
+    public byte[][] getSnapshot() {
+        return snapshot;
+    }
+
+    public void setSnapshot(byte[][] snapshot) {
+        this.snapshot = snapshot;
+    }
 }
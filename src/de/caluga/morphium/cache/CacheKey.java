@@ -0,0 +1,350 @@
+package de.caluga.morphium.cache;
+
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable key of a cached query result. The query is stored canonicalized - the filter and operator maps are sorted
+ * by key, so that logically equal queries result in equal keys regardless of the order the conditions were added.
+ * Embedded documents keep their order, {a:{x:1,y:2}} and {a:{y:2,x:1}} are different queries. The hash code is
+ * calculated once, equals compares the hash first.
+ * <p>
+ * Keys for entries added manually can be created from a string by of(String).
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CacheKey {
+    private final Object query;
+    private final String collection;
+    private final int skip;
+    private final int limit;
+    private final List<Object> sort;
+    private final boolean idList;
+    private final String name;
+    private final int hash;
+    private volatile String shape;
+
+    public CacheKey(Map<String, Object> query, Map<String, Integer> sort, String collection, int skip, int limit) {
+        this(canonicalize(query), sortList(sort), collection, skip, limit, false, null);
+    }
+
+    private CacheKey(Object query, List<Object> sort, String collection, int skip, int limit, boolean idList, String name) {
+        this.query = query;
+        this.sort = sort;
+        this.collection = collection;
+        this.skip = skip;
+        this.limit = limit;
+        this.idList = idList;
+        this.name = name;
+        hash = Objects.hash(query, sort, collection, skip, limit, idList, name);
+    }
+
+    /**
+     * @return key for manually added entries
+     */
+    public static CacheKey of(String name) {
+        return new CacheKey(null, null, null, 0, 0, name.endsWith("idlist"), name);
+    }
+
+    /**
+     * @return the key for caching the id list of this query
+     */
+    public CacheKey toIdListKey() {
+        if (idList) {
+            return this;
+        }
+        return new CacheKey(query, sort, collection, skip, limit, true, name);
+    }
+
+    /**
+     * @return true, if the result cached for this key is a list of ids, not entities
+     */
+    public boolean isIdList() {
+        return idList;
+    }
+
+    /**
+     * @return the canonicalized query, unmodifiable. Null for manually created keys
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getQuery() {
+        return (Map<String, Object>) query;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public int getSkip() {
+        return skip;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return sort fields and directions, alternating. Null if unsorted
+     */
+    public List<Object> getSort() {
+        return sort;
+    }
+
+    /**
+     * @return the structure of the query (fields and operators) with all values replaced by ?, including collection
+     * and sort. Null for manually created keys
+     */
+    public String getShape() {
+        if (name != null) {
+            return null;
+        }
+        if (shape == null) {
+            StringBuilder b = new StringBuilder();
+            appendShape(b, query);
+            b.append(" c:").append(collection);
+            if (sort != null) {
+                b.append(" sort:");
+                for (int i = 0; i < sort.size(); i += 2) {
+                    b.append(" ").append(sort.get(i)).append(":").append(sort.get(i + 1));
+                }
+            }
+            if (idList) {
+                b.append(" idlist");
+            }
+            shape = b.toString();
+        }
+        return shape;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendShape(StringBuilder b, Object o) {
+        if (o instanceof Map && !(o instanceof Document)) {
+            b.append("{");
+            boolean first = true;
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) o).entrySet()) {
+                if (!first) {
+                    b.append(", ");
+                }
+                first = false;
+                b.append(e.getKey()).append("=");
+                appendShape(b, e.getValue());
+            }
+            b.append("}");
+        } else if (o instanceof List && !((List) o).isEmpty() && ((List) o).get(0) instanceof Map) {
+            //e.g. $and / $or
+            b.append("[");
+            for (Object e : (List) o) {
+                appendShape(b, e);
+            }
+            b.append("]");
+        } else {
+            b.append("?");
+        }
+    }
+
+    /**
+     * sorts the filter by field name. Operator maps and the filters in $and/$or/$nor are sorted as well, values
+     * (e.g. embedded documents) keep their order, as mongo compares those order sensitive
+     */
+    @SuppressWarnings("unchecked")
+    private static Object canonicalize(Object o) {
+        if (!(o instanceof Map)) {
+            return value(o);
+        }
+        TreeMap<String, Object> ret = new TreeMap<>();
+        for (Map.Entry<Object, Object> e : ((Map<Object, Object>) o).entrySet()) {
+            String k = String.valueOf(e.getKey());
+            Object v = e.getValue();
+            if (k.equals("$and") || k.equals("$or") || k.equals("$nor")) {
+                if (v instanceof Collection) {
+                    List<Object> l = new ArrayList<>(((Collection) v).size());
+                    for (Object f : (Collection) v) {
+                        l.add(canonicalize(f));
+                    }
+                    ret.put(k, Collections.unmodifiableList(l));
+                } else {
+                    ret.put(k, value(v));
+                }
+            } else if (k.startsWith("$")) {
+                ret.put(k, value(v));
+            } else {
+                ret.put(k, condition(v));
+            }
+        }
+        return Collections.unmodifiableSortedMap(ret);
+    }
+
+    /**
+     * condition of a field, operator maps like {$in:..., $exists:...} are sorted
+     */
+    @SuppressWarnings("unchecked")
+    private static Object condition(Object o) {
+        if (!isOperatorMap(o)) {
+            return value(o);
+        }
+        TreeMap<String, Object> ret = new TreeMap<>();
+        for (Map.Entry<Object, Object> e : ((Map<Object, Object>) o).entrySet()) {
+            String k = String.valueOf(e.getKey());
+            Object v = e.getValue();
+            if (k.equals("$elemMatch")) {
+                ret.put(k, isOperatorMap(v) ? condition(v) : canonicalize(v));
+            } else if (k.equals("$not")) {
+                ret.put(k, condition(v));
+            } else {
+                ret.put(k, value(v));
+            }
+        }
+        return Collections.unmodifiableSortedMap(ret);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean isOperatorMap(Object o) {
+        if (!(o instanceof Map) || ((Map) o).isEmpty()) {
+            return false;
+        }
+        for (Object k : ((Map<Object, Object>) o).keySet()) {
+            if (!String.valueOf(k).startsWith("$")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object value(Object o) {
+        if (o instanceof Map) {
+            LinkedHashMap<String, Object> ret = new LinkedHashMap<>();
+            for (Map.Entry<Object, Object> e : ((Map<Object, Object>) o).entrySet()) {
+                ret.put(String.valueOf(e.getKey()), value(e.getValue()));
+            }
+            return new Document(ret);
+        }
+        if (o instanceof Collection) {
+            List<Object> ret = new ArrayList<>(((Collection) o).size());
+            for (Object e : (Collection) o) {
+                ret.add(value(e));
+            }
+            return Collections.unmodifiableList(ret);
+        }
+        if (o != null && o.getClass().isArray()) {
+            List<Object> ret = new ArrayList<>();
+            for (int i = 0; i < Array.getLength(o); i++) {
+                ret.add(value(Array.get(o, i)));
+            }
+            return Collections.unmodifiableList(ret);
+        }
+        if (o instanceof Pattern) {
+            //Pattern does not implement equals
+            return new Regex((Pattern) o);
+        }
+        return o;
+    }
+
+    private static List<Object> sortList(Map<String, Integer> sort) {
+        if (sort == null || sort.isEmpty()) {
+            return null;
+        }
+        //order of sort fields matters
+        List<Object> ret = new ArrayList<>(sort.size() * 2);
+        for (Map.Entry<String, Integer> e : sort.entrySet()) {
+            ret.add(e.getKey());
+            ret.add(e.getValue());
+        }
+        return Collections.unmodifiableList(ret);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey k = (CacheKey) o;
+        return hash == k.hash && skip == k.skip && limit == k.limit && idList == k.idList
+                && Objects.equals(collection, k.collection) && Objects.equals(name, k.name)
+                && Objects.equals(sort, k.sort) && Objects.equals(query, k.query);
+    }
+
+    @Override
+    public String toString() {
+        if (name != null) {
+            return name;
+        }
+        StringBuilder b = new StringBuilder();
+        b.append(query);
+        b.append(" c:").append(collection);
+        b.append(" l:").append(limit);
+        b.append(" s:").append(skip);
+        if (sort != null) {
+            b.append(" sort:");
+            for (int i = 0; i < sort.size(); i += 2) {
+                b.append(" ").append(sort.get(i)).append(":").append(sort.get(i + 1));
+            }
+        }
+        if (idList) {
+            b.append(" idlist");
+        }
+        return b.toString();
+    }
+
+    /**
+     * regular expression in a query, comparable by pattern and flags
+     */
+    private static final class Regex {
+        private final String pattern;
+        private final int flags;
+
+        private Regex(Pattern p) {
+            pattern = p.pattern();
+            flags = p.flags();
+        }
+
+        @Override
+        public int hashCode() {
+            return pattern.hashCode() * 31 + flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Regex && ((Regex) o).flags == flags && ((Regex) o).pattern.equals(pattern);
+        }
+
+        @Override
+        public String toString() {
+            return pattern;
+        }
+    }
+
+    /**
+     * embedded document in a query, unmodifiable. Compared order sensitive
+     */
+    private static final class Document extends AbstractMap<String, Object> {
+        private final Map<String, Object> map;
+
+        private Document(LinkedHashMap<String, Object> map) {
+            this.map = Collections.unmodifiableMap(map);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return map.entrySet();
+        }
+
+        @Override
+        public int hashCode() {
+            return new ArrayList<>(map.entrySet()).hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Document && new ArrayList<>(map.entrySet()).equals(new ArrayList<>(((Document) o).map.entrySet()));
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package de.caluga.morphium.cache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache statistics of one type: hits, misses, loads with load time histogram and removals by reason. Additionally
+ * the same numbers are kept per query shape, i.e. the query with all values replaced by ?, so that
+ * <code>{counter: {$gt: 5}}</code> and <code>{counter: {$gt: 7}}</code> are counted together. At most MAX_SHAPES
+ * shapes are tracked, others are counted as OTHER_SHAPES. Removals caused by clearing the whole type are only
+ * counted for the type.
+ * <p>
+ * The load time histogram has one bucket per power of two milliseconds: bucket 0 counts loads faster than 1ms,
+ * bucket i loads taking 2^(i-1) up to 2^i ms, the last one all slower loads.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CacheStats implements CacheStatsMBean {
+    public static final int MAX_SHAPES = 1000;
+    public static final String OTHER_SHAPES = "*";
+    public static final int HISTOGRAM_BUCKETS = 18;
+
+    private final String name;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadTime = new LongAdder();
+    private final LongAdder[] removals = new LongAdder[RemovalReason.values().length];
+    private final AtomicLongArray loadTimeHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final Map<String, CacheStats> shapes;
+    private final IntSupplier entries;
+    private final LongSupplier estimatedBytes;
+
+    /**
+     * @param name           - type name
+     * @param entries        - current number of entries, may be null
+     * @param estimatedBytes - current size, may be null
+     */
+    public CacheStats(String name, IntSupplier entries, LongSupplier estimatedBytes) {
+        this(name, entries, estimatedBytes, true);
+    }
+
+    private CacheStats(String name, IntSupplier entries, LongSupplier estimatedBytes, boolean withShapes) {
+        this.name = name;
+        this.entries = entries;
+        this.estimatedBytes = estimatedBytes;
+        shapes = withShapes ? new ConcurrentHashMap<>() : null;
+        for (int i = 0; i < removals.length; i++) {
+            removals[i] = new LongAdder();
+        }
+    }
+
+    private CacheStats shape(CacheKey k) {
+        if (shapes == null || k == null || k.getShape() == null) {
+            return null;
+        }
+        String s = k.getShape();
+        CacheStats ret = shapes.get(s);
+        if (ret == null) {
+            if (shapes.size() >= MAX_SHAPES) {
+                s = OTHER_SHAPES;
+            }
+            ret = shapes.computeIfAbsent(s, n -> new CacheStats(n, null, null, false));
+        }
+        return ret;
+    }
+
+    public void recordHit(CacheKey k) {
+        hits.increment();
+        CacheStats s = shape(k);
+        if (s != null) {
+            s.hits.increment();
+        }
+    }
+
+    public void recordMiss(CacheKey k) {
+        misses.increment();
+        CacheStats s = shape(k);
+        if (s != null) {
+            s.misses.increment();
+        }
+    }
+
+    public void recordLoad(CacheKey k, long ms) {
+        addLoad(ms);
+        CacheStats s = shape(k);
+        if (s != null) {
+            s.addLoad(ms);
+        }
+    }
+
+    private void addLoad(long ms) {
+        loads.increment();
+        loadTime.add(ms);
+        int bucket = ms <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+        loadTimeHistogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+    }
+
+    public void recordRemoval(CacheKey k, RemovalReason reason) {
+        removals[reason.ordinal()].increment();
+        CacheStats s = shape(k);
+        if (s != null) {
+            s.removals[reason.ordinal()].increment();
+        }
+    }
+
+    public void recordRemovals(RemovalReason reason, int count) {
+        removals[reason.ordinal()].add(count);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long h = getHits();
+        long all = h + getMisses();
+        return all == 0 ? 0 : (double) h / all;
+    }
+
+    @Override
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    /**
+     * @return total time spent loading in ms
+     */
+    public long getLoadTime() {
+        return loadTime.sum();
+    }
+
+    @Override
+    public double getAverageLoadTime() {
+        long l = getLoads();
+        return l == 0 ? 0 : (double) getLoadTime() / l;
+    }
+
+    public long[] getLoadTimeHistogram() {
+        long[] ret = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = loadTimeHistogram.get(i);
+        }
+        return ret;
+    }
+
+    public long getRemovals(RemovalReason reason) {
+        return removals[reason.ordinal()].sum();
+    }
+
+    @Override
+    public long getTimeoutEvictions() {
+        return getRemovals(RemovalReason.TIMEOUT);
+    }
+
+    @Override
+    public long getSizeEvictions() {
+        return getRemovals(RemovalReason.SIZE);
+    }
+
+    @Override
+    public long getWriteEvictions() {
+        return getRemovals(RemovalReason.WRITE);
+    }
+
+    @Override
+    public long getClearEvictions() {
+        return getRemovals(RemovalReason.CLEAR);
+    }
+
+    @Override
+    public long getSyncEvictions() {
+        return getRemovals(RemovalReason.SYNC);
+    }
+
+    /**
+     * @return number of cached results, 0 for query shapes
+     */
+    @Override
+    public int getEntries() {
+        return entries == null ? 0 : entries.getAsInt();
+    }
+
+    /**
+     * @return estimated size of the cached results, only known if byte budgets are set
+     */
+    @Override
+    public long getEstimatedBytes() {
+        return estimatedBytes == null ? 0 : estimatedBytes.getAsLong();
+    }
+
+    /**
+     * @return statistics per query shape, empty for statistics of a shape
+     */
+    public Map<String, CacheStats> getShapes() {
+        if (shapes == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(shapes);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": hits=" + getHits() + " misses=" + getMisses() + " loads=" + getLoads() + " avgLoadTime=" + getAverageLoadTime()
+                + " timeout=" + getTimeoutEvictions() + " size=" + getSizeEvictions() + " write=" + getWriteEvictions()
+                + " clear=" + getClearEvictions() + " sync=" + getSyncEvictions() + " entries=" + getEntries();
+    }
+}
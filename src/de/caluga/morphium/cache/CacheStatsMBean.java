@@ -0,0 +1,33 @@
+package de.caluga.morphium.cache;
+
+/**
+ * JMX view of the cache statistics of one type
+ */
+@SuppressWarnings("unused")
+public interface CacheStatsMBean {
+    String getName();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    long getLoads();
+
+    double getAverageLoadTime();
+
+    long getTimeoutEvictions();
+
+    long getSizeEvictions();
+
+    long getWriteEvictions();
+
+    long getClearEvictions();
+
+    long getSyncEvictions();
+
+    int getEntries();
+
+    long getEstimatedBytes();
+}
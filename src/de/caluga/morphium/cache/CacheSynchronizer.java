@@ -3,6 +3,9 @@ package de.caluga.morphium.cache;
 import de.caluga.morphium.*;
 import de.caluga.morphium.annotations.Entity;
 import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.driver.MorphiumDriverException;
+import de.caluga.morphium.driver.bson.CompactBsonCodec;
+import de.caluga.morphium.driver.bson.MorphiumId;
 import de.caluga.morphium.messaging.MessageListener;
 import de.caluga.morphium.messaging.Messaging;
 import de.caluga.morphium.messaging.Msg;
@@ -10,6 +13,10 @@ import de.caluga.morphium.messaging.MsgType;
 import de.caluga.morphium.query.Query;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -28,12 +35,26 @@ import java.util.stream.Collectors;
  * <li> Msg.additional == always null </li>
  * <li> Msg.ttl == 30 sec - shoule be enought time for the message to be processed by all nodes</li>
  * </ul>
+ * If a coalesce window is set (MorphiumConfig.cacheSyncCoalesceWindow), messages are not sent immediately but
+ * collected for that time: one message per class is sent, clearing the type if any write asked for that, otherwise
+ * with the merged ids of all written records. Receiving nodes skip clearing a type, if they cleared it after they
+ * received the message (both local times, the clock of the sender is not used).
+ * <p>
+ * Record messages for types with SyncCacheStrategy.UPDATE_ENTRY carry a version for each record and the written
+ * document itself (BSON, Base64 encoded) in Msg.mapValue, if smaller than MorphiumConfig.cacheSyncMaxDocumentSize
+ * (at most 1MB per message). Receivers update their cache with those documents directly, the other ids are reread
+ * with one $in query. The version is a sequence number of the sending node, no clocks are compared: versions of the
+ * same sender older than the one already applied are ignored, if the last version came from a different node, the
+ * order is unknown and the record is reread.
  */
 @SuppressWarnings("UnusedDeclaration")
 public class CacheSynchronizer implements MessageListener, MorphiumStorageListener<Object> {
     public static final String CACHE_SYNC_TYPE = "cacheSyncType";
     public static final String CACHE_SYNC_RECORD = "cacheSyncRecord";
     private static final Logger log = new Logger(CacheSynchronizer.class);
+    private static final int MAX_REASONS = 10;
+    private static final int MAX_EMBEDDED_BYTES = 1024 * 1024;
+    private static final int MAX_VERSIONS = 10000;
     private Messaging messaging;
     private Morphium morphium;
     private List<CacheSyncListener> listeners = Collections.synchronizedList(new ArrayList<>());
@@ -43,6 +64,22 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
 
     private boolean commitMessage = false;
 
+    private volatile long coalesceWindow;
+    private final Map<Class<?>, PendingClear> pending = new LinkedHashMap<>();
+    private String pendingClearAll;
+    private boolean flushScheduled;
+    private ScheduledThreadPoolExecutor flusher;
+    private final Map<Class<?>, Long> lastCleared = new ConcurrentHashMap<>();
+    private volatile long lastClearedAll;
+    private final AtomicLong sequence = new AtomicLong();
+    //last applied version per record, least recently used ones are removed
+    private final Map<String, Version> versions = new LinkedHashMap<String, Version>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Version> eldest) {
+            return size() > MAX_VERSIONS;
+        }
+    };
+
 
     /**
      * @param msg      - primary messaging, will attach to and send messages over
@@ -52,6 +89,7 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
         messaging = msg;
         this.morphium = morphium;
         annotationHelper = morphium.getARHelper();
+        coalesceWindow = morphium.getConfig().getCacheSyncCoalesceWindow();
         morphium.addListener(this);
 
         messaging.addListenerForMessageNamed(CACHE_SYNC_TYPE, this);
@@ -138,6 +176,13 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
     }
 
     public void sendClearMessage(String reason, Map<Object, Boolean> isNew) {
+        sendClearMessage(reason, isNew, true);
+    }
+
+    /**
+     * @param withDocuments - if false, no documents are sent for UPDATE_ENTRY types, e.g. because they were deleted
+     */
+    private void sendClearMessage(String reason, Map<Object, Boolean> isNew, boolean withDocuments) {
         //        long start = System.currentTimeMillis();
 
 
@@ -178,29 +223,52 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
             //                if (c.syncCache().equals(Cache.SyncCacheStrategy.UPDATE_ENTRY) || c.syncCache().equals(Cache.SyncCacheStrategy.REMOVE_ENTRY_FROM_TYPE_CACHE)) {
             //
             //                } else
-            //cannot be updated, it's new
+            //cannot be updated, it's new - but can be added, if the document is sent along
+            if (c.syncCache().equals(Cache.SyncCacheStrategy.UPDATE_ENTRY) && withDocuments) {
+                toUpdate.addAll(sorted.get(cls).get(true));
+            }
             toClrCachee.addAll(sorted.get(cls).get(true).stream().filter(record -> c.syncCache().equals(Cache.SyncCacheStrategy.CLEAR_TYPE_CACHE)).collect(Collectors.toList()));
-            Msg m = null;
+            if (toUpdate.isEmpty() && toClrCachee.isEmpty()) {
+                continue;
+            }
+            List<String> ids = new ArrayList<>();
+            Map<String, Object> docs = new HashMap<>();
+            int embedded = 0;
+            for (Object k : toUpdate) {
+                Object id = k.getClass().equals(Msg.class) ? null : morphium.getId(k);
+                if (id == null) {
+                    continue;
+                }
+                ids.add(id.toString());
+                Map<String, Object> info = new HashMap<>();
+                long version = sequence.incrementAndGet();
+                info.put("v", version);
+                setVersion(cls, id, messaging.getSenderId(), version);
+                if (withDocuments && c.syncCache().equals(Cache.SyncCacheStrategy.UPDATE_ENTRY) && embedded < MAX_EMBEDDED_BYTES) {
+                    embedded += embedDocument(k, info);
+                }
+                docs.put(id.toString(), info);
+            }
+            if (coalesceWindow > 0) {
+                coalesce(cls, reason, toUpdate.isEmpty(), ids, docs);
+                continue;
+            }
+            Msg m;
             if (!toUpdate.isEmpty()) {
                 m = new Msg(CACHE_SYNC_RECORD, MsgType.MULTI, reason, cls.getName(), 30000);
-            } else if (!toClrCachee.isEmpty()) {
+            } else {
                 m = new Msg(CACHE_SYNC_TYPE, MsgType.MULTI, reason, cls.getName(), 30000);
             }
-            if (m != null) {
-                Msg finalM = m;
-                toUpdate.stream().filter(k -> !k.getClass().equals(Msg.class)).forEach(k -> {
-                    Object id = morphium.getId(k);
-                    if (id != null) {
-                        finalM.addAdditional(id.toString());
-                    }
-                });
-                try {
-                    firePreSendEvent(cls, m);
-                    messaging.queueMessage(m);
-                    firePostSendEvent(cls, m);
-                } catch (CacheSyncVetoException e) {
-                    log.warn("could not send clear cache message: Veto by listener!", e);
-                }
+            ids.forEach(m::addAdditional);
+            if (!toUpdate.isEmpty()) {
+                m.setMapValue(docs);
+            }
+            try {
+                firePreSendEvent(cls, m);
+                messaging.queueMessage(m);
+                firePostSendEvent(cls, m);
+            } catch (CacheSyncVetoException e) {
+                log.warn("could not send clear cache message: Veto by listener!", e);
             }
         }
 
@@ -228,6 +296,10 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
             return; //not clearing cache for non-cached objects
         }
         if ((c.readCache() && c.clearOnWrite() && !c.syncCache().equals(Cache.SyncCacheStrategy.NONE)) || force) {
+            if (coalesceWindow > 0) {
+                coalesce(type, reason, true, null, null);
+                return;
+            }
             try {
                 firePreSendEvent(type, m);
                 messaging.queueMessage(m);
@@ -238,7 +310,264 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
         }
     }
 
+    /**
+     * collects a clear request until the coalesce window is over
+     *
+     * @param clearType - if true, the whole type cache is cleared, otherwise only the ids
+     */
+    @SuppressWarnings("unchecked")
+    private void coalesce(Class<?> type, String reason, boolean clearType, List<String> ids, Map<String, Object> docs) {
+        synchronized (pending) {
+            if (pendingClearAll != null) {
+                //whole cache will be cleared anyway
+                return;
+            }
+            PendingClear p = pending.computeIfAbsent(type, t -> new PendingClear());
+            if (p.reasons.size() < MAX_REASONS) {
+                p.reasons.add(reason);
+            }
+            if (clearType) {
+                p.clearType = true;
+                p.ids.clear();
+                p.docs.clear();
+                p.embedded = 0;
+            } else if (!p.clearType) {
+                p.ids.addAll(ids);
+                for (Map.Entry<String, Object> d : docs.entrySet()) {
+                    //later writes replace earlier documents
+                    p.embedded -= getEmbeddedSize(p.docs.get(d.getKey()));
+                    Map<String, Object> info = (Map<String, Object>) d.getValue();
+                    if (p.embedded + getEmbeddedSize(info) > MAX_EMBEDDED_BYTES) {
+                        //reread by the receivers
+                        info = new HashMap<>(info);
+                        info.remove("d");
+                    }
+                    p.embedded += getEmbeddedSize(info);
+                    p.docs.put(d.getKey(), info);
+                }
+            }
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        if (flusher == null) {
+            flusher = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread ret = new Thread(r, "cacheSyncFlush");
+                ret.setDaemon(true);
+                return ret;
+            });
+        }
+        flushScheduled = true;
+        flusher.schedule(this::flush, coalesceWindow, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * sends all clear messages collected so far
+     */
+    public void flush() {
+        Map<Class<?>, PendingClear> toSend;
+        String clearAll;
+        synchronized (pending) {
+            toSend = new LinkedHashMap<>(pending);
+            pending.clear();
+            clearAll = pendingClearAll;
+            pendingClearAll = null;
+            flushScheduled = false;
+        }
+        if (clearAll != null) {
+            sendMessage(null, new Msg(CACHE_SYNC_TYPE, MsgType.MULTI, clearAll, "ALL", 30000));
+            return;
+        }
+        for (Map.Entry<Class<?>, PendingClear> e : toSend.entrySet()) {
+            PendingClear p = e.getValue();
+            Msg m = new Msg(p.clearType ? CACHE_SYNC_TYPE : CACHE_SYNC_RECORD, MsgType.MULTI, String.join(", ", p.reasons), e.getKey().getName(), 30000);
+            if (!p.clearType) {
+                p.ids.forEach(m::addAdditional);
+                m.setMapValue(new HashMap<>(p.docs));
+            }
+            sendMessage(e.getKey(), m);
+        }
+    }
+
+    private void sendMessage(Class<?> type, Msg m) {
+        try {
+            firePreSendEvent(type, m);
+            messaging.queueMessage(m);
+            firePostSendEvent(type, m);
+        } catch (CacheSyncVetoException e) {
+            log.warn("could not send clear cache message: Veto by listener!", e);
+        }
+    }
+
+    /**
+     * @param ms time to collect clear requests before sending them, 0 to send immediately
+     */
+    public void setCoalesceWindow(long ms) {
+        if (ms <= 0) {
+            flush();
+        }
+        coalesceWindow = ms;
+    }
+
+    public long getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    /**
+     * adds the BSON encoded document to info, if it is small enough
+     *
+     * @return bytes added
+     */
+    private int embedDocument(Object record, Map<String, Object> info) {
+        int max = morphium.getConfig().getCacheSyncMaxDocumentSize();
+        if (max <= 0) {
+            return 0;
+        }
+        try {
+            byte[] b = CompactBsonCodec.encode(morphium.getMapper().marshall(record));
+            if (b.length > max) {
+                return 0;
+            }
+            info.put("d", Base64.getEncoder().encodeToString(b));
+            return b.length;
+        } catch (Exception e) {
+            log.debug("Could not encode " + record.getClass().getName() + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @return size of the document embedded in the info of a record message, 0 if none
+     */
+    @SuppressWarnings("unchecked")
+    private static int getEmbeddedSize(Object info) {
+        Object d = info instanceof Map ? ((Map<String, Object>) info).get("d") : null;
+        //Base64 encoded
+        return d instanceof String ? ((String) d).length() / 4 * 3 : 0;
+    }
+
+    /**
+     * remembers the version of a record. Versions are sequence numbers of the sending node, only those of the same
+     * sender can be compared
+     *
+     * @return FALSE, if the same sender already sent this or a newer version, null if the order is unknown (the last
+     * version came from a different node), TRUE otherwise
+     */
+    private Boolean setVersion(Class<?> cls, Object id, String sender, long version) {
+        String key = cls.getName() + ":" + id;
+        synchronized (versions) {
+            Version v = versions.get(key);
+            if (v != null && v.sender.equals(sender) && v.sequence >= version) {
+                return false;
+            }
+            versions.put(key, new Version(sender, version));
+            return v == null || v.sender.equals(sender) ? Boolean.TRUE : null;
+        }
+    }
+
+    /**
+     * ids are sent as strings
+     */
+    private Object toId(Class<?> cls, Object id) {
+        if (!(id instanceof String)) {
+            return id;
+        }
+        Class<?> type = annotationHelper.getIdField(cls).getType();
+        if (type.equals(MorphiumId.class)) {
+            return new MorphiumId((String) id);
+        } else if (type.equals(Long.class) || type.equals(long.class)) {
+            return Long.valueOf((String) id);
+        } else if (type.equals(Integer.class) || type.equals(int.class)) {
+            return Integer.valueOf((String) id);
+        }
+        return id;
+    }
+
+    /**
+     * updates the cache with the documents sent along, the others are reread with one query
+     */
+    @SuppressWarnings("unchecked")
+    private void updateEntries(Class<?> cls, Msg m) throws MorphiumDriverException {
+        MorphiumCache cache = morphium.getCache();
+        Map<CacheKey, CacheElement> results = cache.getCacheEntries().get(cls);
+        Map<Object, Object> ids = cache.getIdCache().get(cls);
+        if ((results == null || results.isEmpty()) && (ids == null || ids.isEmpty())) {
+            //nothing cached
+            return;
+        }
+        Map<String, Object> docs = m.getMapValue() == null ? Collections.emptyMap() : m.getMapValue();
+        List<Object> toReread = new ArrayList<>();
+        for (Object o : m.getAdditional()) {
+            Object id = toId(cls, o);
+            Map<String, Object> info = (Map<String, Object>) docs.get(o.toString());
+            if (info == null || !(info.get("v") instanceof Number)) {
+                toReread.add(id);
+                continue;
+            }
+            Boolean newer = setVersion(cls, id, m.getSender(), ((Number) info.get("v")).longValue());
+            if (Boolean.FALSE.equals(newer)) {
+                continue;
+            }
+            if (newer != null && info.get("d") != null) {
+                try {
+                    Map<String, Object> doc = CompactBsonCodec.decode(Base64.getDecoder().decode((String) info.get("d")));
+                    updateEntry(cls, id, morphium.getMapper().unmarshall(cls, doc), doc);
+                    continue;
+                } catch (Exception e) {
+                    log.warn("Could not decode document " + id + " of " + cls.getName() + " - rereading", e);
+                }
+            }
+            toReread.add(id);
+        }
+        if (toReread.isEmpty()) {
+            return;
+        }
+        Map<String, Object> q = Utils.getMap("_id", Utils.getMap("$in", toReread));
+        List<Map<String, Object>> found = morphium.getDriver().find(morphium.getConfig().getDatabase(), morphium.getMapper().getCollectionName(cls), q, null, null, 0, 0,
+                morphium.getConfig().getCursorBatchSize(), null, new HashMap<>());
+        Set<Object> missing = new HashSet<>(toReread);
+        for (Map<String, Object> doc : found) {
+            Object entity = morphium.getMapper().unmarshall(cls, doc);
+            Object id = annotationHelper.getId(entity);
+            missing.remove(id);
+            updateEntry(cls, id, entity, doc);
+        }
+        for (Object id : missing) {
+            //deleted
+            cache.removeEntryFromCache(cls, id, RemovalReason.SYNC);
+        }
+    }
+
+    private void updateEntry(Class<?> cls, Object id, Object entity, Map<String, Object> doc) {
+        Object cached = morphium.getCache().getFromIDCache(cls, id);
+        Map<String, Object> before = cached == null ? null : morphium.getMapper().marshall(cached);
+        morphium.getCache().updateCacheEntry(cls, id, entity, before, doc);
+    }
+
+    /**
+     * @return true, if the type was cleared locally after the message was received, so processing it is redundant.
+     * The write was done before the message was sent, so the cache cannot hold older versions
+     */
+    private boolean isAlreadyCleared(Class<?> cls, Msg m) {
+        if (coalesceWindow <= 0 || m.getReceived() <= 0) {
+            return false;
+        }
+        Long last = lastCleared.get(cls);
+        return Math.max(last == null ? 0 : last, lastClearedAll) > m.getReceived();
+    }
+
     public void detach() {
+        flush();
+        synchronized (pending) {
+            if (flusher != null) {
+                flusher.shutdownNow();
+                flusher = null;
+            }
+        }
         attached = false;
         morphium.removeListener(this);
         messaging.removeListenerForMessageNamed(CACHE_SYNC_TYPE, this);
@@ -250,6 +579,14 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
     }
 
     public void sendClearAllMessage(String reason) {
+        if (coalesceWindow > 0) {
+            synchronized (pending) {
+                pendingClearAll = reason;
+                pending.clear();
+                scheduleFlush();
+            }
+            return;
+        }
         Msg m = new Msg(CACHE_SYNC_TYPE, MsgType.MULTI, reason, "ALL", 30000);
         try {
             firePreSendEvent(null, m);
@@ -298,14 +635,14 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
     public void postRemove(Morphium m, Object r) {
         Map<Object, Boolean> map = new HashMap<>();
         map.put(r, false);
-        sendClearMessage("remove", map);
+        sendClearMessage("remove", map, false);
     }
 
     @Override
     public void postRemove(Morphium m, List<Object> lst) {
         Map<Object, Boolean> map = new HashMap<>();
         for (Object r : lst) map.put(r, false);
-        sendClearMessage("remove", map);
+        sendClearMessage("remove", map, false);
     }
 
     @Override
@@ -354,6 +691,7 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
 
                     try {
                         firePreClearEvent(null, m);
+                        lastClearedAll = System.currentTimeMillis();
                         morphium.getCache().resetCache();
                         firePostClearEvent(null, m);
                         answer.setMsg("cache completely cleared");
@@ -367,11 +705,14 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
                 if (annotationHelper.isAnnotationPresentInHierarchy(cls, Entity.class)) {
                     Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class); //cls.getAnnotation(Cache.class);
                     if (c != null) {
-                        if (c.readCache()) {
+                        if (isAlreadyCleared(cls, m)) {
+                            answer.setMsg("cache already cleared for type: " + m.getValue());
+                        } else if (c.readCache()) {
                             try {
                                 //Really clearing cache, even if clear on write is set to false! => manual clearing?
                                 firePreClearEvent(cls, m);
-                                morphium.clearCachefor(cls);
+                                lastCleared.put(cls, System.currentTimeMillis());
+                                morphium.getCache().clearCachefor(cls, RemovalReason.SYNC);
                                 answer.setMsg("cache cleared for type: " + m.getValue());
                                 firePostClearEvent(cls, m);
                             } catch (CacheSyncVetoException e) {
@@ -393,29 +734,18 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
                 if (annotationHelper.isAnnotationPresentInHierarchy(cls, Entity.class)) {
                     Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class); //cls.getAnnotation(Cache.class);
                     if (c != null) {
-                        if (c.readCache()) {
+                        if (isAlreadyCleared(cls, m)) {
+                            answer.setMsg("cache already cleared for type: " + m.getValue());
+                        } else if (c.readCache()) {
                             try {
                                 firePreClearEvent(cls, m);
-                                Map<Class<?>, Map<Object, Object>> idCache = morphium.getCache().getIdCache();
-                                for (Object id : m.getAdditional()) {
-                                    if (idCache.get(cls) != null) {
-                                        Object toUpdate = idCache.get(cls).get(id);
-                                        if (toUpdate == null && (id instanceof String)) {
-                                            //Try objectId
-                                            toUpdate = idCache.get(cls).get(id);
-                                        }
-                                        if (toUpdate != null) {
-                                            //Object is updated in place!
-                                            if (c.syncCache().equals(Cache.SyncCacheStrategy.REMOVE_ENTRY_FROM_TYPE_CACHE)) {
-                                                morphium.getCache().removeEntryFromCache(cls, id);
-                                            } else {
-                                                morphium.reread(idCache.get(cls).get(id));
-
-                                            }
-                                        }
+                                if (c.syncCache().equals(Cache.SyncCacheStrategy.UPDATE_ENTRY)) {
+                                    updateEntries(cls, m);
+                                } else {
+                                    for (Object id : m.getAdditional()) {
+                                        morphium.getCache().removeEntryFromCache(cls, toId(cls, id), RemovalReason.SYNC);
                                     }
                                 }
-                                morphium.getCache().setIdCache(idCache);
                                 answer.setMsg("cache cleared for type: " + m.getValue());
                                 firePostClearEvent(cls, m);
                             } catch (CacheSyncVetoException e) {
@@ -459,4 +789,22 @@ public class CacheSynchronizer implements MessageListener, MorphiumStorageListen
         return commitMessage;
     }
 
+    private static final class PendingClear {
+        private final Set<String> reasons = new LinkedHashSet<>();
+        private final Set<String> ids = new LinkedHashSet<>();
+        private final Map<String, Object> docs = new HashMap<>();
+        private boolean clearType;
+        private int embedded;
+    }
+
+    private static final class Version {
+        private final String sender;
+        private final long sequence;
+
+        private Version(String sender, long sequence) {
+            this.sender = sender;
+            this.sequence = sequence;
+        }
+    }
+
 }
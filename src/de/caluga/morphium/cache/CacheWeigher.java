@@ -0,0 +1,16 @@
+package de.caluga.morphium.cache;
+
+import java.util.List;
+
+/**
+ * Estimates the memory a cached result needs. Used to enforce the byte budgets of the cache, see
+ * MorphiumConfig.setCacheMaxBytes and MorphiumConfig.setCacheMaxBytesPerType.
+ */
+public interface CacheWeigher {
+    /**
+     * @param type   type of the cached entities
+     * @param result the result to be cached
+     * @return the estimated weight, usually in bytes
+     */
+    long weigh(Class<?> type, List<?> result);
+}
@@ -0,0 +1,185 @@
+package de.caluga.morphium.cache;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Id cache of one type: id to entity. Can be bounded by number of entries and by (estimated) size, eviction uses the
+ * clock algorithm: entries are evicted in insertion order, but entries read since they were queued get a second
+ * chance. Reading is a plain hash lookup and does not lock.
+ * <p>
+ * Optionally entities are only soft referenced, so that the garbage collector can reclaim them under memory pressure.
+ * Cleared entries are removed on the next access.
+ */
+@SuppressWarnings("WeakerAccess")
+public class IdCache extends AbstractMap<Object, Object> {
+    private final Class<?> type;
+    private final int maxEntries;
+    private final long maxWeight;
+    private final CacheWeigher weigher;
+    private final ReferenceQueue<Object> cleared;
+    private final Map<Object, Ref> data = new ConcurrentHashMap<>();
+    private final Queue<Ref> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong weight = new AtomicLong();
+
+    /**
+     * @param type           - type of the entities
+     * @param maxEntries     - &lt;=0 for no limit
+     * @param maxWeight      - &lt;=0 for no limit
+     * @param weigher        - used only, if maxWeight is set
+     * @param softReferences - if true, entities may be reclaimed by GC
+     */
+    public IdCache(Class<?> type, int maxEntries, long maxWeight, CacheWeigher weigher, boolean softReferences) {
+        this.type = type;
+        this.maxEntries = maxEntries;
+        this.maxWeight = weigher == null ? -1 : maxWeight;
+        this.weigher = weigher;
+        cleared = softReferences ? new ReferenceQueue<>() : null;
+    }
+
+    private boolean isBounded() {
+        return maxEntries > 0 || maxWeight > 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        drainCleared();
+        Ref r = data.get(key);
+        if (r == null) {
+            return null;
+        }
+        Object v = r.value();
+        if (v == null) {
+            remove(key, r);
+            return null;
+        }
+        r.accessed = true;
+        return v;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        drainCleared();
+        long w = maxWeight > 0 ? weigher.weigh(type, Collections.singletonList(value)) : 0;
+        Ref r = new Ref(key, value, w, cleared);
+        Ref old = data.put(key, r);
+        weight.addAndGet(w - (old == null ? 0 : old.weight));
+        if (isBounded()) {
+            order.add(r);
+            if (queued.incrementAndGet() > 2 * data.size() + 16) {
+                //replaced or removed entries still queued
+                order.removeIf(q -> data.get(q.key) != q);
+                queued.set(order.size());
+            }
+            evict();
+        }
+        return old == null ? null : old.value();
+    }
+
+    private void evict() {
+        while ((maxEntries > 0 && data.size() > maxEntries) || (maxWeight > 0 && weight.get() > maxWeight)) {
+            Ref r = order.poll();
+            if (r == null) {
+                return;
+            }
+            queued.decrementAndGet();
+            if (data.get(r.key) != r) {
+                continue;
+            }
+            if (r.accessed) {
+                //second chance
+                r.accessed = false;
+                order.add(r);
+                queued.incrementAndGet();
+                continue;
+            }
+            remove(r.key, r);
+        }
+    }
+
+    private void drainCleared() {
+        if (cleared == null) {
+            return;
+        }
+        Ref r;
+        while ((r = (Ref) cleared.poll()) != null) {
+            remove(r.key, r);
+        }
+    }
+
+    private void remove(Object key, Ref r) {
+        if (data.remove(key, r)) {
+            weight.addAndGet(-r.weight);
+        }
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Ref r = data.remove(key);
+        if (r == null) {
+            return null;
+        }
+        weight.addAndGet(-r.weight);
+        return r.value();
+    }
+
+    @Override
+    public void clear() {
+        data.clear();
+        order.clear();
+        queued.set(0);
+        weight.set(0);
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    public long getWeight() {
+        return weight.get();
+    }
+
+    @Override
+    public Set<Entry<Object, Object>> entrySet() {
+        drainCleared();
+        Set<Entry<Object, Object>> ret = new HashSet<>();
+        for (Ref r : data.values()) {
+            Object v = r.value();
+            if (v != null) {
+                ret.add(new SimpleImmutableEntry<>(r.key, v));
+            }
+        }
+        return ret;
+    }
+
+    private static final class Ref extends SoftReference<Object> {
+        private final Object key;
+        private final Object strong;
+        private final long weight;
+        private volatile boolean accessed;
+
+        private Ref(Object key, Object value, long weight, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.key = key;
+            this.weight = weight;
+            //no queue means no soft references
+            strong = queue == null ? value : null;
+        }
+
+        private Object value() {
+            return strong != null ? strong : get();
+        }
+    }
+}
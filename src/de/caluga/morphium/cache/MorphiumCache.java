@@ -1,10 +1,15 @@
 package de.caluga.morphium.cache;
 
 import de.caluga.morphium.AnnotationAndReflectionHelper;
+import de.caluga.morphium.ObjectMapper;
+import de.caluga.morphium.annotations.caching.Cache;
 import de.caluga.morphium.query.Query;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * User: Stephan Bösebeck
@@ -12,36 +17,135 @@ import java.util.Map;
  * Time: 09:57
  * <p/>
  * Cache interface . you can set your own cache implementation to morphium if it implements this interface
+ * <p>
+ * Methods added later on have default implementations based on the string keyed methods, so implementations only
+ * need to implement those. Keys created by default are manual keys (CacheKey.of), so results cannot be updated in
+ * place.
  */
 public interface MorphiumCache {
     <T> void addToCache(String k, Class<? extends T> type, List<T> ret);
 
+    default <T> void addToCache(CacheKey k, Class<? extends T> type, List<T> ret) {
+        addToCache(k.toString(), type, ret);
+    }
+
     String getCacheKey(Map<String, Object> qo, Map<String, Integer> sort, String collection, int skip, int limit);
 
+    /**
+     * @return the key for the query, which keeps the canonicalized query for updating cached results in place
+     */
+    default CacheKey createCacheKey(Map<String, Object> qo, Map<String, Integer> sort, String collection, int skip, int limit) {
+        return CacheKey.of(getCacheKey(qo, sort, collection, skip, limit));
+    }
+
     <T> List<T> getFromCache(Class<? extends T> type, String k);
 
+    default <T> List<T> getFromCache(Class<? extends T> type, CacheKey k) {
+        return getFromCache(type, k.toString());
+    }
+
+    /**
+     * returns the cached result or loads it using the loader and adds it to the cache. Concurrent calls for the same
+     * key wait for one load instead of each querying mongo.
+     * If refresh ahead is enabled, entries close to their timeout are reloaded in background, while the old result is
+     * still returned.
+     */
+    default <T> List<T> getFromCache(Class<? extends T> type, CacheKey k, Callable<List<T>> loader) {
+        List<T> ret = getFromCache(type, k);
+        if (ret != null) {
+            return ret;
+        }
+        try {
+            ret = loader.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        if (ret != null) {
+            addToCache(k, type, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * @return cached results by type, keyed by the string representation of their CacheKey
+     */
     Map<Class<?>, Map<String, CacheElement>> getCache();
 
+    /**
+     * @return cached results by type and key
+     */
+    default Map<Class<?>, Map<CacheKey, CacheElement>> getCacheEntries() {
+        Map<Class<?>, Map<CacheKey, CacheElement>> ret = new HashMap<>();
+        for (Map.Entry<Class<?>, Map<String, CacheElement>> e : getCache().entrySet()) {
+            Map<CacheKey, CacheElement> m = new HashMap<>();
+            for (Map.Entry<String, CacheElement> el : e.getValue().entrySet()) {
+                m.put(CacheKey.of(el.getKey()), el.getValue());
+            }
+            ret.put(e.getKey(), m);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the cached entities by type and id. For types cached with ReadMode.COPY the values are the BSON
+     * snapshots (byte[]), use getFromIDCache to get entities
+     */
     Map<Class<?>, Map<Object, Object>> getIdCache();
 
     void clearCachefor(Class<?> cls);
 
+    /**
+     * @param reason counted in the statistics of the type
+     */
+    default void clearCachefor(Class<?> cls, RemovalReason reason) {
+        clearCachefor(cls);
+    }
+
     void setCache(Map<Class<?>, Map<String, CacheElement>> cache);
 
     void resetCache();
 
     void removeEntryFromCache(Class cls, Object id);
 
+    default void removeEntryFromCache(Class cls, Object id, RemovalReason reason) {
+        removeEntryFromCache(cls, id);
+    }
+
     void setIdCache(Map<Class<?>, Map<Object, Object>> c);
 
     <T> T getFromIDCache(Class<? extends T> type, Object id);
 
     String getCacheKey(Query q);
 
+    default CacheKey createCacheKey(Query q) {
+        return CacheKey.of(getCacheKey(q));
+    }
+
     boolean isCached(Class<?> type, String k);
 
+    default boolean isCached(Class<?> type, CacheKey k) {
+        return isCached(type, k.toString());
+    }
+
     void clearCacheIfNecessary(Class cls);
 
+    /**
+     * like clearCacheIfNecessary(cls), but only removes results possibly affected by writing this one document
+     */
+    default void clearCacheIfNecessary(Class cls, Object id, Map<String, Object> before, Map<String, Object> after) {
+        clearCacheIfNecessary(cls);
+    }
+
+    /**
+     * for types with @Cache(syncCache = UPDATE_ENTRY) the cache is updated with the written entity, where possible.
+     * Otherwise like clearCacheIfNecessary(cls, id, before, after)
+     */
+    default void updateCacheEntry(Class cls, Object id, Object entity, Map<String, Object> before, Map<String, Object> after) {
+        clearCacheIfNecessary(cls, id, before, after);
+    }
+
     void addCacheListener(CacheListener cl);
 
     void removeCacheListener(CacheListener cl);
@@ -57,4 +161,94 @@ public interface MorphiumCache {
     void setValidCacheTime(Class type, int time);
 
     void setDefaultCacheTime(Class type);
+
+    /**
+     * @param weigher estimates the size of cached results. This and the settings below are optional, implementations
+     *                may ignore them
+     */
+    default void setWeigher(CacheWeigher weigher) {
+    }
+
+    /**
+     * @param maxBytes budget for all cached results, estimated by the weigher. &lt;=0 for no limit
+     */
+    default void setMaxBytes(long maxBytes) {
+    }
+
+    /**
+     * @param maxBytes budget for the cached results of each type, unless set by @Cache(maxBytes). &lt;=0 for no limit
+     */
+    default void setMaxBytesPerType(long maxBytes) {
+    }
+
+    /**
+     * @param offHeapCache second level cache for evicted entries, null to disable
+     */
+    default void setOffHeapCache(OffHeapCache offHeapCache) {
+    }
+
+    /**
+     * @param percent entries older than this percentage of their timeout are reloaded in background on access. 0 to
+     *                disable
+     */
+    default void setRefreshAheadPercent(int percent) {
+    }
+
+    /**
+     * @param maxEntries maximum number of entities in the id cache of each type. &lt;=0 for no limit
+     */
+    default void setIdCacheMaxEntries(int maxEntries) {
+    }
+
+    /**
+     * @param maxBytes budget for the id cache of each type (as estimated by the weigher). &lt;=0 for no limit
+     */
+    default void setIdCacheMaxBytes(long maxBytes) {
+    }
+
+    /**
+     * @param soft if true, entities in the id cache are soft referenced and may be reclaimed by GC
+     */
+    default void setIdCacheSoftReferences(boolean soft) {
+    }
+
+    /**
+     * @return statistics of the type, created on first access. Null, if the implementation does not keep statistics
+     */
+    default CacheStats getStatistics(Class<?> type) {
+        return null;
+    }
+
+    /**
+     * @return statistics of all types accessed so far
+     */
+    default Map<Class<?>, CacheStats> getStatistics() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * @param jmx if true, statistics of types accessed from now on are registered as MBeans
+     */
+    default void setStatisticsJmx(boolean jmx) {
+    }
+
+    /**
+     * @param mapper used to snapshot and copy entities of types cached with ReadMode.COPY. Without a mapper, those are
+     *               handled like ReadMode.UNMODIFIABLE
+     */
+    default void setObjectMapper(ObjectMapper mapper) {
+    }
+
+    /**
+     * @param mode overrides @Cache(readMode) of the type, null to use the annotation again. Applies to results cached
+     *             from now on
+     */
+    default void setReadMode(Class<?> type, Cache.ReadMode mode) {
+    }
+
+    /**
+     * called when morphium is closed, to free resources (threads, MBeans...)
+     */
+    default void close() {
+    }
 }
@@ -2,14 +2,26 @@ package de.caluga.morphium.cache;
 
 import de.caluga.morphium.AnnotationAndReflectionHelper;
 import de.caluga.morphium.Logger;
+import de.caluga.morphium.ObjectMapper;
 import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.annotations.caching.NoCache;
+import de.caluga.morphium.driver.bson.CompactBsonCodec;
 import de.caluga.morphium.query.Query;
 
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: Stephan Bösebeck
@@ -22,23 +34,55 @@ public class MorphiumCacheImpl implements MorphiumCache {
     private final List<CacheListener> cacheListeners;
     private final Logger logger = new Logger(MorphiumCacheImpl.class);
     private final CacheHousekeeper cacheHousekeeper;
-    private Map<Class<?>, Map<String, CacheElement>> cache;
+    private Map<Class<?>, Map<CacheKey, CacheElement>> cache;
     private Map<Class<?>, Map<Object, Object>> idCache;
+    //id -> keys of cached results containing this id
+    private Map<Class<?>, Map<Object, Set<CacheKey>>> keysById;
     private AnnotationAndReflectionHelper annotationHelper = new AnnotationAndReflectionHelper(false); //only used to get id's and annotations, camalcase conversion never happens
+    private CacheWeigher weigher = new ObjectSizeWeigher();
+    private final AtomicLong totalWeight = new AtomicLong();
+    private long maxBytes = -1;
+    private long maxBytesPerType = -1;
+    private volatile OffHeapCache offHeapCache;
+    private final Map<LoadKey, CompletableFuture<List<?>>> loading = new ConcurrentHashMap<>();
+    private final Set<LoadKey> refreshing = ConcurrentHashMap.newKeySet();
+    //incremented on invalidation, results of loads running meanwhile are not cached
+    private final Map<Class<?>, AtomicLong> generations = new ConcurrentHashMap<>();
+    //generation of the type, when the eviction running in this thread started
+    private final ThreadLocal<Long> evictionGeneration = new ThreadLocal<>();
+    private final ThreadPoolExecutor refreshExecutor;
+    private int refreshAheadPercent = 0;
+    private int idCacheMaxEntries = -1;
+    private long idCacheMaxBytes = -1;
+    private boolean idCacheSoftReferences = false;
+    private final Map<Class<?>, CacheStats> stats = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ObjectName> statisticsMBeans = new ConcurrentHashMap<>();
+    private boolean statisticsJmx = false;
+    private volatile ObjectMapper objectMapper;
+    private final Map<Class<?>, Cache.ReadMode> readModes = new ConcurrentHashMap<>();
 
 
     public MorphiumCacheImpl() {
         cache = new ConcurrentHashMap<>();
         idCache = new ConcurrentHashMap<>();
+        keysById = new ConcurrentHashMap<>();
         cacheListeners = Collections.synchronizedList(new ArrayList<>());
 
         cacheHousekeeper = new CacheHousekeeper(this);
         cacheHousekeeper.start();
+
+        //refreshs are rejected, if all threads are busy
+        refreshExecutor = new ThreadPoolExecutor(0, 4, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "cache_refresh");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     @Override
     public void setGlobalCacheTimeout(int tm) {
         cacheHousekeeper.setGlobalValidCacheTime(tm);
+        updateSettings();
     }
 
     @Override
@@ -50,6 +94,7 @@ public class MorphiumCacheImpl implements MorphiumCache {
     public void setAnnotationAndReflectionHelper(AnnotationAndReflectionHelper hlp) {
         annotationHelper = hlp;
         cacheHousekeeper.setAnnotationHelper(hlp);
+        updateSettings();
     }
 
     @Override
@@ -79,6 +124,15 @@ public class MorphiumCacheImpl implements MorphiumCache {
     @SuppressWarnings("unchecked")
     @Override
     public <T> void addToCache(String k, Class<? extends T> type, List<T> ret) {
+        if (k == null) {
+            return;
+        }
+        addToCache(CacheKey.of(k), type, ret);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> void addToCache(CacheKey k, Class<? extends T> type, List<T> ret) {
         if (k == null) {
             return;
         }
@@ -92,25 +146,418 @@ public class MorphiumCacheImpl implements MorphiumCache {
                 return;
             }
         }
-        if (!k.endsWith("idlist")) {
+        put(type, k, ret, System.currentTimeMillis());
+    }
+
+    private <T> void put(Class<? extends T> type, CacheKey k, List<T> ret, long created) {
+        long generation = getGeneration(type).get();
+        Cache.ReadMode mode = getReadMode(type);
+        if (mode == Cache.ReadMode.COPY && !k.isIdList()) {
+            try {
+                //callers keep their instances, the cache keeps only the snapshot
+                ret = new SnapshotList<>(type, ret);
+            } catch (Exception ex) {
+                logger.debug("Could not snapshot result of " + type.getName() + ", not caching it: " + ex.getMessage());
+                return;
+            }
+        } else if (mode != Cache.ReadMode.SHARED) {
+            ret = Collections.unmodifiableList(new ArrayList<>(ret));
+        }
+        if (!k.isIdList()) {
             //copy from idCache
-            Map<Class<?>, Map<Object, Object>> idCacheClone = idCache; // getIdCache();
-            for (T record : ret) {
-                idCacheClone.putIfAbsent(type, new ConcurrentHashMap<>());
-                idCacheClone.get(type).put(annotationHelper.getId(record), record);
+            Map<Object, Object> ids = idCache.computeIfAbsent(type, this::createIdCache);
+            for (int i = 0; i < ret.size(); i++) {
+                Object id = getId(k, ret, i);
+                if (id != null) {
+                    ids.put(id, getIdCacheEntry(ret, i));
+                }
             }
-            //            setIdCache(idCacheClone);
         }
 
         CacheElement<T> e = new CacheElement<>(ret);
+        e.setCreated(created);
         e.setLru(System.currentTimeMillis());
-        //Map<Class<?>, Map<String, CacheElement>> cl =  (Map<Class<?>, Map<String, CacheElement>>) (((HashMap) cache).clone());
-        cache.putIfAbsent(type, new ConcurrentHashMap<>());
-        cache.get(type).put(k, e);
+        if (ret instanceof SnapshotList) {
+            e.setSnapshot(((SnapshotList<T>) ret).data);
+        }
+        //eviction happens right here, if maxEntries or the byte budgets are exceeded
+        Map<CacheKey, CacheElement> typeCache = cache.computeIfAbsent(type, this::createTypeCache);
+        if (isWeighed(typeCache)) {
+            e.setWeight(weigher.weigh(type, e.getSnapshot() == null ? ret : Arrays.asList(e.getSnapshot())));
+        }
+        evictionGeneration.set(generation);
+        try {
+            typeCache.put(k, e);
+        } finally {
+            evictionGeneration.remove();
+        }
+        Map<Object, Set<CacheKey>> index = keysById.computeIfAbsent(type, t -> new ConcurrentHashMap<>());
+        for (int i = 0; i < ret.size(); i++) {
+            Object id = getId(k, ret, i);
+            if (id != null) {
+                index.compute(id, (key, keys) -> {
+                    if (keys == null) {
+                        keys = ConcurrentHashMap.newKeySet();
+                    }
+                    keys.add(k);
+                    return keys;
+                });
+            }
+        }
+        if (typeCache instanceof TypeCache) {
+            cacheHousekeeper.scheduleExpiry((TypeCache) typeCache, k, e);
+        }
+        if (maxBytes > 0 && totalWeight.get() > maxBytes) {
+            enforceGlobalBudget();
+        }
+    }
+
+    private boolean isWeighed(Map<CacheKey, CacheElement> typeCache) {
+        return weigher != null && (maxBytes > 0 || (typeCache instanceof TypeCache && ((TypeCache) typeCache).getMaxWeight() > 0));
+    }
+
+    /**
+     * evicts from the type cache using the most memory until the global budget is met
+     */
+    private void enforceGlobalBudget() {
+        while (totalWeight.get() > maxBytes) {
+            TypeCache largest = null;
+            Class<?> type = null;
+            for (Map.Entry<Class<?>, Map<CacheKey, CacheElement>> m : cache.entrySet()) {
+                if (m.getValue() instanceof TypeCache && (largest == null || ((TypeCache) m.getValue()).getWeight() > largest.getWeight())) {
+                    largest = (TypeCache) m.getValue();
+                    type = m.getKey();
+                }
+            }
+            if (largest == null) {
+                return;
+            }
+            evictionGeneration.set(getGeneration(type).get());
+            try {
+                if (!largest.evictOne()) {
+                    return;
+                }
+            } finally {
+                evictionGeneration.remove();
+            }
+        }
+    }
 
-        //atomar execution of this operand - no synchronization needed
-        //        cache = cl;
+    private TypeCache createTypeCache(Class<?> type) {
+        Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class);
+        if (c == null) {
+            return new TypeCache(null, -1, getMaxBytes(type), getTimeout(type), totalWeight, (k, e) -> onRemoval(type, k, e));
+        }
+        return new TypeCache(c.strategy(), c.maxEntries(), getMaxBytes(type), getTimeout(type), totalWeight, (k, e) -> onRemoval(type, k, e));
+    }
 
+    private Cache.ReadMode getReadMode(Class<?> type) {
+        Cache.ReadMode ret = readModes.get(type);
+        if (ret == null) {
+            Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class);
+            ret = c == null ? Cache.ReadMode.SHARED : c.readMode();
+        }
+        if (ret == Cache.ReadMode.COPY && objectMapper == null) {
+            return Cache.ReadMode.UNMODIFIABLE;
+        }
+        return ret;
+    }
+
+    private byte[][] snapshot(List<?> lst) {
+        byte[][] ret = new byte[lst.size()][];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = CompactBsonCodec.encode(objectMapper.marshall(lst.get(i)));
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> materialize(Class<? extends T> type, byte[][] snapshot) {
+        List<T> ret = new ArrayList<>(snapshot.length);
+        for (byte[] b : snapshot) {
+            ret.add(objectMapper.unmarshall(type, CompactBsonCodec.decode(b)));
+        }
+        return ret;
+    }
+
+    /**
+     * @return the cached result, or a copy of it, depending on the read mode
+     */
+    private <T> List<T> read(Class<? extends T> type, CacheElement<T> e) {
+        if (e.getSnapshot() == null) {
+            return e.getFound();
+        }
+        return materialize(type, e.getSnapshot());
+    }
+
+    /**
+     * @return the result of a load, that was not cached, as it would have been read from the cache
+     */
+    private <T> List<T> readUncached(Class<? extends T> type, List<T> ret) {
+        if (ret == null) {
+            return null;
+        }
+        switch (getReadMode(type)) {
+            case COPY:
+                try {
+                    return materialize(type, snapshot(ret));
+                } catch (Exception ex) {
+                    logger.debug("Could not copy result of " + type.getName() + ": " + ex.getMessage());
+                    return Collections.unmodifiableList(new ArrayList<>(ret));
+                }
+            case UNMODIFIABLE:
+                return Collections.unmodifiableList(new ArrayList<>(ret));
+            default:
+                return ret;
+        }
+    }
+
+    private IdCache createIdCache(Class<?> type) {
+        return new IdCache(type, idCacheMaxEntries, idCacheMaxBytes, weigher, idCacheSoftReferences);
+    }
+
+    private long getMaxBytes(Class<?> type) {
+        Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class);
+        if (c != null && c.maxBytes() > 0) {
+            return c.maxBytes();
+        }
+        return maxBytesPerType;
+    }
+
+    /**
+     * evicted entries are moved to the second level cache, if there is one. Like in load(), this is skipped if the
+     * type was written since the eviction started: the write could not see the entry in either level and it might be
+     * stale.
+     */
+    @SuppressWarnings("unchecked")
+    private void onRemoval(Class<?> type, CacheKey k, CacheElement e) {
+        removeFromIdCache(type, k, e);
+        boolean expired = System.currentTimeMillis() - e.getCreated() > getTimeout(type);
+        getStatistics(type).recordRemoval(k, expired ? RemovalReason.TIMEOUT : RemovalReason.SIZE);
+        OffHeapCache l2 = offHeapCache;
+        Long generation = evictionGeneration.get();
+        if (l2 == null || e.getFound() == null || expired || generation == null || generation != getGeneration(type).get()) {
+            return;
+        }
+        l2.put(type, k, e, getIds(k, e.getFound()));
+        if (generation != getGeneration(type).get()) {
+            //written while storing, invalidation might have missed it
+            l2.remove(type, k);
+        }
+    }
+
+    private List<Object> getIds(CacheKey k, List<?> found) {
+        List<Object> ret = new ArrayList<>(found.size());
+        for (int i = 0; i < found.size(); i++) {
+            Object id = getId(k, found, i);
+            if (id != null) {
+                ret.add(id);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return id of the i-th element of a cached result, without creating an instance for snapshots
+     */
+    private Object getId(CacheKey k, List<?> found, int i) {
+        if (found instanceof SnapshotList) {
+            return ((SnapshotList<?>) found).ids[i];
+        }
+        Object o = found.get(i);
+        return k.isIdList() ? o : annotationHelper.getId(o);
+    }
+
+    /**
+     * @return what the id cache holds for the i-th element: the entity, or its BSON snapshot for ReadMode.COPY
+     */
+    private Object getIdCacheEntry(List<?> found, int i) {
+        return found instanceof SnapshotList ? ((SnapshotList<?>) found).data[i] : found.get(i);
+    }
+
+    /**
+     * moves an entry from second level cache back to the cache
+     *
+     * @return true, if found and not expired
+     */
+    @SuppressWarnings("unchecked")
+    private boolean promote(Class<?> type, CacheKey k) {
+        OffHeapCache l2 = offHeapCache;
+        if (l2 == null || !l2.contains(type, k)) {
+            return false;
+        }
+        CacheElement e;
+        try {
+            e = l2.get(type, k);
+        } catch (Exception ex) {
+            logger.error("Could not read from off heap cache", ex);
+            e = null;
+        }
+        l2.remove(type, k);
+        if (e == null || System.currentTimeMillis() - e.getCreated() > getTimeout(type)) {
+            return false;
+        }
+        put(type, k, e.getFound(), e.getCreated());
+        return true;
+    }
+
+    /**
+     * entities of evicted or expired entries are removed from id cache and the id index as well
+     */
+    private void removeFromIdCache(Class<?> type, CacheKey k, CacheElement<?> e) {
+        if (e.getFound() == null) {
+            return;
+        }
+        Map<Object, Object> ids = idCache.get(type);
+        Map<Object, Set<CacheKey>> index = keysById.get(type);
+        Map<CacheKey, CacheElement> typeCache = cache.get(type);
+        boolean replaced = typeCache != null && typeCache.containsKey(k);
+        List<?> found = e.getFound();
+        for (int i = 0; i < found.size(); i++) {
+            Object id = getId(k, found, i);
+            if (id == null) {
+                continue;
+            }
+            if (ids != null && !k.isIdList() && ids.get(id) == getIdCacheEntry(found, i)) {
+                //unless replaced by a newer instance meanwhile
+                ids.remove(id);
+            }
+            if (index != null && !replaced) {
+                index.computeIfPresent(id, (key, keys) -> {
+                    keys.remove(k);
+                    return keys.isEmpty() ? null : keys;
+                });
+            }
+        }
+    }
+
+    /**
+     * removes the result because of a write or clear. Like eviction, the entities are removed from the id cache
+     * and the key from the id index of every entity in the result
+     */
+    private void invalidate(Class<?> type, Map<CacheKey, CacheElement> typeCache, CacheKey k, RemovalReason reason) {
+        CacheElement e = typeCache.remove(k);
+        if (e != null) {
+            removeFromIdCache(type, k, e);
+            getStatistics(type).recordRemoval(k, reason);
+        }
+    }
+
+    /**
+     * @return true, if the result might change by writing a document (see clearCacheIfNecessary)
+     */
+    private boolean mayBeAffected(CacheKey k, Map<String, Object> before, Map<String, Object> after) {
+        if (k.getQuery() == null) {
+            //added manually, cannot tell
+            return true;
+        }
+        return (after != null && QueryPredicate.mayMatch(k.getQuery(), after))
+                || (before != null && QueryPredicate.mayMatch(k.getQuery(), before))
+                || (before == null && k.getSkip() > 0);
+    }
+
+    private int getTimeout(Class<?> type) {
+        Integer t = cacheHousekeeper.getValidCacheTime(type);
+        if (t != null) {
+            return t;
+        }
+        Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class);
+        if (c != null && annotationHelper.getAnnotationFromHierarchy(type, NoCache.class) == null) {
+            return c.timeout();
+        }
+        return cacheHousekeeper.getGlobalValidCacheTime();
+    }
+
+    private void updateSettings() {
+        for (Map.Entry<Class<?>, Map<CacheKey, CacheElement>> e : cache.entrySet()) {
+            if (e.getValue() instanceof TypeCache) {
+                ((TypeCache) e.getValue()).setTimeout(getTimeout(e.getKey()));
+                ((TypeCache) e.getValue()).setMaxWeight(getMaxBytes(e.getKey()));
+            }
+        }
+    }
+
+    @Override
+    public void setWeigher(CacheWeigher weigher) {
+        this.weigher = weigher;
+    }
+
+    public CacheWeigher getWeigher() {
+        return weigher;
+    }
+
+    @Override
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public void setMaxBytesPerType(long maxBytes) {
+        maxBytesPerType = maxBytes;
+        updateSettings();
+    }
+
+    public long getMaxBytesPerType() {
+        return maxBytesPerType;
+    }
+
+    @Override
+    public void setOffHeapCache(OffHeapCache offHeapCache) {
+        this.offHeapCache = offHeapCache;
+    }
+
+    public OffHeapCache getOffHeapCache() {
+        return offHeapCache;
+    }
+
+    /**
+     * settings apply to id caches of types cached afterwards
+     */
+    @Override
+    public void setIdCacheMaxEntries(int maxEntries) {
+        idCacheMaxEntries = maxEntries;
+    }
+
+    public int getIdCacheMaxEntries() {
+        return idCacheMaxEntries;
+    }
+
+    @Override
+    public void setIdCacheMaxBytes(long maxBytes) {
+        idCacheMaxBytes = maxBytes;
+    }
+
+    public long getIdCacheMaxBytes() {
+        return idCacheMaxBytes;
+    }
+
+    @Override
+    public void setIdCacheSoftReferences(boolean soft) {
+        idCacheSoftReferences = soft;
+    }
+
+    public boolean isIdCacheSoftReferences() {
+        return idCacheSoftReferences;
+    }
+
+    @Override
+    public void setRefreshAheadPercent(int percent) {
+        refreshAheadPercent = percent;
+    }
+
+    public int getRefreshAheadPercent() {
+        return refreshAheadPercent;
+    }
+
+    /**
+     * @return estimated size of all cached results
+     */
+    public long getTotalWeight() {
+        return totalWeight.get();
     }
 
 
@@ -119,26 +566,287 @@ public class MorphiumCacheImpl implements MorphiumCache {
         Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class); //cls.getAnnotation(Cache.class);
         if (c != null) {
             if (c.clearOnWrite()) {
-                clearCachefor(cls);
+                clearCachefor(cls, RemovalReason.WRITE);
             }
         }
     }
 
+    /**
+     * only removes the cached results, that might be affected by writing one document: all results containing the id
+     * (looked up in the id index), and all queries matching the document before or after the write.
+     * Queries using skip are also affected, if the document matched before - if the before image is unknown, they
+     * are removed as well.
+     *
+     * @param cls    - type
+     * @param id     - id of the written document
+     * @param before - document before the write, null if unknown or new
+     * @param after  - document after the write, null if deleted
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void clearCacheIfNecessary(Class cls, Object id, Map<String, Object> before, Map<String, Object> after) {
+        Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class);
+        if (c == null || !c.clearOnWrite()) {
+            return;
+        }
+        if (id == null) {
+            clearCachefor(cls, RemovalReason.WRITE);
+            return;
+        }
+        if (!removeById(cls, id, RemovalReason.WRITE)) {
+            return;
+        }
+        if (offHeapCache != null) {
+            offHeapCache.removeIf(cls, k -> mayBeAffected(k, before, after));
+        }
+        Map<CacheKey, CacheElement> typeCache = cache.get(cls);
+        if (typeCache == null) {
+            return;
+        }
+        for (CacheKey k : new ArrayList<>(typeCache.keySet())) {
+            if (mayBeAffected(k, before, after)) {
+                invalidate(cls, typeCache, k, RemovalReason.WRITE);
+            }
+        }
+    }
+
+    /**
+     * write through for types with SyncCacheStrategy.UPDATE_ENTRY: the id cache entry is replaced by the written
+     * entity and cached results are patched - the entity is replaced, added or removed, sorted results are re-sorted.
+     * Results, where this cannot be done safely (query not decidable, skip or limit changes, sort by arrays...), are
+     * removed like in clearCacheIfNecessary. Other types are handled by clearCacheIfNecessary.
+     *
+     * @param cls    - type
+     * @param id     - id of the written entity
+     * @param entity - the entity as written
+     * @param before - document before the write, null if unknown or new
+     * @param after  - document as written
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void updateCacheEntry(Class cls, Object id, Object entity, Map<String, Object> before, Map<String, Object> after) {
+        Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class);
+        if (c == null || !c.clearOnWrite()) {
+            return;
+        }
+        if (c.syncCache() != Cache.SyncCacheStrategy.UPDATE_ENTRY || id == null || entity == null || after == null) {
+            clearCacheIfNecessary(cls, id, before, after);
+            return;
+        }
+        //loads running now might have read the old version
+        getGeneration(cls).incrementAndGet();
+        if (offHeapCache != null) {
+            //second level entries are not patched
+            offHeapCache.removeById(cls, id);
+            offHeapCache.removeIf(cls, k -> mayBeAffected(k, before, after));
+        }
+        //the id cache and snapshots share the encoded entity
+        byte[] encoded = getReadMode(cls) == Cache.ReadMode.COPY ? CompactBsonCodec.encode(objectMapper.marshall(entity)) : null;
+        Map<Object, Object> ids = idCache.get(cls);
+        if (ids != null && ids.get(id) != null) {
+            ids.put(id, encoded != null ? encoded : entity);
+        }
+        Map<CacheKey, CacheElement> typeCache = cache.get(cls);
+        if (typeCache == null) {
+            return;
+        }
+        Map<Object, Set<CacheKey>> index = keysById.get(cls);
+        Set<CacheKey> containing = index == null ? null : index.get(id);
+        for (CacheKey k : new ArrayList<>(typeCache.keySet())) {
+            if ((containing == null || !containing.contains(k)) && !mayBeAdded(k, before, after)) {
+                continue;
+            }
+            CacheElement e = typeCache.get(k);
+            if (e == null || e.getFound() == null) {
+                continue;
+            }
+            boolean patched;
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (e) {
+                patched = k.getQuery() != null && patch(cls, typeCache, k, e, id, entity, encoded, before, after);
+            }
+            if (!patched) {
+                invalidate(cls, typeCache, k, RemovalReason.WRITE);
+            }
+        }
+    }
+
+    /**
+     * @return true, if a result not containing the entity needs to be patched: the entity matches the query now, or
+     * it might have been skipped before
+     */
+    private boolean mayBeAdded(CacheKey k, Map<String, Object> before, Map<String, Object> after) {
+        if (k.getQuery() == null || !Boolean.FALSE.equals(QueryPredicate.matches(k.getQuery(), after))) {
+            return true;
+        }
+        return k.getSkip() > 0 && (before == null || QueryPredicate.mayMatch(k.getQuery(), before));
+    }
+
+    /**
+     * changes the cached result in place: the written entity is replaced, added or removed, the other elements are
+     * kept as they are (snapshots are not re-encoded)
+     *
+     * @param encoded snapshot of the entity, if cached with ReadMode.COPY
+     * @return false, if the result cannot be patched and has to be removed
+     */
+    @SuppressWarnings("unchecked")
+    private boolean patch(Class<?> cls, Map<CacheKey, CacheElement> typeCache, CacheKey k, CacheElement e, Object id, Object entity, byte[] encoded, Map<String, Object> before, Map<String, Object> after) {
+        List<Object> found = e.getFound();
+        if (found instanceof SnapshotList && encoded == null) {
+            //read mode changed since cached
+            return false;
+        }
+        Object element = k.isIdList() ? id : found instanceof SnapshotList ? encoded : entity;
+        int pos = -1;
+        for (int i = 0; i < found.size(); i++) {
+            if (id.equals(getId(k, found, i))) {
+                pos = i;
+                break;
+            }
+        }
+        Boolean matches = QueryPredicate.matches(k.getQuery(), after);
+        if (pos < 0 && Boolean.FALSE.equals(matches)) {
+            //not affected, unless it might have been skipped before
+            return k.getSkip() <= 0 || (before != null && !QueryPredicate.mayMatch(k.getQuery(), before));
+        }
+        if (matches == null) {
+            return false;
+        }
+        if (pos < 0 || !matches) {
+            //adding or removing elements changes, what skip and limit cut off
+            if (k.getSkip() > 0 || k.getLimit() > 0) {
+                return false;
+            }
+        }
+        List<Object> entries = new ArrayList<>(found.size() + 1);
+        List<Object> entryIds = new ArrayList<>(found.size() + 1);
+        for (int i = 0; i < found.size(); i++) {
+            entries.add(getIdCacheEntry(found, i));
+            entryIds.add(getId(k, found, i));
+        }
+        Object old = pos < 0 ? null : entries.get(pos);
+        if (!matches) {
+            entries.remove(pos);
+            entryIds.remove(pos);
+        } else if (pos < 0) {
+            entries.add(element);
+            entryIds.add(id);
+        } else {
+            entries.set(pos, element);
+        }
+        if (matches && k.getSort() != null) {
+            if (k.isIdList() || k.getSkip() > 0 || k.getLimit() > 0 || objectMapper == null) {
+                //position might change - ids cannot be compared, entities outside of the result are unknown
+                return false;
+            }
+            Integer[] order = sort(entries, k.getSort(), element, after);
+            if (order == null) {
+                return false;
+            }
+            List<Object> sorted = new ArrayList<>(entries.size());
+            List<Object> sortedIds = new ArrayList<>(entries.size());
+            for (Integer i : order) {
+                sorted.add(entries.get(i));
+                sortedIds.add(entryIds.get(i));
+            }
+            entries = sorted;
+            entryIds = sortedIds;
+        }
+
+        if (found instanceof SnapshotList) {
+            e.setFound(new SnapshotList<>(cls, entries.toArray(new byte[0][]), entryIds.toArray()));
+            e.setSnapshot(((SnapshotList) e.getFound()).data);
+        } else {
+            e.setFound(getReadMode(cls) == Cache.ReadMode.SHARED ? entries : Collections.unmodifiableList(entries));
+        }
+        if (typeCache instanceof TypeCache && isWeighed(typeCache)) {
+            long w = e.getWeight();
+            if (old != null) {
+                w -= weigher.weigh(cls, Collections.singletonList(old));
+            }
+            if (matches) {
+                w += weigher.weigh(cls, Collections.singletonList(element));
+            }
+            if (!((TypeCache) typeCache).setWeight(k, e, Math.max(w, 0))) {
+                //replaced or removed meanwhile
+                return true;
+            }
+        }
+        if (!k.isIdList() && matches) {
+            idCache.computeIfAbsent(cls, this::createIdCache).put(id, encoded != null ? encoded : entity);
+        }
+        if (pos < 0) {
+            keysById.computeIfAbsent(cls, t -> new ConcurrentHashMap<>()).compute(id, (key, keys) -> {
+                if (keys == null) {
+                    keys = ConcurrentHashMap.newKeySet();
+                }
+                keys.add(k);
+                return keys;
+            });
+        } else if (!matches) {
+            keysById.computeIfPresent(cls, (t, index) -> {
+                index.computeIfPresent(id, (key, keys) -> {
+                    keys.remove(k);
+                    return keys.isEmpty() ? null : keys;
+                });
+                return index;
+            });
+        }
+        return true;
+    }
+
+    /**
+     * @return the positions of the entries in sort order, null if the entities cannot be compared
+     */
+    private Integer[] sort(List<Object> entries, List<Object> sort, Object element, Map<String, Object> after) {
+        List<Map<String, Object>> docs = new ArrayList<>(entries.size());
+        for (Object o : entries) {
+            if (o == element) {
+                docs.add(after);
+            } else {
+                docs.add(o instanceof byte[] ? CompactBsonCodec.decode((byte[]) o) : objectMapper.marshall(o));
+            }
+        }
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        boolean[] undecidable = new boolean[1];
+        //stable, equal elements keep their order
+        Arrays.sort(order, (a, b) -> {
+            Integer c = QueryPredicate.compare(docs.get(a), docs.get(b), sort);
+            if (c == null) {
+                undecidable[0] = true;
+                return 0;
+            }
+            return c;
+        });
+        return undecidable[0] ? null : order;
+    }
+
     @Override
     public boolean isCached(Class<?> type, String k) {
+        return isCached(type, toKey(type, k));
+    }
+
+    @Override
+    public boolean isCached(Class<?> type, CacheKey k) {
         //        Cache c = annotationHelper.getAnnotationFromHierarchy(type, Cache.class); ///type.getAnnotation(Cache.class);
         //        if (c != null) {
         //            if (!c.readCache()) return false;
         //        } else {
         //            return false;
         //        }
-        Map<Class<?>, Map<String, CacheElement>> snapshotCache = cache;
+        Map<Class<?>, Map<CacheKey, CacheElement>> snapshotCache = cache;
 
         try {
-            return snapshotCache.get(type) != null && snapshotCache.get(type).get(k) != null && snapshotCache.get(type).get(k).getFound() != null;
+            if (snapshotCache.get(type) != null && snapshotCache.get(type).get(k) != null && snapshotCache.get(type).get(k).getFound() != null) {
+                return true;
+            }
         } catch (Exception e) {
             return false;
         }
+        return promote(type, k);
     }
 
     /**
@@ -153,29 +861,235 @@ public class MorphiumCacheImpl implements MorphiumCache {
     @Override
     @SuppressWarnings("unchecked")
     public <T> List<T> getFromCache(Class<? extends T> type, String k) {
-        Map<Class<?>, Map<String, CacheElement>> snapshotCache = cache;
-        if (snapshotCache.get(type) == null || snapshotCache.get(type).get(k) == null) {
+        return getFromCache(type, toKey(type, k));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getFromCache(Class<? extends T> type, CacheKey k) {
+        Map<Class<?>, Map<CacheKey, CacheElement>> snapshotCache = cache;
+        if ((snapshotCache.get(type) == null || snapshotCache.get(type).get(k) == null) && !promote(type, k)) {
+            getStatistics(type).recordMiss(k);
             return null;
         }
+        snapshotCache = cache;
         try {
             final CacheElement cacheElement = snapshotCache.get(type).get(k);
             cacheElement.setLru(System.currentTimeMillis());
-            return cacheElement.getFound();
+            getStatistics(type).recordHit(k);
+            return read(type, cacheElement);
         } catch (Exception e) {
             //can happen, when cache is cleared in thw wron moment
         }
+        getStatistics(type).recordMiss(k);
         return null;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getFromCache(Class<? extends T> type, CacheKey k, Callable<List<T>> loader) {
+        CacheElement<T> e = getElement(type, k);
+        if (e == null && promote(type, k)) {
+            e = getElement(type, k);
+        }
+        if (e != null) {
+            getStatistics(type).recordHit(k);
+            long now = System.currentTimeMillis();
+            e.setLru(now);
+            if (refreshAheadPercent > 0 && now - e.getCreated() > (long) getTimeout(type) * refreshAheadPercent / 100) {
+                refreshAhead(type, k, loader);
+            }
+            return read(type, e);
+        }
+        getStatistics(type).recordMiss(k);
+        return load(type, k, loader);
+    }
+
     @SuppressWarnings("unchecked")
+    private <T> CacheElement<T> getElement(Class<? extends T> type, CacheKey k) {
+        Map<CacheKey, CacheElement> typeCache = cache.get(type);
+        CacheElement<T> e = typeCache == null ? null : typeCache.get(k);
+        if (e == null || e.getFound() == null) {
+            return null;
+        }
+        return e;
+    }
+
+    /**
+     * single flight: only the first caller runs the loader, others wait for its result
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> load(Class<? extends T> type, CacheKey k, Callable<List<T>> loader) {
+        LoadKey lk = new LoadKey(type, k);
+        CompletableFuture<List<?>> f = new CompletableFuture<>();
+        CompletableFuture<List<?>> running = loading.putIfAbsent(lk, f);
+        if (running != null) {
+            try {
+                List<T> ret = (List<T>) running.get();
+                CacheElement<T> e = getElement(type, k);
+                //do not share the loaded instances between callers
+                return e == null ? readUncached(type, ret) : read(type, e);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+        try {
+            long generation = getGeneration(type).get();
+            long start = System.currentTimeMillis();
+            List<T> ret = loader.call();
+            getStatistics(type).recordLoad(k, System.currentTimeMillis() - start);
+            if (ret != null && generation == getGeneration(type).get()) {
+                addToCache(k, type, ret);
+            }
+            f.complete(ret);
+            //the loading caller gets the same kind of list as a read from the cache
+            return ret != null && getReadMode(type) == Cache.ReadMode.UNMODIFIABLE ? Collections.unmodifiableList(ret) : ret;
+        } catch (RuntimeException ex) {
+            f.completeExceptionally(ex);
+            throw ex;
+        } catch (Exception ex) {
+            f.completeExceptionally(ex);
+            throw new RuntimeException(ex);
+        } finally {
+            loading.remove(lk, f);
+        }
+    }
+
+    private <T> void refreshAhead(Class<? extends T> type, CacheKey k, Callable<List<T>> loader) {
+        LoadKey lk = new LoadKey(type, k);
+        if (loading.containsKey(lk) || !refreshing.add(lk)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    load(type, k, loader);
+                } catch (Exception e) {
+                    logger.error("Refreshing cache entry failed", e);
+                } finally {
+                    refreshing.remove(lk);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //all refresh threads busy - entry will be loaded when expired
+            refreshing.remove(lk);
+        }
+    }
+
+    @Override
+    public CacheStats getStatistics(Class<?> type) {
+        return stats.computeIfAbsent(type, this::createStatistics);
+    }
+
+    @Override
+    public Map<Class<?>, CacheStats> getStatistics() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    private CacheStats createStatistics(Class<?> type) {
+        CacheStats ret = new CacheStats(type.getName(), () -> {
+            Map<CacheKey, CacheElement> m = cache.get(type);
+            return m == null ? 0 : m.size();
+        }, () -> {
+            Map<CacheKey, CacheElement> m = cache.get(type);
+            return m instanceof TypeCache ? ((TypeCache) m).getWeight() : 0;
+        });
+        if (statisticsJmx) {
+            try {
+                ObjectName name = new ObjectName("de.caluga.morphium:type=CacheStats,cache=" + System.identityHashCode(this) + ",name=" + type.getName());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(ret, name);
+                statisticsMBeans.put(type, name);
+            } catch (Exception e) {
+                logger.error("Could not register cache statistics MBean for " + type.getName(), e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * removes the statistics of the type and unregisters its MBean. Statistics are created again on next access
+     */
+    private void removeStatistics(Class<?> type) {
+        stats.remove(type);
+        ObjectName name = statisticsMBeans.remove(type);
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (Exception e) {
+                logger.error("Could not unregister cache statistics MBean for " + type.getName(), e);
+            }
+        }
+    }
+
+    @Override
+    public void setObjectMapper(ObjectMapper mapper) {
+        objectMapper = mapper;
+    }
+
+    @Override
+    public void setReadMode(Class<?> type, Cache.ReadMode mode) {
+        if (mode == null) {
+            readModes.remove(type);
+        } else {
+            readModes.put(type, mode);
+        }
+    }
+
+    @Override
+    public void setStatisticsJmx(boolean jmx) {
+        statisticsJmx = jmx;
+    }
+
+    public boolean isStatisticsJmx() {
+        return statisticsJmx;
+    }
+
+    private AtomicLong getGeneration(Class<?> type) {
+        return generations.computeIfAbsent(type, t -> new AtomicLong());
+    }
+
+    /**
+     * @return copy of the cached results, keyed by CacheKey.toString(). Use getCacheEntries for the cache itself
+     */
     @Override
     public Map<Class<?>, Map<String, CacheElement>> getCache() {
-        return cache; //(Map<Class<?>, Map<String, CacheElement>>) (((ConcurrentHashMap) cache).clone());
+        Map<Class<?>, Map<String, CacheElement>> ret = new HashMap<>();
+        for (Map.Entry<Class<?>, Map<CacheKey, CacheElement>> e : cache.entrySet()) {
+            Map<String, CacheElement> m = new HashMap<>();
+            for (Map.Entry<CacheKey, CacheElement> el : e.getValue().entrySet()) {
+                m.put(el.getKey().toString(), el.getValue());
+            }
+            ret.put(e.getKey(), m);
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<Class<?>, Map<CacheKey, CacheElement>> getCacheEntries() {
+        return cache;
     }
 
+    /**
+     * replaces all cached results by the given ones, the keys are used as manually chosen keys (see CacheKey.of).
+     * The map is copied
+     */
     @Override
     public void setCache(Map<Class<?>, Map<String, CacheElement>> cache) {
-        this.cache = cache;
+        Map<Class<?>, Map<CacheKey, CacheElement>> c = new ConcurrentHashMap<>();
+        for (Map.Entry<Class<?>, Map<String, CacheElement>> e : cache.entrySet()) {
+            TypeCache typeCache = createTypeCache(e.getKey());
+            for (Map.Entry<String, CacheElement> el : e.getValue().entrySet()) {
+                typeCache.put(CacheKey.of(el.getKey()), el.getValue());
+            }
+            c.put(e.getKey(), typeCache);
+        }
+        this.cache = c;
     }
 
     @SuppressWarnings("unchecked")
@@ -192,39 +1106,45 @@ public class MorphiumCacheImpl implements MorphiumCache {
     @SuppressWarnings("unchecked")
     @Override
     public <T> T getFromIDCache(Class<? extends T> type, Object id) {
-        if (idCache.get(type) != null) {
-            return (T) idCache.get(type).get(id);
+        if (idCache.get(type) == null) {
+            return null;
         }
-        return null;
+        Object ret = idCache.get(type).get(id);
+        if (ret instanceof byte[]) {
+            //snapshot of a type cached with ReadMode.COPY
+            return objectMapper.unmarshall(type, CompactBsonCodec.decode((byte[]) ret));
+        }
+        if (ret != null && getReadMode(type) == Cache.ReadMode.COPY) {
+            return objectMapper.unmarshall(type, objectMapper.marshall(ret));
+        }
+        return (T) ret;
     }
 
     @Override
     public void setValidCacheTime(Class type, int time) {
         cacheHousekeeper.setValidCacheTime(type, time);
+        updateSettings();
     }
 
     @Override
     public void setDefaultCacheTime(Class type) {
         cacheHousekeeper.setDefaultValidCacheTime(type);
+        updateSettings();
     }
 
-    @SuppressWarnings("StringBufferMayBeStringBuilder")
     @Override
     public String getCacheKey(Map<String, Object> qo, Map<String, Integer> sort, String collection, int skip, int limit) {
-        StringBuilder b = new StringBuilder();
-        b.append(qo.toString());
-        b.append(" c:").append(collection);
-        b.append(" l:");
-        b.append(limit);
-        b.append(" s:");
-        b.append(skip);
-        if (sort != null) {
-            b.append(" sort:");
-            for (Map.Entry<String, Integer> s : sort.entrySet()) {
-                b.append(" ").append(s.getKey()).append(":").append(s.getValue());
-            }
-        }
-        return b.toString();
+        return createCacheKey(qo, sort, collection, skip, limit).toString();
+    }
+
+    @Override
+    public CacheKey createCacheKey(Map<String, Object> qo, Map<String, Integer> sort, String collection, int skip, int limit) {
+        return new CacheKey(qo, sort, collection, skip, limit);
+    }
+
+    @Override
+    public String getCacheKey(Query q) {
+        return createCacheKey(q).toString();
     }
 
     /**
@@ -234,72 +1154,191 @@ public class MorphiumCacheImpl implements MorphiumCache {
      * @return the resulting cache key
      */
     @Override
-    public String getCacheKey(Query q) {
+    public CacheKey createCacheKey(Query q) {
         //noinspection unchecked,unchecked
-        return getCacheKey(q.toQueryObject(), q.getSort(), q.getCollectionName(), q.getSkip(), q.getLimit());
+        return createCacheKey(q.toQueryObject(), q.getSort(), q.getCollectionName(), q.getSkip(), q.getLimit());
+    }
+
+    /**
+     * @return the key for a string, which is either chosen manually or created by getCacheKey
+     */
+    private CacheKey toKey(Class<?> type, String k) {
+        CacheKey key = CacheKey.of(k);
+        Map<CacheKey, CacheElement> typeCache = cache.get(type);
+        if (typeCache == null || typeCache.containsKey(key)) {
+            return key;
+        }
+        for (CacheKey ck : typeCache.keySet()) {
+            if (ck.toString().equals(k)) {
+                return ck;
+            }
+        }
+        return key;
     }
 
     @Override
     public void clearCachefor(Class<?> cls) {
+        clearCachefor(cls, RemovalReason.CLEAR);
+    }
+
+    @Override
+    public void clearCachefor(Class<?> cls, RemovalReason reason) {
         for (CacheListener cl : cacheListeners) {
             if (!cl.wouldClearCache(cls)) {
                 logger.info("Not clearing cache due to veto of cache listener " + cl.getClass().getName());
                 return;
             }
         }
+        getGeneration(cls).incrementAndGet();
         if (cache.get(cls) != null) {
+            if (reason != RemovalReason.CLEAR) {
+                getStatistics(cls).recordRemovals(reason, cache.get(cls).size());
+            }
             cache.get(cls).clear();
         }
         if (idCache.get(cls) != null) {
             idCache.get(cls).clear();
         }
+        if (keysById.get(cls) != null) {
+            keysById.get(cls).clear();
+        }
+        if (offHeapCache != null) {
+            offHeapCache.clear(cls);
+        }
+        if (reason == RemovalReason.CLEAR) {
+            //cleared explicitly, start over
+            removeStatistics(cls);
+        }
         //clearCacheFor(cls);
     }
 
     @Override
     public void resetCache() {
-        setCache(new ConcurrentHashMap<>());
+        Map<Class<?>, Map<CacheKey, CacheElement>> old = cache;
+        for (AtomicLong g : generations.values()) {
+            g.incrementAndGet();
+        }
+        cache = new ConcurrentHashMap<>();
+        keysById = new ConcurrentHashMap<>();
+        if (offHeapCache != null) {
+            offHeapCache.clear();
+        }
+        for (Map<CacheKey, CacheElement> typeCache : old.values()) {
+            typeCache.clear();
+        }
+        for (Class<?> type : new ArrayList<>(stats.keySet())) {
+            removeStatistics(type);
+        }
+    }
+
+    /**
+     * stops housekeeping and background refreshs, unregisters the statistics MBeans. The cache must not be used
+     * afterwards
+     */
+    @Override
+    public void close() {
+        cacheHousekeeper.end();
+        refreshExecutor.shutdownNow();
+        for (Class<?> type : new ArrayList<>(stats.keySet())) {
+            removeStatistics(type);
+        }
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void removeEntryFromCache(Class cls, Object id) {
-        //        Map<Class<?>, Map<String, CacheElement>> c = getCache();
-        //        Map<Class<?>, Map<Object, Object>> idc = getIdCache();
-        if (idCache.get(cls) != null && idCache.get(cls).get(id) != null) {
+        removeById(cls, id, RemovalReason.CLEAR);
+    }
+
+    @Override
+    public void removeEntryFromCache(Class cls, Object id, RemovalReason reason) {
+        removeById(cls, id, reason);
+    }
+
+    /**
+     * removes the entity from id cache and all results containing it, using the id index
+     *
+     * @return false, if vetoed by a cache listener
+     */
+    private boolean removeById(Class<?> cls, Object id, RemovalReason reason) {
+        Map<Object, Object> ids = idCache.get(cls);
+        if (ids != null && ids.get(id) != null) {
             for (CacheListener cl : cacheListeners) {
-                if (!cl.wouldRemoveEntryFromCache(cls, id, idCache.get(cls).get(id))) {
+                if (!cl.wouldRemoveEntryFromCache(cls, id, ids.get(id))) {
                     logger.info("Not removing from cache due to veto from CacheListener " + cl.getClass().getName());
-                    return;
+                    return false;
                 }
             }
+            ids.remove(id);
         }
-        idCache.get(cls).remove(id);
+        getGeneration(cls).incrementAndGet();
+        if (offHeapCache != null) {
+            offHeapCache.removeById(cls, id);
+        }
+        Map<Object, Set<CacheKey>> index = keysById.get(cls);
+        Set<CacheKey> keys = index == null ? null : index.remove(id);
+        Map<CacheKey, CacheElement> typeCache = cache.get(cls);
+        if (keys != null && typeCache != null) {
+            for (CacheKey k : keys) {
+                invalidate(cls, typeCache, k, reason);
+            }
+        }
+        return true;
+    }
 
-        ArrayList<String> toRemove = new ArrayList<>();
-        for (String key : cache.get(cls).keySet()) {
 
-            if (cache.get(cls).get(key) != null) {
-                for (Object el : cache.get(cls).get(key).getFound()) {
-                    Object lid = annotationHelper.getId(el);
-                    if (lid == null) {
-                        logger.error("Null id in CACHE?");
-                        toRemove.add(key);
-                    }
-                    if (lid != null && lid.equals(id)) {
-                        toRemove.add(key);
-                    }
-                }
-            } else {
-                logger.error("Null element in CACHE?");
-            }
+
+    private static final class LoadKey {
+        private final Class<?> type;
+        private final CacheKey key;
+
+        private LoadKey(Class<?> type, CacheKey key) {
+            this.type = type;
+            this.key = key;
         }
-        for (String k : toRemove) {
-            cache.get(cls).remove(k);
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() * 31 + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LoadKey && ((LoadKey) o).type.equals(type) && ((LoadKey) o).key.equals(key);
         }
-        //        setCache(c);
-        //        setIdCache(idc);
     }
 
+    /**
+     * read only view of a result cached with ReadMode.COPY: only the BSON snapshots and the ids of the entities are
+     * kept, every get creates a new instance
+     */
+    private class SnapshotList<T> extends AbstractList<T> implements RandomAccess {
+        private final Class<? extends T> type;
+        private final byte[][] data;
+        private final Object[] ids;
+
+        SnapshotList(Class<? extends T> type, byte[][] data, Object[] ids) {
+            this.type = type;
+            this.data = data;
+            this.ids = ids;
+        }
+
+        SnapshotList(Class<? extends T> type, List<T> lst) {
+            this.type = type;
+            data = snapshot(lst);
+            ids = new Object[data.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = annotationHelper.getId(lst.get(i));
+            }
+        }
+
+        @Override
+        public T get(int index) {
+            return objectMapper.unmarshall(type, CompactBsonCodec.decode(data[index]));
+        }
 
+        @Override
+        public int size() {
+            return data.length;
+        }
+    }
 }
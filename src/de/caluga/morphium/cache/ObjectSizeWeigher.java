@@ -0,0 +1,201 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.annotations.Embedded;
+import de.caluga.morphium.annotations.Entity;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates the retained size of a result in bytes by walking the object graph, similar to what JOL does. Assumes a
+ * 64 bit JVM with compressed oops: 12 byte object header, 4 byte references, 8 byte alignment.
+ * <p>
+ * Objects referenced more than once are only counted once, enums and classes are considered shared and not counted.
+ * JDK internal classes are not inspected, collections, maps and arrays are estimated by their content instead.
+ * Neither are cglib proxies (lazy references, partially updateable entities) followed into their callbacks, nor
+ * Morphium internal types that are no entities or embedded objects, which are referenced by proxies and
+ * listeners but not part of the result.
+ * <p>
+ * The walk stops after maxObjects objects, so that huge graphs do not block the caller. The size of the entities
+ * not walked then is extrapolated from the average size of those that were.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ObjectSizeWeigher implements CacheWeigher {
+    private static final int HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REF = 4;
+
+    private final Map<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<>();
+    private int maxObjects = 100000;
+
+    public int getMaxObjects() {
+        return maxObjects;
+    }
+
+    public void setMaxObjects(int maxObjects) {
+        this.maxObjects = maxObjects;
+    }
+
+    @Override
+    public long weigh(Class<?> type, List<?> result) {
+        if (result == null) {
+            return 0;
+        }
+        Map<Object, Boolean> visited = new IdentityHashMap<>();
+        Deque<Object> todo = new ArrayDeque<>();
+        long size = align(ARRAY_HEADER + (long) result.size() * REF) + align(HEADER + 2 * REF);
+        long entitiesSize = 0;
+        int walked = 0;
+        for (Object entity : result) {
+            if (entity == null) {
+                walked++;
+                continue;
+            }
+            todo.push(entity);
+            long entitySize = 0;
+            while (!todo.isEmpty() && visited.size() < maxObjects) {
+                Object o = todo.pop();
+                if (visited.put(o, Boolean.TRUE) != null) {
+                    continue;
+                }
+                entitySize += sizeOf(o, todo);
+            }
+            if (!todo.isEmpty()) {
+                //limit reached within this entity
+                if (walked == 0) {
+                    return size + entitySize;
+                }
+                break;
+            }
+            entitiesSize += entitySize;
+            walked++;
+        }
+        return size + entitiesSize + (result.size() - walked) * (entitiesSize / Math.max(walked, 1));
+    }
+
+    private long sizeOf(Object o, Deque<Object> todo) {
+        Class<?> cls = o.getClass();
+        if (o instanceof Class || cls.isEnum() || (cls.getSuperclass() != null && cls.getSuperclass().isEnum())) {
+            return 0;
+        }
+        if (o instanceof String) {
+            //object + byte/char array (latin1 or utf16 - assume 1 byte per char)
+            return align(HEADER + REF + 8) + align(ARRAY_HEADER + ((String) o).length());
+        }
+        if (o instanceof Number || o instanceof Boolean || o instanceof Character) {
+            return o instanceof Long || o instanceof Double ? 24 : 16;
+        }
+        if (o instanceof Date) {
+            return 24;
+        }
+        if (cls.isArray()) {
+            int len = Array.getLength(o);
+            Class<?> component = cls.getComponentType();
+            if (component.isPrimitive()) {
+                return align(ARRAY_HEADER + (long) len * primitiveSize(component));
+            }
+            for (int i = 0; i < len; i++) {
+                push(Array.get(o, i), todo);
+            }
+            return align(ARRAY_HEADER + (long) len * REF);
+        }
+        if (o instanceof Collection) {
+            Collection<?> c = (Collection<?>) o;
+            for (Object e : c) {
+                push(e, todo);
+            }
+            //backing array or nodes
+            return align(HEADER + 4 * REF) + align(ARRAY_HEADER + (long) c.size() * REF) + (o instanceof List ? 0 : 32L * c.size());
+        }
+        if (o instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) o;
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                push(e.getKey(), todo);
+                push(e.getValue(), todo);
+            }
+            //table + one node per entry
+            return align(HEADER + 6 * REF) + align(ARRAY_HEADER + (long) m.size() * 2 * REF) + 32L * m.size();
+        }
+        ClassLayout layout = layouts.computeIfAbsent(cls, this::getLayout);
+        for (Field f : layout.references) {
+            try {
+                push(f.get(o), todo);
+            } catch (IllegalAccessException e) {
+                //ignore
+            }
+        }
+        return layout.shallowSize;
+    }
+
+    private void push(Object o, Deque<Object> todo) {
+        if (o != null) {
+            todo.push(o);
+        }
+    }
+
+    private ClassLayout getLayout(Class<?> cls) {
+        ClassLayout ret = new ClassLayout();
+        long size = HEADER;
+        boolean leaf = isLeaf(cls);
+        for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers())) {
+                    continue;
+                }
+                if (f.getType().isPrimitive()) {
+                    size += primitiveSize(f.getType());
+                    continue;
+                }
+                size += REF;
+                if (leaf || f.getName().startsWith("CGLIB$")) {
+                    //do not inspect internals and proxy callbacks
+                    continue;
+                }
+                try {
+                    f.setAccessible(true);
+                    ret.references.add(f);
+                } catch (RuntimeException e) {
+                    //not accessible - only the reference is counted
+                }
+            }
+        }
+        ret.shallowSize = align(size);
+        return ret;
+    }
+
+    /**
+     * @return true, if references of instances of the class are not followed
+     */
+    private static boolean isLeaf(Class<?> cls) {
+        String name = cls.getName();
+        if (name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") || name.startsWith("net.sf.cglib.")) {
+            return true;
+        }
+        return name.startsWith("de.caluga.morphium.") && !cls.isAnnotationPresent(Entity.class) && !cls.isAnnotationPresent(Embedded.class);
+    }
+
+    private static int primitiveSize(Class<?> t) {
+        if (t == long.class || t == double.class) {
+            return 8;
+        }
+        if (t == int.class || t == float.class) {
+            return 4;
+        }
+        if (t == short.class || t == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static class ClassLayout {
+        private final List<Field> references = new ArrayList<>();
+        private long shallowSize;
+    }
+}
@@ -0,0 +1,327 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.Logger;
+import de.caluga.morphium.ObjectMapper;
+import de.caluga.morphium.driver.bson.CompactBsonCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Predicate;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Second level cache tier: results evicted from the (on heap) cache are stored BSON encoded outside of the java heap,
+ * either in direct ByteBuffers or in a memory mapped file. On a cache miss, the first level cache checks here and
+ * unmarshalls the entities using the ObjectMapper again.
+ * <p>
+ * Memory is split into slabs, which are used like a ring buffer: new entries are appended to the current slab, when
+ * it is full the next one is reused, dropping all entries that were stored there. So the oldest entries are evicted
+ * first and there is no fragmentation. Only the index (type and key to location, and the ids of the entities to the
+ * keys of the results containing them) is kept on heap.
+ * <p>
+ * Entries are invalidated like the first level ones: by the ids they contain (removeById) and by checking their
+ * keys (removeIf), so a write only drops the entries it might affect.
+ */
+@SuppressWarnings("WeakerAccess")
+public class OffHeapCache {
+    private static final int MIN_SLAB_SIZE = 64 * 1024;
+    private static final int MAX_SLAB_SIZE = 256 * 1024 * 1024;
+
+    private final Logger logger = new Logger(OffHeapCache.class);
+    private final ObjectMapper mapper;
+    private final ByteBuffer[] slabs;
+    private final List<Location>[] slabEntries;
+    private final int slabSize;
+    private final Map<Class<?>, Map<CacheKey, Location>> index = new ConcurrentHashMap<>();
+    //id -> keys of stored results containing this id
+    private final Map<Class<?>, Map<Object, Set<CacheKey>>> keysById = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int current;
+    private int position;
+
+    /**
+     * @param mapper   - used to marshall and unmarshall the entities
+     * @param capacity - bytes to use
+     * @param file     - if not null, a memory mapped file is used instead of direct buffers. Contents are not kept
+     *                 between restarts
+     */
+    @SuppressWarnings("unchecked")
+    public OffHeapCache(ObjectMapper mapper, long capacity, String file) {
+        if (capacity < MIN_SLAB_SIZE) {
+            throw new IllegalArgumentException("Capacity too small: " + capacity);
+        }
+        this.mapper = mapper;
+        slabSize = (int) Math.min(Math.max(capacity / 16, MIN_SLAB_SIZE), MAX_SLAB_SIZE);
+        int count = (int) Math.max(1, capacity / slabSize);
+        slabs = new ByteBuffer[count];
+        slabEntries = new List[count];
+        try {
+            FileChannel channel = null;
+            if (file != null) {
+                File f = new File(file);
+                f.deleteOnExit();
+                channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            for (int i = 0; i < count; i++) {
+                if (channel != null) {
+                    //mapping stays valid after closing the channel
+                    slabs[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * slabSize, slabSize);
+                } else {
+                    slabs[i] = ByteBuffer.allocateDirect(slabSize);
+                }
+                slabEntries[i] = new ArrayList<>();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create off heap cache in " + file, e);
+        }
+    }
+
+    /**
+     * stores the result, replacing an older entry with the same key
+     *
+     * @param ids - ids of the entities in the result
+     * @return false, if the result could not be stored (too large or not serializable)
+     */
+    public <T> boolean put(Class<? extends T> type, CacheKey k, CacheElement<T> e, Collection<Object> ids) {
+        byte[] data;
+        try {
+            List<Object> lst = new ArrayList<>(e.getFound().size());
+            if (e.getSnapshot() != null) {
+                for (byte[] b : e.getSnapshot()) {
+                    lst.add(CompactBsonCodec.decode(b));
+                }
+            } else {
+                for (T o : e.getFound()) {
+                    lst.add(k.isIdList() ? o : mapper.marshall(o));
+                }
+            }
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("r", lst);
+            data = CompactBsonCodec.encode(doc);
+        } catch (Exception ex) {
+            logger.debug("Could not serialize result of " + type.getName() + ": " + ex.getMessage());
+            return false;
+        }
+        if (data.length > slabSize) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            if (position + data.length > slabSize) {
+                current = (current + 1) % slabs.length;
+                reuse(current);
+            }
+            ByteBuffer b = slabs[current].duplicate();
+            b.position(position);
+            b.put(data);
+            Location l = new Location(type, k, current, position, data.length, e.getCreated(), ids.toArray());
+            position += data.length;
+            slabEntries[current].add(l);
+            Location old = index.computeIfAbsent(type, t -> new ConcurrentHashMap<>()).put(k, l);
+            if (old != null) {
+                unindex(old);
+            }
+            Map<Object, Set<CacheKey>> byId = keysById.computeIfAbsent(type, t -> new ConcurrentHashMap<>());
+            for (Object id : l.ids) {
+                byId.computeIfAbsent(id, i -> new HashSet<>()).add(k);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    private void reuse(int slab) {
+        for (Location l : slabEntries[slab]) {
+            Map<CacheKey, Location> m = index.get(l.type);
+            if (m != null && m.remove(l.key, l)) {
+                unindex(l);
+            }
+        }
+        slabEntries[slab].clear();
+        position = 0;
+    }
+
+    /**
+     * removes the key of the entry from the id index, needs the write lock
+     */
+    private void unindex(Location l) {
+        Map<Object, Set<CacheKey>> byId = keysById.get(l.type);
+        if (byId == null) {
+            return;
+        }
+        for (Object id : l.ids) {
+            Set<CacheKey> keys = byId.get(id);
+            if (keys != null) {
+                keys.remove(l.key);
+                if (keys.isEmpty()) {
+                    byId.remove(id);
+                }
+            }
+        }
+    }
+
+    public boolean contains(Class<?> type, CacheKey k) {
+        Map<CacheKey, Location> m = index.get(type);
+        return m != null && m.containsKey(k);
+    }
+
+    /**
+     * @return the result with new instances of the entities, null if not found
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CacheElement<T> get(Class<? extends T> type, CacheKey k) {
+        Map<CacheKey, Location> m = index.get(type);
+        if (m == null) {
+            return null;
+        }
+        Location l;
+        byte[] data;
+        lock.readLock().lock();
+        try {
+            l = m.get(k);
+            if (l == null) {
+                return null;
+            }
+            data = new byte[l.length];
+            ByteBuffer b = slabs[l.slab].duplicate();
+            b.position(l.offset);
+            b.get(data);
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Object> lst = (List<Object>) CompactBsonCodec.decode(data).get("r");
+        List<T> ret = new ArrayList<>(lst.size());
+        for (Object o : lst) {
+            ret.add(k.isIdList() ? (T) o : mapper.unmarshall(type, (Map<String, Object>) o));
+        }
+        CacheElement<T> e = new CacheElement<>(ret);
+        e.setCreated(l.created);
+        return e;
+    }
+
+    public void remove(Class<?> type, CacheKey k) {
+        Map<CacheKey, Location> m = index.get(type);
+        if (m == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            //space is reclaimed when the slab is reused
+            Location l = m.remove(k);
+            if (l != null) {
+                unindex(l);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * removes all results containing the entity with the given id
+     */
+    public void removeById(Class<?> type, Object id) {
+        Map<Object, Set<CacheKey>> byId = keysById.get(type);
+        if (byId == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Set<CacheKey> keys = byId.get(id);
+            if (keys != null) {
+                for (CacheKey k : new ArrayList<>(keys)) {
+                    remove(type, k);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * removes all results of the type, whose key matches
+     */
+    public void removeIf(Class<?> type, Predicate<CacheKey> filter) {
+        Map<CacheKey, Location> m = index.get(type);
+        if (m == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (CacheKey k : new ArrayList<>(m.keySet())) {
+                if (filter.test(k)) {
+                    remove(type, k);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear(Class<?> type) {
+        lock.writeLock().lock();
+        try {
+            Map<CacheKey, Location> m = index.get(type);
+            if (m != null) {
+                m.clear();
+            }
+            keysById.remove(type);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            index.clear();
+            keysById.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of results stored
+     */
+    public int size() {
+        int ret = 0;
+        for (Map<CacheKey, Location> m : index.values()) {
+            ret += m.size();
+        }
+        return ret;
+    }
+
+    public long getCapacity() {
+        return (long) slabs.length * slabSize;
+    }
+
+    private static final class Location {
+        private final Class<?> type;
+        private final CacheKey key;
+        private final int slab;
+        private final int offset;
+        private final int length;
+        private final long created;
+        private final Object[] ids;
+
+        private Location(Class<?> type, CacheKey key, int slab, int offset, int length, long created, Object[] ids) {
+            this.type = type;
+            this.key = key;
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.created = created;
+            this.ids = ids;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.AnnotationAndReflectionHelper;
+import de.caluga.morphium.Logger;
+import de.caluga.morphium.Morphium;
+import de.caluga.morphium.Utils;
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.driver.MorphiumCursor;
+import de.caluga.morphium.driver.MorphiumDriver;
+import de.caluga.morphium.driver.bson.MongoTimestamp;
+import de.caluga.morphium.driver.singleconnect.SingleConnectDirectDriver;
+import de.caluga.morphium.driver.singleconnect.SingleConnectThreaddedDriver;
+
+import java.util.*;
+
+/**
+ * Cache synchronization without messaging: tails the oplog (local.oplog.rs) of the replicaset with a tailable,
+ * awaitData cursor and invalidates the local cache for every write to a collection of a cached type, regardless of
+ * which node or application wrote it. Needs read access to the local database.
+ * <p>
+ * The oplog namespace (database.collection) is mapped to all currently cached types stored in that collection, the
+ * SyncCacheStrategy of the type decides what happens:
+ * <ul>
+ * <li>NONE: nothing</li>
+ * <li>CLEAR_TYPE_CACHE: type cache is cleared</li>
+ * <li>REMOVE_ENTRY_FROM_TYPE_CACHE: updated and deleted documents are removed, inserts clear the type</li>
+ * <li>UPDATE_ENTRY: inserted and replaced documents are put into the cache, other updates remove the entry</li>
+ * </ul>
+ * Transactions are logged as one applyOps command (in admin.$cmd), its entries are processed by their own
+ * namespace. Of the other commands only those removing or replacing data (drop, renameCollection, dropDatabase...)
+ * clear the cached types of the collection or database, others like createIndexes are ignored. Writes of this node
+ * are seen as well, invalidating them again is harmless.
+ * <p>
+ * The oplog is queried from the last seen ts (BSON timestamp) on, on start from the start time. If the cursor dies,
+ * it is reopened after retryPause ms at the last seen timestamp and all cached types are cleared, as entries might
+ * have been missed.
+ * <p>
+ * Waiting for new oplog entries blocks the connection used for up to awaitData ms. So a driver with a connection
+ * pool is needed, the single connection drivers cannot be used - all other operations would have to wait.
+ */
+@SuppressWarnings("WeakerAccess")
+public class OplogCacheSynchronizer implements Runnable {
+    public static final String LOCAL_DB = "local";
+    public static final String OPLOG = "oplog.rs";
+    private static final Logger log = new Logger(OplogCacheSynchronizer.class);
+
+    private final Morphium morphium;
+    private final AnnotationAndReflectionHelper annotationHelper;
+    private String oplogDb = LOCAL_DB;
+    private String oplogCollection = OPLOG;
+    private long awaitData = 1000;
+    private long retryPause = 1000;
+    private int batchSize = 1000;
+
+    private volatile boolean running;
+    private Thread thread;
+    private volatile MongoTimestamp lastTs;
+    private volatile long processed;
+
+    /**
+     * @param morphium - the underlying morphium instance, the cache of which is synchronized
+     */
+    public OplogCacheSynchronizer(Morphium morphium) {
+        this.morphium = morphium;
+        annotationHelper = morphium.getARHelper();
+    }
+
+    /**
+     * @throws IllegalStateException if morphium uses a single connection driver
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        MorphiumDriver drv = morphium.getDriver();
+        if (drv instanceof SingleConnectDirectDriver || drv instanceof SingleConnectThreaddedDriver) {
+            throw new IllegalStateException("Tailing the oplog would block the only connection of " + drv.getClass().getSimpleName() + ", use a driver with connection pool");
+        }
+        running = true;
+        //oplog timestamps have a resolution of seconds, entries of this second have an ordinal > 0
+        lastTs = new MongoTimestamp((int) (System.currentTimeMillis() / 1000), 0);
+        thread = new Thread(this, "oplogCacheSync");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void terminate() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return number of oplog entries processed so far
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    @Override
+    public void run() {
+        boolean restarted = false;
+        while (running) {
+            MorphiumCursor crs = null;
+            try {
+                //noops are not of interest
+                Map<String, Object> q = Utils.getMap("op", Utils.getMap("$in", Arrays.asList("i", "u", "d", "c")));
+                q.put("ts", Utils.getMap("$gt", lastTs));
+                crs = morphium.getDriver().initTailableIteration(oplogDb, oplogCollection, q, null, batchSize, awaitData);
+                if (restarted) {
+                    clearAll();
+                }
+                while (running && crs != null) {
+                    //noinspection unchecked
+                    process((List<Map<String, Object>>) crs.getBatch());
+                    if (crs.getCursorId() == 0 || crs.getInternalCursorObject() == null) {
+                        //cursor closed by server
+                        break;
+                    }
+                    crs = morphium.getDriver().nextIteration(crs);
+                }
+            } catch (Exception e) {
+                if (running) {
+                    log.error("Tailing oplog failed", e);
+                }
+            } finally {
+                close(crs);
+            }
+            restarted = true;
+            if (running) {
+                try {
+                    Thread.sleep(retryPause);
+                } catch (InterruptedException e) {
+                    //terminated
+                }
+            }
+        }
+    }
+
+    private void close(MorphiumCursor crs) {
+        if (crs == null || crs.getInternalCursorObject() == null) {
+            return;
+        }
+        try {
+            morphium.getDriver().closeIteration(crs);
+        } catch (Exception e) {
+            //cursor probably already dead
+        }
+    }
+
+    /**
+     * processes oplog entries, usually only called by the tailing thread
+     */
+    public void process(List<Map<String, Object>> entries) {
+        if (entries == null) {
+            return;
+        }
+        for (Map<String, Object> entry : entries) {
+            Object ts = entry.get("ts");
+            if (ts instanceof MongoTimestamp) {
+                if (((MongoTimestamp) ts).compareTo(lastTs) <= 0) {
+                    continue;
+                }
+                lastTs = (MongoTimestamp) ts;
+            }
+            try {
+                processEntry(entry);
+            } catch (Exception e) {
+                log.error("Could not process oplog entry " + entry, e);
+            }
+            processed++;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void processEntry(Map<String, Object> entry) {
+        String op = (String) entry.get("op");
+        String ns = (String) entry.get("ns");
+        if (op == null || ns == null) {
+            return;
+        }
+        Map<String, Object> o = (Map<String, Object>) entry.get("o");
+        if (op.equals("c")) {
+            if (o != null && o.get("applyOps") instanceof List) {
+                //transaction, usually in admin.$cmd
+                for (Map<String, Object> e : (List<Map<String, Object>>) o.get("applyOps")) {
+                    processEntry(e);
+                }
+            } else if (o != null) {
+                processCommand(ns, o);
+            }
+            return;
+        }
+        String collection = getCollection(ns);
+        if (collection == null) {
+            return;
+        }
+        for (Class<?> cls : getCachedTypes(collection)) {
+            Cache c = annotationHelper.getAnnotationFromHierarchy(cls, Cache.class);
+            if (c == null || !c.readCache()) {
+                continue;
+            }
+            switch (c.syncCache()) {
+                case NONE:
+                    break;
+                case CLEAR_TYPE_CACHE:
+                    morphium.getCache().clearCachefor(cls, RemovalReason.SYNC);
+                    break;
+                case REMOVE_ENTRY_FROM_TYPE_CACHE:
+                    if (op.equals("i")) {
+                        morphium.getCache().clearCachefor(cls, RemovalReason.SYNC);
+                    } else {
+                        removeEntry(cls, op, entry, o);
+                    }
+                    break;
+                case UPDATE_ENTRY:
+                    if ((op.equals("i") || op.equals("u")) && o != null && o.get("_id") != null && !isModifier(o)) {
+                        //full document
+                        Object entity = morphium.getMapper().unmarshall(cls, o);
+                        Object id = annotationHelper.getId(entity);
+                        Object cached = morphium.getCache().getFromIDCache(cls, id);
+                        Map<String, Object> before = cached == null ? null : morphium.getMapper().marshall(cached);
+                        morphium.getCache().updateCacheEntry(cls, id, entity, before, o);
+                    } else if (op.equals("i")) {
+                        morphium.getCache().clearCachefor(cls, RemovalReason.SYNC);
+                    } else {
+                        removeEntry(cls, op, entry, o);
+                    }
+                    break;
+                default:
+                    morphium.getCache().clearCachefor(cls, RemovalReason.SYNC);
+            }
+        }
+    }
+
+    /**
+     * clears the cached types of collections dropped, renamed or emptied by the command
+     */
+    private void processCommand(String ns, Map<String, Object> o) {
+        String db = ns.substring(0, Math.max(ns.indexOf('.'), 0));
+        if (o.containsKey("dropDatabase")) {
+            if (db.equals(morphium.getConfig().getDatabase())) {
+                clearAll();
+            }
+            return;
+        }
+        List<String> collections = new ArrayList<>();
+        for (String cmd : new String[]{"drop", "convertToCapped", "emptycapped"}) {
+            if (o.get(cmd) instanceof String) {
+                collections.add(db + "." + o.get(cmd));
+            }
+        }
+        if (o.get("renameCollection") instanceof String) {
+            //full namespaces, the command is logged in admin.$cmd
+            collections.add((String) o.get("renameCollection"));
+            if (o.get("to") instanceof String) {
+                collections.add((String) o.get("to"));
+            }
+        }
+        for (String c : collections) {
+            String collection = getCollection(c);
+            if (collection != null) {
+                for (Class<?> cls : getCachedTypes(collection)) {
+                    morphium.getCache().clearCachefor(cls, RemovalReason.SYNC);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the collection of the namespace, null if not in the database of morphium
+     */
+    private String getCollection(String ns) {
+        int idx = ns.indexOf('.');
+        if (idx < 0 || !ns.substring(0, idx).equals(morphium.getConfig().getDatabase())) {
+            return null;
+        }
+        return ns.substring(idx + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void removeEntry(Class<?> cls, String op, Map<String, Object> entry, Map<String, Object> o) {
+        //updates have the id in o2, deletes in o
+        Map<String, Object> idDoc = op.equals("u") ? (Map<String, Object>) entry.get("o2") : o;
+        if (idDoc == null || idDoc.get("_id") == null) {
+            morphium.getCache().clearCachefor(cls, RemovalReason.SYNC);
+            return;
+        }
+        morphium.getCache().removeEntryFromCache(cls, idDoc.get("_id"), RemovalReason.SYNC);
+    }
+
+    private boolean isModifier(Map<String, Object> o) {
+        for (String k : o.keySet()) {
+            if (k.startsWith("$")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<Class<?>> getCachedTypes() {
+        Set<Class<?>> ret = new HashSet<>(morphium.getCache().getCacheEntries().keySet());
+        ret.addAll(morphium.getCache().getIdCache().keySet());
+        return ret;
+    }
+
+    private List<Class<?>> getCachedTypes(String collection) {
+        List<Class<?>> ret = new ArrayList<>();
+        for (Class<?> cls : getCachedTypes()) {
+            if (morphium.getMapper().getCollectionName(cls).equals(collection)) {
+                ret.add(cls);
+            }
+        }
+        return ret;
+    }
+
+    private void clearAll() {
+        for (Class<?> cls : getCachedTypes()) {
+            morphium.getCache().clearCachefor(cls, RemovalReason.SYNC);
+        }
+    }
+
+    public String getOplogDb() {
+        return oplogDb;
+    }
+
+    /**
+     * @param oplogDb - database of the oplog, local by default
+     */
+    public void setOplogDb(String oplogDb) {
+        this.oplogDb = oplogDb;
+    }
+
+    public String getOplogCollection() {
+        return oplogCollection;
+    }
+
+    /**
+     * @param oplogCollection - oplog collection, oplog.rs by default
+     */
+    public void setOplogCollection(String oplogCollection) {
+        this.oplogCollection = oplogCollection;
+    }
+
+    public long getAwaitData() {
+        return awaitData;
+    }
+
+    /**
+     * @param awaitData - ms the server waits for new oplog entries before returning an empty batch
+     */
+    public void setAwaitData(long awaitData) {
+        this.awaitData = awaitData;
+    }
+
+    public long getRetryPause() {
+        return retryPause;
+    }
+
+    /**
+     * @param retryPause - ms to wait before reopening a failed cursor
+     */
+    public void setRetryPause(long retryPause) {
+        this.retryPause = retryPause;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
@@ -0,0 +1,311 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.driver.bson.MorphiumId;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates the query of a cache key against a written document, to decide whether the cached result might be
+ * affected by the write. Evaluation is three-valued: operators or values which cannot be decided here (regular
+ * expressions, geo queries, arrays, subdocuments...) result in "unknown", which is treated as a possible match.
+ * So this never claims a document does not match, if mongodb would consider it a match.
+ */
+@SuppressWarnings("WeakerAccess")
+final class QueryPredicate {
+    private static final Boolean UNKNOWN = null;
+    private static final Object NO_VALUE = new Object();
+
+    private QueryPredicate() {
+    }
+
+    /**
+     * @return false only, if the document definitely does not match the query
+     */
+    static boolean mayMatch(Map<String, Object> query, Map<String, Object> doc) {
+        return !Boolean.FALSE.equals(matches(query, doc));
+    }
+
+    /**
+     * @return true or false, if it can be decided here, null otherwise
+     */
+    @SuppressWarnings("unchecked")
+    static Boolean matches(Map<String, Object> query, Map<String, Object> doc) {
+        Boolean ret = Boolean.TRUE;
+        for (Map.Entry<String, Object> e : query.entrySet()) {
+            Boolean r;
+            switch (e.getKey()) {
+                case "$and":
+                    r = and((Collection<Object>) e.getValue(), doc);
+                    break;
+                case "$or":
+                    r = or((Collection<Object>) e.getValue(), doc);
+                    break;
+                case "$nor":
+                    r = not(or((Collection<Object>) e.getValue(), doc));
+                    break;
+                default:
+                    if (e.getKey().startsWith("$")) {
+                        r = UNKNOWN;
+                    } else {
+                        r = field(e.getKey(), e.getValue(), doc);
+                    }
+            }
+            if (Boolean.FALSE.equals(r)) {
+                return false;
+            }
+            if (r == UNKNOWN) {
+                ret = UNKNOWN;
+            }
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Boolean and(Collection<Object> queries, Map<String, Object> doc) {
+        Boolean ret = Boolean.TRUE;
+        for (Object q : queries) {
+            Boolean r = q instanceof Map ? matches((Map<String, Object>) q, doc) : UNKNOWN;
+            if (Boolean.FALSE.equals(r)) {
+                return false;
+            }
+            if (r == UNKNOWN) {
+                ret = UNKNOWN;
+            }
+        }
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Boolean or(Collection<Object> queries, Map<String, Object> doc) {
+        Boolean ret = Boolean.FALSE;
+        for (Object q : queries) {
+            Boolean r = q instanceof Map ? matches((Map<String, Object>) q, doc) : UNKNOWN;
+            if (Boolean.TRUE.equals(r)) {
+                return true;
+            }
+            if (r == UNKNOWN) {
+                ret = UNKNOWN;
+            }
+        }
+        return ret;
+    }
+
+    private static Boolean not(Boolean b) {
+        return b == UNKNOWN ? UNKNOWN : !b;
+    }
+
+    /**
+     * compares two documents like mongodb would sort them. Missing and null values are sorted first.
+     *
+     * @param sort - field names and directions, alternating
+     * @return null, if the documents cannot be compared here (e.g. arrays or different types)
+     */
+    @SuppressWarnings("unchecked")
+    static Integer compare(Map<String, Object> a, Map<String, Object> b, List<Object> sort) {
+        for (int i = 0; i < sort.size(); i += 2) {
+            String path = (String) sort.get(i);
+            int direction = ((Number) sort.get(i + 1)).intValue() < 0 ? -1 : 1;
+            Object va = value(path, a);
+            Object vb = value(path, b);
+            if (va == NO_VALUE || vb == NO_VALUE) {
+                return null;
+            }
+            int c;
+            if (va == null || vb == null) {
+                c = va == null ? (vb == null ? 0 : -1) : 1;
+            } else if (va instanceof Number && vb instanceof Number) {
+                c = compareNumbers((Number) va, (Number) vb);
+            } else if (isSimple(va) && va.getClass().equals(vb.getClass()) && va instanceof Comparable) {
+                c = ((Comparable<Object>) va).compareTo(vb);
+            } else {
+                return null;
+            }
+            if (c != 0) {
+                return c * direction;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the value at path, null if missing, NO_VALUE for arrays and paths into arrays or other values
+     */
+    private static Object value(String path, Map<String, Object> doc) {
+        Object value = doc;
+        for (String p : path.split("\\.")) {
+            if (value instanceof Map) {
+                value = ((Map) value).get(p);
+            } else if (value != null) {
+                return NO_VALUE;
+            }
+        }
+        if (value instanceof Collection || (value != null && value.getClass().isArray())) {
+            return NO_VALUE;
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Boolean field(String path, Object condition, Map<String, Object> doc) {
+        Object value = doc;
+        boolean exists = true;
+        for (String p : path.split("\\.")) {
+            if (value instanceof Map) {
+                exists = ((Map) value).containsKey(p);
+                value = ((Map) value).get(p);
+            } else if (value == null) {
+                exists = false;
+            } else {
+                //path into arrays or other values
+                return UNKNOWN;
+            }
+        }
+        if (value instanceof Collection || (value != null && value.getClass().isArray())) {
+            //array semantics are not handled here
+            return UNKNOWN;
+        }
+        if (condition instanceof Map && isOperatorMap((Map<String, Object>) condition)) {
+            Boolean ret = Boolean.TRUE;
+            for (Map.Entry<String, Object> op : ((Map<String, Object>) condition).entrySet()) {
+                Boolean r = operator(op.getKey(), op.getValue(), exists, value);
+                if (Boolean.FALSE.equals(r)) {
+                    return false;
+                }
+                if (r == UNKNOWN) {
+                    ret = UNKNOWN;
+                }
+            }
+            return ret;
+        }
+        return equal(value, condition);
+    }
+
+    private static boolean isOperatorMap(Map<String, Object> m) {
+        return !m.isEmpty() && m.keySet().iterator().next().startsWith("$");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Boolean operator(String op, Object operand, boolean exists, Object value) {
+        switch (op) {
+            case "$eq":
+                return equal(value, operand);
+            case "$ne":
+                return not(equal(value, operand));
+            case "$lt":
+                return compare(value, operand, c -> c < 0);
+            case "$lte":
+                return compare(value, operand, c -> c <= 0);
+            case "$gt":
+                return compare(value, operand, c -> c > 0);
+            case "$gte":
+                return compare(value, operand, c -> c >= 0);
+            case "$exists":
+                boolean shouldExist = Boolean.TRUE.equals(operand) || "true".equals(operand) || Integer.valueOf(1).equals(operand);
+                return shouldExist == exists;
+            case "$in":
+                if (!(operand instanceof Collection)) {
+                    return UNKNOWN;
+                }
+                return or(value, (Collection<Object>) operand);
+            case "$nin":
+                if (!(operand instanceof Collection)) {
+                    return UNKNOWN;
+                }
+                return not(or(value, (Collection<Object>) operand));
+            case "$not":
+                if (operand instanceof Map && isOperatorMap((Map<String, Object>) operand)) {
+                    Boolean ret = Boolean.TRUE;
+                    for (Map.Entry<String, Object> e : ((Map<String, Object>) operand).entrySet()) {
+                        Boolean r = operator(e.getKey(), e.getValue(), exists, value);
+                        if (Boolean.FALSE.equals(r)) {
+                            ret = Boolean.FALSE;
+                            break;
+                        }
+                        if (r == UNKNOWN) {
+                            ret = UNKNOWN;
+                        }
+                    }
+                    return not(ret);
+                }
+                return UNKNOWN;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static Boolean or(Object value, Collection<Object> candidates) {
+        Boolean ret = Boolean.FALSE;
+        for (Object c : candidates) {
+            Boolean r = equal(value, c);
+            if (Boolean.TRUE.equals(r)) {
+                return true;
+            }
+            if (r == UNKNOWN) {
+                ret = UNKNOWN;
+            }
+        }
+        return ret;
+    }
+
+    private static boolean isSimple(Object o) {
+        return o instanceof String || o instanceof Number || o instanceof Boolean || o instanceof Date || o instanceof MorphiumId || o instanceof Character;
+    }
+
+    private static Boolean equal(Object value, Object expected) {
+        if (expected == null) {
+            return value == null;
+        }
+        if (!isSimple(expected)) {
+            return UNKNOWN;
+        }
+        if (value == null) {
+            return false;
+        }
+        if (!isSimple(value)) {
+            return UNKNOWN;
+        }
+        if (value instanceof Number && expected instanceof Number) {
+            return compareNumbers((Number) value, (Number) expected) == 0;
+        }
+        if (!value.getClass().equals(expected.getClass())) {
+            //e.g. id stored as string, queried as MorphiumId - let mongodb decide
+            return UNKNOWN;
+        }
+        return value.equals(expected);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Boolean compare(Object value, Object operand, Comparison cmp) {
+        if (!isSimple(operand)) {
+            return UNKNOWN;
+        }
+        if (value == null) {
+            return false;
+        }
+        if (value instanceof Number && operand instanceof Number) {
+            return cmp.test(compareNumbers((Number) value, (Number) operand));
+        }
+        if (!isSimple(value) || !value.getClass().equals(operand.getClass()) || !(value instanceof Comparable)) {
+            return UNKNOWN;
+        }
+        return cmp.test(((Comparable<Object>) value).compareTo(operand));
+    }
+
+    private static int compareNumbers(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            return Long.compare(a.longValue(), b.longValue());
+        }
+        return Double.compare(a.doubleValue(), b.doubleValue());
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    private interface Comparison {
+        boolean test(int c);
+    }
+}
@@ -0,0 +1,27 @@
+package de.caluga.morphium.cache;
+
+/**
+ * Why entries were removed from the cache, used for statistics
+ */
+public enum RemovalReason {
+    /**
+     * older than timeout
+     */
+    TIMEOUT,
+    /**
+     * evicted due to maxEntries or byte budgets
+     */
+    SIZE,
+    /**
+     * invalidated by a write (clearOnWrite)
+     */
+    WRITE,
+    /**
+     * removed by calling removeEntryFromCache. clearCachefor and resetCache reset the statistics instead
+     */
+    CLEAR,
+    /**
+     * cleared due to a message of the CacheSynchronizer
+     */
+    SYNC,
+}
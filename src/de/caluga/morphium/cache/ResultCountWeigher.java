@@ -0,0 +1,14 @@
+package de.caluga.morphium.cache;
+
+import java.util.List;
+
+/**
+ * Weighs a result by the number of entities in it. Cheapest weigher, the byte budgets then limit the number of
+ * cached entities instead of bytes.
+ */
+public class ResultCountWeigher implements CacheWeigher {
+    @Override
+    public long weigh(Class<?> type, List<?> result) {
+        return result == null ? 0 : result.size();
+    }
+}
@@ -0,0 +1,551 @@
+package de.caluga.morphium.cache;
+
+import de.caluga.morphium.annotations.caching.Cache;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Cache entries of one type. The number of entries and their weight (see CacheWeigher) are bounded on every add,
+ * evicting entries in O(1) according to the ClearStrategy:
+ * <ul>
+ * <li>LRU: W-TinyLFU - new entries go to a small LRU window, entries leaving the window compete with the least
+ * recently used entry of the main segmented LRU (probation / protected). An approximated access frequency decides
+ * which one is kept, so one time queries do not wash out frequently used results</li>
+ * <li>FIFO: oldest entry is evicted</li>
+ * <li>RANDOM: a random entry is evicted</li>
+ * </ul>
+ * Reads are lock free, updating the LRU order is skipped if another thread holds the lock. Expired entries are
+ * not returned.
+ */
+@SuppressWarnings({"WeakerAccess", "unchecked"})
+public class TypeCache extends AbstractMap<CacheKey, CacheElement> {
+    private static final int NONE = 0;
+    private static final int WINDOW = 1;
+    private static final int PROBATION = 2;
+    private static final int PROTECTED = 3;
+    private static final int RANDOM = 4;
+
+    private final Map<CacheKey, Node> data = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Cache.ClearStrategy strategy;
+    private final int maxEntries;
+    private final int windowMax;
+    private final int protectedMax;
+    private final NodeList window = new NodeList();
+    private final NodeList probation = new NodeList();
+    private final NodeList protectedList = new NodeList();
+    private final List<Node> randomList = new ArrayList<>();
+    private final FrequencySketch sketch;
+    private final BiConsumer<CacheKey, CacheElement> removalListener;
+    private final AtomicLong globalWeight;
+    private volatile int timeout;
+    private volatile long maxWeight;
+    private volatile long weight = 0;
+
+    public TypeCache(Cache.ClearStrategy strategy, int maxEntries, int timeout, BiConsumer<CacheKey, CacheElement> removalListener) {
+        this(strategy, maxEntries, -1, timeout, null, removalListener);
+    }
+
+    /**
+     * @param strategy        eviction strategy
+     * @param maxEntries      maximum number of entries, &lt;=0 for unlimited
+     * @param maxWeight       maximum sum of the weight of all entries, &lt;=0 for unlimited
+     * @param timeout         time in ms entries are valid
+     * @param globalWeight    counter of the weight of all type caches, may be null
+     * @param removalListener called for entries removed due to eviction or expiry, may be null
+     */
+    public TypeCache(Cache.ClearStrategy strategy, int maxEntries, long maxWeight, int timeout, AtomicLong globalWeight, BiConsumer<CacheKey, CacheElement> removalListener) {
+        this.strategy = strategy == null ? Cache.ClearStrategy.FIFO : strategy;
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.timeout = timeout;
+        this.globalWeight = globalWeight;
+        this.removalListener = removalListener;
+        if (maxEntries > 0) {
+            windowMax = Math.max(1, maxEntries / 100);
+            protectedMax = (maxEntries - windowMax) * 8 / 10;
+        } else {
+            windowMax = Integer.MAX_VALUE;
+            protectedMax = Integer.MAX_VALUE;
+        }
+        sketch = this.strategy == Cache.ClearStrategy.LRU && maxEntries > 0 ? new FrequencySketch(maxEntries) : null;
+    }
+
+    public Cache.ClearStrategy getStrategy() {
+        return strategy;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @return sum of the weight of all entries
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * evicts one entry according to the strategy - used to enforce a budget shared by several type caches
+     *
+     * @return false, if the cache is empty
+     */
+    public boolean evictOne() {
+        Node victim;
+        lock.lock();
+        try {
+            if (data.isEmpty()) {
+                return false;
+            }
+            victim = selectVictim();
+            data.remove(victim.key, victim);
+            unlink(victim);
+        } finally {
+            lock.unlock();
+        }
+        notifyRemoval(Collections.singletonList(victim));
+        return true;
+    }
+
+    @Override
+    public CacheElement get(Object key) {
+        Node n = data.get(key);
+        if (n == null) {
+            return null;
+        }
+        if (isExpired(n.value, System.currentTimeMillis())) {
+            removeNode(n, true);
+            return null;
+        }
+        if (sketch != null && lock.tryLock()) {
+            //if the lock is held, the access is not recorded - no need to wait
+            try {
+                sketch.increment(n.key);
+                if (n.queue != NONE) {
+                    onAccess(n);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return n.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Node n = data.get(key);
+        return n != null && !isExpired(n.value, System.currentTimeMillis());
+    }
+
+    @Override
+    public CacheElement put(CacheKey key, CacheElement value) {
+        List<Node> evicted = new ArrayList<>();
+        CacheElement ret = null;
+        lock.lock();
+        try {
+            Node n = data.get(key);
+            if (n != null) {
+                ret = n.value;
+                n.value = value;
+                addWeight(value.getWeight() - n.weight);
+                n.weight = value.getWeight();
+                onAccess(n);
+            } else {
+                n = new Node(key, value);
+                data.put(key, n);
+                addWeight(n.weight);
+                if (strategy == Cache.ClearStrategy.RANDOM) {
+                    n.queue = RANDOM;
+                    n.index = randomList.size();
+                    randomList.add(n);
+                } else {
+                    n.queue = WINDOW;
+                    window.addLast(n);
+                }
+            }
+            if (sketch != null) {
+                sketch.increment(key);
+            }
+            evict(evicted);
+        } finally {
+            lock.unlock();
+        }
+        notifyRemoval(evicted);
+        return ret;
+    }
+
+    /**
+     * sets the weight of an entry changed in place, evicting other entries if the budget is exceeded now
+     *
+     * @return false, if the entry was replaced or removed meanwhile
+     */
+    public boolean setWeight(CacheKey key, CacheElement value, long w) {
+        List<Node> evicted = new ArrayList<>();
+        lock.lock();
+        try {
+            Node n = data.get(key);
+            if (n == null || n.value != value) {
+                return false;
+            }
+            value.setWeight(w);
+            addWeight(w - n.weight);
+            n.weight = w;
+            evict(evicted);
+        } finally {
+            lock.unlock();
+        }
+        notifyRemoval(evicted);
+        return true;
+    }
+
+    @Override
+    public CacheElement remove(Object key) {
+        lock.lock();
+        try {
+            Node n = data.remove(key);
+            if (n == null) {
+                return null;
+            }
+            unlink(n);
+            return n.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            data.clear();
+            addWeight(-weight);
+            window.clear();
+            probation.clear();
+            protectedList.clear();
+            randomList.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public Set<Entry<CacheKey, CacheElement>> entrySet() {
+        return new AbstractSet<Entry<CacheKey, CacheElement>>() {
+            @Override
+            public Iterator<Entry<CacheKey, CacheElement>> iterator() {
+                Iterator<Node> it = data.values().iterator();
+                return new Iterator<Entry<CacheKey, CacheElement>>() {
+                    private Node last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Entry<CacheKey, CacheElement> next() {
+                        last = it.next();
+                        return new SimpleImmutableEntry<>(last.key, last.value);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null) {
+                            throw new IllegalStateException();
+                        }
+                        removeNode(last, false);
+                        last = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return data.size();
+            }
+        };
+    }
+
+    /**
+     * removes the entry, if it is still the element created at the given time and expired
+     *
+     * @return 0 if the entry was removed or replaced, the new expiry time if the timeout was changed meanwhile
+     */
+    public long expireIfDue(CacheKey key, long created, long now) {
+        Node n = data.get(key);
+        if (n == null || n.value == null || n.value.getCreated() != created) {
+            return 0;
+        }
+        if (!isExpired(n.value, now)) {
+            return created + timeout;
+        }
+        removeNode(n, true);
+        return 0;
+    }
+
+    private boolean isExpired(CacheElement e, long now) {
+        return e == null || e.getFound() == null || now - e.getCreated() > timeout;
+    }
+
+    private void removeNode(Node n, boolean notify) {
+        lock.lock();
+        try {
+            if (!data.remove(n.key, n)) {
+                return;
+            }
+            unlink(n);
+        } finally {
+            lock.unlock();
+        }
+        if (notify) {
+            notifyRemoval(Collections.singletonList(n));
+        }
+    }
+
+    private void notifyRemoval(List<Node> removed) {
+        if (removalListener == null) {
+            return;
+        }
+        for (Node n : removed) {
+            removalListener.accept(n.key, n.value);
+        }
+    }
+
+    // everything below needs to hold the lock
+
+    private void onAccess(Node n) {
+        switch (n.queue) {
+            case WINDOW:
+                if (strategy == Cache.ClearStrategy.LRU) {
+                    window.moveToEnd(n);
+                }
+                break;
+            case PROBATION:
+                probation.remove(n);
+                n.queue = PROTECTED;
+                protectedList.addLast(n);
+                if (protectedList.size > protectedMax) {
+                    Node demoted = protectedList.head;
+                    protectedList.remove(demoted);
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedList.moveToEnd(n);
+                break;
+            default:
+        }
+    }
+
+    private void evict(List<Node> evicted) {
+        if (strategy == Cache.ClearStrategy.LRU) {
+            while (window.size > windowMax) {
+                Node candidate = window.head;
+                window.remove(candidate);
+                candidate.queue = PROBATION;
+                probation.addLast(candidate);
+            }
+        }
+        while (isOverLimit()) {
+            Node victim = selectVictim();
+            data.remove(victim.key, victim);
+            unlink(victim);
+            evicted.add(victim);
+        }
+    }
+
+    private boolean isOverLimit() {
+        return (maxEntries > 0 && data.size() > maxEntries) || (maxWeight > 0 && weight > maxWeight && !data.isEmpty());
+    }
+
+    private void addWeight(long w) {
+        weight += w;
+        if (globalWeight != null) {
+            globalWeight.addAndGet(w);
+        }
+    }
+
+    private Node selectVictim() {
+        switch (strategy) {
+            case RANDOM:
+                return randomList.get(ThreadLocalRandom.current().nextInt(randomList.size()));
+            case LRU:
+                Node victim = probation.head != null ? probation.head : protectedList.head;
+                if (victim == null) {
+                    return window.head;
+                }
+                //most recent entry from the window
+                Node candidate = probation.tail;
+                if (candidate == null || candidate == victim || sketch == null) {
+                    return victim;
+                }
+                return sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim : candidate;
+            default:
+                return window.head;
+        }
+    }
+
+    private void unlink(Node n) {
+        switch (n.queue) {
+            case WINDOW:
+                window.remove(n);
+                break;
+            case PROBATION:
+                probation.remove(n);
+                break;
+            case PROTECTED:
+                protectedList.remove(n);
+                break;
+            case RANDOM:
+                Node last = randomList.remove(randomList.size() - 1);
+                if (last != n) {
+                    randomList.set(n.index, last);
+                    last.index = n.index;
+                }
+                break;
+            default:
+                return;
+        }
+        n.queue = NONE;
+        addWeight(-n.weight);
+    }
+
+    private static class Node {
+        private final CacheKey key;
+        private volatile CacheElement value;
+        private Node prev;
+        private Node next;
+        private int queue = NONE;
+        private int index;
+        private long weight;
+
+        private Node(CacheKey key, CacheElement value) {
+            this.key = key;
+            this.value = value;
+            weight = value.getWeight();
+        }
+    }
+
+    private static class NodeList {
+        private Node head;
+        private Node tail;
+        private int size;
+
+        private void addLast(Node n) {
+            n.prev = tail;
+            n.next = null;
+            if (tail == null) {
+                head = n;
+            } else {
+                tail.next = n;
+            }
+            tail = n;
+            size++;
+        }
+
+        private void remove(Node n) {
+            if (n.prev == null) {
+                head = n.next;
+            } else {
+                n.prev.next = n.next;
+            }
+            if (n.next == null) {
+                tail = n.prev;
+            } else {
+                n.next.prev = n.prev;
+            }
+            n.prev = null;
+            n.next = null;
+            size--;
+        }
+
+        private void moveToEnd(Node n) {
+            if (tail != n) {
+                remove(n);
+                addLast(n);
+            }
+        }
+
+        private void clear() {
+            head = null;
+            tail = null;
+            size = 0;
+        }
+    }
+
+    /**
+     * count-min sketch with 4 bit counters (stored in bytes for simplicity) estimating how often a key was used.
+     * Counters are halved regularly, so that the frequency reflects recent usage
+     */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xb0f5c8a3, 0x7d32c1f5, 0x9e3779b9};
+        private final byte[] table;
+        private final int sampleSize;
+        private int additions = 0;
+
+        private FrequencySketch(int maxEntries) {
+            int sz = Integer.highestOneBit(Math.max(16, Math.min(maxEntries, 1 << 22)) * 4 - 1) << 1;
+            table = new byte[sz];
+            sampleSize = Math.max(10 * maxEntries, 100);
+        }
+
+        private int index(int hash, int i) {
+            int h = hash * SEEDS[i];
+            h ^= h >>> 16;
+            return h & (table.length - 1);
+        }
+
+        private int frequency(CacheKey key) {
+            int hash = key.hashCode();
+            int ret = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                ret = Math.min(ret, table[index(hash, i)]);
+            }
+            return ret;
+        }
+
+        private void increment(CacheKey key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < SEEDS.length; i++) {
+                int idx = index(hash, i);
+                if (table[idx] < 15) {
+                    table[idx]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (byte) (table[i] >> 1);
+                }
+                additions /= 2;
+            }
+        }
+    }
+}
@@ -168,6 +168,14 @@ public interface MorphiumDriver {
 
     MorphiumCursor initIteration(String db, String collection, Map<String, Object> query, Map<String, Integer> sort, Map<String, Object> projection, int skip, int limit, int batchSize, ReadPreference readPreference, Map<String, Object> findMetaData) throws MorphiumDriverException;
 
+    /**
+     * tailable cursor on a capped collection (e.g. local.oplog.rs). The cursor stays open after the last document
+     * was read, nextIteration returns the documents added since then, probably an empty batch.
+     *
+     * @param awaitData - time in ms the server waits for new data in nextIteration, 0 for no waiting
+     */
+    MorphiumCursor initTailableIteration(String db, String collection, Map<String, Object> query, Map<String, Object> projection, int batchSize, long awaitData) throws MorphiumDriverException;
+
     MorphiumCursor nextIteration(MorphiumCursor crs) throws MorphiumDriverException;
 
     void closeIteration(MorphiumCursor crs) throws MorphiumDriverException;
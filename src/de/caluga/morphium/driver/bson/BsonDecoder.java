@@ -168,8 +168,10 @@ public class BsonDecoder {
                     idx += 4;
                     break;
                 case 0x11:
-                    //timestamp - internal
-                    //                    throw new RuntimeException("Got internaltimestamp");
+                    //timestamp - internal, e.g. ts of the oplog
+                    value = new MongoTimestamp(readLong(in, idx));
+                    idx += 8;
+                    break;
                 case 0x12:
                     //64 bit long
                     value = readLong(in, idx);
@@ -142,6 +142,10 @@ public class BsonEncoder {
             writeByte(7);
             cString(n);
             writeBytes(((MorphiumId) v).getBytes());
+        } else if (v instanceof MongoTimestamp) {
+            writeByte(0x11);
+            cString(n);
+            writeLong(((MongoTimestamp) v).getValue());
 
         } else if (v.getClass().isAssignableFrom(Boolean.class)) {
             boolean b = (Boolean) v;
@@ -0,0 +1,437 @@
+package de.caluga.morphium.driver.bson;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Compact BSON encoding of documents into one byte array, used wherever documents are kept in memory in serialized
+ * form (compact documents of the in memory driver, cache snapshots, second level cache, cache sync messages).
+ * <p>
+ * Single fields can be read without decoding the whole document: the top level elements are walked and only the
+ * requested value is decoded. Java types not known to BSON (Float, Short, Byte, Character, MongoBob and other
+ * Serializable objects) are stored as binary data with a user defined subtype, so that values are read back with
+ * their original type.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class CompactBsonCodec {
+    private static final byte BINARY_GENERIC = 0x00;
+    private static final byte BINARY_JAVA = (byte) 0x80;
+
+    private CompactBsonCodec() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the document contains values that cannot be encoded
+     */
+    public static byte[] encode(Map<String, Object> doc) {
+        Writer w = new Writer();
+        w.writeDocument(doc);
+        return w.toByteArray();
+    }
+
+    /**
+     * @return the whole document decoded into a modifiable map
+     */
+    public static Map<String, Object> decode(byte[] bson) {
+        return readDocument(bson, 0);
+    }
+
+    /**
+     * @return the decoded value of the top level field, null if not present
+     */
+    public static Object get(byte[] bson, Object key) {
+        int idx = find(bson, key);
+        return idx < 0 ? null : readValue(bson, bson[idx], valueStart(bson, idx));
+    }
+
+    public static boolean containsKey(byte[] bson, Object key) {
+        return find(bson, key) >= 0;
+    }
+
+    /**
+     * @return number of top level fields
+     */
+    public static int size(byte[] bson) {
+        int cnt = 0;
+        for (int idx = 4; bson[idx] != 0; idx = next(bson, idx)) {
+            cnt++;
+        }
+        return cnt;
+    }
+
+    public static boolean isEmpty(byte[] bson) {
+        return bson[4] == 0;
+    }
+
+    /**
+     * @return start of the element with the given name, -1 if not found
+     */
+    private static int find(byte[] d, Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        byte[] name = ((String) key).getBytes(StandardCharsets.UTF_8);
+        for (int idx = 4; d[idx] != 0; idx = next(d, idx)) {
+            if (nameEquals(d, idx + 1, name)) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean nameEquals(byte[] d, int idx, byte[] name) {
+        for (byte b : name) {
+            if (d[idx++] != b) {
+                return false;
+            }
+        }
+        return d[idx] == 0;
+    }
+
+    private static int valueStart(byte[] d, int elementStart) {
+        int idx = elementStart + 1;
+        while (d[idx] != 0) {
+            idx++;
+        }
+        return idx + 1;
+    }
+
+    /**
+     * @return start of the element following the one at idx
+     */
+    private static int next(byte[] d, int idx) {
+        byte type = d[idx];
+        int v = valueStart(d, idx);
+        switch (type) {
+            case 0x01:
+            case 0x09:
+            case 0x11:
+            case 0x12:
+                return v + 8;
+            case 0x02:
+            case 0x0d:
+                return v + 4 + readInt(d, v);
+            case 0x03:
+            case 0x04:
+            case 0x0f:
+                return v + readInt(d, v);
+            case 0x05:
+                return v + 5 + readInt(d, v);
+            case 0x07:
+                return v + 12;
+            case 0x08:
+                return v + 1;
+            case 0x0a:
+            case 0x7f:
+            case (byte) 0xff:
+                return v;
+            case 0x0b:
+                while (d[v] != 0) {
+                    v++;
+                }
+                v++;
+                while (d[v] != 0) {
+                    v++;
+                }
+                return v + 1;
+            case 0x10:
+                return v + 4;
+            case 0x13:
+                return v + 16;
+            default:
+                throw new IllegalStateException("unknown BSON type " + type);
+        }
+    }
+
+    private static Map<String, Object> readDocument(byte[] d, int start) {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        for (int idx = start + 4; d[idx] != 0; idx = next(d, idx)) {
+            int v = valueStart(d, idx);
+            ret.put(new String(d, idx + 1, v - idx - 2, StandardCharsets.UTF_8), readValue(d, d[idx], v));
+        }
+        return ret;
+    }
+
+    private static Object readValue(byte[] d, byte type, int idx) {
+        switch (type) {
+            case 0x01:
+                return Double.longBitsToDouble(readLong(d, idx));
+            case 0x02:
+                return new String(d, idx + 4, readInt(d, idx) - 1, StandardCharsets.UTF_8);
+            case 0x03:
+                return readDocument(d, idx);
+            case 0x04:
+                List<Object> lst = new ArrayList<>();
+                for (int i = idx + 4; d[i] != 0; i = next(d, i)) {
+                    lst.add(readValue(d, d[i], valueStart(d, i)));
+                }
+                return lst;
+            case 0x05:
+                return readBinary(d, idx);
+            case 0x07:
+                return new MorphiumId(d, idx);
+            case 0x08:
+                return d[idx] == 1;
+            case 0x09:
+                return new Date(readLong(d, idx));
+            case 0x0a:
+                return null;
+            case 0x0b:
+                int end = idx;
+                while (d[end] != 0) {
+                    end++;
+                }
+                String pattern = new String(d, idx, end - idx, StandardCharsets.UTF_8);
+                int flags = 0;
+                for (int i = end + 1; d[i] != 0; i++) {
+                    switch (d[i]) {
+                        case 'i':
+                            flags |= Pattern.CASE_INSENSITIVE;
+                            break;
+                        case 'm':
+                            flags |= Pattern.MULTILINE;
+                            break;
+                        case 's':
+                            flags |= Pattern.DOTALL;
+                            break;
+                        case 'u':
+                            flags |= Pattern.UNICODE_CASE;
+                            break;
+                        default:
+                    }
+                }
+                return Pattern.compile(pattern, flags);
+            case 0x10:
+                return readInt(d, idx);
+            case 0x11:
+                return new MongoTimestamp(readLong(d, idx));
+            case 0x12:
+                return readLong(d, idx);
+            default:
+                throw new IllegalStateException("unsupported BSON type " + type);
+        }
+    }
+
+    private static Object readBinary(byte[] d, int idx) {
+        int len = readInt(d, idx);
+        byte subtype = d[idx + 4];
+        int start = idx + 5;
+        if (subtype != BINARY_JAVA) {
+            return Arrays.copyOfRange(d, start, start + len);
+        }
+        //first byte is the java type
+        switch (d[start]) {
+            case 'F':
+                return Float.intBitsToFloat(readInt(d, start + 1));
+            case 'S':
+                return (short) readInt(d, start + 1);
+            case 'B':
+                return d[start + 1];
+            case 'C':
+                return (char) readInt(d, start + 1);
+            case 'M':
+                return new MongoBob(Arrays.copyOfRange(d, start + 1, start + len));
+            case 'O':
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(d, start + 1, len - 1))) {
+                    return in.readObject();
+                } catch (Exception e) {
+                    throw new IllegalStateException("could not deserialize value", e);
+                }
+            default:
+                throw new IllegalStateException("unknown java type " + d[start]);
+        }
+    }
+
+    private static int readInt(byte[] d, int idx) {
+        return (d[idx] & 0xff) | (d[idx + 1] & 0xff) << 8 | (d[idx + 2] & 0xff) << 16 | (d[idx + 3] & 0xff) << 24;
+    }
+
+    private static long readLong(byte[] d, int idx) {
+        return (readInt(d, idx) & 0xffffffffL) | ((long) readInt(d, idx + 4)) << 32;
+    }
+
+    /**
+     * BSON writer into one growing buffer - nested documents are written in place, their length is patched afterwards
+     */
+    private static class Writer {
+        private byte[] buf = new byte[128];
+        private int pos = 0;
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        private void writeInt(int v) {
+            ensure(4);
+            buf[pos++] = (byte) v;
+            buf[pos++] = (byte) (v >> 8);
+            buf[pos++] = (byte) (v >> 16);
+            buf[pos++] = (byte) (v >> 24);
+        }
+
+        private void writeLong(long v) {
+            writeInt((int) v);
+            writeInt((int) (v >> 32));
+        }
+
+        private void writeBytes(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        private void writeCString(String s) {
+            writeBytes(s.getBytes(StandardCharsets.UTF_8));
+            writeByte(0);
+        }
+
+        private void patchInt(int at, int v) {
+            int p = pos;
+            pos = at;
+            writeInt(v);
+            pos = p;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void writeDocument(Map<?, ?> doc) {
+            int start = pos;
+            writeInt(0);
+            for (Map.Entry<?, ?> e : doc.entrySet()) {
+                writeElement(String.valueOf(e.getKey()), e.getValue());
+            }
+            writeByte(0);
+            patchInt(start, pos - start);
+        }
+
+        private void writeArray(Collection<?> lst) {
+            int start = pos;
+            writeInt(0);
+            int i = 0;
+            for (Object o : lst) {
+                writeElement(Integer.toString(i++), o);
+            }
+            writeByte(0);
+            patchInt(start, pos - start);
+        }
+
+        private void writeElement(String name, Object v) {
+            if (v == null) {
+                writeByte(0x0a);
+                writeCString(name);
+            } else if (v instanceof Double) {
+                writeByte(0x01);
+                writeCString(name);
+                writeLong(Double.doubleToRawLongBits((Double) v));
+            } else if (v instanceof String) {
+                writeByte(0x02);
+                writeCString(name);
+                byte[] b = ((String) v).getBytes(StandardCharsets.UTF_8);
+                writeInt(b.length + 1);
+                writeBytes(b);
+                writeByte(0);
+            } else if (v instanceof Map) {
+                writeByte(0x03);
+                writeCString(name);
+                writeDocument((Map<?, ?>) v);
+            } else if (v instanceof Collection) {
+                writeByte(0x04);
+                writeCString(name);
+                writeArray((Collection<?>) v);
+            } else if (v instanceof byte[]) {
+                writeByte(0x05);
+                writeCString(name);
+                writeInt(((byte[]) v).length);
+                writeByte(BINARY_GENERIC);
+                writeBytes((byte[]) v);
+            } else if (v instanceof MorphiumId) {
+                writeByte(0x07);
+                writeCString(name);
+                writeBytes(((MorphiumId) v).getBytes());
+            } else if (v instanceof MongoTimestamp) {
+                writeByte(0x11);
+                writeCString(name);
+                writeLong(((MongoTimestamp) v).getValue());
+            } else if (v instanceof Boolean) {
+                writeByte(0x08);
+                writeCString(name);
+                writeByte((Boolean) v ? 1 : 0);
+            } else if (v.getClass() == Date.class) {
+                writeByte(0x09);
+                writeCString(name);
+                writeLong(((Date) v).getTime());
+            } else if (v instanceof Pattern) {
+                writeByte(0x0b);
+                writeCString(name);
+                writeCString(((Pattern) v).pattern());
+                int f = ((Pattern) v).flags();
+                writeCString(((f & Pattern.CASE_INSENSITIVE) != 0 ? "i" : "") + ((f & Pattern.MULTILINE) != 0 ? "m" : "") + ((f & Pattern.DOTALL) != 0 ? "s" : "") + ((f & Pattern.UNICODE_CASE) != 0 ? "u" : ""));
+            } else if (v instanceof Integer) {
+                writeByte(0x10);
+                writeCString(name);
+                writeInt((Integer) v);
+            } else if (v instanceof Long) {
+                writeByte(0x12);
+                writeCString(name);
+                writeLong((Long) v);
+            } else if (v instanceof Float) {
+                writeJava(name, 'F', Float.floatToRawIntBits((Float) v));
+            } else if (v instanceof Short) {
+                writeJava(name, 'S', (Short) v);
+            } else if (v instanceof Character) {
+                writeJava(name, 'C', (Character) v);
+            } else if (v instanceof Byte) {
+                writeByte(0x05);
+                writeCString(name);
+                writeInt(2);
+                writeByte(BINARY_JAVA);
+                writeByte('B');
+                writeByte((Byte) v);
+            } else if (v instanceof MongoBob) {
+                byte[] b = ((MongoBob) v).getData() == null ? new byte[0] : ((MongoBob) v).getData();
+                writeByte(0x05);
+                writeCString(name);
+                writeInt(b.length + 1);
+                writeByte(BINARY_JAVA);
+                writeByte('M');
+                writeBytes(b);
+            } else if (v instanceof Serializable) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (ObjectOutputStream oout = new ObjectOutputStream(out)) {
+                    oout.writeObject(v);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("cannot serialize " + v.getClass().getName(), e);
+                }
+                byte[] b = out.toByteArray();
+                writeByte(0x05);
+                writeCString(name);
+                writeInt(b.length + 1);
+                writeByte(BINARY_JAVA);
+                writeByte('O');
+                writeBytes(b);
+            } else {
+                throw new IllegalArgumentException("cannot encode value of type " + v.getClass().getName());
+            }
+        }
+
+        private void writeJava(String name, char type, int value) {
+            writeByte(0x05);
+            writeCString(name);
+            writeInt(5);
+            writeByte(BINARY_JAVA);
+            writeByte(type);
+            writeInt(value);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.caluga.morphium.driver.bson;
+
+/**
+ * BSON timestamp (type 0x11), used internally by mongodb, e.g. as ts of oplog entries: seconds since epoch in the
+ * upper 32 bits, an ordinal within the second in the lower ones. Compared as unsigned value, like mongodb does, so
+ * it can be used in range queries on the oplog.
+ */
+@SuppressWarnings("WeakerAccess")
+public class MongoTimestamp implements Comparable<MongoTimestamp> {
+    private final long value;
+
+    public MongoTimestamp(long value) {
+        this.value = value;
+    }
+
+    public MongoTimestamp(int time, int inc) {
+        value = ((long) time << 32) | (inc & 0xffffffffL);
+    }
+
+    /**
+     * @return the raw 64 bit value as stored in BSON
+     */
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * @return seconds since epoch
+     */
+    public int getTime() {
+        return (int) (value >>> 32);
+    }
+
+    public int getInc() {
+        return (int) value;
+    }
+
+    @Override
+    public int compareTo(MongoTimestamp o) {
+        return Long.compareUnsigned(value, o.value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MongoTimestamp && ((MongoTimestamp) o).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+        return "Timestamp(" + Integer.toUnsignedString(getTime()) + ", " + Integer.toUnsignedString(getInc()) + ")";
+    }
+}
@@ -0,0 +1,181 @@
+package de.caluga.morphium.driver.inmem;
+
+import de.caluga.morphium.driver.bson.BsonEncoder;
+
+import java.util.AbstractList;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+
+/**
+ * Storage of a capped in memory collection: a ring buffer holding the documents in insertion order. If adding a
+ * document exceeds maxEntries or maxSize (in bytes of the BSON representation), the oldest documents are evicted in
+ * O(1). Like in mongodb documents cannot be removed otherwise.
+ * <p>
+ * Every document gets a sequence number on insert, so that tailable cursors can keep their position even though
+ * older documents are evicted.
+ * Not thread safe, access needs to be synchronized by the caller.
+ */
+@SuppressWarnings("WeakerAccess")
+public class InMemoryCappedCollection extends AbstractList<Map<String, Object>> implements RandomAccess {
+    private final int maxEntries;
+    private final long maxSize;
+    private Map<String, Object>[] buffer;
+    private int[] sizes;
+    private int head = 0;
+    private int count = 0;
+    private long evicted = 0;
+    private long bytes = 0;
+    private Consumer<Map<String, Object>> evictionListener;
+
+    /**
+     * @param maxEntries maximum number of documents, &lt;=0 for no limit
+     * @param maxSize    maximum size in bytes, &lt;=0 for no limit
+     */
+    @SuppressWarnings("unchecked")
+    public InMemoryCappedCollection(int maxEntries, long maxSize) {
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+        int capacity = maxEntries > 0 ? maxEntries : 16;
+        buffer = new Map[capacity];
+        sizes = new int[capacity];
+    }
+
+    public void setEvictionListener(Consumer<Map<String, Object>> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return sequence number of the oldest document still stored
+     */
+    public long getFirstSequence() {
+        return evicted;
+    }
+
+    /**
+     * @return sequence number the next document added will get
+     */
+    public long getNextSequence() {
+        return evicted + count;
+    }
+
+    /**
+     * @return document with the given sequence number - or null, if it was evicted or does not exist yet
+     */
+    public Map<String, Object> getBySequence(long seq) {
+        if (seq < evicted || seq >= evicted + count) {
+            return null;
+        }
+        return get((int) (seq - evicted));
+    }
+
+    @Override
+    public Map<String, Object> get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + " size: " + count);
+        }
+        return buffer[(head + index) % buffer.length];
+    }
+
+    @Override
+    public Map<String, Object> set(int index, Map<String, Object> doc) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + " size: " + count);
+        }
+        int pos = (head + index) % buffer.length;
+        Map<String, Object> old = buffer[pos];
+        buffer[pos] = doc;
+        int sz = sizeOf(doc);
+        bytes += sz - sizes[pos];
+        sizes[pos] = sz;
+        return old;
+    }
+
+    @Override
+    public boolean add(Map<String, Object> doc) {
+        int sz = sizeOf(doc);
+        if (maxEntries > 0 && count >= maxEntries) {
+            evictOldest();
+        }
+        while (maxSize > 0 && count > 0 && bytes + sz > maxSize) {
+            evictOldest();
+        }
+        if (count == buffer.length) {
+            grow();
+        }
+        int pos = (head + count) % buffer.length;
+        buffer[pos] = doc;
+        sizes[pos] = sz;
+        bytes += sz;
+        count++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> remove(int index) {
+        throw new UnsupportedOperationException("cannot remove from a capped collection");
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return size of all documents in bytes
+     */
+    public long getDataSize() {
+        return bytes;
+    }
+
+    private void evictOldest() {
+        Map<String, Object> doc = buffer[head];
+        buffer[head] = null;
+        bytes -= sizes[head];
+        sizes[head] = 0;
+        head = (head + 1) % buffer.length;
+        count--;
+        evicted++;
+        modCount++;
+        if (evictionListener != null) {
+            evictionListener.accept(doc);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        Map<String, Object>[] nb = new Map[buffer.length * 2];
+        int[] ns = new int[buffer.length * 2];
+        for (int i = 0; i < count; i++) {
+            nb[i] = buffer[(head + i) % buffer.length];
+            ns[i] = sizes[(head + i) % buffer.length];
+        }
+        buffer = nb;
+        sizes = ns;
+        head = 0;
+    }
+
+    private int sizeOf(Map<String, Object> doc) {
+        if (maxSize <= 0) {
+            return 0;
+        }
+        if (doc instanceof InMemoryCompactDocument) {
+            return ((InMemoryCompactDocument) doc).getEncodedSize();
+        }
+        try {
+            return BsonEncoder.encodeDocument(doc).length;
+        } catch (Exception e) {
+            //unknown type - just estimate
+            return doc.toString().length();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package de.caluga.morphium.driver.inmem;
+
+import java.util.Map;
+
+/**
+ * Listener for changes of documents in an in memory collection. Listeners are called synchronously by the writing
+ * thread, right after the change was applied, so they should return quickly.
+ */
+public interface InMemoryChangeListener {
+    /**
+     * @param db         database
+     * @param collection collection
+     * @param type       type of change
+     * @param doc        copy of the document after the change (the removed document on delete, null on drop)
+     */
+    void onChange(String db, String collection, ChangeType type, Map<String, Object> doc);
+
+    enum ChangeType {INSERT, UPDATE, DELETE, DROP}
+}
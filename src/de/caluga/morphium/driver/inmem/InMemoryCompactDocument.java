@@ -0,0 +1,100 @@
+package de.caluga.morphium.driver.inmem;
+
+import de.caluga.morphium.driver.bson.CompactBsonCodec;
+
+import java.util.*;
+
+/**
+ * Compact storage of a document in the in memory driver: the document is kept as one BSON encoded byte array
+ * instead of a HashMap with boxed values. This needs only a fraction of the memory and is one object for the
+ * garbage collector instead of dozens.
+ * <p>
+ * Reading a single field walks the top level elements of the BSON data and only decodes the requested value, other
+ * elements are skipped. Iterating decodes the whole document. Returned values are copies, modifying them does not
+ * change the stored document. Modifications (put/remove) re-encode the document, so for several changes decode,
+ * modify and call setDocument. The encoding is done by the CompactBsonCodec.
+ */
+@SuppressWarnings("WeakerAccess")
+public class InMemoryCompactDocument extends AbstractMap<String, Object> {
+    private volatile byte[] data;
+
+    /**
+     * @throws IllegalArgumentException if the document contains values that cannot be encoded
+     */
+    public InMemoryCompactDocument(Map<String, Object> doc) {
+        setDocument(doc);
+    }
+
+    public void setDocument(Map<String, Object> doc) {
+        data = CompactBsonCodec.encode(doc);
+    }
+
+    /**
+     * @return the whole document decoded into a modifiable map
+     */
+    public Map<String, Object> decode() {
+        return CompactBsonCodec.decode(data);
+    }
+
+    /**
+     * @return size of the encoded document in bytes
+     */
+    public int getEncodedSize() {
+        return data.length;
+    }
+
+    public byte[] getBytes() {
+        return data;
+    }
+
+    /**
+     * decodes BSON created by this class, e.g. getBytes() of another instance
+     */
+    public static Map<String, Object> decode(byte[] bson) {
+        return CompactBsonCodec.decode(bson);
+    }
+
+    @Override
+    public Object get(Object key) {
+        return CompactBsonCodec.get(data, key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return CompactBsonCodec.containsKey(data, key);
+    }
+
+    @Override
+    public int size() {
+        return CompactBsonCodec.size(data);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return CompactBsonCodec.isEmpty(data);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        Map<String, Object> doc = decode();
+        Object ret = doc.put(key, value);
+        setDocument(doc);
+        return ret;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (!containsKey(key)) {
+            return null;
+        }
+        Map<String, Object> doc = decode();
+        Object ret = doc.remove(key);
+        setDocument(doc);
+        return ret;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return Collections.unmodifiableMap(decode()).entrySet();
+    }
+}
@@ -2,6 +2,8 @@ package de.caluga.morphium.driver.inmem;
 
 import de.caluga.morphium.Logger;
 import de.caluga.morphium.Morphium;
+import de.caluga.morphium.TimerWheel;
+import de.caluga.morphium.Utils;
 import de.caluga.morphium.driver.*;
 import de.caluga.morphium.driver.bson.MorphiumId;
 import de.caluga.morphium.driver.bulk.*;
@@ -9,6 +11,7 @@ import de.caluga.morphium.driver.mongodb.Maximums;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * User: Stephan Bösebeck
@@ -23,6 +26,37 @@ public class InMemoryDriver implements MorphiumDriver {
     private final Logger log = new Logger(InMemoryDriver.class);
     // DBName => Collection => List of documents
     private final Map<String, Map<String, List<Map<String, Object>>>> database = new ConcurrentHashMap<>();
+    // DBName => Collection => indexes, documents are referenced not copied
+    private final Map<String, Map<String, List<InMemoryIndex>>> indexes = new ConcurrentHashMap<>();
+    // DBName => Collection => ring buffer storage of capped collections
+    private final Map<String, Map<String, InMemoryCappedCollection>> capped = new ConcurrentHashMap<>();
+    //expiry of documents in collections with TTL index
+    private final TimerWheel<ExpiryEntry> ttlWheel = new TimerWheel<>(1000, 3600);
+    // TTL index => document => the one entry in the ttlWheel for it
+    private final Map<InMemoryIndex, Map<Map<String, Object>, ExpiryEntry>> ttlPending = new ConcurrentHashMap<>();
+    private Thread ttlThread;
+    private final List<ChangeListenerRegistration> changeListeners = new CopyOnWriteArrayList<>();
+    //stripe locks for in place modification of documents
+    private final Object[] locks = new Object[64];
+    private boolean compactDocuments = false;
+
+    public InMemoryDriver() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public boolean isCompactDocuments() {
+        return compactDocuments;
+    }
+
+    /**
+     * if set to true, documents stored from now on are kept BSON encoded (see InMemoryCompactDocument). Needs a lot
+     * less memory, but reading and modifying a document needs to decode it.
+     */
+    public void setCompactDocuments(boolean compactDocuments) {
+        this.compactDocuments = compactDocuments;
+    }
 
     @Override
     public void setCredentials(String db, String login, char[] pwd) {
@@ -285,6 +319,12 @@ public class InMemoryDriver implements MorphiumDriver {
 
     @Override
     public void close() throws MorphiumDriverException {
+        synchronized (ttlWheel) {
+            if (ttlThread != null) {
+                ttlThread.interrupt();
+                ttlThread = null;
+            }
+        }
 
     }
 
@@ -309,98 +349,281 @@ public class InMemoryDriver implements MorphiumDriver {
 
     @Override
     public Map<String, Object> runCommand(String db, Map<String, Object> cmd) throws MorphiumDriverException {
+        if (cmd.containsKey("create")) {
+            String coll = (String) cmd.get("create");
+            getCollection(db, coll);
+            if (Boolean.TRUE.equals(cmd.get("capped"))) {
+                setCapped(db, coll, cmd.get("size"), cmd.get("max"));
+            }
+            return Utils.getMap("ok", (Object) 1.0);
+        }
+        if (cmd.containsKey("convertToCapped")) {
+            setCapped(db, (String) cmd.get("convertToCapped"), cmd.get("size"), cmd.get("max"));
+            return Utils.getMap("ok", (Object) 1.0);
+        }
         throw new RuntimeException("not working on memory");
     }
 
+    /**
+     * makes the collection a capped collection, existing documents are kept as long as they fit
+     */
+    private void setCapped(String db, String collection, Object size, Object max) {
+        InMemoryCappedCollection ring = new InMemoryCappedCollection(max instanceof Number ? ((Number) max).intValue() : 0, size instanceof Number ? ((Number) size).longValue() : 0);
+        ring.setEvictionListener(doc -> {
+            for (InMemoryIndex idx : getIndexList(db, collection)) {
+                idx.remove(doc);
+            }
+        });
+        List<Map<String, Object>> data = getCollection(db, collection);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (data) {
+            ring.addAll(data);
+            capped.putIfAbsent(db, new ConcurrentHashMap<>());
+            capped.get(db).put(collection, ring);
+            getDB(db).put(collection, Collections.synchronizedList(ring));
+        }
+    }
+
+    /**
+     * registers a listener for changes in the given collection
+     *
+     * @param db         database
+     * @param collection the collection, null for all collections of db
+     * @param l          the listener
+     */
+    public void addChangeListener(String db, String collection, InMemoryChangeListener l) {
+        changeListeners.add(new ChangeListenerRegistration(db, collection, l));
+    }
+
+    public void removeChangeListener(InMemoryChangeListener l) {
+        changeListeners.removeIf(r -> r.listener == l);
+    }
+
+    private void fireChange(String db, String collection, InMemoryChangeListener.ChangeType type, Map<String, Object> doc) {
+        for (ChangeListenerRegistration r : changeListeners) {
+            if (r.db.equals(db) && (r.collection == null || r.collection.equals(collection))) {
+                try {
+                    r.listener.onChange(db, collection, type, doc == null ? null : project(doc, null));
+                } catch (Exception e) {
+                    log.error("Change listener failed", e);
+                }
+            }
+        }
+    }
 
-    private boolean matchesQuery(Map<String, Object> query, Map<String, Object> toCheck) {
+    /**
+     * creates a tailable cursor on a capped collection. Like in mongodb the cursor starts with the first document
+     * in natural order and is not closed when all data was read. Subsequent calls to nextIteration return the
+     * documents added since then.
+     *
+     * @param awaitData time in ms nextIteration blocks, if there is no new data. 0 means return immediately
+     */
+    @Override
+    public MorphiumCursor initTailableIteration(String db, String collection, Map<String, Object> query, Map<String, Object> projection, int batchSize, long awaitData) throws MorphiumDriverException {
+        if (!isCapped(db, collection)) {
+            throw new MorphiumDriverException("tailable cursors are only supported on capped collections", null);
+        }
+        MorphiumCursor crs = new MorphiumCursor();
+        crs.setCursorId(System.currentTimeMillis());
+        InMemoryCursor inCrs = new InMemoryCursor();
+        inCrs.setDb(db);
+        inCrs.setCollection(collection);
+        inCrs.setQuery(query);
+        inCrs.setProjection(projection);
+        inCrs.setBatchSize(batchSize <= 0 ? 1000 : batchSize);
+        inCrs.tailable = true;
+        inCrs.awaitData = awaitData;
+        //first batch does not wait
+        crs.setBatch(tail(inCrs, 0));
+        //noinspection unchecked
+        crs.setInternalCursorObject(inCrs);
+        return crs;
+    }
+
+    /**
+     * reads the next batch of documents after the current position of the tailable cursor. If there are none, waits
+     * up to awaitData ms for new documents
+     */
+    private List<Map<String, Object>> tail(InMemoryCursor crs, long awaitData) {
+        List<Map<String, Object>> data = getCollection(crs.getDb(), crs.getCollection());
+        List<Map<String, Object>> ret = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + awaitData;
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (data) {
+            InMemoryCappedCollection ring = getCapped(crs.getDb(), crs.getCollection());
+            if (ring == null) {
+                //collection was dropped
+                return ret;
+            }
+            while (true) {
+                if (crs.position < ring.getFirstSequence()) {
+                    //documents were evicted before they were read
+                    crs.position = ring.getFirstSequence();
+                }
+                while (crs.position < ring.getNextSequence() && ret.size() < crs.getBatchSize()) {
+                    Map<String, Object> o = ring.getBySequence(crs.position++);
+                    if (crs.getQuery() == null || matchesQuery(crs.getQuery(), o)) {
+                        ret.add(project(o, crs.getProjection()));
+                    }
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (!ret.isEmpty() || wait <= 0) {
+                    break;
+                }
+                try {
+                    data.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+
+    boolean matchesQuery(Map<String, Object> query, Map<String, Object> toCheck) {
         if (query.isEmpty()) {
             return true;
         }
         if (query.containsKey("$where")) {
             throw new RuntimeException("$where not implemented yet");
         }
-        //noinspection LoopStatementThatDoesntLoop
-        for (String key : query.keySet()) {
+        //all conditions need to match
+        for (Map.Entry<String, Object> e : query.entrySet()) {
+            String key = e.getKey();
             switch (key) {
                 case "$and": {
                     //list of field queries
-                    @SuppressWarnings("unchecked") List<Map<String, Object>> lst = ((List<Map<String, Object>>) query.get(key));
+                    @SuppressWarnings("unchecked") List<Map<String, Object>> lst = ((List<Map<String, Object>>) e.getValue());
                     for (Map<String, Object> q : lst) {
                         if (!matchesQuery(q, toCheck)) {
                             return false;
                         }
                     }
-                    return true;
+                    break;
                 }
                 case "$or": {
                     //list of or queries
-                    @SuppressWarnings("unchecked") List<Map<String, Object>> lst = ((List<Map<String, Object>>) query.get(key));
+                    @SuppressWarnings("unchecked") List<Map<String, Object>> lst = ((List<Map<String, Object>>) e.getValue());
+                    boolean found = false;
                     for (Map<String, Object> q : lst) {
                         if (matchesQuery(q, toCheck)) {
-                            return true;
+                            found = true;
+                            break;
                         }
                     }
-                    return false;
-
+                    if (!found) {
+                        return false;
+                    }
+                    break;
+                }
+                case "$nor": {
+                    @SuppressWarnings("unchecked") List<Map<String, Object>> lst = ((List<Map<String, Object>>) e.getValue());
+                    for (Map<String, Object> q : lst) {
+                        if (matchesQuery(q, toCheck)) {
+                            return false;
+                        }
+                    }
+                    break;
                 }
                 default:
                     //field check
-                    if (query.get(key) instanceof Map) {
-                        //probably a query operand
-                        @SuppressWarnings("unchecked") Map<String, Object> q = (Map<String, Object>) query.get(key);
-                        assert (q.size() == 1);
-                        String k = q.keySet().iterator().next();
-                        switch (k) {
-                            case "$lt":
-                                //noinspection unchecked
-                                return ((Comparable) toCheck.get(key)).compareTo(q.get(k)) < 0;
-                            case "$lte":
-                                //noinspection unchecked
-                                return ((Comparable) toCheck.get(key)).compareTo(q.get(k)) <= 0;
-                            case "$gt":
-                                //noinspection unchecked
-                                return ((Comparable) toCheck.get(key)).compareTo(q.get(k)) > 0;
-                            case "$gte":
-                                //noinspection unchecked
-                                return ((Comparable) toCheck.get(key)).compareTo(q.get(k)) >= 0;
-                            case "$mod":
-                                Number n = (Number) toCheck.get(key);
-                                List arr = (List) q.get(k);
-                                int div = ((Integer) arr.get(0));
-                                int rem = ((Integer) arr.get(1));
-                                return n.intValue() % div == rem;
-                            case "$ne":
-                                //noinspection unchecked
-                                return ((Comparable) toCheck.get(key)).compareTo(q.get(k)) != 0;
-                            case "$exists":
-
-                                boolean exists = (toCheck.containsKey(key));
-                                if (q.get(k).equals(Boolean.TRUE) || q.get(k).equals("true") || q.get(k).equals(1)) {
-                                    return exists;
-                                } else {
-                                    return !exists;
-                                }
-                            case "$in":
-                                for (Object v : (List) q.get(k)) {
-                                    if (toCheck.get(key).equals(v)) {
-                                        return true;
-                                    }
-                                }
+                    if (isOperatorMap(e.getValue())) {
+                        //query operands
+                        @SuppressWarnings("unchecked") Map<String, Object> q = (Map<String, Object>) e.getValue();
+                        for (Map.Entry<String, Object> op : q.entrySet()) {
+                            if (!matchesOperator(op.getKey(), op.getValue(), toCheck.containsKey(key), toCheck.get(key))) {
                                 return false;
-                            default:
-                                throw new RuntimeException("Unknown Operator " + k);
+                            }
                         }
+                    } else if (!valueMatches(toCheck.get(key), e.getValue())) {
+                        //value comparison
+                        return false;
+                    }
+            }
+        }
+        return true;
+    }
 
-
-                    } else {
-                        //value comparison - should only be one here
-                        assert (query.size() == 1);
-                        return toCheck.get(key).equals(query.get(key));
+    boolean isOperatorMap(Object o) {
+        if (!(o instanceof Map) || ((Map) o).isEmpty()) {
+            return false;
+        }
+        Object k = ((Map) o).keySet().iterator().next();
+        return k instanceof String && ((String) k).startsWith("$");
+    }
+
+    @SuppressWarnings("unchecked")
+    boolean matchesOperator(String op, Object operand, boolean exists, Object value) {
+        switch (op) {
+            case "$eq":
+                return valueMatches(value, operand);
+            case "$ne":
+                return !valueMatches(value, operand);
+            case "$lt":
+                return value != null && InMemoryIndex.isSameType(value, operand) && InMemoryIndex.compareValues(value, operand) < 0;
+            case "$lte":
+                return value != null && InMemoryIndex.isSameType(value, operand) && InMemoryIndex.compareValues(value, operand) <= 0;
+            case "$gt":
+                return value != null && InMemoryIndex.isSameType(value, operand) && InMemoryIndex.compareValues(value, operand) > 0;
+            case "$gte":
+                return value != null && InMemoryIndex.isSameType(value, operand) && InMemoryIndex.compareValues(value, operand) >= 0;
+            case "$mod":
+                if (!(value instanceof Number)) {
+                    return false;
+                }
+                List arr = (List) operand;
+                long div = ((Number) arr.get(0)).longValue();
+                long rem = ((Number) arr.get(1)).longValue();
+                return ((Number) value).longValue() % div == rem;
+            case "$exists":
+                if (operand.equals(Boolean.TRUE) || operand.equals("true") || operand.equals(1)) {
+                    return exists;
+                } else {
+                    return !exists;
+                }
+            case "$in":
+                for (Object v : (Collection) operand) {
+                    if (valueMatches(value, v)) {
+                        return true;
                     }
+                }
+                return false;
+            case "$nin":
+                for (Object v : (Collection) operand) {
+                    if (valueMatches(value, v)) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                throw new RuntimeException("Unknown Operator " + op);
+        }
+    }
+
+    /**
+     * equality like in mongodb: null matches missing values, arrays match if one of their elements matches
+     */
+    boolean valueMatches(Object value, Object expected) {
+        if (expected == null) {
+            return value == null;
+        }
+        if (value == null) {
+            return false;
+        }
+        if (value instanceof List && !(expected instanceof List)) {
+            for (Object o : (List) value) {
+                if (valueMatches(o, expected)) {
+                    return true;
+                }
             }
+            return false;
         }
-        return false;
+        if (value instanceof Number && expected instanceof Number) {
+            return InMemoryIndex.compareValues(value, expected) == 0;
+        }
+        return value.equals(expected);
     }
 
     @Override
@@ -424,14 +647,14 @@ public class InMemoryDriver implements MorphiumDriver {
         inCrs.setSort(sort);
         //noinspection unchecked
         crs.setInternalCursorObject(inCrs);
-        int l = batchSize;
-        if (limit != 0 && limit < batchSize) {
+        int l = inCrs.batchSize;
+        if (limit != 0 && limit < l) {
             l = limit;
         }
         List<Map<String, Object>> res = find(db, collection, query, sort, projection, skip, l, batchSize, readPreference, findMetaData);
         crs.setBatch(res);
 
-        if (res.size() < batchSize) {
+        if (res.size() < inCrs.batchSize || (limit != 0 && res.size() >= limit)) {
             //noinspection unchecked
             crs.setInternalCursorObject(null); //cursor ended - no more data
         } else {
@@ -449,6 +672,13 @@ public class InMemoryDriver implements MorphiumDriver {
         if (oldCrs == null) {
             return null;
         }
+        if (oldCrs.tailable) {
+            //tailable cursors never end, position is kept in the cursor
+            next.setBatch(tail(oldCrs, oldCrs.awaitData));
+            //noinspection unchecked
+            next.setInternalCursorObject(oldCrs);
+            return next;
+        }
 
         InMemoryCursor inCrs = new InMemoryCursor();
         inCrs.setReadPreference(oldCrs.getReadPreference());
@@ -462,14 +692,22 @@ public class InMemoryDriver implements MorphiumDriver {
         inCrs.setLimit(oldCrs.getLimit());
 
         inCrs.setSort(oldCrs.getSort());
-        inCrs.skip = oldCrs.getDataRead() + 1;
+        //skip stays the one of the original query, already read documents are skipped in addition
+        inCrs.skip = oldCrs.getSkip();
         int limit = oldCrs.getBatchSize();
         if (oldCrs.getLimit() != 0) {
             if (oldCrs.getDataRead() + oldCrs.getBatchSize() > oldCrs.getLimit()) {
                 limit = oldCrs.getLimit() - oldCrs.getDataRead();
             }
         }
-        List<Map<String, Object>> res = find(inCrs.getDb(), inCrs.getCollection(), inCrs.getQuery(), inCrs.getSort(), inCrs.getProjection(), inCrs.getSkip(), limit, inCrs.getBatchSize(), inCrs.getReadPreference(), inCrs.getFindMetaData());
+        if (limit <= 0) {
+            //limit reached
+            next.setBatch(new ArrayList<>());
+            //noinspection unchecked
+            next.setInternalCursorObject(null);
+            return next;
+        }
+        List<Map<String, Object>> res = find(inCrs.getDb(), inCrs.getCollection(), inCrs.getQuery(), inCrs.getSort(), inCrs.getProjection(), inCrs.getSkip() + oldCrs.getDataRead(), limit, inCrs.getBatchSize(), inCrs.getReadPreference(), inCrs.getFindMetaData());
         next.setBatch(res);
         if (res.size() < inCrs.getBatchSize()) {
             //finished!
@@ -489,43 +727,236 @@ public class InMemoryDriver implements MorphiumDriver {
     }
 
 
+    /**
+     * finds matching documents. Depending on the query, different strategies are used:
+     * <ul>
+     * <li>no sort: linear scan, stops as soon as skip + limit documents matched</li>
+     * <li>sort by an indexed field: walks the index in sort order, stops as soon as skip + limit documents matched</li>
+     * <li>sort and limit: bounded heap of size skip + limit (top-k), O(n log k)</li>
+     * <li>sort without limit: full sort of all matching documents</li>
+     * </ul>
+     * Only the documents returned are copied, honoring the projection. Internal calls get the stored documents itself.
+     */
     @SuppressWarnings({"RedundantThrows", "UnusedParameters"})
     private List<Map<String, Object>> find(String db, String collection, Map<String, Object> query, Map<String, Integer> sort, Map<String, Object> projection, int skip, int limit, boolean internal) throws MorphiumDriverException {
         List<Map<String, Object>> data = getCollection(db, collection);
-        List<Map<String, Object>> ret = new ArrayList<>();
-        int count = 0;
-
-        //noinspection ForLoopReplaceableByForEach
-        for (int i = 0; i < data.size(); i++) {
-            Map<String, Object> o = data.get(i);
-            count++;
-            if (count < skip) {
-                continue;
+        List<Map<String, Object>> ret;
+        if (skip < 0) {
+            skip = 0;
+        }
+        if (sort == null || sort.isEmpty()) {
+            ret = new ArrayList<>();
+            int matched = 0;
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (data) {
+                for (Map<String, Object> o : data) {
+                    if (!matchesQuery(query, o)) {
+                        continue;
+                    }
+                    matched++;
+                    if (matched <= skip) {
+                        continue;
+                    }
+                    ret.add(o);
+                    if (limit > 0 && ret.size() >= limit) {
+                        break;
+                    }
+                }
+            }
+        } else {
+            InMemoryIndex idx = null;
+            if (sort.size() == 1) {
+                idx = getIndexFor(db, collection, sort.keySet().iterator().next());
+            }
+            if (idx != null && idx.isSortable()) {
+                ret = new ArrayList<>();
+                int matched = 0;
+                Iterator<Map<String, Object>> it = idx.walk(sort.values().iterator().next() >= 0);
+                while (it.hasNext()) {
+                    Map<String, Object> o = it.next();
+                    if (!matchesQuery(query, o)) {
+                        continue;
+                    }
+                    matched++;
+                    if (matched <= skip) {
+                        continue;
+                    }
+                    ret.add(o);
+                    if (limit > 0 && ret.size() >= limit) {
+                        break;
+                    }
+                }
+            } else if (limit > 0) {
+                Comparator<Map<String, Object>> comparator = getComparator(sort);
+                int k = skip + limit;
+                //worst element on top
+                PriorityQueue<Map<String, Object>> heap = new PriorityQueue<>(Math.min(k, 1000) + 1, comparator.reversed());
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (data) {
+                    for (Map<String, Object> o : data) {
+                        if (!matchesQuery(query, o)) {
+                            continue;
+                        }
+                        if (heap.size() < k) {
+                            heap.add(o);
+                        } else if (comparator.compare(o, heap.peek()) < 0) {
+                            heap.poll();
+                            heap.add(o);
+                        }
+                    }
+                }
+                ret = new ArrayList<>(heap);
+                ret.sort(comparator);
+                ret = skip >= ret.size() ? new ArrayList<>() : ret.subList(skip, ret.size());
+            } else {
+                ret = new ArrayList<>();
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (data) {
+                    for (Map<String, Object> o : data) {
+                        if (matchesQuery(query, o)) {
+                            ret.add(o);
+                        }
+                    }
+                }
+                ret.sort(getComparator(sort));
+                ret = skip >= ret.size() ? new ArrayList<>() : ret.subList(skip, ret.size());
             }
-            if (matchesQuery(query, o)) {
-                ret.add(internal ? o : new HashMap<>(o));
+        }
+        if (internal) {
+            return ret;
+        }
+        List<Map<String, Object>> result = new ArrayList<>(ret.size());
+        for (Map<String, Object> o : ret) {
+            result.add(project(o, projection));
+        }
+        return result;
+    }
+
+    private Comparator<Map<String, Object>> getComparator(Map<String, Integer> sort) {
+        return (o1, o2) -> {
+            for (Map.Entry<String, Integer> f : sort.entrySet()) {
+                int c = InMemoryIndex.compareValues(InMemoryIndex.getValue(o1, f.getKey()), InMemoryIndex.getValue(o2, f.getKey()));
+                if (c != 0) {
+                    return f.getValue() < 0 ? -c : c;
+                }
             }
-            if (limit > 0 && ret.size() >= limit) {
+            return 0;
+        };
+    }
+
+    /**
+     * creates a copy of the document only containing the fields defined by the projection.
+     * Projection might either be inclusive ({field:1}) or exclusive ({field:0}), _id is always included unless
+     * explicitly excluded.
+     */
+    private Map<String, Object> project(Map<String, Object> doc, Map<String, Object> projection) {
+        synchronized (getLock(doc)) {
+            return projectLocked(doc, projection);
+        }
+    }
+
+    private Map<String, Object> projectLocked(Map<String, Object> doc, Map<String, Object> projection) {
+        if (projection == null || projection.isEmpty()) {
+            return new HashMap<>(doc);
+        }
+        boolean inclusive = false;
+        for (Map.Entry<String, Object> e : projection.entrySet()) {
+            if (!e.getKey().equals("_id") && isIncluded(e.getValue())) {
+                inclusive = true;
                 break;
             }
+        }
+        Map<String, Object> ret;
+        if (inclusive) {
+            ret = new HashMap<>();
+            for (Map.Entry<String, Object> e : projection.entrySet()) {
+                if (isIncluded(e.getValue())) {
+                    includePath(doc, ret, e.getKey().split("\\."), 0);
+                }
+            }
+            if (!projection.containsKey("_id") || isIncluded(projection.get("_id"))) {
+                ret.put("_id", doc.get("_id"));
+            }
+        } else {
+            ret = new HashMap<>(doc);
+            for (String k : projection.keySet()) {
+                excludePath(ret, k.split("\\."), 0);
+            }
+        }
+        return ret;
+    }
 
-            //todo add projection
+    /**
+     * copies the value at the (dotted) path from src to dst, creating the sub documents on the way. Like mongodb,
+     * a path through an array projects every sub document of it.
+     */
+    @SuppressWarnings("unchecked")
+    private void includePath(Map<String, Object> src, Map<String, Object> dst, String[] path, int i) {
+        if (!src.containsKey(path[i])) {
+            return;
         }
+        Object v = src.get(path[i]);
+        if (i == path.length - 1) {
+            dst.put(path[i], v);
+        } else if (v instanceof Map) {
+            Object sub = dst.get(path[i]);
+            if (!(sub instanceof Map)) {
+                sub = new HashMap<>();
+            }
+            includePath((Map<String, Object>) v, (Map<String, Object>) sub, path, i + 1);
+            if (!((Map) sub).isEmpty()) {
+                dst.put(path[i], sub);
+            }
+        } else if (v instanceof List) {
+            //other paths into the same array already created some of the elements
+            List<Object> existing = dst.get(path[i]) instanceof List ? (List<Object>) dst.get(path[i]) : null;
+            List<Object> lst = new ArrayList<>();
+            for (Object o : (List) v) {
+                if (!(o instanceof Map)) {
+                    continue;
+                }
+                Map<String, Object> sub = existing != null && existing.size() > lst.size() ? (Map<String, Object>) existing.get(lst.size()) : new HashMap<>();
+                includePath((Map<String, Object>) o, sub, path, i + 1);
+                lst.add(sub);
+            }
+            dst.put(path[i], lst);
+        }
+    }
 
-        if (sort != null) {
-            ret.sort((o1, o2) -> {
-                for (String f : sort.keySet()) {
-                    if (o1.get(f).equals(o2.get(f))) {
-                        continue;
-                    }
-                    //noinspection unchecked
-                    return ((Comparable) o1.get(f)).compareTo(o2.get(f)) * sort.get(f);
+    /**
+     * removes the value at the (dotted) path from the document, sub documents on the way are copied, as they are
+     * shared with the stored document.
+     */
+    @SuppressWarnings("unchecked")
+    private void excludePath(Map<String, Object> doc, String[] path, int i) {
+        if (i == path.length - 1) {
+            doc.remove(path[i]);
+            return;
+        }
+        Object v = doc.get(path[i]);
+        if (v instanceof Map) {
+            Map<String, Object> sub = new HashMap<>((Map<String, Object>) v);
+            excludePath(sub, path, i + 1);
+            doc.put(path[i], sub);
+        } else if (v instanceof List) {
+            List<Object> lst = new ArrayList<>();
+            for (Object o : (List) v) {
+                if (o instanceof Map) {
+                    Map<String, Object> sub = new HashMap<>((Map<String, Object>) o);
+                    excludePath(sub, path, i + 1);
+                    o = sub;
                 }
-                return 0;
-            });
+                lst.add(o);
+            }
+            doc.put(path[i], lst);
         }
+    }
 
-        return ret;
+    private boolean isIncluded(Object projectionValue) {
+        if (projectionValue instanceof Boolean) {
+            return (Boolean) projectionValue;
+        }
+        return !(projectionValue instanceof Number) || ((Number) projectionValue).intValue() != 0;
     }
 
     @Override
@@ -535,9 +966,12 @@ public class InMemoryDriver implements MorphiumDriver {
             return data.size();
         }
         long cnt = 0;
-        for (Map<String, Object> o : data) {
-            if (matchesQuery(query, o)) {
-                cnt++;
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (data) {
+            for (Map<String, Object> o : data) {
+                if (matchesQuery(query, o)) {
+                    cnt++;
+                }
             }
         }
 
@@ -548,13 +982,16 @@ public class InMemoryDriver implements MorphiumDriver {
         List<Map<String, Object>> ret = new ArrayList<>();
 
         List<Map<String, Object>> data = getCollection(db, coll);
-        for (Map<String, Object> obj : data) {
-            if (obj.get(field) == null && value != null) {
-                continue;
-            }
-            if ((obj.get(field) == null && value == null)
-                    || obj.get(field).equals(value)) {
-                ret.add(new HashMap<>(obj));
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (data) {
+            for (Map<String, Object> obj : data) {
+                if (obj.get(field) == null && value != null) {
+                    continue;
+                }
+                if ((obj.get(field) == null && value == null)
+                        || obj.get(field).equals(value)) {
+                    ret.add(new HashMap<>(obj));
+                }
             }
         }
         return ret;
@@ -568,7 +1005,9 @@ public class InMemoryDriver implements MorphiumDriver {
                 throw new MorphiumDriverException("Duplicate _id!", null);
             }
         }
-        getCollection(db, collection).addAll(objs);
+        for (Map<String, Object> o : objs) {
+            addToCollection(db, collection, o);
+        }
     }
 
     @Override
@@ -576,15 +1015,247 @@ public class InMemoryDriver implements MorphiumDriver {
         for (Map<String, Object> o : objs) {
             if (o.get("_id") == null) {
                 o.put("_id", new MorphiumId());
-                getCollection(db, collection).add(o);
+                addToCollection(db, collection, o);
                 continue;
             }
-            List<Map<String, Object>> srch = findByFieldValue(db, collection, "_id", o.get("_id"));
+            List<Map<String, Object>> srch = find(db, collection, Utils.getMap("_id", o.get("_id")), null, null, 0, 1, true);
             if (!srch.isEmpty()) {
-                getCollection(db, collection).remove(srch.get(0));
+                replaceInCollection(db, collection, srch.get(0), o);
+            } else {
+                addToCollection(db, collection, o);
+            }
+        }
+    }
+
+    private void addToCollection(String db, String collection, Map<String, Object> doc) {
+        doc = toStored(doc);
+        List<Map<String, Object>> data = getCollection(db, collection);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (data) {
+            data.add(doc);
+            //wake up waiting tailable cursors
+            data.notifyAll();
+        }
+        for (InMemoryIndex idx : getIndexList(db, collection)) {
+            idx.add(doc);
+        }
+        scheduleExpiry(db, collection, doc);
+        fireChange(db, collection, InMemoryChangeListener.ChangeType.INSERT, doc);
+    }
+
+    /**
+     * @return the document in the form it should be stored
+     */
+    private Map<String, Object> toStored(Map<String, Object> doc) {
+        if (!compactDocuments || doc instanceof InMemoryCompactDocument) {
+            return doc;
+        }
+        try {
+            return new InMemoryCompactDocument(doc);
+        } catch (IllegalArgumentException e) {
+            log.warn("cannot store document compact: " + e.getMessage());
+            return doc;
+        }
+    }
+
+    /**
+     * replaces the document in place, so that the natural order is kept
+     */
+    private void replaceInCollection(String db, String collection, Map<String, Object> old, Map<String, Object> doc) {
+        doc = toStored(doc);
+        List<Map<String, Object>> data = getCollection(db, collection);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (data) {
+            for (int i = 0; i < data.size(); i++) {
+                if (data.get(i) == old) {
+                    data.set(i, doc);
+                    break;
+                }
             }
-            getCollection(db, collection).add(o);
         }
+        for (InMemoryIndex idx : getIndexList(db, collection)) {
+            idx.remove(old);
+            idx.add(doc);
+            Map<Map<String, Object>, ExpiryEntry> pending = ttlPending.get(idx);
+            if (pending != null) {
+                //the scheduled entry now belongs to the replacement
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (pending) {
+                    ExpiryEntry e = pending.remove(old);
+                    if (e != null) {
+                        e.doc = doc;
+                        pending.put(doc, e);
+                    }
+                }
+            }
+        }
+        scheduleExpiry(db, collection, doc);
+        fireChange(db, collection, InMemoryChangeListener.ChangeType.UPDATE, doc);
+    }
+
+    /**
+     * schedules removal of the document for all TTL indexes of the collection
+     */
+    private void scheduleExpiry(String db, String collection, Map<String, Object> doc) {
+        for (InMemoryIndex idx : getIndexList(db, collection)) {
+            if (idx.getExpireAfterSeconds() != null) {
+                scheduleExpiry(db, collection, idx, doc);
+            }
+        }
+    }
+
+    /**
+     * there is only one entry per document and index in the wheel: if one is due before the (new) expiry, nothing
+     * is scheduled, the entry is rescheduled when it fires. Only if the document expires earlier now, a new entry
+     * replaces the pending one, which is ignored when it fires.
+     */
+    private void scheduleExpiry(String db, String collection, InMemoryIndex idx, Map<String, Object> doc) {
+        Map<Map<String, Object>, ExpiryEntry> pending = ttlPending.computeIfAbsent(idx, k -> new IdentityHashMap<>());
+        ExpiryEntry e;
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (pending) {
+            Long expiresAt = getExpiry(idx, doc);
+            if (expiresAt == null) {
+                return;
+            }
+            e = pending.get(doc);
+            if (e != null && e.dueAt <= expiresAt) {
+                return;
+            }
+            e = new ExpiryEntry(db, collection, idx, doc, expiresAt);
+            pending.put(doc, e);
+        }
+        ttlWheel.schedule(e, e.dueAt);
+    }
+
+    /**
+     * @return point in time, when the document expires according to the index - null if it does not expire
+     */
+    private Long getExpiry(InMemoryIndex idx, Map<String, Object> doc) {
+        if (idx.getExpireAfterSeconds() == null) {
+            return null;
+        }
+        Object v = InMemoryIndex.getValue(doc, idx.getField());
+        Date d = null;
+        if (v instanceof Date) {
+            d = (Date) v;
+        } else if (v instanceof List) {
+            //like mongodb: the earliest date in the array
+            for (Object o : (List) v) {
+                if (o instanceof Date && (d == null || ((Date) o).before(d))) {
+                    d = (Date) o;
+                }
+            }
+        }
+        if (d == null) {
+            return null;
+        }
+        return d.getTime() + idx.getExpireAfterSeconds().longValue() * 1000;
+    }
+
+    private void startTTLThread() {
+        synchronized (ttlWheel) {
+            if (ttlThread != null) {
+                return;
+            }
+            ttlThread = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(ttlWheel.getTickMs());
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    try {
+                        removeExpired(System.currentTimeMillis());
+                    } catch (Exception e) {
+                        log.error("Error removing expired documents", e);
+                    }
+                }
+            }, "InMemoryDriver TTL");
+            ttlThread.setDaemon(true);
+            ttlThread.start();
+        }
+    }
+
+    private void removeExpired(long now) {
+        for (ExpiryEntry e : ttlWheel.advance(now)) {
+            Map<Map<String, Object>, ExpiryEntry> pending = ttlPending.get(e.index);
+            if (pending == null) {
+                //index dropped
+                continue;
+            }
+            Map<String, Object> doc;
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (pending) {
+                if (pending.get(e.doc) != e) {
+                    //replaced by an earlier entry or document removed
+                    continue;
+                }
+                //document might have been changed since it was scheduled
+                Long expiresAt = getExpiry(e.index, e.doc);
+                if (expiresAt != null && expiresAt > now) {
+                    e.dueAt = expiresAt;
+                    ttlWheel.schedule(e, expiresAt);
+                    continue;
+                }
+                pending.remove(e.doc);
+                if (expiresAt == null) {
+                    continue;
+                }
+                doc = e.doc;
+            }
+            if (getCapped(e.db, e.collection) == null) {
+                removeFromCollection(e.db, e.collection, doc);
+            }
+        }
+    }
+
+    private void removeFromCollection(String db, String collection, Map<String, Object> doc) {
+        List<Map<String, Object>> data = getCollection(db, collection);
+        boolean found = false;
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (data) {
+            //identity, documents with same content might exist
+            for (Iterator<Map<String, Object>> it = data.iterator(); it.hasNext(); ) {
+                if (it.next() == doc) {
+                    it.remove();
+                    found = true;
+                    break;
+                }
+            }
+        }
+        if (!found) {
+            return;
+        }
+        for (InMemoryIndex idx : getIndexList(db, collection)) {
+            idx.remove(doc);
+            Map<Map<String, Object>, ExpiryEntry> pending = ttlPending.get(idx);
+            if (pending != null) {
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized (pending) {
+                    pending.remove(doc);
+                }
+            }
+        }
+        fireChange(db, collection, InMemoryChangeListener.ChangeType.DELETE, doc);
+    }
+
+    private List<InMemoryIndex> getIndexList(String db, String collection) {
+        indexes.putIfAbsent(db, new ConcurrentHashMap<>());
+        indexes.get(db).putIfAbsent(collection, new CopyOnWriteArrayList<>());
+        return indexes.get(db).get(collection);
+    }
+
+    /**
+     * @return the index, whose first key is the given field - or null, if there is none
+     */
+    private InMemoryIndex getIndexFor(String db, String collection, String field) {
+        for (InMemoryIndex idx : getIndexList(db, collection)) {
+            if (idx.getField().equals(field)) {
+                return idx;
+            }
+        }
+        return null;
     }
 
     private Map<String, List<Map<String, Object>>> getDB(String db) {
@@ -599,92 +1270,99 @@ public class InMemoryDriver implements MorphiumDriver {
 
     @Override
     public Map<String, Object> update(String db, String collection, Map<String, Object> query, Map<String, Object> op, boolean multiple, boolean upsert, WriteConcern wc) throws MorphiumDriverException {
+        //parse the update once, apply it to all matching documents
+        InMemoryUpdate update = new InMemoryUpdate(this, op);
+        Map<String, Object> ret = new HashMap<>();
+        ret.put("acc", true);
         List<Map<String, Object>> lst = find(db, collection, query, null, null, 0, multiple ? 0 : 1, true);
-        if (upsert && (lst == null || lst.isEmpty())) {
-            throw new RuntimeException("Upsert not implemented yet!");
+        if (upsert && lst.isEmpty()) {
+            Map<String, Object> doc = new HashMap<>();
+            addEqualityFields(query, doc);
+            update.apply(doc, true);
+            doc.putIfAbsent("_id", new MorphiumId());
+            addToCollection(db, collection, doc);
+            ret.put("matched", 0L);
+            ret.put("modified", 0L);
+            ret.put("upserted", doc.get("_id"));
+            return ret;
         }
+        //only indexes on modified fields need to be maintained
+        List<InMemoryIndex> idxList = new ArrayList<>();
+        for (InMemoryIndex idx : getIndexList(db, collection)) {
+            if (update.touches(idx.getField())) {
+                idxList.add(idx);
+            }
+        }
+        long modified = 0;
+        Object[] oldKeys = new Object[idxList.size()];
         for (Map<String, Object> obj : lst) {
-            for (String operand : op.keySet()) {
-                @SuppressWarnings("unchecked") Map<String, Object> cmd = (Map<String, Object>) op.get(operand);
-                switch (operand) {
-                    case "$set":
-                        for (Map.Entry<String, Object> entry : cmd.entrySet()) {
-                            obj.put(entry.getKey(), entry.getValue());
-                        }
-                        break;
-                    case "$unset":
-                        for (Map.Entry<String, Object> entry : cmd.entrySet()) {
-                            obj.remove(entry.getKey());
-                        }
-                        break;
-                    case "$inc":
-                        for (Map.Entry<String, Object> entry : cmd.entrySet()) {
-                            Object value = obj.get(entry.getKey());
-                            if (value instanceof Integer) {
-                                value = (Integer) value + ((Integer) entry.getValue());
-                            } else if (value instanceof Double) {
-                                value = (Double) value + ((Double) entry.getValue());
-                            } else if (value instanceof Float) {
-                                value = (Float) value + ((Float) entry.getValue());
-                            } else if (value instanceof Long) {
-                                value = (Long) value + ((Long) entry.getValue());
+            boolean changed;
+            synchronized (getLock(obj)) {
+                for (int i = 0; i < oldKeys.length; i++) {
+                    oldKeys[i] = idxList.get(i).keyOf(obj);
+                }
+                if (obj instanceof InMemoryCompactDocument) {
+                    //decode once, apply all changes, encode once
+                    Map<String, Object> decoded = ((InMemoryCompactDocument) obj).decode();
+                    changed = update.apply(decoded, false);
+                    if (changed) {
+                        ((InMemoryCompactDocument) obj).setDocument(decoded);
+                    }
+                } else {
+                    changed = update.apply(obj, false);
+                }
+            }
+            if (!changed) {
+                continue;
+            }
+            modified++;
+            for (int i = 0; i < oldKeys.length; i++) {
+                idxList.get(i).update(oldKeys[i], obj);
+            }
+            scheduleExpiry(db, collection, obj);
+            fireChange(db, collection, InMemoryChangeListener.ChangeType.UPDATE, obj);
+        }
+        ret.put("matched", (long) lst.size());
+        ret.put("modified", modified);
+        return ret;
+    }
 
-                            }
-                            obj.put(entry.getKey(), value);
-                        }
-                        break;
-                    case "$mul":
-                        for (Map.Entry<String, Object> entry : cmd.entrySet()) {
-                            Object value = obj.get(entry.getKey());
-                            if (value instanceof Integer) {
-                                value = (Integer) value * ((Integer) entry.getValue());
-                            } else if (value instanceof Double) {
-                                value = (Double) value * ((Double) entry.getValue());
-                            } else if (value instanceof Float) {
-                                value = (Float) value * ((Float) entry.getValue());
-                            } else if (value instanceof Long) {
-                                value = (Long) value * ((Long) entry.getValue());
-                            }
-                            obj.put(entry.getKey(), value);
-                        }
-                        break;
-                    case "$rename":
-                        for (Map.Entry<String, Object> entry : cmd.entrySet()) {
-                            obj.put((String) entry.getValue(), obj.get(entry.getKey()));
-                            obj.remove(entry.getKey());
-                        }
-                        break;
-                    case "$min":
-                        for (Map.Entry<String, Object> entry : cmd.entrySet()) {
-                            Comparable value = (Comparable) obj.get(entry.getKey());
-                            //noinspection unchecked
-                            if (value.compareTo(entry.getValue()) > 0) {
-                                obj.put(entry.getKey(), entry.getValue());
-                            }
-                        }
-                        break;
-                    case "$max":
-                        for (Map.Entry<String, Object> entry : cmd.entrySet()) {
-                            Comparable value = (Comparable) obj.get(entry.getKey());
-                            //noinspection unchecked
-                            if (value.compareTo(entry.getValue()) < 0) {
-                                obj.put(entry.getKey(), entry.getValue());
-                            }
-                        }
-                        break;
-                    default:
-                        throw new RuntimeException("unknown operand " + operand);
+    /**
+     * upserts start with the fields the query checks for equality
+     */
+    @SuppressWarnings("unchecked")
+    private void addEqualityFields(Map<String, Object> query, Map<String, Object> doc) {
+        for (Map.Entry<String, Object> e : query.entrySet()) {
+            if (e.getKey().equals("$and")) {
+                for (Map<String, Object> q : (List<Map<String, Object>>) e.getValue()) {
+                    addEqualityFields(q, doc);
+                }
+            } else if (!e.getKey().startsWith("$") && !e.getKey().contains(".")) {
+                if (!isOperatorMap(e.getValue())) {
+                    doc.put(e.getKey(), e.getValue());
+                } else if (((Map) e.getValue()).containsKey("$eq")) {
+                    doc.put(e.getKey(), ((Map) e.getValue()).get("$eq"));
                 }
             }
         }
-        return new HashMap<>();
+    }
+
+    /**
+     * documents are modified in place, concurrent modifications and copies of the same document are serialized
+     * by one of a fixed number of locks
+     */
+    private Object getLock(Map<String, Object> doc) {
+        return locks[(System.identityHashCode(doc) & 0x7fffffff) % locks.length];
     }
 
     @Override
     public Map<String, Object> delete(String db, String collection, Map<String, Object> query, boolean multiple, WriteConcern wc) throws MorphiumDriverException {
-        List<Map<String, Object>> toDel = find(db, collection, query, null, null, 0, multiple ? 0 : 1, 10000, null, null);
+        if (isCapped(db, collection)) {
+            throw new MorphiumDriverException("cannot remove from a capped collection: " + db + "." + collection, null);
+        }
+        List<Map<String, Object>> toDel = find(db, collection, query, null, null, 0, multiple ? 0 : 1, true);
         for (Map<String, Object> o : toDel) {
-            getCollection(db, collection).remove(o);
+            removeFromCollection(db, collection, o);
         }
         return new HashMap<>();
     }
@@ -697,11 +1375,25 @@ public class InMemoryDriver implements MorphiumDriver {
     @Override
     public void drop(String db, String collection, WriteConcern wc) throws MorphiumDriverException {
         getDB(db).remove(collection);
+        if (indexes.get(db) != null && indexes.get(db).get(collection) != null) {
+            ttlPending.keySet().removeAll(indexes.get(db).remove(collection));
+        }
+        if (capped.get(db) != null) {
+            capped.get(db).remove(collection);
+        }
+        fireChange(db, collection, InMemoryChangeListener.ChangeType.DROP, null);
     }
 
     @Override
     public void drop(String db, WriteConcern wc) throws MorphiumDriverException {
         database.remove(db);
+        if (indexes.get(db) != null) {
+            for (List<InMemoryIndex> lst : indexes.get(db).values()) {
+                ttlPending.keySet().removeAll(lst);
+            }
+        }
+        indexes.remove(db);
+        capped.remove(db);
     }
 
     @Override
@@ -721,7 +1413,12 @@ public class InMemoryDriver implements MorphiumDriver {
 
     @Override
     public List<Map<String, Object>> getIndexes(String db, String collection) throws MorphiumDriverException {
-        return new ArrayList<>();
+        List<Map<String, Object>> ret = new ArrayList<>();
+        ret.add(Utils.getMap("key", (Object) Utils.getMap("_id", 1)));
+        for (InMemoryIndex idx : getIndexList(db, collection)) {
+            ret.add(idx.getDescription());
+        }
+        return ret;
     }
 
     @Override
@@ -771,7 +1468,11 @@ public class InMemoryDriver implements MorphiumDriver {
 
     @Override
     public boolean isCapped(String db, String coll) throws MorphiumDriverException {
-        return false;
+        return getCapped(db, coll) != null;
+    }
+
+    private InMemoryCappedCollection getCapped(String db, String collection) {
+        return capped.get(db) == null ? null : capped.get(db).get(collection);
     }
 
     @Override
@@ -834,15 +1535,72 @@ public class InMemoryDriver implements MorphiumDriver {
 
     @Override
     public void createIndex(String db, String collection, Map<String, Object> index, Map<String, Object> options) throws MorphiumDriverException {
+        if (index == null || index.isEmpty()) {
+            return;
+        }
+        List<InMemoryIndex> idxList = getIndexList(db, collection);
+        for (InMemoryIndex idx : idxList) {
+            if (idx.getKeys().equals(index)) {
+                //already there
+                return;
+            }
+        }
+        InMemoryIndex idx = new InMemoryIndex(index, options);
+        List<Map<String, Object>> data = getCollection(db, collection);
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (data) {
+            for (Map<String, Object> o : data) {
+                idx.add(o);
+                if (idx.getExpireAfterSeconds() != null) {
+                    scheduleExpiry(db, collection, idx, o);
+                }
+            }
+        }
+        idxList.add(idx);
+        if (idx.getExpireAfterSeconds() != null) {
+            startTTLThread();
+        }
+    }
+
 
+    private static class ExpiryEntry {
+        private final String db;
+        private final String collection;
+        private final InMemoryIndex index;
+        //changed under the lock of the pending map of the index only
+        private Map<String, Object> doc;
+        private long dueAt;
+
+        private ExpiryEntry(String db, String collection, InMemoryIndex index, Map<String, Object> doc, long dueAt) {
+            this.db = db;
+            this.collection = collection;
+            this.index = index;
+            this.doc = doc;
+            this.dueAt = dueAt;
+        }
     }
 
+    private static class ChangeListenerRegistration {
+        private final String db;
+        private final String collection;
+        private final InMemoryChangeListener listener;
+
+        private ChangeListenerRegistration(String db, String collection, InMemoryChangeListener listener) {
+            this.db = db;
+            this.collection = collection;
+            this.listener = listener;
+        }
+    }
 
     private class InMemoryCursor {
         private int skip;
         private int limit;
         private int batchSize;
         private int dataRead = 0;
+        //tailable cursors only
+        private boolean tailable = false;
+        private long awaitData = 0;
+        private long position = 0;
 
         private String db;
         private String collection;
@@ -0,0 +1,269 @@
+package de.caluga.morphium.driver.inmem;
+
+import de.caluga.morphium.driver.bson.MorphiumId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index of an in memory collection. Documents are kept sorted by the value of the first key of the index, so
+ * that sorted queries on that field can walk the index instead of sorting the whole collection.
+ * Documents are referenced, not copied.
+ */
+@SuppressWarnings("WeakerAccess")
+public class InMemoryIndex {
+    //ConcurrentSkipListMap does not support null keys - missing values are stored under this key
+    private static final Object NULL_KEY = new Object();
+
+    private final Map<String, Object> keys;
+    private final Map<String, Object> options;
+    private final String field;
+    private final ConcurrentSkipListMap<Object, List<Map<String, Object>>> entries = new ConcurrentSkipListMap<>(InMemoryIndex::compareKeys);
+
+    public InMemoryIndex(Map<String, Object> keys, Map<String, Object> options) {
+        this.keys = new LinkedHashMap<>(keys);
+        this.options = options;
+        field = keys.keySet().iterator().next();
+    }
+
+    /**
+     * compares values the way mongodb sorts them: null first, then numbers, strings, objects, arrays, binary data,
+     * ids, booleans and dates. Numbers are compared by value regardless of their type.
+     */
+    @SuppressWarnings("unchecked")
+    public static int compareValues(Object o1, Object o2) {
+        if (o1 == o2) {
+            return 0;
+        }
+        int r1 = typeRank(o1);
+        int r2 = typeRank(o2);
+        if (r1 != r2) {
+            return Integer.compare(r1, r2);
+        }
+        if (o1 == null) {
+            return 0;
+        }
+        if (o1 instanceof Number) {
+            return Double.compare(((Number) o1).doubleValue(), ((Number) o2).doubleValue());
+        }
+        if (o1 instanceof Comparable && o1.getClass().isAssignableFrom(o2.getClass())) {
+            return ((Comparable) o1).compareTo(o2);
+        }
+        return o1.toString().compareTo(o2.toString());
+    }
+
+    /**
+     * @return true, if both values are of the same type bracket - mongodb only compares values of the same bracket
+     * in range queries
+     */
+    public static boolean isSameType(Object o1, Object o2) {
+        return typeRank(o1) == typeRank(o2);
+    }
+
+    private static int typeRank(Object o) {
+        if (o == null) {
+            return 0;
+        }
+        if (o instanceof Number) {
+            return 1;
+        }
+        if (o instanceof String) {
+            return 2;
+        }
+        if (o instanceof Map) {
+            return 3;
+        }
+        if (o instanceof List) {
+            return 4;
+        }
+        if (o instanceof byte[]) {
+            return 5;
+        }
+        if (o instanceof MorphiumId) {
+            return 6;
+        }
+        if (o instanceof Boolean) {
+            return 7;
+        }
+        if (o instanceof Date) {
+            return 8;
+        }
+        return 9;
+    }
+
+    private static int compareKeys(Object k1, Object k2) {
+        return compareValues(k1 == NULL_KEY ? null : k1, k2 == NULL_KEY ? null : k2);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public Map<String, Object> getKeys() {
+        return keys;
+    }
+
+    public Map<String, Object> getOptions() {
+        return options;
+    }
+
+    /**
+     * @return expireAfterSeconds for TTL indexes, null otherwise
+     */
+    public Number getExpireAfterSeconds() {
+        if (options == null || !(options.get("expireAfterSeconds") instanceof Number)) {
+            return null;
+        }
+        return (Number) options.get("expireAfterSeconds");
+    }
+
+    /**
+     * @return the index description like it would be returned by mongodb's listIndexes
+     */
+    public Map<String, Object> getDescription() {
+        Map<String, Object> ret = new HashMap<>();
+        if (options != null) {
+            ret.putAll(options);
+        }
+        ret.put("key", keys);
+        if (!ret.containsKey("name")) {
+            StringBuilder name = new StringBuilder();
+            for (Map.Entry<String, Object> e : keys.entrySet()) {
+                if (name.length() > 0) {
+                    name.append("_");
+                }
+                name.append(e.getKey()).append("_").append(e.getValue());
+            }
+            ret.put("name", name.toString());
+        }
+        return ret;
+    }
+
+    /**
+     * @return the key this document is stored under in this index
+     */
+    public Object keyOf(Map<String, Object> doc) {
+        Object v = getValue(doc, field);
+        return v == null ? NULL_KEY : v;
+    }
+
+    /**
+     * @return true, if the index is on a top level field - indexes on a dotted path might be multikey indexes
+     * (sub documents in arrays) and cannot be walked for sorting
+     */
+    public boolean isSortable() {
+        return !field.contains(".");
+    }
+
+    /**
+     * value of a field, dotted paths are resolved through sub documents
+     *
+     * @return the value or null, if the path does not exist or crosses anything but sub documents
+     */
+    @SuppressWarnings("unchecked")
+    public static Object getValue(Map<String, Object> doc, String path) {
+        if (path.indexOf('.') < 0) {
+            return doc.get(path);
+        }
+        Object v = doc;
+        for (String p : path.split("\\.")) {
+            if (!(v instanceof Map)) {
+                return null;
+            }
+            v = ((Map<String, Object>) v).get(p);
+        }
+        return v;
+    }
+
+    public void add(Map<String, Object> doc) {
+        Object key = keyOf(doc);
+        while (true) {
+            List<Map<String, Object>> bucket = entries.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>()));
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (bucket) {
+                //remove drops empty buckets under the same lock - retry, if this one was dropped meanwhile
+                if (entries.get(key) == bucket) {
+                    bucket.add(doc);
+                    return;
+                }
+            }
+        }
+    }
+
+    public void remove(Map<String, Object> doc) {
+        remove(keyOf(doc), doc);
+    }
+
+    /**
+     * to be called after doc was modified in place
+     *
+     * @param oldKey the key as returned by keyOf before the modification
+     * @param doc    the modified document
+     */
+    public void update(Object oldKey, Map<String, Object> doc) {
+        Object newKey = keyOf(doc);
+        if (compareKeys(oldKey, newKey) == 0) {
+            return;
+        }
+        remove(oldKey, doc);
+        add(doc);
+    }
+
+    private void remove(Object key, Map<String, Object> doc) {
+        List<Map<String, Object>> bucket = entries.get(key);
+        if (bucket == null) {
+            return;
+        }
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (bucket) {
+            //identity, not equality - different documents might look the same
+            for (Iterator<Map<String, Object>> it = bucket.iterator(); it.hasNext(); ) {
+                if (it.next() == doc) {
+                    it.remove();
+                    break;
+                }
+            }
+            if (bucket.isEmpty()) {
+                entries.remove(key, bucket);
+            }
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * walks all indexed documents in sort order of the indexed field
+     *
+     * @param ascending - true for ascending, false for descending order
+     */
+    public Iterator<Map<String, Object>> walk(boolean ascending) {
+        ConcurrentNavigableMap<Object, List<Map<String, Object>>> map = ascending ? entries : entries.descendingMap();
+        Iterator<List<Map<String, Object>>> buckets = map.values().iterator();
+        return new Iterator<Map<String, Object>>() {
+            private Iterator<Map<String, Object>> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && buckets.hasNext()) {
+                    List<Map<String, Object>> bucket = buckets.next();
+                    //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                    synchronized (bucket) {
+                        current = new ArrayList<>(bucket).iterator();
+                    }
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Map<String, Object> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,378 @@
+package de.caluga.morphium.driver.inmem;
+
+import de.caluga.morphium.driver.MorphiumDriverException;
+
+import java.util.*;
+
+/**
+ * An update document compiled for the in memory driver. The operators are parsed once, the resulting operations
+ * can then be applied to any number of documents. The caller needs to take care of locking and index maintenance.
+ * <p>
+ * All operations are applied to a copy of the document first, embedded documents and arrays are copied on the way
+ * (copy on write), as they might be shared with results returned before. Only if all operations succeeded, the
+ * changed fields are put into the document itself - a failing operation leaves it untouched.
+ * <p>
+ * Supported: $set, $setOnInsert, $unset, $inc, $mul, $min, $max, $push (with $each, $slice and $position),
+ * $pushAll, $addToSet (with $each), $pull, $pullAll, $pop, $rename and $currentDate. Field names may be paths
+ * into embedded documents (a.b.c).
+ */
+@SuppressWarnings("WeakerAccess")
+public class InMemoryUpdate {
+    private final InMemoryDriver driver;
+    private final List<Operation> operations = new ArrayList<>();
+    private final Set<String> touchedFields = new HashSet<>();
+
+    @SuppressWarnings("unchecked")
+    public InMemoryUpdate(InMemoryDriver driver, Map<String, Object> update) throws MorphiumDriverException {
+        this.driver = driver;
+        for (Map.Entry<String, Object> op : update.entrySet()) {
+            if (!(op.getValue() instanceof Map)) {
+                throw new MorphiumDriverException("Invalid update operator " + op.getKey() + ": " + op.getValue(), null);
+            }
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) op.getValue()).entrySet()) {
+                operations.add(compile(op.getKey(), e.getKey(), e.getValue()));
+                touchedFields.add(topLevel(e.getKey()));
+                if (op.getKey().equals("$rename")) {
+                    touchedFields.add(topLevel((String) e.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true, if the update might change the given (top level) field
+     */
+    public boolean touches(String field) {
+        return touchedFields.contains(topLevel(field));
+    }
+
+    /**
+     * applies all operations to the document
+     *
+     * @param insert - true, if the document is created by an upsert ($setOnInsert is only applied then)
+     * @return true, if the document was modified
+     */
+    public boolean apply(Map<String, Object> doc, boolean insert) throws MorphiumDriverException {
+        Map<String, Object> work = new HashMap<>(doc);
+        //containers already copied for this document
+        Set<Object> copied = Collections.newSetFromMap(new IdentityHashMap<>());
+        copied.add(work);
+        boolean modified = false;
+        for (Operation op : operations) {
+            modified |= op.apply(work, insert, copied);
+        }
+        if (!modified) {
+            return false;
+        }
+        doc.keySet().retainAll(work.keySet());
+        for (Map.Entry<String, Object> e : work.entrySet()) {
+            if (doc.get(e.getKey()) != e.getValue() || !doc.containsKey(e.getKey())) {
+                doc.put(e.getKey(), e.getValue());
+            }
+        }
+        return true;
+    }
+
+    private static String topLevel(String path) {
+        int idx = path.indexOf('.');
+        return idx < 0 ? path : path.substring(0, idx);
+    }
+
+    private static String leaf(String path) {
+        return path.substring(path.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return the map holding the last element of path, a copy of the stored one. Null if it does not exist and
+     * create is false
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> parent(Map<String, Object> doc, String path, boolean create, Set<Object> copied) throws MorphiumDriverException {
+        Map<String, Object> current = doc;
+        int start = 0;
+        int idx;
+        while ((idx = path.indexOf('.', start)) >= 0) {
+            String k = path.substring(start, idx);
+            Object sub = current.get(k);
+            if (sub == null) {
+                if (!create) {
+                    return null;
+                }
+                sub = new HashMap<String, Object>();
+                current.put(k, sub);
+                copied.add(sub);
+            } else if (!(sub instanceof Map)) {
+                throw new MorphiumDriverException("cannot create field " + path + ": " + k + " is not a document", null);
+            } else if (!copied.contains(sub)) {
+                sub = new HashMap<>((Map<String, Object>) sub);
+                current.put(k, sub);
+                copied.add(sub);
+            }
+            current = (Map<String, Object>) sub;
+            start = idx + 1;
+        }
+        return current;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Operation compile(String operator, String path, Object operand) throws MorphiumDriverException {
+        String leaf = leaf(path);
+        switch (operator) {
+            case "$set":
+                return (doc, insert, copied) -> {
+                    Map<String, Object> p = parent(doc, path, true, copied);
+                    boolean changed = !p.containsKey(leaf) || !Objects.equals(p.get(leaf), operand);
+                    p.put(leaf, operand);
+                    return changed;
+                };
+            case "$setOnInsert":
+                return (doc, insert, copied) -> {
+                    if (!insert) {
+                        return false;
+                    }
+                    parent(doc, path, true, copied).put(leaf, operand);
+                    return true;
+                };
+            case "$unset":
+                return (doc, insert, copied) -> {
+                    Map<String, Object> p = parent(doc, path, false, copied);
+                    if (p == null || !p.containsKey(leaf)) {
+                        return false;
+                    }
+                    p.remove(leaf);
+                    return true;
+                };
+            case "$inc":
+                checkNumber(operator, path, operand);
+                return (doc, insert, copied) -> {
+                    Map<String, Object> p = parent(doc, path, true, copied);
+                    Object value = p.get(leaf);
+                    if (value == null) {
+                        p.put(leaf, operand);
+                        return true;
+                    }
+                    checkNumber(operator, path, value);
+                    p.put(leaf, add((Number) value, (Number) operand));
+                    return ((Number) operand).doubleValue() != 0;
+                };
+            case "$mul":
+                checkNumber(operator, path, operand);
+                return (doc, insert, copied) -> {
+                    Map<String, Object> p = parent(doc, path, true, copied);
+                    Object value = p.get(leaf);
+                    if (value == null) {
+                        //like mongodb: missing field is set to 0 of the operand type
+                        p.put(leaf, multiply(0, (Number) operand));
+                        return true;
+                    }
+                    checkNumber(operator, path, value);
+                    p.put(leaf, multiply((Number) value, (Number) operand));
+                    return ((Number) operand).doubleValue() != 1;
+                };
+            case "$min":
+            case "$max":
+                boolean min = operator.equals("$min");
+                return (doc, insert, copied) -> {
+                    Map<String, Object> p = parent(doc, path, true, copied);
+                    if (!p.containsKey(leaf)) {
+                        p.put(leaf, operand);
+                        return true;
+                    }
+                    int cmp = InMemoryIndex.compareValues(p.get(leaf), operand);
+                    if ((min && cmp > 0) || (!min && cmp < 0)) {
+                        p.put(leaf, operand);
+                        return true;
+                    }
+                    return false;
+                };
+            case "$currentDate":
+                boolean timestamp = operand instanceof Map && "timestamp".equals(((Map) operand).get("$type"));
+                return (doc, insert, copied) -> {
+                    parent(doc, path, true, copied).put(leaf, timestamp ? (Object) System.currentTimeMillis() : new Date());
+                    return true;
+                };
+            case "$rename":
+                if (!(operand instanceof String)) {
+                    throw new MorphiumDriverException("$rename target needs to be a string: " + path, null);
+                }
+                String target = (String) operand;
+                String targetLeaf = leaf(target);
+                return (doc, insert, copied) -> {
+                    Map<String, Object> p = parent(doc, path, false, copied);
+                    if (p == null || !p.containsKey(leaf)) {
+                        return false;
+                    }
+                    Object value = p.remove(leaf);
+                    parent(doc, target, true, copied).put(targetLeaf, value);
+                    return true;
+                };
+            case "$push":
+            case "$pushAll":
+            case "$addToSet":
+                List<Object> values;
+                int slice = Integer.MIN_VALUE;
+                int position = -1;
+                if (operator.equals("$pushAll")) {
+                    values = new ArrayList<>((Collection) operand);
+                } else if (operand instanceof Map && ((Map) operand).containsKey("$each")) {
+                    Map<String, Object> m = (Map<String, Object>) operand;
+                    values = new ArrayList<>((Collection) m.get("$each"));
+                    if (m.get("$slice") instanceof Number) {
+                        slice = ((Number) m.get("$slice")).intValue();
+                    }
+                    if (m.get("$position") instanceof Number) {
+                        position = ((Number) m.get("$position")).intValue();
+                    }
+                } else {
+                    values = Collections.singletonList(operand);
+                }
+                boolean addToSet = operator.equals("$addToSet");
+                int sl = slice;
+                int pos = position;
+                return (doc, insert, copied) -> {
+                    List<Object> lst = getList(doc, path, leaf, operator, true, copied);
+                    boolean changed = false;
+                    int insertAt = pos < 0 || pos > lst.size() ? lst.size() : pos;
+                    for (Object v : values) {
+                        if (addToSet && contains(lst, v)) {
+                            continue;
+                        }
+                        lst.add(insertAt++, v);
+                        changed = true;
+                    }
+                    if (sl != Integer.MIN_VALUE) {
+                        changed |= slice(lst, sl);
+                    }
+                    return changed;
+                };
+            case "$pull":
+                return (doc, insert, copied) -> {
+                    List<Object> lst = getList(doc, path, leaf, operator, false, copied);
+                    return lst != null && lst.removeIf(el -> elementMatches(el, operand));
+                };
+            case "$pullAll":
+                Collection toRemove = (Collection) operand;
+                return (doc, insert, copied) -> {
+                    List<Object> lst = getList(doc, path, leaf, operator, false, copied);
+                    return lst != null && lst.removeIf(el -> contains(toRemove, el));
+                };
+            case "$pop":
+                boolean first = ((Number) operand).intValue() < 0;
+                return (doc, insert, copied) -> {
+                    List<Object> lst = getList(doc, path, leaf, operator, false, copied);
+                    if (lst == null || lst.isEmpty()) {
+                        return false;
+                    }
+                    lst.remove(first ? 0 : lst.size() - 1);
+                    return true;
+                };
+            default:
+                throw new MorphiumDriverException("unknown operand " + operator, null);
+        }
+    }
+
+    /**
+     * @return the list stored under path - a modifiable copy is put into the document
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object> getList(Map<String, Object> doc, String path, String leaf, String operator, boolean create, Set<Object> copied) throws MorphiumDriverException {
+        Map<String, Object> p = parent(doc, path, create, copied);
+        if (p == null) {
+            return null;
+        }
+        Object value = p.get(leaf);
+        if (value == null) {
+            if (!create) {
+                return null;
+            }
+            List<Object> lst = new ArrayList<>();
+            p.put(leaf, lst);
+            copied.add(lst);
+            return lst;
+        }
+        if (!(value instanceof List)) {
+            throw new MorphiumDriverException("cannot apply " + operator + " to non-array field " + path, null);
+        }
+        if (!copied.contains(value)) {
+            value = new ArrayList<>((List<Object>) value);
+            p.put(leaf, value);
+            copied.add(value);
+        }
+        return (List<Object>) value;
+    }
+
+    private boolean slice(List<Object> lst, int slice) {
+        if (slice >= 0 && lst.size() > slice) {
+            lst.subList(slice, lst.size()).clear();
+            return true;
+        } else if (slice < 0 && lst.size() > -slice) {
+            lst.subList(0, lst.size() + slice).clear();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean contains(Collection<?> lst, Object v) {
+        for (Object o : lst) {
+            if (Objects.equals(o, v) || (o instanceof Number && v instanceof Number && InMemoryIndex.compareValues(o, v) == 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean elementMatches(Object element, Object condition) {
+        if (driver.isOperatorMap(condition)) {
+            for (Map.Entry<String, Object> op : ((Map<String, Object>) condition).entrySet()) {
+                if (!driver.matchesOperator(op.getKey(), op.getValue(), true, element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (condition instanceof Map && element instanceof Map) {
+            return driver.matchesQuery((Map<String, Object>) condition, (Map<String, Object>) element);
+        }
+        return driver.valueMatches(element, condition);
+    }
+
+    private static void checkNumber(String operator, String path, Object value) throws MorphiumDriverException {
+        if (!(value instanceof Number)) {
+            throw new MorphiumDriverException("cannot apply " + operator + " to " + path + ": " + value + " is not a number", null);
+        }
+    }
+
+    private static Number add(Number a, Number b) {
+        if (a instanceof Double || b instanceof Double || a instanceof Float || b instanceof Float) {
+            return a.doubleValue() + b.doubleValue();
+        }
+        if (a instanceof Long || b instanceof Long) {
+            return a.longValue() + b.longValue();
+        }
+        try {
+            return Math.addExact(a.intValue(), b.intValue());
+        } catch (ArithmeticException e) {
+            //like mongodb: int overflow results in a long
+            return a.longValue() + b.longValue();
+        }
+    }
+
+    private static Number multiply(Number a, Number b) {
+        if (a instanceof Double || b instanceof Double || a instanceof Float || b instanceof Float) {
+            return a.doubleValue() * b.doubleValue();
+        }
+        if (a instanceof Long || b instanceof Long) {
+            return a.longValue() * b.longValue();
+        }
+        try {
+            return Math.multiplyExact(a.intValue(), b.intValue());
+        } catch (ArithmeticException e) {
+            return a.longValue() * b.longValue();
+        }
+    }
+
+    private interface Operation {
+        boolean apply(Map<String, Object> doc, boolean insert, Set<Object> copied) throws MorphiumDriverException;
+    }
+}
@@ -504,6 +504,12 @@ public class MetaDriver extends DriverBase {
 
     }
 
+    @Override
+    public MorphiumCursor initTailableIteration(String db, String collection, Map<String, Object> query, Map<String, Object> projection, int batchSize, long awaitData) throws MorphiumDriverException {
+        Connection c = getConnection(ReadPreference.primary());
+        return c.getD().initTailableIteration(db, collection, query, projection, batchSize, awaitData);
+    }
+
     @Override
     public MorphiumCursor nextIteration(MorphiumCursor crs) throws MorphiumDriverException {
         //Stay at the same connection
@@ -13,6 +13,7 @@ import de.caluga.morphium.Logger;
 import de.caluga.morphium.Morphium;
 import de.caluga.morphium.driver.*;
 import de.caluga.morphium.driver.ReadPreference;
+import de.caluga.morphium.driver.bson.MongoTimestamp;
 import de.caluga.morphium.driver.bson.MorphiumId;
 import de.caluga.morphium.driver.bulk.BulkRequestContext;
 import org.bson.*;
@@ -482,6 +483,43 @@ public class Driver implements MorphiumDriver {
         }, retriesOnNetworkError, sleepBetweenErrorRetries).get("result");
     }
 
+    @Override
+    public MorphiumCursor initTailableIteration(String db, String collection, Map<String, Object> query, Map<String, Object> projection, int batchSize, long awaitData) throws MorphiumDriverException {
+        DriverHelper.replaceMorphiumIdByObjectId(query);
+        //noinspection ConstantConditions
+        return (MorphiumCursor) DriverHelper.doCall(() -> {
+            DB database = mongo.getDB(db);
+            DBCollection coll = getColl(database, collection, ReadPreference.primary(), null);
+            DBCursor ret = coll.find(new BasicDBObject(query), projection != null ? new BasicDBObject(projection) : null);
+            ret.addOption(Bytes.QUERYOPTION_TAILABLE);
+            if (awaitData > 0) {
+                ret.addOption(Bytes.QUERYOPTION_AWAITDATA);
+            }
+            ret.batchSize(batchSize != 0 ? batchSize : defaultBatchSize);
+
+            MorphiumCursor<DBCursor> crs = new MorphiumCursor<>();
+            crs.setInternalCursorObject(ret);
+            crs.setBatch(tail(ret));
+            crs.setCursorId(ret.getCursorId());
+            Map<String, Object> r = new HashMap<>();
+            r.put("result", crs);
+            return r;
+        }, retriesOnNetworkError, sleepBetweenErrorRetries).get("result");
+    }
+
+    /**
+     * reads what is available on a tailable cursor. tryNext does not block longer than the server waits for data
+     */
+    private List<Map<String, Object>> tail(DBCursor ret) {
+        List<Map<String, Object>> values = new ArrayList<>();
+        int batchSize = ret.getBatchSize() != 0 ? ret.getBatchSize() : 1000;
+        DBObject d;
+        while (values.size() < batchSize && (d = ret.tryNext()) != null) {
+            values.add(convertBSON((BasicDBObject) d));
+        }
+        return values;
+    }
+
     private void handleMetaData(Map<String, Object> findMetaData, DBCursor ret) {
         if (findMetaData != null) {
             if (ret.getServerAddress() != null) {
@@ -501,6 +539,15 @@ public class Driver implements MorphiumDriver {
             if (ret == null) {
                 return new HashMap<>(); //finished
             }
+            if ((ret.getOptions() & Bytes.QUERYOPTION_TAILABLE) != 0) {
+                MorphiumCursor<DBCursor> crs1 = new MorphiumCursor<>();
+                crs1.setInternalCursorObject(ret);
+                crs1.setBatch(tail(ret));
+                crs1.setCursorId(ret.getCursorId());
+                Map<String, Object> r = new HashMap<>();
+                r.put("result", crs1);
+                return r;
+            }
             int batchSize = ret.getBatchSize();
             while (ret.hasNext()) {
                 DBObject d = ret.next();
@@ -587,9 +634,9 @@ public class Driver implements MorphiumDriver {
         for (Object k : d.keySet()) {
             Object value = d.get(k);
             if (value instanceof BsonTimestamp) {
-                value = (((BsonTimestamp) value).getTime() * 1000);
+                value = new MongoTimestamp(((BsonTimestamp) value).getTime(), ((BsonTimestamp) value).getInc());
             } else if (value instanceof BSONTimestamp) {
-                value = (((BSONTimestamp) value).getTime() * 1000);
+                value = new MongoTimestamp(((BSONTimestamp) value).getTime(), ((BSONTimestamp) value).getInc());
             } else if (value instanceof BsonDocument) {
                 value = convertBSON((Map) value);
             } else if (value instanceof BsonBoolean) {
@@ -7,7 +7,10 @@ import de.caluga.morphium.MorphiumReference;
 import de.caluga.morphium.driver.MorphiumDriverException;
 import de.caluga.morphium.driver.MorphiumDriverNetworkException;
 import de.caluga.morphium.driver.MorphiumDriverOperation;
+import de.caluga.morphium.driver.bson.MongoBob;
+import de.caluga.morphium.driver.bson.MongoTimestamp;
 import de.caluga.morphium.driver.bson.MorphiumId;
+import org.bson.BsonTimestamp;
 import org.bson.types.ObjectId;
 
 import java.lang.reflect.Array;
@@ -91,6 +94,11 @@ public class DriverHelper {
 
                     } else if (e.getValue() instanceof MorphiumReference) {
                         toSet.put((String) e.getKey(), new ObjectId(((MorphiumReference) e.getValue()).getId().toString()));
+                    } else if (e.getValue() instanceof MongoBob) {
+                        //stored as binary by the driver
+                        toSet.put((String) e.getKey(), ((MongoBob) e.getValue()).getData());
+                    } else if (e.getValue() instanceof MongoTimestamp) {
+                        toSet.put((String) e.getKey(), new BsonTimestamp(((MongoTimestamp) e.getValue()).getTime(), ((MongoTimestamp) e.getValue()).getInc()));
                     } else if (e.getValue() instanceof Collection) {
                         for (Object o : (Collection) e.getValue()) {
                             if (o == null) {
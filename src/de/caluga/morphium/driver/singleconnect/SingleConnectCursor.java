@@ -14,6 +14,7 @@ public class SingleConnectCursor {
     private String db;
     private String collection;
     private int batchSize;
+    private long awaitData;
 
     public SingleConnectCursor(DriverBase drv) {
         this.driver = drv;
@@ -35,6 +36,14 @@ public class SingleConnectCursor {
         this.batchSize = batchSize;
     }
 
+    public long getAwaitData() {
+        return awaitData;
+    }
+
+    public void setAwaitData(long awaitData) {
+        this.awaitData = awaitData;
+    }
+
     public String getDb() {
 
         return db;
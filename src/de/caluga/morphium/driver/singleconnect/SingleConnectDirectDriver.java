@@ -21,7 +21,8 @@ import java.util.stream.Collectors;
  * Date: 02.12.15
  * Time: 23:47
  * <p>
- * connects to one node only!
+ * connects to one node only! All operations share the connection, so tailable cursors with awaitData block all others
+ * while waiting. Use a separate driver instance for those.
  */
 public class SingleConnectDirectDriver extends DriverBase {
 
@@ -229,13 +230,6 @@ public class SingleConnectDirectDriver extends DriverBase {
         if (sort == null) {
             sort = new HashMap<>();
         }
-        OpQuery q = new OpQuery();
-        q.setDb(db);
-        q.setColl("$cmd");
-        q.setLimit(1);
-        q.setSkip(0);
-        q.setReqId(getNextId());
-
         Map<String, Object> doc = new LinkedHashMap<>();
         doc.put("find", collection);
         if (limit > 0) {
@@ -247,7 +241,37 @@ public class SingleConnectDirectDriver extends DriverBase {
         }
         doc.put("sort", sort);
         doc.put("batchSize", batchSize);
+        return initIteration(db, collection, doc, batchSize, 0);
+    }
 
+    /**
+     * tailable cursor, getMore waits up to awaitData ms for new data, if awaitData is &gt; 0
+     */
+    @Override
+    public MorphiumCursor initTailableIteration(String db, String collection, Map<String, Object> query, Map<String, Object> projection, int batchSize, long awaitData) throws MorphiumDriverException {
+        Map<String, Object> doc = new LinkedHashMap<>();
+        doc.put("find", collection);
+        if (query != null && !query.isEmpty()) {
+            doc.put("filter", query);
+        }
+        if (projection != null && !projection.isEmpty()) {
+            doc.put("projection", projection);
+        }
+        doc.put("batchSize", batchSize);
+        doc.put("tailable", true);
+        if (awaitData > 0) {
+            doc.put("awaitData", true);
+        }
+        return initIteration(db, collection, doc, batchSize, awaitData);
+    }
+
+    private MorphiumCursor initIteration(String db, String collection, Map<String, Object> doc, int batchSize, long awaitData) throws MorphiumDriverException {
+        OpQuery q = new OpQuery();
+        q.setDb(db);
+        q.setColl("$cmd");
+        q.setLimit(1);
+        q.setSkip(0);
+        q.setReqId(getNextId());
         q.setDoc(doc);
         q.setFlags(0);
         q.setInReplyTo(0);
@@ -284,6 +308,7 @@ public class SingleConnectDirectDriver extends DriverBase {
         internalCursorData.setBatchSize(batchSize);
         internalCursorData.setCollection(collection);
         internalCursorData.setDb(db);
+        internalCursorData.setAwaitData(awaitData);
         //noinspection unchecked
         crs.setInternalCursorObject(internalCursorData);
         return crs;
@@ -312,6 +337,9 @@ public class SingleConnectDirectDriver extends DriverBase {
             doc.put("getMore", cursorId);
             doc.put("collection", internalCursorData.getCollection());
             doc.put("batchSize", internalCursorData.getBatchSize());
+            if (internalCursorData.getAwaitData() > 0) {
+                doc.put("maxTimeMS", internalCursorData.getAwaitData());
+            }
             q.setDoc(doc);
 
             sendQuery(q);
@@ -20,6 +20,8 @@ import java.util.stream.Collectors;
 
 /**
  * connects to one node only, creates a thread for reading data from mongo. Is  theradsafe.
+ * All operations share the connection, so tailable cursors with awaitData block all others while waiting. Use a
+ * separate driver instance for those.
  **/
 public class SingleConnectThreaddedDriver extends DriverBase {
 
@@ -278,13 +280,6 @@ public class SingleConnectThreaddedDriver extends DriverBase {
         if (sort == null) {
             sort = new HashMap<>();
         }
-        OpQuery q = new OpQuery();
-        q.setDb(db);
-        q.setColl("$cmd");
-        q.setLimit(1);
-        q.setSkip(0);
-        q.setReqId(getNextId());
-
         Map<String, Object> doc = new LinkedHashMap<>();
         doc.put("find", collection);
         if (limit > 0) {
@@ -296,7 +291,37 @@ public class SingleConnectThreaddedDriver extends DriverBase {
         }
         doc.put("sort", sort);
         doc.put("batchSize", batchSize);
+        return initIteration(db, collection, doc, batchSize, 0);
+    }
 
+    /**
+     * tailable cursor, getMore waits up to awaitData ms for new data, if awaitData is &gt; 0
+     */
+    @Override
+    public MorphiumCursor initTailableIteration(String db, String collection, Map<String, Object> query, Map<String, Object> projection, int batchSize, long awaitData) throws MorphiumDriverException {
+        Map<String, Object> doc = new LinkedHashMap<>();
+        doc.put("find", collection);
+        if (query != null && !query.isEmpty()) {
+            doc.put("filter", query);
+        }
+        if (projection != null && !projection.isEmpty()) {
+            doc.put("projection", projection);
+        }
+        doc.put("batchSize", batchSize);
+        doc.put("tailable", true);
+        if (awaitData > 0) {
+            doc.put("awaitData", true);
+        }
+        return initIteration(db, collection, doc, batchSize, awaitData);
+    }
+
+    private MorphiumCursor initIteration(String db, String collection, Map<String, Object> doc, int batchSize, long awaitData) throws MorphiumDriverException {
+        OpQuery q = new OpQuery();
+        q.setDb(db);
+        q.setColl("$cmd");
+        q.setLimit(1);
+        q.setSkip(0);
+        q.setReqId(getNextId());
         q.setDoc(doc);
         q.setFlags(0);
         q.setInReplyTo(0);
@@ -332,6 +357,7 @@ public class SingleConnectThreaddedDriver extends DriverBase {
         internalCursorData.setBatchSize(batchSize);
         internalCursorData.setCollection(collection);
         internalCursorData.setDb(db);
+        internalCursorData.setAwaitData(awaitData);
         //noinspection unchecked
         crs.setInternalCursorObject(internalCursorData);
         return crs;
@@ -359,6 +385,9 @@ public class SingleConnectThreaddedDriver extends DriverBase {
         doc.put("getMore", cursorId);
         doc.put("collection", internalCursorData.getCollection());
         doc.put("batchSize", internalCursorData.getBatchSize());
+        if (internalCursorData.getAwaitData() > 0) {
+            doc.put("maxTimeMS", internalCursorData.getAwaitData());
+        }
         q.setDoc(doc);
 
         sendQuery(q);
@@ -0,0 +1,33 @@
+package de.caluga.morphium.mapping;
+
+/**
+ * Field access for one @Entity or @Embedded class without reflection, generated at compile time by the
+ * EntityAccessorProcessor as class &lt;Name&gt;_MorphiumAccessor in the package of the entity. The ObjectMapperImpl
+ * uses it, if present, instead of method handles and the serialization constructor. Mapping rules stay the same,
+ * just reading and writing the fields is plain java code.
+ * <p>
+ * Only fields accessible from the package of the entity are covered, i.e. not private ones, not final ones and not
+ * ones shadowed in the hierarchy. The others are still accessed via method handles.
+ */
+public interface EntityAccessor<T> {
+    String SUFFIX = "_MorphiumAccessor";
+
+    /**
+     * @return new instance using the no-arg constructor, null if there is no accessible one
+     */
+    T newInstance();
+
+    /**
+     * @return java names of the fields covered, index is used in get and set
+     */
+    String[] getFields();
+
+    Object get(T o, int field);
+
+    /**
+     * sets the field without conversion
+     *
+     * @throws ClassCastException if value does not fit
+     */
+    void set(T o, int field, Object value);
+}
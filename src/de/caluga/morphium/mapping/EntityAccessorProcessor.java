@@ -0,0 +1,208 @@
+package de.caluga.morphium.mapping;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Annotation processor generating an EntityAccessor for every class annotated with @Entity or @Embedded. It is not
+ * registered as service, so it only runs if it is explicitly added to the compile of the entities, e.g.
+ * <code>javac -processor de.caluga.morphium.mapping.EntityAccessorProcessor ...</code> or as
+ * <code>annotationProcessors</code> in the configuration of the maven-compiler-plugin.
+ * <p>
+ * Fields are accessed directly, so only fields which are not private, not final, not static and declared in the
+ * same package (or public in a public class) are covered. Getters and setters are not used, as they might do more
+ * than the mapper expects. Private fields and fields shadowed in the hierarchy are still accessed via method handles.
+ * Classes which cannot be accessed from their package (private nested classes, inner classes) are skipped.
+ */
+@SupportedAnnotationTypes({"de.caluga.morphium.annotations.Entity", "de.caluga.morphium.annotations.Embedded"})
+public class EntityAccessorProcessor extends AbstractProcessor {
+    private final Set<String> generated = new HashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement a : annotations) {
+            for (TypeElement type : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(a))) {
+                if (type.getKind() != ElementKind.CLASS || !isAccessible(type) || !generated.add(type.getQualifiedName().toString())) {
+                    continue;
+                }
+                try {
+                    generate(type);
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Could not create accessor: " + e.getMessage(), type);
+                }
+            }
+        }
+        //other processors may process the annotations as well
+        return false;
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String name = (pkg.isEmpty() ? binaryName : binaryName.substring(pkg.length() + 1)).replace('$', '_') + EntityAccessor.SUFFIX;
+        String typeName = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+        List<VariableElement> fields = getFields(type, pkg);
+
+        JavaFileObject src = processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? name : pkg + "." + name, type);
+        try (Writer w = src.openWriter()) {
+            if (!pkg.isEmpty()) {
+                w.write("package " + pkg + ";\n\n");
+            }
+            w.write("/**\n * generated by " + getClass().getName() + " - do not edit\n */\n");
+            w.write("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+            w.write("public final class " + name + " implements " + EntityAccessor.class.getName() + "<" + typeName + "> {\n");
+            w.write("    private static final String[] FIELDS = {");
+            for (int i = 0; i < fields.size(); i++) {
+                w.write((i > 0 ? ", " : "") + "\"" + fields.get(i).getSimpleName() + "\"");
+            }
+            w.write("};\n\n");
+
+            w.write("    @Override\n    public " + typeName + " newInstance() {\n");
+            w.write("        return " + (hasConstructor(type) ? "new " + typeName + "()" : "null") + ";\n    }\n\n");
+
+            w.write("    @Override\n    public String[] getFields() {\n        return FIELDS.clone();\n    }\n\n");
+
+            w.write("    @Override\n    public Object get(" + typeName + " o, int field) {\n        switch (field) {\n");
+            for (int i = 0; i < fields.size(); i++) {
+                w.write("            case " + i + ":\n                return o." + fields.get(i).getSimpleName() + ";\n");
+            }
+            w.write("            default:\n                throw new IllegalArgumentException(\"unknown field \" + field);\n        }\n    }\n\n");
+
+            w.write("    @Override\n    public void set(" + typeName + " o, int field, Object value) {\n        switch (field) {\n");
+            for (int i = 0; i < fields.size(); i++) {
+                VariableElement f = fields.get(i);
+                w.write("            case " + i + ":\n                o." + f.getSimpleName() + " = (" + boxedName(f.asType()) + ") value;\n                break;\n");
+            }
+            w.write("            default:\n                throw new IllegalArgumentException(\"unknown field \" + field);\n        }\n    }\n}\n");
+        }
+    }
+
+    /**
+     * fields of the class hierarchy, which can be read and written from the package of the type
+     */
+    private List<VariableElement> getFields(TypeElement type, String pkg) {
+        List<VariableElement> all = new ArrayList<>();
+        TypeElement t = type;
+        while (t != null && !t.getQualifiedName().contentEquals("java.lang.Object")) {
+            all.addAll(ElementFilter.fieldsIn(t.getEnclosedElements()));
+            TypeMirror sup = t.getSuperclass();
+            t = sup.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) sup).asElement() : null;
+        }
+        Map<String, Integer> count = new HashMap<>();
+        for (VariableElement f : all) {
+            count.merge(f.getSimpleName().toString(), 1, Integer::sum);
+        }
+        List<VariableElement> ret = new ArrayList<>();
+        for (VariableElement f : all) {
+            Set<Modifier> mod = f.getModifiers();
+            if (count.get(f.getSimpleName().toString()) > 1 || mod.contains(Modifier.STATIC) || mod.contains(Modifier.FINAL) || mod.contains(Modifier.PRIVATE)) {
+                continue;
+            }
+            TypeElement declaring = (TypeElement) f.getEnclosingElement();
+            boolean samePackage = processingEnv.getElementUtils().getPackageOf(declaring).getQualifiedName().contentEquals(pkg);
+            if (!samePackage && !(mod.contains(Modifier.PUBLIC) && isPublic(declaring))) {
+                continue;
+            }
+            if (!isAccessible(processingEnv.getTypeUtils().erasure(f.asType()), pkg)) {
+                continue;
+            }
+            ret.add(f);
+        }
+        return ret;
+    }
+
+    /**
+     * public no-arg constructor of a public class, the mapper uses the serialization constructor for all others,
+     * which does not run any constructor or field initializer
+     */
+    private boolean hasConstructor(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT) || !isPublic(type)) {
+            return false;
+        }
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (c.getParameters().isEmpty()) {
+                return c.getModifiers().contains(Modifier.PUBLIC);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * top level or static nested classes, not private
+     */
+    private boolean isAccessible(TypeElement type) {
+        Element e = type;
+        while (e instanceof TypeElement) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            Element enclosing = e.getEnclosingElement();
+            if (enclosing instanceof TypeElement && !e.getModifiers().contains(Modifier.STATIC)) {
+                //inner class needs an instance of the outer one
+                return false;
+            }
+            if (!(enclosing instanceof TypeElement) && enclosing.getKind() != ElementKind.PACKAGE) {
+                //local class
+                return false;
+            }
+            e = enclosing;
+        }
+        return true;
+    }
+
+    private boolean isPublic(TypeElement type) {
+        Element e = type;
+        while (e instanceof TypeElement) {
+            if (!e.getModifiers().contains(Modifier.PUBLIC)) {
+                return false;
+            }
+            e = e.getEnclosingElement();
+        }
+        return true;
+    }
+
+    /**
+     * type can be used in a cast in the package
+     */
+    private boolean isAccessible(TypeMirror t, String pkg) {
+        if (t.getKind().isPrimitive()) {
+            return true;
+        }
+        if (t.getKind() == TypeKind.ARRAY) {
+            return isAccessible(((ArrayType) t).getComponentType(), pkg);
+        }
+        if (t.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        TypeElement e = (TypeElement) ((DeclaredType) t).asElement();
+        if (isPublic(e)) {
+            return true;
+        }
+        return isAccessible(e) && processingEnv.getElementUtils().getPackageOf(e).getQualifiedName().contentEquals(pkg);
+    }
+
+    private String boxedName(TypeMirror t) {
+        if (t.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass((javax.lang.model.type.PrimitiveType) t).getQualifiedName().toString();
+        }
+        return processingEnv.getTypeUtils().erasure(t).toString();
+    }
+}
@@ -0,0 +1,424 @@
+package de.caluga.morphium.mapping;
+
+import de.caluga.morphium.driver.bson.MorphiumId;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * Streaming json reader, pulls documents one by one from a String or Reader (e.g. a file with one document per
+ * line, as written by mongoexport) and creates the maps and lists the ObjectMapper expects directly.
+ * <p>
+ * Extended json is converted while reading: <code>{"$oid":...}</code> to MorphiumId, <code>{"$date":...}</code>
+ * (millis, <code>$numberLong</code> or ISO-8601 string) to Date, <code>$numberLong</code>, <code>$numberInt</code>,
+ * <code>$numberDouble</code> to numbers and <code>$binary</code> to byte[].
+ * <p>
+ * Optional TypeHints (created by the ObjectMapperImpl from the mapping of the entity) tell the reader, which type
+ * is expected at a position, so that numbers are created as Integer, Long, Float, Double or Date just as the field
+ * needs them and need not be converted again during unmarshalling. Without hints integral numbers are read as
+ * Integer, if they fit, as Long otherwise.
+ */
+@SuppressWarnings("WeakerAccess")
+public class JsonReader {
+    private final Reader in;
+    private final char[] buf;
+    private int pos;
+    private int limit;
+    private long offset;
+    private final StringBuilder token = new StringBuilder();
+
+    public JsonReader(String json) {
+        in = null;
+        buf = json.toCharArray();
+        limit = buf.length;
+    }
+
+    public JsonReader(Reader in) {
+        this.in = in;
+        buf = new char[8192];
+    }
+
+    /**
+     * @return true, if there is another value to read
+     */
+    public boolean hasNext() throws IOException {
+        return skipWhitespace() != -1;
+    }
+
+    /**
+     * @return position of the next char to read
+     */
+    public long getPosition() {
+        return offset + pos;
+    }
+
+    public Object readValue() throws IOException {
+        return readValue(null);
+    }
+
+    public Object readValue(TypeHints hints) throws IOException {
+        int c = skipWhitespace();
+        switch (c) {
+            case -1:
+                throw error("unexpected end of input");
+            case '{':
+                return readObject(hints);
+            case '[':
+                return readArray(hints == null ? null : hints.getElement());
+            case '"':
+                pos++;
+                return toType(readString(), hints);
+            case 't':
+                readLiteral("true");
+                return Boolean.TRUE;
+            case 'f':
+                readLiteral("false");
+                return Boolean.FALSE;
+            case 'n':
+                readLiteral("null");
+                return null;
+            default:
+                return readNumber(hints);
+        }
+    }
+
+    public Map<String, Object> readDocument() throws IOException {
+        return readDocument(null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> readDocument(TypeHints hints) throws IOException {
+        if (skipWhitespace() != '{') {
+            throw error("document expected");
+        }
+        Object ret = readValue(hints);
+        if (!(ret instanceof Map)) {
+            throw error("document expected, got " + ret);
+        }
+        return (Map<String, Object>) ret;
+    }
+
+    private Object readObject(TypeHints hints) throws IOException {
+        pos++;
+        Map<String, Object> ret = new HashMap<>();
+        boolean extended = false;
+        int c = skipWhitespace();
+        if (c == '}') {
+            pos++;
+            return ret;
+        }
+        while (true) {
+            if (c != '"') {
+                throw error("field name expected");
+            }
+            pos++;
+            String key = readString();
+            if (ret.isEmpty() && key.startsWith("$")) {
+                extended = true;
+            }
+            if (skipWhitespace() != ':') {
+                throw error("':' expected");
+            }
+            pos++;
+            ret.put(key, readValue(hints == null ? null : hints.getField(key)));
+            c = skipWhitespace();
+            pos++;
+            if (c == '}') {
+                break;
+            }
+            if (c != ',') {
+                throw error("',' or '}' expected");
+            }
+            c = skipWhitespace();
+        }
+        return extended ? fromExtendedJson(ret, hints) : ret;
+    }
+
+    private List<Object> readArray(TypeHints elementHints) throws IOException {
+        pos++;
+        List<Object> ret = new ArrayList<>();
+        int c = skipWhitespace();
+        if (c == ']') {
+            pos++;
+            return ret;
+        }
+        while (true) {
+            ret.add(readValue(elementHints));
+            c = skipWhitespace();
+            pos++;
+            if (c == ']') {
+                return ret;
+            }
+            if (c != ',') {
+                throw error("',' or ']' expected");
+            }
+        }
+    }
+
+    private String readString() throws IOException {
+        //fast path: no escapes, string within the buffer
+        for (int i = pos; i < limit; i++) {
+            char c = buf[i];
+            if (c == '"') {
+                String ret = new String(buf, pos, i - pos);
+                pos = i + 1;
+                return ret;
+            }
+            if (c == '\\') {
+                break;
+            }
+        }
+        token.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw error("unterminated string");
+            }
+            if (c == '"') {
+                return token.toString();
+            }
+            if (c != '\\') {
+                token.append((char) c);
+                continue;
+            }
+            c = read();
+            switch (c) {
+                case 'n':
+                    token.append('\n');
+                    break;
+                case 'r':
+                    token.append('\r');
+                    break;
+                case 't':
+                    token.append('\t');
+                    break;
+                case 'b':
+                    token.append('\b');
+                    break;
+                case 'f':
+                    token.append('\f');
+                    break;
+                case 'u':
+                    int v = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int d = Character.digit(read(), 16);
+                        if (d < 0) {
+                            throw error("illegal unicode escape");
+                        }
+                        v = (v << 4) | d;
+                    }
+                    token.append((char) v);
+                    break;
+                case -1:
+                    throw error("unterminated string");
+                default:
+                    //\" \\ \/
+                    token.append((char) c);
+            }
+        }
+    }
+
+    private void readLiteral(String lit) throws IOException {
+        for (int i = 0; i < lit.length(); i++) {
+            if (read() != lit.charAt(i)) {
+                throw error(lit + " expected");
+            }
+        }
+    }
+
+    private Object readNumber(TypeHints hints) throws IOException {
+        token.setLength(0);
+        boolean integral = true;
+        while (true) {
+            int c = peek();
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+') {
+                token.append((char) c);
+            } else if (c == '.' || c == 'e' || c == 'E') {
+                integral = false;
+                token.append((char) c);
+            } else {
+                break;
+            }
+            pos++;
+        }
+        if (token.length() == 0) {
+            throw error("unexpected character '" + (char) peek() + "'");
+        }
+        String s = token.toString();
+        try {
+            Class<?> type = hints == null ? null : hints.getType();
+            if (integral) {
+                long l = Long.parseLong(s);
+                if (type != null) {
+                    Object ret = toType(l, type);
+                    if (ret != null) {
+                        return ret;
+                    }
+                }
+                if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                    return (int) l;
+                }
+                return l;
+            }
+            double d = Double.parseDouble(s);
+            if (type == Float.class || type == float.class) {
+                return (float) d;
+            }
+            return d;
+        } catch (NumberFormatException e) {
+            if (integral) {
+                //exceeds long
+                return Double.parseDouble(s);
+            }
+            throw error("illegal number " + s);
+        }
+    }
+
+    private Object toType(long l, Class<?> type) {
+        if (type == Long.class || type == long.class) {
+            return l;
+        }
+        if ((type == Integer.class || type == int.class) && l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+            return (int) l;
+        }
+        if (type == Double.class || type == double.class) {
+            return (double) l;
+        }
+        if (type == Float.class || type == float.class) {
+            return (float) l;
+        }
+        if (type == Date.class) {
+            return new Date(l);
+        }
+        return null;
+    }
+
+    private Object toType(String s, TypeHints hints) {
+        Class<?> type = hints == null ? null : hints.getType();
+        if (type == MorphiumId.class && s.length() == 24) {
+            try {
+                return new MorphiumId(s);
+            } catch (RuntimeException e) {
+                //no id
+            }
+        } else if (type == Date.class) {
+            try {
+                return Date.from(Instant.parse(s));
+            } catch (DateTimeParseException e) {
+                //no date
+            }
+        }
+        return s;
+    }
+
+    private Object fromExtendedJson(Map<String, Object> m, TypeHints hints) throws IOException {
+        if (m.size() > 2) {
+            return m;
+        }
+        Object v = m.values().iterator().next();
+        if (m.size() == 1) {
+            if (m.containsKey("$oid")) {
+                try {
+                    return new MorphiumId(String.valueOf(v));
+                } catch (RuntimeException e) {
+                    throw error("illegal id " + v);
+                }
+            }
+            if (m.containsKey("$date")) {
+                if (v instanceof Number) {
+                    return new Date(((Number) v).longValue());
+                }
+                try {
+                    return Date.from(Instant.parse(v.toString()));
+                } catch (DateTimeParseException e) {
+                    throw error("illegal date " + v);
+                }
+            }
+            if (m.containsKey("$numberLong")) {
+                return Long.parseLong(v.toString());
+            }
+            if (m.containsKey("$numberInt")) {
+                return Integer.parseInt(v.toString());
+            }
+            if (m.containsKey("$numberDouble")) {
+                Class<?> type = hints == null ? null : hints.getType();
+                double d = Double.parseDouble(v.toString());
+                return type == Float.class || type == float.class ? (Object) (float) d : (Object) d;
+            }
+            if (m.containsKey("$binary") && v instanceof Map) {
+                //canonical format {"$binary":{"base64":..., "subType":...}}
+                return Base64.getDecoder().decode(String.valueOf(((Map) v).get("base64")));
+            }
+        } else if (m.containsKey("$binary") && m.containsKey("$type")) {
+            return Base64.getDecoder().decode(String.valueOf(m.get("$binary")));
+        }
+        return m;
+    }
+
+    private int skipWhitespace() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            pos++;
+        }
+    }
+
+    private int peek() throws IOException {
+        if (pos >= limit && !fill()) {
+            return -1;
+        }
+        return buf[pos];
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c != -1) {
+            pos++;
+        }
+        return c;
+    }
+
+    private boolean fill() throws IOException {
+        if (in == null) {
+            return false;
+        }
+        offset += limit;
+        pos = 0;
+        limit = 0;
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    private IOException error(String msg) {
+        return new IOException(msg + " at position " + getPosition());
+    }
+
+    /**
+     * expected types at one position of the document, see ObjectMapperImpl
+     */
+    public interface TypeHints {
+        /**
+         * @return expected type of a value at this position, null if unknown
+         */
+        Class<?> getType();
+
+        /**
+         * @return hints for the value of the given key, if the value at this position is an object, may be null
+         */
+        TypeHints getField(String key);
+
+        /**
+         * @return hints for the elements, if the value at this position is an array, may be null
+         */
+        TypeHints getElement();
+    }
+}
@@ -0,0 +1,161 @@
+package de.caluga.morphium.mapping;
+
+import de.caluga.morphium.driver.bson.MongoBob;
+import de.caluga.morphium.driver.bson.MorphiumId;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Streaming json writer for marshalled objects: writes maps, lists, arrays and values directly to the output,
+ * without building strings per level. Types json does not know are written as extended json as understood by
+ * the JsonReader and the mongo tools:
+ * <ul>
+ * <li>MorphiumId as <code>{"$oid":"..."}</code></li>
+ * <li>Date as <code>{"$date":millis}</code></li>
+ * <li>byte[] and MongoBob as <code>{"$binary":"base64","$type":"00"}</code></li>
+ * <li>NaN and infinite numbers as <code>{"$numberDouble":"NaN"}</code></li>
+ * </ul>
+ */
+@SuppressWarnings("WeakerAccess")
+public class JsonWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private final Appendable out;
+
+    public JsonWriter(Appendable out) {
+        this.out = out;
+    }
+
+    public static String toJson(Object value) {
+        StringBuilder b = new StringBuilder();
+        try {
+            new JsonWriter(b).write(value);
+        } catch (IOException e) {
+            //not thrown by StringBuilder
+            throw new RuntimeException(e);
+        }
+        return b.toString();
+    }
+
+    public void write(Object value) throws IOException {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Map) {
+            writeMap((Map<?, ?>) value);
+        } else if (value instanceof Iterable) {
+            writeIterable((Iterable<?>) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value.toString());
+        } else if (value instanceof MorphiumId) {
+            out.append("{\"$oid\":\"").append(value.toString()).append("\"}");
+        } else if (value instanceof Date) {
+            out.append("{\"$date\":").append(Long.toString(((Date) value).getTime())).append('}');
+        } else if (value instanceof byte[]) {
+            out.append("{\"$binary\":\"").append(Base64.getEncoder().encodeToString((byte[]) value)).append("\",\"$type\":\"00\"}");
+        } else if (value instanceof MongoBob) {
+            write(((MongoBob) value).getData() == null ? new byte[0] : ((MongoBob) value).getData());
+        } else if (value.getClass().isArray()) {
+            writeArray(value);
+        } else if (value instanceof Enum) {
+            writeString(((Enum) value).name());
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    private void writeMap(Map<?, ?> map) throws IOException {
+        out.append('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            writeString(String.valueOf(e.getKey()));
+            out.append(':');
+            write(e.getValue());
+        }
+        out.append('}');
+    }
+
+    private void writeIterable(Iterable<?> it) throws IOException {
+        out.append('[');
+        Iterator<?> i = it.iterator();
+        while (i.hasNext()) {
+            write(i.next());
+            if (i.hasNext()) {
+                out.append(',');
+            }
+        }
+        out.append(']');
+    }
+
+    private void writeArray(Object arr) throws IOException {
+        out.append('[');
+        int len = Array.getLength(arr);
+        for (int i = 0; i < len; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            write(Array.get(arr, i));
+        }
+        out.append(']');
+    }
+
+    private void writeDouble(double d) throws IOException {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            out.append("{\"$numberDouble\":\"").append(Double.toString(d)).append("\"}");
+        } else {
+            out.append(Double.toString(d));
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        out.append('"');
+        int start = 0;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            out.append(s, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    out.append("\\u").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+            }
+        }
+        out.append(s, start, len);
+        out.append('"');
+    }
+}
@@ -5,6 +5,8 @@ import de.caluga.morphium.Morphium;
 import de.caluga.morphium.ShutdownListener;
 import de.caluga.morphium.async.AsyncOperationCallback;
 import de.caluga.morphium.async.AsyncOperationType;
+import de.caluga.morphium.driver.inmem.InMemoryChangeListener;
+import de.caluga.morphium.driver.inmem.InMemoryDriver;
 import de.caluga.morphium.query.MorphiumIterator;
 import de.caluga.morphium.query.Query;
 
@@ -43,6 +45,11 @@ public class Messaging extends Thread implements ShutdownListener {
     private boolean multithreadded = false;
     private int windowSize = 1000;
 
+    //used to wake up the messaging thread before pause is over
+    private final Object wakeUpMonitor = new Object();
+    private boolean newMessages = false;
+    private InMemoryChangeListener changeListener;
+
 
     /**
      * attaches to the default queue named "msg"
@@ -115,6 +122,26 @@ public class Messaging extends Thread implements ShutdownListener {
 
         listeners = new CopyOnWriteArrayList<>();
         listenerByName = new HashMap<>();
+
+        if (m.getDriver() instanceof InMemoryDriver) {
+            //no need to wait for the next poll, in memory we get notified about new messages
+            changeListener = (db, collection, type, doc) -> {
+                if (type.equals(InMemoryChangeListener.ChangeType.INSERT)) {
+                    wakeUp();
+                }
+            };
+            ((InMemoryDriver) m.getDriver()).addChangeListener(m.getConfig().getDatabase(), getCollectionName(), changeListener);
+        }
+    }
+
+    /**
+     * makes the messaging thread check for new messages immediately instead of waiting for the pause to end
+     */
+    public void wakeUp() {
+        synchronized (wakeUpMonitor) {
+            newMessages = true;
+            wakeUpMonitor.notifyAll();
+        }
     }
 
     public long getMessageCount() {
@@ -179,6 +206,7 @@ public class Messaging extends Thread implements ShutdownListener {
                     if (m == null) {
                         continue; //message was erased
                     }
+                    long received = System.currentTimeMillis();
                     Runnable r = () -> {
                         if (m.getProcessedBy() != null && m.getProcessedBy().contains(id)) {
                             log.fatal("Was already processed - ERROR?");
@@ -189,6 +217,7 @@ public class Messaging extends Thread implements ShutdownListener {
                         if (msg == null) {
                             return; //was deleted
                         }
+                        msg.setReceived(received);
                         if (msg.getProcessedBy() != null && msg.getProcessedBy().contains(id)) {
                             log.info("Was already processed - multithreadding?");
                             return;
@@ -279,7 +308,12 @@ public class Messaging extends Thread implements ShutdownListener {
                 log.error("Unhandled exception " + e.getMessage(), e);
             } finally {
                 try {
-                    sleep(pause);
+                    synchronized (wakeUpMonitor) {
+                        if (!newMessages) {
+                            wakeUpMonitor.wait(pause);
+                        }
+                        newMessages = false;
+                    }
                 } catch (InterruptedException ignored) {
                 }
             }
@@ -292,6 +326,13 @@ public class Messaging extends Thread implements ShutdownListener {
         if (!running) {
             listeners.clear();
             listenerByName.clear();
+            removeChangeListener();
+        }
+    }
+
+    private void removeChangeListener() {
+        if (changeListener != null && morphium.getDriver() instanceof InMemoryDriver) {
+            ((InMemoryDriver) morphium.getDriver()).removeChangeListener(changeListener);
         }
     }
 
@@ -360,7 +401,9 @@ public class Messaging extends Thread implements ShutdownListener {
 
     public void setRunning(boolean running) {
         this.running = running;
-
+        if (!running) {
+            wakeUp();
+        }
     }
 
     public void addMessageListener(MessageListener l) {
@@ -426,6 +469,7 @@ public class Messaging extends Thread implements ShutdownListener {
 
     @Override
     public void onShutdown(Morphium m) {
+        removeChangeListener();
         try {
             if (threadPool != null) {
                 threadPool.shutdownNow();
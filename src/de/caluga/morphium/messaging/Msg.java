@@ -59,6 +59,8 @@ public class Msg {
     private Date deleteAt;
     @Transient
     private Boolean exclusive = null;
+    @Transient
+    private long received;
 
     public Msg() {
         // msgId = UUID.randomUUID().toString();
@@ -210,6 +212,18 @@ public class Msg {
         this.timestamp = timestamp;
     }
 
+    /**
+     * @return local time, when this node read the message, 0 for messages not received by messaging. Not stored,
+     * unlike the timestamp it does not depend on the clock of the sender
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    public void setReceived(long received) {
+        this.received = received;
+    }
+
     public List<String> getProcessedBy() {
         return processedBy;
     }
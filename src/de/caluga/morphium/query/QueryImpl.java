@@ -3,6 +3,7 @@ package de.caluga.morphium.query;
 import de.caluga.morphium.*;
 import de.caluga.morphium.annotations.*;
 import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.cache.CacheKey;
 import de.caluga.morphium.async.AsyncOperationCallback;
 import de.caluga.morphium.async.AsyncOperationType;
 import de.caluga.morphium.driver.MorphiumDriverException;
@@ -11,6 +12,8 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.stream.Collectors;
 
@@ -23,6 +26,10 @@ import java.util.stream.Collectors;
 @SuppressWarnings("WeakerAccess")
 public class QueryImpl<T> implements Query<T>, Cloneable {
     private static final Logger log = new Logger(Query.class);
+    /**
+     * documents unmarshalled sequentially to estimate the cost of a result
+     */
+    private static final int PARALLEL_SAMPLE_SIZE = 32;
     private String where;
     private Class<? extends T> type;
     private List<FilterExpression> andExpr;
@@ -36,6 +43,8 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
     private ThreadPoolExecutor executor;
     private String collectionName;
     private String srv = null;
+    //set for snapshots only
+    private Map<String, Object> queryObject;
 
     private Map<String, Object> fieldList;
 
@@ -192,11 +201,19 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
     public List<T> complexQuery(Map<String, Object> query, Map<String, Integer> sort, int skip, int limit) {
         Cache ca = getARHelper().getAnnotationFromHierarchy(type, Cache.class); //type.getAnnotation(Cache.class);
         boolean useCache = ca != null && ca.readCache() && morphium.isReadCacheEnabledForThread();
-        String ck = morphium.getCache().getCacheKey(query, sort, getCollectionName(), skip, limit);
-        if (useCache && morphium.getCache().isCached(type, ck)) {
-            return morphium.getCache().getFromCache(type, ck);
+        if (useCache) {
+            CacheKey ck = morphium.getCache().createCacheKey(query, sort, getCollectionName(), skip, limit);
+            QueryImpl<T> q = snapshot();
+            List<T> ret = morphium.getCache().getFromCache(type, ck, () -> q.loadComplexQuery(query, sort, skip, limit));
+            if (q.srv != null) {
+                srv = q.srv;
+            }
+            return ret;
         }
+        return loadComplexQuery(query, sort, skip, limit);
+    }
 
+    private List<T> loadComplexQuery(Map<String, Object> query, Map<String, Integer> sort, int skip, int limit) {
         long start = System.currentTimeMillis();
         Map<String, Object> lst = getFieldListForQuery();
 
@@ -210,17 +227,9 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
             //TODO: Implement Handling
             throw new RuntimeException(e);
         }
-        for (Map<String, Object> in : obj) {
-            T unmarshall = morphium.getMapper().unmarshall(type, in);
-            if (unmarshall != null) {
-                ret.add(unmarshall);
-            }
-        }
+        ret.addAll(unmarshallResult(obj));
         srv = (String) findMetaData.get("server");
         morphium.fireProfilingReadEvent(this, System.currentTimeMillis() - start, ReadAccessType.AS_LIST);
-        if (useCache) {
-            morphium.getCache().addToCache(ck, type, ret);
-        }
         return ret;
     }
 
@@ -527,6 +536,9 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
 
     @Override
     public Map<String, Object> toQueryObject() {
+        if (queryObject != null) {
+            return new HashMap<>(queryObject);
+        }
         Map<String, Object> o = new HashMap<>();
         List<Map<String, Object>> lst = new ArrayList<>();
         boolean onlyAnd = orQueries.isEmpty() && norQueries.isEmpty() && where == null;
@@ -621,17 +633,26 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         Cache c = getARHelper().getAnnotationFromHierarchy(type, Cache.class); //type.getAnnotation(Cache.class);
         boolean useCache = c != null && c.readCache() && morphium.isReadCacheEnabledForThread();
 
-        String ck = morphium.getCache().getCacheKey(this);
         if (useCache) {
+            QueryImpl<T> q = snapshot();
+            CacheKey ck = morphium.getCache().createCacheKey(q);
             if (morphium.getCache().isCached(type, ck)) {
                 morphium.inc(StatisticKeys.CHITS);
-                return morphium.getCache().getFromCache(type, ck);
+            } else {
+                morphium.inc(StatisticKeys.CMISS);
             }
-            morphium.inc(StatisticKeys.CMISS);
-        } else {
-            morphium.inc(StatisticKeys.NO_CACHED_READS);
-
+            //concurrent misses wait for the same load
+            List<T> ret = morphium.getCache().getFromCache(type, ck, q::loadList);
+            if (q.srv != null) {
+                srv = q.srv;
+            }
+            return ret;
         }
+        morphium.inc(StatisticKeys.NO_CACHED_READS);
+        return loadList();
+    }
+
+    private List<T> loadList() {
         long start = System.currentTimeMillis();
 
         Map<String, Object> lst = getFieldListForQuery();
@@ -646,15 +667,11 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
             srv = (String) findMetaData.get("server");
 
 
-            for (Map<String, Object> o : query) {
-                T unmarshall = morphium.getMapper().unmarshall(type, o);
-                if (unmarshall != null) {
-                    ret.add(unmarshall);
-                    updateLastAccess(unmarshall);
-                    morphium.firePostLoadEvent(unmarshall);
-                }
-
-
+            //callbacks in the calling thread, in result order
+            for (T unmarshall : unmarshallResult(query)) {
+                ret.add(unmarshall);
+                updateLastAccess(unmarshall);
+                morphium.firePostLoadEvent(unmarshall);
             }
 
         } catch (Exception e) {
@@ -662,14 +679,77 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
 
         }
         morphium.fireProfilingReadEvent(this, System.currentTimeMillis() - start, ReadAccessType.AS_LIST);
+        morphium.firePostLoad(ret);
+        return ret;
+    }
 
-        if (useCache) {
-            morphium.getCache().addToCache(ck, type, ret);
+    /**
+     * unmarshalls the documents in order, skipping those which cannot be unmarshalled. Large results are unmarshalled
+     * in parallel in the common ForkJoinPool, if parallelUnmarshallingThreshold is set and the time needed, estimated
+     * from the first documents, is at least parallelUnmarshallingMinTime. Types with references anywhere in their
+     * mapped type graph are always unmarshalled in the calling thread, as de-referencing depends on thread local settings.
+     */
+    @SuppressWarnings("unchecked")
+    private List<T> unmarshallResult(List<Map<String, Object>> docs) {
+        Object[] res = new Object[docs.size()];
+        int done = 0;
+        int threshold = morphium.getConfig().getParallelUnmarshallingThreshold();
+        if (threshold > 0 && docs.size() >= threshold && docs.size() > PARALLEL_SAMPLE_SIZE * 2
+                && ForkJoinPool.getCommonPoolParallelism() > 1 && !getARHelper().hasReferences(type)) {
+            //first one is not measured, it might create the mapping plan
+            res[0] = morphium.getMapper().unmarshall(type, docs.get(0));
+            long start = System.nanoTime();
+            for (done = 1; done <= PARALLEL_SAMPLE_SIZE; done++) {
+                res[done] = morphium.getMapper().unmarshall(type, docs.get(done));
+            }
+            long estimated = (System.nanoTime() - start) / PARALLEL_SAMPLE_SIZE * (docs.size() - done);
+            if (estimated >= morphium.getConfig().getParallelUnmarshallingMinTime() * 1000000L) {
+                int chunk = Math.max(PARALLEL_SAMPLE_SIZE, (docs.size() - done) / (ForkJoinPool.getCommonPoolParallelism() * 4));
+                ForkJoinPool.commonPool().invoke(new UnmarshallTask(docs, res, done, docs.size(), chunk));
+                done = docs.size();
+            }
+        }
+        for (int i = done; i < docs.size(); i++) {
+            res[i] = morphium.getMapper().unmarshall(type, docs.get(i));
+        }
+        List<T> ret = new ArrayList<>(docs.size());
+        for (Object o : res) {
+            if (o != null) {
+                ret.add((T) o);
+            }
         }
-        morphium.firePostLoad(ret);
         return ret;
     }
 
+    private class UnmarshallTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<Map<String, Object>> docs;
+        private final Object[] res;
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        UnmarshallTask(List<Map<String, Object>> docs, Object[] res, int from, int to, int chunk) {
+            this.docs = docs;
+            this.res = res;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                for (int i = from; i < to; i++) {
+                    res[i] = morphium.getMapper().unmarshall(type, docs.get(i));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new UnmarshallTask(docs, res, from, mid, chunk), new UnmarshallTask(docs, res, mid, to, chunk));
+        }
+    }
+
     @Override
     public MorphiumIterator<T> asIterable() {
         MorphiumDriverIterator<T> it = new MorphiumDriverIterator<>();
@@ -826,23 +906,31 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
     public T get() {
         Cache c = getARHelper().getAnnotationFromHierarchy(type, Cache.class); //type.getAnnotation(Cache.class);
         boolean useCache = c != null && c.readCache() && morphium.isReadCacheEnabledForThread();
-        String ck = morphium.getCache().getCacheKey(this);
         morphium.inc(StatisticKeys.READS);
+        List<T> lst;
         if (useCache) {
+            QueryImpl<T> q = snapshot();
+            CacheKey ck = morphium.getCache().createCacheKey(q);
             if (morphium.getCache().isCached(type, ck)) {
                 morphium.inc(StatisticKeys.CHITS);
-                List<T> lst = morphium.getCache().getFromCache(type, ck);
-                if (lst == null || lst.isEmpty()) {
-                    return null;
-                } else {
-                    return lst.get(0);
-                }
-
+            } else {
+                morphium.inc(StatisticKeys.CMISS);
+            }
+            lst = morphium.getCache().getFromCache(type, ck, q::loadFirst);
+            if (q.srv != null) {
+                srv = q.srv;
             }
-            morphium.inc(StatisticKeys.CMISS);
         } else {
             morphium.inc(StatisticKeys.NO_CACHED_READS);
+            lst = loadFirst();
+        }
+        if (lst == null || lst.isEmpty()) {
+            return null;
         }
+        return lst.get(0);
+    }
+
+    private List<T> loadFirst() {
         long start = System.currentTimeMillis();
         Map<String, Object> fl = getFieldListForQuery();
 
@@ -855,18 +943,14 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
             throw new RuntimeException(e);
         }
 
+        List<T> lst = new ArrayList<>(1);
         if (srch.isEmpty()) {
-            List<T> lst = new ArrayList<>(0);
-            if (useCache) {
-                morphium.getCache().addToCache(ck, type, lst);
-            }
-            return null;
+            return lst;
         }
 
         Map<String, Object> ret;
         ret = srch.get(0);
         srv = (String) findMetaData.get("server");
-        List<T> lst = new ArrayList<>(1);
         long dur = System.currentTimeMillis() - start;
         morphium.fireProfilingReadEvent(this, dur, ReadAccessType.GET);
 
@@ -875,19 +959,10 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
             if (unmarshall != null) {
                 morphium.firePostLoadEvent(unmarshall);
                 updateLastAccess(unmarshall);
-
                 lst.add(unmarshall);
-                if (useCache) {
-                    morphium.getCache().addToCache(ck, type, lst);
-                }
             }
-            return unmarshall;
-        }
-
-        if (useCache) {
-            morphium.getCache().addToCache(ck, type, lst);
         }
-        return null;
+        return lst;
     }
 
     @Override
@@ -912,22 +987,29 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
     public <R> List<R> idList() {
         Cache c = getARHelper().getAnnotationFromHierarchy(type, Cache.class);//type.getAnnotation(Cache.class);
         boolean useCache = c != null && c.readCache() && morphium.isReadCacheEnabledForThread();
-        List<R> ret = new ArrayList<>();
-        String ck = morphium.getCache().getCacheKey(this);
-        ck += " idlist";
         morphium.inc(StatisticKeys.READS);
         if (useCache) {
-
+            QueryImpl<T> q = snapshot();
+            CacheKey ck = morphium.getCache().createCacheKey(q).toIdListKey();
             if (morphium.getCache().isCached(type, ck)) {
                 morphium.inc(StatisticKeys.CHITS);
-                //casts are not nice... any idea how to change that?
-                //noinspection unchecked
-                return (List<R>) morphium.getCache().getFromCache(type, ck);
+            } else {
+                morphium.inc(StatisticKeys.CMISS);
             }
-            morphium.inc(StatisticKeys.CMISS);
-        } else {
-            morphium.inc(StatisticKeys.NO_CACHED_READS);
+            //casts are not nice... any idea how to change that?
+            //noinspection unchecked
+            List<R> ret = morphium.getCache().getFromCache((Class<? extends R>) type, ck, q::loadIdList);
+            if (q.srv != null) {
+                srv = q.srv;
+            }
+            return ret;
         }
+        morphium.inc(StatisticKeys.NO_CACHED_READS);
+        return loadIdList();
+    }
+
+    private <R> List<R> loadIdList() {
+        List<R> ret = new ArrayList<>();
         long start = System.currentTimeMillis();
         //        DBCollection collection = morphium.getDatabase().getCollection(getCollectionName());
         //        setReadPreferenceFor(collection);
@@ -947,10 +1029,34 @@ public class QueryImpl<T> implements Query<T>, Cloneable {
         srv = (String) findMetadata.get("server");
         long dur = System.currentTimeMillis() - start;
         morphium.fireProfilingReadEvent(this, dur, ReadAccessType.ID_LIST);
-        if (useCache) {
-            //noinspection unchecked
-            morphium.getCache().addToCache(ck, (Class<? extends R>) type, ret);
+        return ret;
+    }
+
+    /**
+     * @return a copy of this query, used for loading the result later on (e.g. when the cache refreshes the entry in
+     * background). Changes to this query do not affect the copy, loading does not change the server of this query
+     */
+    @SuppressWarnings("unchecked")
+    private QueryImpl<T> snapshot() {
+        QueryImpl<T> ret;
+        try {
+            ret = (QueryImpl<T>) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+        ret.queryObject = toQueryObject();
+        ret.collectionName = getCollectionName();
+        if (sort != null) {
+            //order of sort fields matters
+            ret.sort = new LinkedHashMap<>(sort);
+        }
+        if (fieldList != null) {
+            ret.fieldList = new HashMap<>(fieldList);
+        }
+        if (additionalFields != null) {
+            ret.additionalFields = new HashMap<>(additionalFields);
         }
+        ret.srv = null;
         return ret;
     }
 
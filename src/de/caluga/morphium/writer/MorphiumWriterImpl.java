@@ -2,6 +2,7 @@ package de.caluga.morphium.writer;
 
 import de.caluga.morphium.*;
 import de.caluga.morphium.annotations.*;
+import de.caluga.morphium.annotations.caching.Cache;
 import de.caluga.morphium.async.AsyncOperationCallback;
 import de.caluga.morphium.async.AsyncOperationType;
 import de.caluga.morphium.driver.MorphiumDriverException;
@@ -198,7 +199,7 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                         }
                     }
 
-                    morphium.getCache().clearCacheIfNecessary(o.getClass());
+                    clearCacheIfNecessary(o, marshall);
                     morphium.firePostStore(o, isNew);
                     if (callback != null) {
                         callback.onOperationSucceeded(AsyncOperationType.WRITE, null, System.currentTimeMillis() - start, null, obj);
@@ -660,6 +661,38 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
         }
     }
 
+    /**
+     * removes only cached results, which might be affected by writing this entity. Before image is taken from id cache,
+     * if it holds a different instance
+     *
+     * @param entity - the entity written
+     * @param after  - the marshalled entity as written, null if deleted
+     */
+    private void clearCacheIfNecessary(Object entity, Map<String, Object> after) {
+        Class<?> cls = morphium.getARHelper().getRealClass(entity.getClass());
+        Object id = morphium.getARHelper().getId(entity);
+        Object cached = id == null ? null : morphium.getCache().getFromIDCache(cls, id);
+        Map<String, Object> before = null;
+        if (cached != null && cached != entity) {
+            before = morphium.getMapper().marshall(cached);
+        }
+        morphium.getCache().updateCacheEntry(cls, id, entity, before, after);
+    }
+
+    /**
+     * after set or inc of a single entity: types with SyncCacheStrategy.UPDATE_ENTRY are updated in cache with the
+     * changed entity, others are cleared as usual
+     */
+    private void updateCacheIfNecessary(Object entity) {
+        Class<?> cls = morphium.getARHelper().getRealClass(entity.getClass());
+        Cache c = morphium.getARHelper().getAnnotationFromHierarchy(cls, Cache.class);
+        if (c != null && c.syncCache() == Cache.SyncCacheStrategy.UPDATE_ENTRY) {
+            clearCacheIfNecessary(entity, morphium.getMapper().marshall(entity));
+        } else {
+            morphium.getCache().clearCacheIfNecessary(cls);
+        }
+    }
+
     private String getDbName() {
         return morphium.getConfig().getDatabase();
     }
@@ -740,12 +773,16 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                     morphium.getDriver().update(getDbName(), collection, query, update, multiple, upsert, wc);
                     long dur = System.currentTimeMillis() - start;
                     morphium.fireProfilingWriteEvent(cls, update, dur, false, WriteAccessType.SINGLE_UPDATE);
-                    morphium.getCache().clearCacheIfNecessary(cls);
                     try {
                         f.set(toSet, value);
                     } catch (IllegalAccessException e) {
                         throw new RuntimeException(e);
                     }
+                    if (multiple || upsert) {
+                        morphium.getCache().clearCacheIfNecessary(cls);
+                    } else {
+                        updateCacheIfNecessary(toSet);
+                    }
                     if (callback != null) {
                         callback.onOperationSucceeded(AsyncOperationType.SET, null, System.currentTimeMillis() - start, null, toSet, field, v);
                     }
@@ -1030,7 +1067,12 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                     morphium.getDriver().delete(getDbName(), collection, db, false, wc);
                     long dur = System.currentTimeMillis() - start;
                     morphium.fireProfilingWriteEvent(o.getClass(), o, dur, false, WriteAccessType.SINGLE_DELETE);
-                    morphium.clearCachefor(o.getClass());
+                    Cache c = morphium.getARHelper().getAnnotationFromHierarchy(o.getClass(), Cache.class);
+                    if (c != null && c.clearOnWrite()) {
+                        clearCacheIfNecessary(o, null);
+                    } else {
+                        morphium.clearCachefor(o.getClass());
+                    }
                     morphium.inc(StatisticKeys.WRITES);
                     morphium.firePostRemoveEvent(o);
                     if (callback != null) {
@@ -1094,8 +1136,7 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                     }
                     morphium.getDriver().update(getDbName(), coll, query, update, false, false, wc);
 
-                    morphium.getCache().clearCacheIfNecessary(cls);
-
+                    boolean incremented = true;
                     if (f.getType().equals(Integer.class) || f.getType().equals(int.class)) {
                         try {
                             f.set(toInc, ((Integer) f.get(toInc)) + amount.intValue());
@@ -1122,6 +1163,12 @@ public class MorphiumWriterImpl implements MorphiumWriter, ShutdownListener {
                         }
                     } else {
                         logger.error("Could not set increased value - unsupported type " + cls.getName());
+                        incremented = false;
+                    }
+                    if (incremented) {
+                        updateCacheIfNecessary(toInc);
+                    } else {
+                        morphium.getCache().clearCacheIfNecessary(cls);
                     }
                     morphium.firePostUpdateEvent(morphium.getARHelper().getRealClass(cls), MorphiumStorageListener.UpdateTypes.INC);
                     morphium.fireProfilingWriteEvent(toInc.getClass(), toInc, System.currentTimeMillis() - start, false, WriteAccessType.SINGLE_UPDATE);
@@ -7,6 +7,7 @@ import de.caluga.morphium.annotations.SafetyLevel;
 import de.caluga.morphium.annotations.WriteSafety;
 import de.caluga.morphium.annotations.caching.Cache;
 import de.caluga.morphium.annotations.caching.WriteBuffer;
+import de.caluga.morphium.cache.CacheSyncAdapter;
 import de.caluga.morphium.cache.CacheSyncListener;
 import de.caluga.morphium.cache.CacheSyncVetoException;
 import de.caluga.morphium.cache.CacheSynchronizer;
@@ -17,6 +18,11 @@ import de.caluga.morphium.query.Query;
 import de.caluga.test.mongo.suite.data.CachedObject;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * User: Stephan Bösebeck
  * Date: 12.06.12
@@ -50,6 +56,78 @@ public class CacheSyncTest extends MongoTest {
         cs.detach();
     }
 
+    @Test
+    public void coalesceClearMsgTest() throws Exception {
+        morphium.dropCollection(Msg.class);
+        Messaging msg = new Messaging(morphium, 100, true);
+        msg.start();
+        CacheSynchronizer cs = new CacheSynchronizer(msg, morphium);
+        cs.setCoalesceWindow(1000);
+
+        for (int i = 0; i < 100; i++) {
+            cs.sendClearMessage(CachedObject.class, "test " + i);
+        }
+        cs.sendClearMessage(IdCachedObject.class, "test");
+        Query<Msg> q = morphium.createQueryFor(Msg.class);
+        assert (q.countAll() == 0) : "messages sent before window is over";
+        Thread.sleep(2000);
+        waitForWrites();
+        long cnt = q.countAll();
+        assert (cnt == 2) : "there should be one msg per type, there are " + cnt;
+        msg.setRunning(false);
+        cs.detach();
+    }
+
+    @Test
+    public void updateEntryWithDocumentTest() throws Exception {
+        morphium.dropCollection(Msg.class);
+        morphium.dropCollection(IdCachedObject.class);
+        Messaging msg = new Messaging(morphium, 100, true);
+        CacheSynchronizer sender = new CacheSynchronizer(msg, morphium);
+        CacheSynchronizer receiver = new CacheSynchronizer(msg, morphium);
+        List<Msg> sent = new ArrayList<>();
+        sender.addSyncListener(new CacheSyncAdapter() {
+            @Override
+            public void postSendClearMsg(Class cls, Msg m) {
+                sent.add(m);
+            }
+        });
+        IdCachedObject o = new IdCachedObject();
+        o.setCounter(1);
+        o.setValue("a value");
+        morphium.store(o);
+        waitForWrites();
+        Thread.sleep(1500);
+        List<IdCachedObject> cached = morphium.createQueryFor(IdCachedObject.class).f("counter").lt(10).asList();
+        assert (cached.size() == 1);
+
+        //another node changed it
+        IdCachedObject changed = new IdCachedObject();
+        //written buffered, id is set on the stored instance
+        changed.setId(cached.get(0).getId());
+        changed.setCounter(2);
+        changed.setValue("changed");
+        Map<Object, Boolean> written = new HashMap<>();
+        written.put(changed, false);
+        sender.sendClearMessage("store", written);
+        Msg m = sent.get(sent.size() - 1);
+        assert (m.getMapValue().size() == 1);
+
+        receiver.onMessage(msg, m);
+        List<IdCachedObject> lst = morphium.createQueryFor(IdCachedObject.class).f("counter").lt(10).asList();
+        assert (lst.get(0).getValue().equals("changed")) : "not updated from message: " + lst.get(0).getValue();
+
+        changed.setValue("changed again");
+        sender.sendClearMessage("store", written);
+        receiver.onMessage(msg, sent.get(sent.size() - 1));
+        //older version of the same sender arriving late is ignored
+        receiver.onMessage(msg, m);
+        lst = morphium.createQueryFor(IdCachedObject.class).f("counter").lt(10).asList();
+        assert (lst.get(0).getValue().equals("changed again")) : "older version applied: " + lst.get(0).getValue();
+        sender.detach();
+        receiver.detach();
+    }
+
     @Test
     public void removeFromCacheTest() throws Exception {
         for (int i = 0; i < 100; i++) {
@@ -1,15 +1,19 @@
 package de.caluga.test.mongo.suite;
 
+import de.caluga.morphium.BinarySerializedObject;
+import de.caluga.morphium.ObjectSerializer;
 import de.caluga.morphium.annotations.Entity;
 import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.driver.bson.MongoBob;
 import de.caluga.morphium.driver.bson.MorphiumId;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by stephan on 18.11.14.
@@ -94,6 +98,64 @@ public class NonEntitySerialization extends MongoTest {
         assert (ne2.getInteger() == 42);
     }
 
+    @Test
+    public void testBinaryStorage() throws Exception {
+        NonEntity ne = new NonEntity();
+        ne.setInteger(42);
+        ne.setValue("Thank you for the fish");
+
+        Map<String, Object> obj = morphium.getMapper().marshall(ne);
+        assert (obj.get(BinarySerializedObject.DATA_FIELD) instanceof MongoBob) : obj;
+        NonEntity ne2 = morphium.getMapper().unmarshall(NonEntity.class, obj);
+        assert (ne2.getValue().equals(ne.getValue()));
+
+        //base64 format of older versions
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oout = new ObjectOutputStream(out)) {
+            oout.writeObject(ne);
+        }
+        Map<String, Object> old = new HashMap<>();
+        old.put("_b64data", Base64.getMimeEncoder().encodeToString(out.toByteArray()));
+        old.put("original_class_name", NonEntity.class.getName());
+        ne2 = morphium.getMapper().unmarshall(NonEntity.class, old);
+        assert (ne2.getInteger() == 42);
+
+        //and via the official driver the binary comes back as byte[]
+        obj.put(BinarySerializedObject.DATA_FIELD, ((MongoBob) obj.get(BinarySerializedObject.DATA_FIELD)).getData());
+        ne2 = morphium.getMapper().unmarshall(NonEntity.class, obj);
+        assert (ne2.getInteger() == 42);
+    }
+
+    @Test
+    public void testCustomSerializer() throws Exception {
+        ObjectSerializer def = morphium.getConfig().getObjectSerializer();
+        AtomicInteger calls = new AtomicInteger();
+        morphium.getConfig().setObjectSerializer(new ObjectSerializer() {
+            @Override
+            public byte[] serialize(Object o) throws IOException {
+                calls.incrementAndGet();
+                return def.serialize(o);
+            }
+
+            @Override
+            public Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+                calls.incrementAndGet();
+                return def.deserialize(data);
+            }
+        });
+        try {
+            NonEntityContainer nc = new NonEntityContainer();
+            nc.setList(new ArrayList<>());
+            NonEntity ne = new NonEntity();
+            ne.setInteger(42);
+            nc.getList().add(ne);
+            NonEntityContainer nc2 = morphium.getMapper().unmarshall(NonEntityContainer.class, morphium.getMapper().marshall(nc));
+            assert (((NonEntity) nc2.getList().get(0)).getInteger() == 42);
+            assert (calls.get() == 2);
+        } finally {
+            morphium.getConfig().setObjectSerializer(def);
+        }
+    }
 
     @Entity
     public static class NonEntityContainer {
@@ -1,20 +1,26 @@
 package de.caluga.test.mongo.suite;
 
 import de.caluga.morphium.AnnotationAndReflectionHelper;
+import de.caluga.morphium.LazyUnmarshallingProxy;
 import de.caluga.morphium.ObjectMapper;
 import de.caluga.morphium.ObjectMapperImpl;
 import de.caluga.morphium.Utils;
 import de.caluga.morphium.annotations.Entity;
 import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.annotations.LazyUnmarshalling;
 import de.caluga.morphium.driver.bson.MorphiumId;
 import de.caluga.test.mongo.suite.data.CachedObject;
 import de.caluga.test.mongo.suite.data.EmbeddedObject;
 import de.caluga.test.mongo.suite.data.MapListObject;
+import de.caluga.test.mongo.suite.data.Person;
 import de.caluga.test.mongo.suite.data.UncachedObject;
 import org.junit.Test;
 
+import java.io.StringReader;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -525,6 +531,162 @@ public class ObjectMapperTest extends MongoTest {
         assert (o.getValue().equals("test"));
     }
 
+    @Test
+    public void typeConversionTest() throws Exception {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("counter", 42L);
+        doc.put("dval", 7);
+        doc.put("value", "a value");
+        UncachedObject o = morphium.getMapper().unmarshall(UncachedObject.class, doc);
+        assert (o.getCounter() == 42);
+        assert (o.getDval() == 7.0);
+        assert (o.getValue().equals("a value"));
+
+        //null does not overwrite primitives
+        doc.put("counter", null);
+        o = morphium.getMapper().unmarshall(UncachedObject.class, doc);
+        assert (o.getCounter() == 0);
+    }
+
+    @Test
+    public void typedCollectionsTest() throws Exception {
+        ObjectMapper m = morphium.getMapper();
+        CollectionsObject o = new CollectionsObject();
+        o.strings = new ArrayList<>();
+        o.strings.add("a");
+        o.strings.add(null);
+        o.longLists = new ArrayList<>();
+        List<Long> l = new ArrayList<>();
+        l.add(1L);
+        l.add(2L);
+        o.longLists.add(l);
+        EmbeddedObject eo = new EmbeddedObject();
+        eo.setName("name");
+        eo.setValue("value");
+        o.embeddedList = new ArrayList<>();
+        o.embeddedList.add(eo);
+        o.embeddedMap = new HashMap<>();
+        o.embeddedMap.put("key", eo);
+        o.doubles = new double[]{1.5, 2.5};
+        o.longs = new long[]{42L, 43L};
+
+        Map<String, Object> dbo = m.marshall(o);
+        assert (((List) dbo.get("doubles")).get(1).equals(2.5));
+        assert (((Map) ((List) dbo.get("embedded_list")).get(0)).get("class_name").equals(EmbeddedObject.class.getName()));
+
+        CollectionsObject back = m.unmarshall(CollectionsObject.class, dbo);
+        assert (back.strings.size() == 2 && back.strings.get(0).equals("a") && back.strings.get(1) == null);
+        assert (back.longLists.get(0).get(1) == 2L);
+        assert (back.embeddedList.get(0).equals(eo));
+        assert (back.embeddedMap.get("key").equals(eo));
+        assert (back.doubles.length == 2 && back.doubles[1] == 2.5);
+        assert (back.longs[0] == 42L);
+
+        //values not matching the element type are converted as before
+        List<Object> ints = new ArrayList<>();
+        ints.add(1);
+        ints.add(2.0);
+        dbo.put("longs", ints);
+        back = m.unmarshall(CollectionsObject.class, dbo);
+        assert (back.longs[0] == 1L && back.longs[1] == 2L);
+    }
+
+    @Test
+    public void projectionTest() throws Exception {
+        UncachedObject o = new UncachedObject();
+        o.setCounter(12);
+        o.setValue("value");
+        o.setDval(1.5);
+        Map<String, Object> dbo = morphium.getMapper().marshall(o);
+        dbo.remove("dval");
+        dbo.remove("counter");
+
+        UncachedObject back = morphium.getMapper().unmarshall(UncachedObject.class, dbo);
+        assert (back.getValue().equals("value"));
+        assert (back.getCounter() == 0);
+        assert (back.getDval() == 0);
+    }
+
+    @Test
+    public void lazyUnmarshallingTest() throws Exception {
+        LazyObject o = new LazyObject();
+        o.setName("lazy");
+        List<EmbeddedObject> lst = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            EmbeddedObject eo = new EmbeddedObject();
+            eo.setName("n" + i);
+            eo.setValue("v" + i);
+            lst.add(eo);
+        }
+        o.setHeavy(lst);
+        Map<String, Object> dbo = morphium.getMapper().marshall(o);
+
+        LazyObject back = morphium.getMapper().unmarshall(LazyObject.class, dbo);
+        LazyObject real = (LazyObject) LazyUnmarshallingProxy.getUnmarshalledPart(back);
+        assert (real != null) : "not a proxy";
+        assert (real != back);
+        assert (real.heavy == null);
+        assert (back.getName().equals("lazy"));
+        //other getters do not unmarshall the lazy field
+        assert (real.heavy == null);
+        assert (back.getHeavy().size() == 10);
+        assert (real.heavy != null);
+        assert (back.getHeavy().get(9).getName().equals("n9"));
+
+        //storing needs all fields
+        back = morphium.getMapper().unmarshall(LazyObject.class, dbo);
+        Map<String, Object> again = morphium.getMapper().marshall(back);
+        assert (((List) again.get("heavy")).size() == 10);
+    }
+
+    @Test
+    public void jsonTest() throws Exception {
+        ObjectMapper om = morphium.getMapper();
+        UncachedObject o = new UncachedObject();
+        o.setMorphiumId(new MorphiumId());
+        o.setValue("a \"quoted\"\n\ttest \\ with ünicode");
+        o.setCounter(42);
+        o.setDval(1.5);
+        o.setLongData(new long[]{1, Long.MAX_VALUE});
+        o.setFloatData(new float[]{1.5f, 2});
+        o.setBinaryData(new byte[]{1, 2, 3});
+
+        String json = om.toJson(o);
+        assert (json.contains("{\"$oid\":\"" + o.getMorphiumId() + "\"}")) : json;
+        UncachedObject back = om.unmarshall(UncachedObject.class, json);
+        assert (back.getMorphiumId().equals(o.getMorphiumId()));
+        assert (back.getValue().equals(o.getValue()));
+        assert (back.getCounter() == 42);
+        assert (back.getDval() == 1.5);
+        assert (back.getLongData()[1] == Long.MAX_VALUE);
+        assert (back.getFloatData()[1] == 2f);
+        assert (back.getBinaryData().length == 3 && back.getBinaryData()[2] == 3);
+
+        Person p = new Person();
+        p.setId("p1");
+        p.setName("name");
+        p.setBirthday(new Date(1234567890L));
+        json = om.toJson(p);
+        assert (json.contains("{\"$date\":1234567890}")) : json;
+        assert (om.unmarshall(Person.class, json).getBirthday().getTime() == 1234567890L);
+        //mongo shell format
+        Person p2 = om.unmarshall(Person.class, "{\"_id\":\"p2\", \"birthday\":{\"$date\":\"1970-01-15T06:56:07.890Z\"}}");
+        assert (p2.getBirthday().getTime() == 1234567890L);
+
+        CollectionsObject co = new CollectionsObject();
+        co.longLists = new ArrayList<>();
+        co.longLists.add(Arrays.asList(1L, 2L));
+        co.embeddedMap = new HashMap<>();
+        EmbeddedObject eo = new EmbeddedObject();
+        eo.setName("e");
+        co.embeddedMap.put("k", eo);
+        StringBuilder out = new StringBuilder();
+        om.writeJson(co, out);
+        CollectionsObject coBack = om.unmarshall(CollectionsObject.class, new StringReader(out.toString()));
+        assert (coBack.longLists.get(0).get(1).equals(2L));
+        assert (coBack.embeddedMap.get("k").getName().equals("e"));
+    }
+
     @Test
     public void mapTest() throws Exception {
         ObjectMapper m = morphium.getMapper();
@@ -558,6 +720,43 @@ public class ObjectMapperTest extends MongoTest {
     }
 
 
+    @Entity
+    public static class CollectionsObject {
+        @Id
+        public MorphiumId id;
+        public List<String> strings;
+        public List<List<Long>> longLists;
+        public List<EmbeddedObject> embeddedList;
+        public Map<String, EmbeddedObject> embeddedMap;
+        public double[] doubles;
+        public long[] longs;
+    }
+
+    @Entity
+    public static class LazyObject {
+        @Id
+        private MorphiumId id;
+        private String name;
+        @LazyUnmarshalling
+        private List<EmbeddedObject> heavy;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public List<EmbeddedObject> getHeavy() {
+            return heavy;
+        }
+
+        public void setHeavy(List<EmbeddedObject> heavy) {
+            this.heavy = heavy;
+        }
+    }
+
     @Entity
     public static class BIObject {
         @Id
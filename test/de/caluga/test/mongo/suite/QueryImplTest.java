@@ -1,6 +1,11 @@
 package de.caluga.test.mongo.suite;
 
 import de.caluga.morphium.Utils;
+import de.caluga.morphium.annotations.Embedded;
+import de.caluga.morphium.annotations.Entity;
+import de.caluga.morphium.annotations.Id;
+import de.caluga.morphium.cache.MorphiumCacheImpl;
+import de.caluga.morphium.driver.bson.MorphiumId;
 import de.caluga.morphium.query.Query;
 import de.caluga.test.mongo.suite.data.CachedObject;
 import de.caluga.test.mongo.suite.data.UncachedObject;
@@ -194,4 +199,74 @@ public class QueryImplTest extends MongoTest {
         dur = System.currentTimeMillis() - start;
         log.info("Creating the query+field+op with " + numThr + " threads took " + dur + "ms");
     }
+
+    @Test
+    public void parallelUnmarshallingTest() throws Exception {
+        createUncachedObjects(2000);
+        assert (!morphium.getARHelper().hasReferences(UncachedObject.class));
+        //references in embedded objects prevent parallel unmarshalling as well
+        assert (morphium.getARHelper().hasReferences(EmbeddedReferences.class));
+        //subclasses of polymorph types might have references
+        assert (morphium.getARHelper().hasReferences(PolymorphEntity.class));
+        assert (morphium.getARHelper().hasReferences(PolymorphEmbedded.class));
+        int threshold = morphium.getConfig().getParallelUnmarshallingThreshold();
+        int minTime = morphium.getConfig().getParallelUnmarshallingMinTime();
+        try {
+            morphium.getConfig().setParallelUnmarshallingThreshold(100);
+            morphium.getConfig().setParallelUnmarshallingMinTime(0);
+            List<UncachedObject> lst = morphium.createQueryFor(UncachedObject.class).sort("counter").asList();
+            assert (lst.size() == 2000) : "Size is " + lst.size();
+            for (int i = 0; i < lst.size(); i++) {
+                assert (lst.get(i).getCounter() == i + 1) : "Order wrong at " + i;
+            }
+        } finally {
+            morphium.getConfig().setParallelUnmarshallingThreshold(threshold);
+            morphium.getConfig().setParallelUnmarshallingMinTime(minTime);
+        }
+    }
+
+    @Test
+    public void cacheRefreshUsesQuerySnapshotTest() throws Exception {
+        createCachedObjects(10);
+        waitForWrites();
+        MorphiumCacheImpl cache = (MorphiumCacheImpl) morphium.getCache();
+        int percent = cache.getRefreshAheadPercent();
+        try {
+            //entries of CachedObject are refreshed after 150ms
+            cache.setRefreshAheadPercent(1);
+            Query<CachedObject> q = morphium.createQueryFor(CachedObject.class).f("counter").eq(1);
+            assert (q.asList().size() == 1);
+            Thread.sleep(300);
+            //hit, refreshes the entry in background
+            assert (q.asList().size() == 1);
+            q.f("counter").eq(2).limit(0);
+            Thread.sleep(500);
+
+            Query<CachedObject> q2 = morphium.createQueryFor(CachedObject.class).f("counter").eq(1);
+            assert (cache.isCached(CachedObject.class, cache.createCacheKey(q2)));
+            List<CachedObject> lst = q2.asList();
+            assert (lst.size() == 1) : "Size is " + lst.size();
+            assert (lst.get(0).getCounter() == 1);
+            assert (q.asList().isEmpty());
+        } finally {
+            cache.setRefreshAheadPercent(percent);
+        }
+    }
+
+    @Embedded
+    public static class EmbeddedReferences {
+        private List<ReferenceTest.ReferenceContainer> containers;
+    }
+
+    @Entity(polymorph = true)
+    public static class PolymorphEntity {
+        @Id
+        private MorphiumId id;
+        private String value;
+    }
+
+    @Embedded(polymorph = true)
+    public static class PolymorphEmbedded {
+        private String value;
+    }
 }
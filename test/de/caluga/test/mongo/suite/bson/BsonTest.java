@@ -6,6 +6,7 @@ import de.caluga.morphium.Logger;
 import de.caluga.morphium.Utils;
 import de.caluga.morphium.driver.bson.BsonDecoder;
 import de.caluga.morphium.driver.bson.BsonEncoder;
+import de.caluga.morphium.driver.bson.MongoTimestamp;
 import de.caluga.morphium.driver.bson.MorphiumId;
 import org.junit.Test;
 
@@ -35,6 +36,7 @@ public class BsonTest extends BaseTest {
         subDoc.put("created", new Date());
 
         doc.put("sub", subDoc);
+        doc.put("ts", new MongoTimestamp(1476870000, 3));
 
 
         byte[] bytes = BsonEncoder.encodeDocument(doc);
@@ -0,0 +1,89 @@
+package de.caluga.test.mongo.suite.unit;
+
+import de.caluga.morphium.CompactObjectSerializer;
+import de.caluga.morphium.driver.bson.MorphiumId;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the default ObjectSerializer
+ */
+public class CompactObjectSerializerTest {
+    private final CompactObjectSerializer ser = new CompactObjectSerializer();
+
+    @Test
+    public void roundTripTest() throws Exception {
+        Object[] values = {null, "ünicode string", 42, 42L, 1.5, 1.5f, (short) 3, (byte) 4, 'c', true, new Date(),
+                new BigInteger("123456789012345678901234567890"), new BigDecimal("-1234.5678"), UUID.randomUUID(),
+                new MorphiumId(), TimeUnit.SECONDS};
+        for (Object v : values) {
+            assert (Objects.equals(ser.deserialize(ser.serialize(v)), v)) : v;
+        }
+        assert (Arrays.equals((byte[]) ser.deserialize(ser.serialize(new byte[]{1, 2})), new byte[]{1, 2}));
+        assert (Arrays.equals((int[]) ser.deserialize(ser.serialize(new int[]{1, 2})), new int[]{1, 2}));
+        assert (Arrays.equals((long[]) ser.deserialize(ser.serialize(new long[]{1, 2})), new long[]{1, 2}));
+        assert (Arrays.equals((double[]) ser.deserialize(ser.serialize(new double[]{1, 2})), new double[]{1, 2}));
+        assert (Arrays.equals((float[]) ser.deserialize(ser.serialize(new float[]{1, 2})), new float[]{1, 2}));
+    }
+
+    @Test
+    public void collectionsTest() throws Exception {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("b", new ArrayList<>(Arrays.asList(1, "two", null)));
+        m.put("a", new HashSet<>(Arrays.asList(1L, 2L)));
+        m.put("s", new Serialized("java"));
+        //not covered, java serialized
+        m.put("t", new TreeMap<>(Collections.singletonMap("k", "v")));
+        Object back = ser.deserialize(ser.serialize(m));
+        assert (back instanceof LinkedHashMap);
+        assert (back.equals(m));
+        assert (((Map) back).keySet().iterator().next().equals("b"));
+        assert (((Map) back).get("t") instanceof TreeMap);
+
+        List<Object> cyclic = new ArrayList<>();
+        cyclic.add(cyclic);
+        List back2 = (List) ser.deserialize(ser.serialize(cyclic));
+        assert (back2.get(0) == back2);
+    }
+
+    @Test
+    public void sizeAndCompatibilityTest() throws Exception {
+        List<Object> lst = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            lst.add(i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream oout = new ObjectOutputStream(out)) {
+            oout.writeObject(lst);
+        }
+        assert (ser.serialize(lst).length < out.size() / 2) : ser.serialize(lst).length + " vs " + out.size();
+        //plain java serialization is still read
+        assert (ser.deserialize(out.toByteArray()).equals(lst));
+    }
+
+    public static class Serialized implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String value;
+
+        Serialized(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Serialized && ((Serialized) o).value.equals(value);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package de.caluga.test.mongo.suite.unit;
+
+import de.caluga.morphium.ObjectMapperImpl;
+import de.caluga.morphium.driver.bson.MorphiumId;
+import de.caluga.morphium.mapping.EntityAccessor;
+import de.caluga.morphium.mapping.EntityAccessorProcessor;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for the accessors generated by the EntityAccessorProcessor
+ */
+public class EntityAccessorProcessorTest {
+    private static final String SOURCE = "package accessortest;\n" +
+            "import de.caluga.morphium.annotations.*;\n" +
+            "import de.caluga.morphium.driver.bson.MorphiumId;\n" +
+            "import java.util.List;\n" +
+            "@Entity\n" +
+            "public class AccessorEntity {\n" +
+            "    @Id MorphiumId id;\n" +
+            "    String name;\n" +
+            "    int counter;\n" +
+            "    protected List<String> tags;\n" +
+            "    private double value;\n" +
+            "    private boolean active;\n" +
+            "    private final String constant = \"c\";\n" +
+            "    static String ignored;\n" +
+            "    public double getValue() { return value; }\n" +
+            "    @Embedded\n" +
+            "    public static class Sub {\n" +
+            "        public long number;\n" +
+            "    }\n" +
+            "    Sub sub;\n" +
+            "}\n";
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void generatedAccessorTest() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            //running on a jre
+            return;
+        }
+
+        File dir = Files.createTempDirectory("accessortest").toFile();
+        File src = new File(dir, "accessortest/AccessorEntity.java");
+        assert (src.getParentFile().mkdirs());
+        Files.write(src.toPath(), SOURCE.getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int res = compiler.run(null, out, out, "-processor", EntityAccessorProcessor.class.getName(),
+                "-cp", System.getProperty("java.class.path"), "-d", dir.getAbsolutePath(), "-s", dir.getAbsolutePath(), src.getAbsolutePath());
+        assert (res == 0) : out.toString();
+        assert (new File(dir, "accessortest/AccessorEntity_MorphiumAccessor.java").exists());
+        assert (new File(dir, "accessortest/AccessorEntity_Sub_MorphiumAccessor.java").exists());
+
+        try (URLClassLoader cl = new URLClassLoader(new URL[]{dir.toURI().toURL()}, getClass().getClassLoader())) {
+            Class<?> cls = cl.loadClass("accessortest.AccessorEntity");
+            EntityAccessor<Object> acc = (EntityAccessor<Object>) cl.loadClass("accessortest.AccessorEntity_MorphiumAccessor").newInstance();
+            //private, final and static fields are not covered
+            assert (Arrays.asList(acc.getFields()).equals(Arrays.asList("id", "name", "counter", "tags", "sub"))) : Arrays.toString(acc.getFields());
+
+            Object o = acc.newInstance();
+            assert (o.getClass().equals(cls));
+            MorphiumId id = new MorphiumId();
+            acc.set(o, 0, id);
+            acc.set(o, 1, "test");
+            acc.set(o, 2, 42);
+            acc.set(o, 3, Arrays.asList("a", "b"));
+            assert (acc.get(o, 2).equals(42));
+            try {
+                acc.set(o, 2, "no int");
+                assert (false);
+            } catch (ClassCastException e) {
+                //expected
+            }
+
+            ObjectMapperImpl om = new ObjectMapperImpl();
+            Map<String, Object> doc = om.marshall(o);
+            assert (doc.get("_id").equals(id));
+            assert (doc.get("name").equals("test"));
+            assert (doc.get("counter").equals(42));
+            assert (doc.get("active").equals(false));
+            assert (doc.get("constant").equals("c"));
+            doc.put("value", 1.5);
+            doc.put("active", true);
+
+            Object back = om.unmarshall(cls, doc);
+            assert (acc.get(back, 0).equals(id));
+            assert (acc.get(back, 1).equals("test"));
+            assert (acc.get(back, 2).equals(42));
+            assert (((List<String>) acc.get(back, 3)).size() == 2);
+            //private fields set via reflection
+            assert (getValue(cls, back) == 1.5);
+            assert (getActive(cls, back));
+        }
+    }
+
+    private double getValue(Class<?> cls, Object o) throws Exception {
+        Field f = cls.getDeclaredField("value");
+        f.setAccessible(true);
+        return f.getDouble(o);
+    }
+
+    private boolean getActive(Class<?> cls, Object o) throws Exception {
+        Field f = cls.getDeclaredField("active");
+        f.setAccessible(true);
+        return f.getBoolean(o);
+    }
+}
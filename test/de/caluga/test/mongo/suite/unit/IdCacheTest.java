@@ -0,0 +1,63 @@
+package de.caluga.test.mongo.suite.unit;
+
+import de.caluga.morphium.cache.IdCache;
+import de.caluga.morphium.cache.ResultCountWeigher;
+import org.junit.Test;
+
+/**
+ * bounded id cache
+ */
+public class IdCacheTest {
+
+    @Test
+    public void maxEntriesTest() throws Exception {
+        IdCache c = new IdCache(String.class, 100, -1, null, false);
+        for (int i = 0; i < 1000; i++) {
+            c.put(i, "v" + i);
+            assert (c.size() <= 100);
+        }
+        assert (c.size() == 100);
+        assert (c.get(999).equals("v999"));
+        assert (c.get(0) == null);
+    }
+
+    @Test
+    public void secondChanceTest() throws Exception {
+        IdCache c = new IdCache(String.class, 10, -1, null, false);
+        for (int i = 0; i < 10; i++) {
+            c.put(i, "v" + i);
+        }
+        assert (c.get(0) != null);
+        for (int i = 10; i < 15; i++) {
+            c.put(i, "v" + i);
+        }
+        //read entry survives
+        assert (c.get(0) != null);
+        assert (c.get(1) == null);
+    }
+
+    @Test
+    public void weightTest() throws Exception {
+        IdCache c = new IdCache(String.class, -1, 50, new ResultCountWeigher(), false);
+        for (int i = 0; i < 200; i++) {
+            c.put(i, "v" + i);
+            assert (c.getWeight() <= 50);
+        }
+        assert (c.size() == 50);
+        c.remove(199);
+        assert (c.getWeight() == 49);
+        c.clear();
+        assert (c.getWeight() == 0);
+    }
+
+    @Test
+    public void replaceTest() throws Exception {
+        IdCache c = new IdCache(String.class, 10, -1, null, true);
+        for (int i = 0; i < 1000; i++) {
+            c.put(i % 5, "v" + i);
+        }
+        assert (c.size() == 5);
+        assert (c.get(4).equals("v999"));
+        assert (c.entrySet().size() == 5);
+    }
+}
@@ -3,13 +3,23 @@ package de.caluga.test.mongo.suite.unit;
 import de.caluga.morphium.Morphium;
 import de.caluga.morphium.MorphiumConfig;
 import de.caluga.morphium.Utils;
+import de.caluga.morphium.cache.OplogCacheSynchronizer;
+import de.caluga.morphium.driver.MorphiumCursor;
+import de.caluga.morphium.driver.MorphiumDriverException;
+import de.caluga.morphium.driver.bson.MongoTimestamp;
+import de.caluga.morphium.driver.inmem.InMemoryChangeListener;
 import de.caluga.morphium.driver.inmem.InMemoryDriver;
+import de.caluga.morphium.messaging.Messaging;
+import de.caluga.morphium.messaging.Msg;
+import de.caluga.morphium.query.Query;
+import de.caluga.test.mongo.suite.data.CachedObject;
 import de.caluga.test.mongo.suite.data.UncachedObject;
 import org.junit.Test;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * User: Stephan Bösebeck
@@ -19,6 +29,7 @@ import java.util.Map;
  * TODO: Add documentation here
  */
 public class InMemoryTest {
+    private final AtomicInteger oplogInc = new AtomicInteger();
 
     @Test
     public void inMemoryDriverTest() throws Exception {
@@ -47,6 +58,443 @@ public class InMemoryTest {
         assert (lst.size() == 1);
     }
 
+    @Test
+    public void sortSkipLimitTest() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        List<Map<String, Object>> toStore = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> o = Utils.getMap("counter", i);
+            o.put("str", "value " + i);
+            o.put("even", i % 2 == 0);
+            o.put("sub", Utils.getMap("n", 999 - i));
+            toStore.add(o);
+        }
+        Collections.shuffle(toStore);
+        drv.insert("test", "sort_coll", toStore, null);
+
+        List<Map<String, Object>> lst = drv.find("test", "sort_coll", Utils.getMap("even", true), Utils.getIntMap("counter", -1), null, 0, 20, 0, null, null);
+        assert (lst.size() == 20);
+        assert (lst.get(0).get("counter").equals(998));
+        assert (lst.get(19).get("counter").equals(960));
+
+        lst = drv.find("test", "sort_coll", new HashMap<>(), Utils.getIntMap("counter", 1), null, 10, 5, 0, null, null);
+        assert (lst.size() == 5);
+        assert (lst.get(0).get("counter").equals(10));
+        assert (lst.get(4).get("counter").equals(14));
+
+        lst = drv.find("test", "sort_coll", new HashMap<>(), Utils.getIntMap("counter", 1), null, 998, 0, 0, null, null);
+        assert (lst.size() == 2);
+        assert (lst.get(1).get("counter").equals(999));
+
+        //same with index
+        drv.createIndex("test", "sort_coll", Utils.getMap("counter", 1), null);
+        lst = drv.find("test", "sort_coll", Utils.getMap("even", true), Utils.getIntMap("counter", -1), null, 0, 20, 0, null, null);
+        assert (lst.size() == 20);
+        assert (lst.get(0).get("counter").equals(998));
+        assert (lst.get(19).get("counter").equals(960));
+        lst = drv.find("test", "sort_coll", new HashMap<>(), Utils.getIntMap("counter", 1), null, 10, 5, 0, null, null);
+        assert (lst.get(0).get("counter").equals(10));
+
+        //index is kept up to date
+        drv.update("test", "sort_coll", Utils.getMap("counter", 998), Utils.getMap("$set", Utils.getMap("counter", 2000)), false, false, null);
+        drv.delete("test", "sort_coll", Utils.getMap("counter", 996), false, null);
+        lst = drv.find("test", "sort_coll", Utils.getMap("even", true), Utils.getIntMap("counter", -1), null, 0, 3, 0, null, null);
+        assert (lst.get(0).get("counter").equals(2000));
+        assert (lst.get(1).get("counter").equals(994));
+        assert (drv.getIndexes("test", "sort_coll").size() == 2);
+
+        //dotted paths are resolved, with and without index
+        lst = drv.find("test", "sort_coll", new HashMap<>(), Utils.getIntMap("sub.n", 1), null, 0, 3, 0, null, null);
+        assert (lst.get(0).get("counter").equals(999));
+        assert (lst.get(2).get("counter").equals(997));
+        drv.createIndex("test", "sort_coll", Utils.getMap("sub.n", 1), null);
+        lst = drv.find("test", "sort_coll", new HashMap<>(), Utils.getIntMap("sub.n", -1), null, 0, 2, 0, null, null);
+        assert (lst.get(0).get("counter").equals(0));
+        assert (lst.get(1).get("counter").equals(1));
+    }
+
+    @Test
+    public void projectionTest() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        List<Map<String, Object>> toStore = new ArrayList<>();
+        Map<String, Object> o = Utils.getMap("counter", 42);
+        o.put("str", "value");
+        o.put("other", "other value");
+        toStore.add(o);
+        drv.store("test", "proj_coll", toStore, null);
+
+        List<Map<String, Object>> lst = drv.find("test", "proj_coll", new HashMap<>(), null, Utils.getMap("str", 1), 0, 0, 0, null, null);
+        assert (lst.size() == 1);
+        assert (lst.get(0).size() == 2);
+        assert (lst.get(0).get("str").equals("value"));
+        assert (lst.get(0).get("_id") != null);
+
+        lst = drv.find("test", "proj_coll", new HashMap<>(), null, Utils.getMap("other", 0), 0, 0, 0, null, null);
+        assert (lst.get(0).size() == 3);
+        assert (!lst.get(0).containsKey("other"));
+
+        //copies are returned, not the stored document
+        lst.get(0).put("counter", 1);
+        assert (drv.find("test", "proj_coll", new HashMap<>(), null, null, 0, 0, 0, null, null).get(0).get("counter").equals(42));
+
+        //dotted paths
+        Map<String, Object> sub = Utils.getMap("a", 1);
+        sub.put("b", 2);
+        o = Utils.getMap("sub", sub);
+        o.put("lst", new ArrayList<>(Arrays.asList(Utils.getMap("a", 1), Utils.getMap("a", 2))));
+        drv.store("test", "proj_coll2", new ArrayList<>(Collections.singletonList(o)), null);
+        Map<String, Object> proj = Utils.getMap("sub.a", 1);
+        proj.put("lst.a", 1);
+        Map<String, Object> res = drv.find("test", "proj_coll2", new HashMap<>(), null, proj, 0, 0, 0, null, null).get(0);
+        assert (res.get("sub").equals(Utils.getMap("a", 1)));
+        assert (((List) res.get("lst")).size() == 2);
+        assert (((List) res.get("lst")).get(1).equals(Utils.getMap("a", 2)));
+        res = drv.find("test", "proj_coll2", new HashMap<>(), null, Utils.getMap("sub.a", 0), 0, 0, 0, null, null).get(0);
+        assert (res.get("sub").equals(Utils.getMap("b", 2)));
+        //stored document is unchanged
+        assert (sub.size() == 2);
+        assert (drv.count("test", "proj_coll2", Utils.getMap("sub", sub), null) == 1);
+    }
+
+    @Test
+    public void changeListenerTest() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        List<InMemoryChangeListener.ChangeType> changes = new ArrayList<>();
+        drv.addChangeListener("test", "listen_coll", (db, collection, type, doc) -> changes.add(type));
+
+        List<Map<String, Object>> toStore = new ArrayList<>();
+        toStore.add(Utils.getMap("counter", 1));
+        drv.store("test", "listen_coll", toStore, null);
+        drv.store("test", "other_coll", toStore, null);
+        drv.update("test", "listen_coll", Utils.getMap("counter", 1), Utils.getMap("$set", Utils.getMap("counter", 2)), false, false, null);
+        drv.delete("test", "listen_coll", Utils.getMap("counter", 2), false, null);
+
+        assert (changes.size() == 3);
+        assert (changes.get(0).equals(InMemoryChangeListener.ChangeType.INSERT));
+        assert (changes.get(1).equals(InMemoryChangeListener.ChangeType.UPDATE));
+        assert (changes.get(2).equals(InMemoryChangeListener.ChangeType.DELETE));
+    }
+
+    @Test
+    public void tailableCursorTest() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        Map<String, Object> cmd = Utils.getMap("create", "capped_coll");
+        cmd.put("capped", true);
+        cmd.put("size", 10000);
+        drv.runCommand("test", cmd);
+        assert (drv.isCapped("test", "capped_coll"));
+
+        List<Map<String, Object>> toStore = new ArrayList<>();
+        toStore.add(Utils.getMap("counter", 1));
+        drv.insert("test", "capped_coll", toStore, null);
+
+        MorphiumCursor crs = drv.initTailableIteration("test", "capped_coll", Utils.getMap("counter", Utils.getMap("$gt", 0)), null, 10, 5000);
+        assert (crs.getBatch().size() == 1);
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(200);
+                List<Map<String, Object>> lst = new ArrayList<>();
+                lst.add(Utils.getMap("counter", 0));
+                lst.add(Utils.getMap("counter", 2));
+                drv.insert("test", "capped_coll", lst, null);
+            } catch (Exception e) {
+                //ignore
+            }
+        }).start();
+        long start = System.currentTimeMillis();
+        crs = drv.nextIteration(crs);
+        assert (System.currentTimeMillis() - start < 4000);
+        assert (crs.getBatch().size() == 1);
+        assert (((Map) crs.getBatch().get(0)).get("counter").equals(2));
+
+        //no data - returns empty batch after awaitData
+        crs = drv.nextIteration(crs);
+        assert (crs.getBatch().isEmpty());
+        assert (crs.getInternalCursorObject() != null);
+    }
+
+    @Test(expected = MorphiumDriverException.class)
+    public void tailableCursorUncappedTest() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        drv.initTailableIteration("test", "uncapped_coll", new HashMap<>(), null, 10, 0);
+    }
+
+    @Test
+    public void cappedCollectionTest() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        Map<String, Object> cmd = Utils.getMap("create", "capped_coll");
+        cmd.put("capped", true);
+        cmd.put("size", 100000);
+        cmd.put("max", 10);
+        drv.runCommand("test", cmd);
+        drv.createIndex("test", "capped_coll", Utils.getMap("counter", 1), null);
+
+        MorphiumCursor crs = drv.initTailableIteration("test", "capped_coll", new HashMap<>(), null, 5, 0);
+        assert (crs.getBatch().isEmpty());
+        for (int i = 0; i < 25; i++) {
+            List<Map<String, Object>> toStore = new ArrayList<>();
+            toStore.add(Utils.getMap("counter", i));
+            drv.insert("test", "capped_coll", toStore, null);
+        }
+        assert (drv.count("test", "capped_coll", new HashMap<>(), null) == 10);
+        List<Map<String, Object>> lst = drv.find("test", "capped_coll", new HashMap<>(), Utils.getIntMap("counter", 1), null, 0, 0, 0, null, null);
+        assert (lst.size() == 10);
+        assert (lst.get(0).get("counter").equals(15));
+
+        //cursor continues with oldest document still available
+        crs = drv.nextIteration(crs);
+        assert (crs.getBatch().size() == 5);
+        assert (((Map) crs.getBatch().get(0)).get("counter").equals(15));
+
+        //size limit
+        cmd = Utils.getMap("create", "capped_size");
+        cmd.put("capped", true);
+        cmd.put("size", 1000);
+        drv.runCommand("test", cmd);
+        for (int i = 0; i < 100; i++) {
+            List<Map<String, Object>> toStore = new ArrayList<>();
+            Map<String, Object> o = Utils.getMap("counter", i);
+            o.put("value", "some string value to have some bytes");
+            toStore.add(o);
+            drv.insert("test", "capped_size", toStore, null);
+        }
+        long cnt = drv.count("test", "capped_size", new HashMap<>(), null);
+        assert (cnt > 0 && cnt < 100);
+    }
+
+    @Test
+    public void ttlIndexTest() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        drv.createIndex("test", "ttl_coll", Utils.getMap("delete_at", 1), Utils.getMap("expireAfterSeconds", 0));
+        List<Map<String, Object>> toStore = new ArrayList<>();
+        toStore.add(Utils.getMap("delete_at", new Date(System.currentTimeMillis() - 1000)));
+        toStore.add(Utils.getMap("delete_at", new Date(System.currentTimeMillis() + 600000)));
+        toStore.add(Utils.getMap("counter", 1));
+        drv.insert("test", "ttl_coll", toStore, null);
+        assert (drv.count("test", "ttl_coll", new HashMap<>(), null) == 3);
+
+        CountDownLatch deleted = new CountDownLatch(1);
+        drv.addChangeListener("test", "ttl_coll", (db, collection, type, doc) -> {
+            if (type.equals(InMemoryChangeListener.ChangeType.DELETE)) {
+                deleted.countDown();
+            }
+        });
+        assert (deleted.await(5, TimeUnit.SECONDS));
+        assert (drv.count("test", "ttl_coll", new HashMap<>(), null) == 2);
+
+        //moving the expiry forward and back again
+        Map<String, Object> query = Utils.getMap("counter", 1);
+        for (int i = 0; i < 100; i++) {
+            drv.update("test", "ttl_coll", query, Utils.getMap("$set", Utils.getMap("delete_at", new Date(System.currentTimeMillis() + 600000 + i))), false, false, null);
+        }
+        drv.update("test", "ttl_coll", query, Utils.getMap("$set", Utils.getMap("delete_at", new Date(System.currentTimeMillis() - 1000))), false, false, null);
+        long start = System.currentTimeMillis();
+        while (drv.count("test", "ttl_coll", new HashMap<>(), null) != 1) {
+            assert (System.currentTimeMillis() - start < 5000);
+            Thread.sleep(100);
+        }
+        assert (drv.count("test", "ttl_coll", query, null) == 0);
+        drv.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void updateOperatorsTest() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        Map<String, Object> o = Utils.getMap("counter", (Object) 10);
+        o.put("value", "v");
+        o.put("lst", new ArrayList<>(Arrays.asList(1, 2, 3)));
+        drv.insert("test", "upd_coll", Collections.singletonList(o), null);
+        drv.createIndex("test", "upd_coll", Utils.getMap("counter", (Object) 1), null);
+
+        Map<String, Object> op = new HashMap<>();
+        op.put("$inc", Utils.getMap("counter", (Object) 5));
+        op.put("$set", Utils.getMap("sub.field", (Object) "nested"));
+        op.put("$rename", Utils.getMap("value", (Object) "renamed"));
+        Map<String, Object> push = Utils.getMap("$each", (Object) Arrays.asList(4, 5, 6));
+        push.put("$slice", -4);
+        op.put("$push", Utils.getMap("lst", (Object) push));
+        op.put("$addToSet", Utils.getMap("set", (Object) 1));
+        op.put("$currentDate", Utils.getMap("changed", (Object) true));
+        Map<String, Object> res = drv.update("test", "upd_coll", new HashMap<>(), op, false, false, null);
+        assert (res.get("modified").equals(1L));
+
+        Map<String, Object> doc = drv.find("test", "upd_coll", new HashMap<>(), null, null, 0, 0, 0, null, null).get(0);
+        assert (doc.get("counter").equals(15));
+        assert (((Map) doc.get("sub")).get("field").equals("nested"));
+        assert (doc.get("renamed").equals("v") && !doc.containsKey("value"));
+        assert (doc.get("lst").equals(Arrays.asList(3, 4, 5, 6)));
+        assert (doc.get("set").equals(Collections.singletonList(1)));
+        assert (doc.get("changed") instanceof Date);
+        //index was updated
+        assert (drv.find("test", "upd_coll", Utils.getMap("counter", (Object) Utils.getMap("$gt", 12)), Utils.getIntMap("counter", 1), null, 0, 1, 0, null, null).size() == 1);
+
+        Map<String, Object> before = doc;
+        op = new HashMap<>();
+        op.put("$pull", Utils.getMap("lst", (Object) Utils.getMap("$gte", 5)));
+        op.put("$pop", Utils.getMap("set", (Object) 1));
+        op.put("$min", Utils.getMap("counter", (Object) 3));
+        op.put("$mul", Utils.getMap("factor", (Object) 2.0));
+        op.put("$unset", Utils.getMap("sub", (Object) ""));
+        drv.update("test", "upd_coll", new HashMap<>(), op, false, false, null);
+        doc = drv.find("test", "upd_coll", new HashMap<>(), null, null, 0, 0, 0, null, null).get(0);
+        assert (doc.get("lst").equals(Arrays.asList(3, 4)));
+        assert (((List) doc.get("set")).isEmpty());
+        assert (doc.get("counter").equals(3));
+        assert (doc.get("factor").equals(0.0));
+        assert (!doc.containsKey("sub"));
+        //results returned before do not share arrays or sub documents with the stored document
+        assert (before.get("lst").equals(Arrays.asList(3, 4, 5, 6)));
+        assert (((Map) before.get("sub")).get("field").equals("nested"));
+
+        //int overflow is promoted to long like in mongodb
+        drv.update("test", "upd_coll", new HashMap<>(), Utils.getMap("$set", (Object) Utils.getMap("big", Integer.MAX_VALUE)), false, false, null);
+        drv.update("test", "upd_coll", new HashMap<>(), Utils.getMap("$inc", (Object) Utils.getMap("big", 1)), false, false, null);
+        doc = drv.find("test", "upd_coll", new HashMap<>(), null, null, 0, 0, 0, null, null).get(0);
+        assert (doc.get("big").equals(Integer.MAX_VALUE + 1L)) : doc.get("big");
+        drv.update("test", "upd_coll", new HashMap<>(), Utils.getMap("$set", (Object) Utils.getMap("big", Integer.MAX_VALUE)), false, false, null);
+        drv.update("test", "upd_coll", new HashMap<>(), Utils.getMap("$mul", (Object) Utils.getMap("big", 2)), false, false, null);
+        doc = drv.find("test", "upd_coll", new HashMap<>(), null, null, 0, 0, 0, null, null).get(0);
+        assert (doc.get("big").equals(Integer.MAX_VALUE * 2L)) : doc.get("big");
+
+        //failing updates change nothing
+        op = new HashMap<>();
+        op.put("$set", Utils.getMap("counter", (Object) 100));
+        op.put("$push", Utils.getMap("renamed", (Object) 1));
+        try {
+            drv.update("test", "upd_coll", new HashMap<>(), op, false, false, null);
+            assert (false);
+        } catch (MorphiumDriverException e) {
+            //expected
+        }
+        assert (drv.find("test", "upd_coll", new HashMap<>(), null, null, 0, 0, 0, null, null).get(0).get("counter").equals(3));
+
+        //no change
+        res = drv.update("test", "upd_coll", new HashMap<>(), Utils.getMap("$max", (Object) Utils.getMap("counter", 1)), false, false, null);
+        assert (res.get("matched").equals(1L));
+        assert (res.get("modified").equals(0L));
+    }
+
+    @Test
+    public void upsertTest() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        Map<String, Object> op = new HashMap<>();
+        op.put("$inc", Utils.getMap("counter", (Object) 1));
+        op.put("$setOnInsert", Utils.getMap("created", (Object) "yes"));
+        Map<String, Object> res = drv.update("test", "ups_coll", Utils.getMap("name", (Object) "upsert"), op, false, true, null);
+        assert (res.get("upserted") != null);
+        drv.update("test", "ups_coll", Utils.getMap("name", (Object) "upsert"), op, false, true, null);
+        List<Map<String, Object>> lst = drv.find("test", "ups_coll", new HashMap<>(), null, null, 0, 0, 0, null, null);
+        assert (lst.size() == 1);
+        assert (lst.get(0).get("name").equals("upsert"));
+        assert (lst.get(0).get("counter").equals(2));
+        assert (lst.get(0).get("created").equals("yes"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void compactDocumentsTest() throws Exception {
+        InMemoryDriver drv = new InMemoryDriver();
+        drv.setCompactDocuments(true);
+        List<Map<String, Object>> toStore = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> o = Utils.getMap("counter", (Object) i);
+            o.put("str", "value " + i);
+            o.put("lng", (long) i);
+            o.put("flt", (float) i);
+            o.put("date", new Date(i));
+            o.put("bin", new byte[]{1, 2, (byte) i});
+            o.put("lst", Arrays.asList(i, "" + i));
+            o.put("sub", Utils.getMap("x", (Object) i));
+            toStore.add(o);
+        }
+        drv.insert("test", "compact_coll", toStore, null);
+        drv.createIndex("test", "compact_coll", Utils.getMap("counter", (Object) 1), null);
+
+        List<Map<String, Object>> lst = drv.find("test", "compact_coll", Utils.getMap("counter", (Object) Utils.getMap("$gte", 50)), Utils.getIntMap("counter", -1), null, 0, 10, 0, null, null);
+        assert (lst.size() == 10);
+        Map<String, Object> doc = lst.get(0);
+        assert (doc.get("counter").equals(99));
+        assert (doc.get("lng").equals(99L));
+        assert (doc.get("flt").equals(99.0f));
+        assert (doc.get("date").equals(new Date(99)));
+        assert (Arrays.equals((byte[]) doc.get("bin"), new byte[]{1, 2, 99}));
+        assert (doc.get("lst").equals(Arrays.asList(99, "99")));
+        assert (((Map) doc.get("sub")).get("x").equals(99));
+        assert (doc.get("_id").equals(toStore.get(99).get("_id")));
+
+        Map<String, Object> op = new HashMap<>();
+        op.put("$inc", Utils.getMap("counter", (Object) 1000));
+        op.put("$set", Utils.getMap("sub.y", (Object) "new"));
+        drv.update("test", "compact_coll", Utils.getMap("str", (Object) "value 1"), op, false, false, null);
+        doc = drv.find("test", "compact_coll", Utils.getMap("counter", (Object) 1001), null, null, 0, 0, 0, null, null).get(0);
+        assert (((Map) doc.get("sub")).get("y").equals("new"));
+        //index was maintained
+        assert (drv.find("test", "compact_coll", new HashMap<>(), Utils.getIntMap("counter", -1), null, 0, 1, 0, null, null).get(0).get("counter").equals(1001));
+    }
+
+    @Test
+    public void messagingInMemoryTest() throws Exception {
+        MorphiumConfig c = new MorphiumConfig("mem_test", 1000, 1000, 10000);
+        c.addHostToSeed("localhost");
+        c.setDriverClass(InMemoryDriver.class.getName());
+        Morphium m = new Morphium(c);
+        //pause is way longer than the test should take - messages are pushed
+        Messaging sender = new Messaging(m, 60000, false);
+        Messaging receiver = new Messaging(m, 60000, false);
+        sender.start();
+        receiver.start();
+        CountDownLatch received = new CountDownLatch(1);
+        receiver.addMessageListener((msg, message) -> {
+            received.countDown();
+            return null;
+        });
+        Thread.sleep(100);
+        Msg msg = new Msg("test", "a message", "value");
+        msg.setExclusive(true);
+        sender.storeMessage(msg);
+        assert (received.await(5, TimeUnit.SECONDS));
+        sender.setRunning(false);
+        receiver.setRunning(false);
+    }
+
+    @Test
+    public void broadcastMessagingInMemoryTest() throws Exception {
+        MorphiumConfig c = new MorphiumConfig("mem_test", 1000, 1000, 10000);
+        c.addHostToSeed("localhost");
+        c.setDriverClass(InMemoryDriver.class.getName());
+        Morphium m = new Morphium(c);
+        Messaging sender = new Messaging(m, 60000, false);
+        Messaging receiver1 = new Messaging(m, 60000, false);
+        Messaging receiver2 = new Messaging(m, 60000, false);
+        sender.start();
+        receiver1.start();
+        receiver2.start();
+        //broadcast messages are marked processed by $push to processed_by
+        CountDownLatch received = new CountDownLatch(2);
+        AtomicInteger count = new AtomicInteger();
+        receiver1.addMessageListener((msg, message) -> {
+            count.incrementAndGet();
+            received.countDown();
+            return null;
+        });
+        receiver2.addMessageListener((msg, message) -> {
+            count.incrementAndGet();
+            received.countDown();
+            return null;
+        });
+        Thread.sleep(100);
+        sender.storeMessage(new Msg("test", "a broadcast", "value"));
+        assert (received.await(5, TimeUnit.SECONDS));
+        //each receiver gets it once
+        Thread.sleep(500);
+        assert (count.get() == 2);
+        sender.setRunning(false);
+        receiver1.setRunning(false);
+        receiver2.setRunning(false);
+    }
+
     @Test
     public void morphiumInMemoryTest() throws Exception {
         MorphiumConfig c = new MorphiumConfig("mem_test", 1000, 1000, 10000);
@@ -62,4 +510,87 @@ public class InMemoryTest {
         assert (uc.getMorphiumId() != null);
         assert (u.getMorphiumId() != null);
     }
+
+    @Test
+    public void oplogCacheSyncTest() throws Exception {
+        MorphiumConfig c = new MorphiumConfig("mem_test", 1000, 1000, 10000);
+        c.addHostToSeed("localhost");
+        c.setDriverClass(InMemoryDriver.class.getName());
+        Morphium m = new Morphium(c);
+        //mock oplog
+        Map<String, Object> cmd = Utils.getMap("create", OplogCacheSynchronizer.OPLOG);
+        cmd.put("capped", true);
+        cmd.put("size", 100000);
+        m.getDriver().runCommand(OplogCacheSynchronizer.LOCAL_DB, cmd);
+        //written before start, ignored
+        insertOplogEntry(m, Utils.getMap("ts", new MongoTimestamp(1, 1)), "u", "cached_object");
+
+        CachedObject co = new CachedObject();
+        co.setCounter(1);
+        co.setValue("v");
+        m.store(co);
+        //write buffer
+        while (m.createQueryFor(CachedObject.class).countAll() == 0) {
+            Thread.sleep(100);
+        }
+        Query<CachedObject> q = m.createQueryFor(CachedObject.class).f("counter").eq(1);
+        assert (q.asList().size() == 1);
+        assert (m.getCache().isCached(CachedObject.class, m.getCache().getCacheKey(q)));
+
+        OplogCacheSynchronizer sync = new OplogCacheSynchronizer(m);
+        sync.setAwaitData(100);
+        sync.start();
+        Thread.sleep(300);
+        assert (sync.getProcessed() == 0);
+        assert (m.getCache().isCached(CachedObject.class, m.getCache().getCacheKey(q)));
+
+        //noop, other collections and commands not changing data are ignored
+        insertOplogEntry(m, new HashMap<>(), "n", "cached_object");
+        insertOplogEntry(m, new HashMap<>(), "u", "uncached_object");
+        insertOplogEntry(m, Utils.getMap("o", Utils.getMap("createIndexes", "cached_object")), "c", "$cmd");
+        waitForProcessed(sync, 2);
+        assert (m.getCache().isCached(CachedObject.class, m.getCache().getCacheKey(q)));
+
+        //transaction, logged in admin
+        Map<String, Object> update = new HashMap<>();
+        update.put("op", "u");
+        update.put("ns", m.getConfig().getDatabase() + ".cached_object");
+        update.put("o2", Utils.getMap("_id", co.getId()));
+        update.put("o", Utils.getMap("$set", Utils.getMap("counter", 2)));
+        Map<String, Object> entry = Utils.getMap("o", Utils.getMap("applyOps", Collections.singletonList(update)));
+        entry.put("ts", nextTs());
+        entry.put("op", "c");
+        entry.put("ns", "admin.$cmd");
+        m.getDriver().insert(OplogCacheSynchronizer.LOCAL_DB, OplogCacheSynchronizer.OPLOG, Collections.singletonList(entry), null);
+        long start = System.currentTimeMillis();
+        while (m.getCache().isCached(CachedObject.class, m.getCache().getCacheKey(q))) {
+            assert (System.currentTimeMillis() - start < 5000);
+            Thread.sleep(50);
+        }
+        waitForProcessed(sync, 3);
+        sync.terminate();
+    }
+
+    private void waitForProcessed(OplogCacheSynchronizer sync, int processed) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (sync.getProcessed() < processed) {
+            assert (System.currentTimeMillis() - start < 5000);
+            Thread.sleep(50);
+        }
+        Thread.sleep(100);
+        assert (sync.getProcessed() == processed) : sync.getProcessed();
+    }
+
+    private MongoTimestamp nextTs() {
+        return new MongoTimestamp((int) (System.currentTimeMillis() / 1000), oplogInc.incrementAndGet());
+    }
+
+    private void insertOplogEntry(Morphium m, Map<String, Object> entry, String op, String collection) throws MorphiumDriverException {
+        entry.putIfAbsent("ts", nextTs());
+        entry.put("op", op);
+        entry.put("ns", m.getConfig().getDatabase() + "." + collection);
+        List<Map<String, Object>> lst = new ArrayList<>();
+        lst.add(entry);
+        m.getDriver().insert(OplogCacheSynchronizer.LOCAL_DB, OplogCacheSynchronizer.OPLOG, lst, null);
+    }
 }
@@ -0,0 +1,138 @@
+package de.caluga.test.mongo.suite.unit;
+
+import de.caluga.morphium.driver.bson.MorphiumId;
+import de.caluga.morphium.mapping.JsonReader;
+import de.caluga.morphium.mapping.JsonWriter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+
+/**
+ * Tests for the streaming json reader and writer
+ */
+public class JsonReaderWriterTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void roundTripTest() throws Exception {
+        Map<String, Object> doc = new HashMap<>();
+        MorphiumId id = new MorphiumId();
+        doc.put("_id", id);
+        doc.put("str", "quote \" backslash \\ newline \n tab \t control \u0001 ünicode");
+        doc.put("int", 42);
+        doc.put("long", Long.MAX_VALUE);
+        doc.put("double", -1.5e-10);
+        doc.put("nan", Double.NaN);
+        doc.put("bool", true);
+        doc.put("null", null);
+        doc.put("date", new Date(1234567890L));
+        doc.put("bin", new byte[]{0, 1, -1});
+        doc.put("list", Arrays.asList(1, "two", Collections.singletonMap("three", 3)));
+        doc.put("arr", new int[]{4, 5});
+
+        String json = JsonWriter.toJson(doc);
+        Map<String, Object> back = new JsonReader(json).readDocument();
+        assert (back.get("_id").equals(id));
+        assert (back.get("str").equals(doc.get("str")));
+        assert (back.get("int").equals(42));
+        assert (back.get("long").equals(Long.MAX_VALUE));
+        assert (back.get("double").equals(-1.5e-10));
+        assert (((Double) back.get("nan")).isNaN());
+        assert (back.get("bool").equals(true));
+        assert (back.containsKey("null") && back.get("null") == null);
+        assert (back.get("date").equals(new Date(1234567890L)));
+        assert (Arrays.equals((byte[]) back.get("bin"), new byte[]{0, 1, -1}));
+        List<Object> lst = (List<Object>) back.get("list");
+        assert (lst.get(1).equals("two"));
+        assert (((Map) lst.get(2)).get("three").equals(3));
+        assert (back.get("arr").equals(Arrays.asList(4, 5)));
+    }
+
+    @Test
+    public void extendedJsonTest() throws Exception {
+        String json = "{\"a\":{\"$numberLong\":\"12\"}, \"d\":{\"$date\":{\"$numberLong\":\"1000\"}}, \"i\":\"2016-10-19T00:00:00Z\","
+                + " \"b\":{\"$binary\":{\"base64\":\"AQI=\",\"subType\":\"00\"}}, \"o\":{\"$other\":1}, \"u\":\"\\u0041\\/\"}";
+        Map<String, Object> m = new JsonReader(json).readDocument();
+        assert (m.get("a").equals(12L));
+        assert (m.get("d").equals(new Date(1000)));
+        //strings are only converted, if a date is expected
+        assert (m.get("i").equals("2016-10-19T00:00:00Z"));
+        assert (((byte[]) m.get("b")).length == 2);
+        assert (((Map) m.get("o")).get("$other").equals(1));
+        assert (m.get("u").equals("A/"));
+    }
+
+    @Test
+    public void typeHintsTest() throws Exception {
+        JsonReader.TypeHints longs = new Hints(Long.class, (JsonReader.TypeHints) null);
+        JsonReader.TypeHints hints = new Hints(Map.class, Collections.singletonMap("l", new Hints(List.class, longs)));
+        Map<String, Object> m = new JsonReader("{\"l\":[1,2], \"x\":3}").readDocument(hints);
+        assert (((List) m.get("l")).get(0).equals(1L));
+        assert (m.get("x").equals(3));
+    }
+
+    @Test
+    public void streamTest() throws Exception {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            //more than one buffer
+            b.append("{\"counter\":").append(i).append(",\"value\":\"a longer value with \\\"escapes\\\" ").append(i).append("\"}\n");
+        }
+        JsonReader r = new JsonReader(new StringReader(b.toString()));
+        int cnt = 0;
+        while (r.hasNext()) {
+            Map<String, Object> m = r.readDocument();
+            assert (m.get("counter").equals(cnt));
+            assert (m.get("value").equals("a longer value with \"escapes\" " + cnt));
+            cnt++;
+        }
+        assert (cnt == 1000);
+    }
+
+    @Test
+    public void errorTest() throws Exception {
+        for (String s : new String[]{"{\"a\":1", "{\"a\" 1}", "{\"a\":tru}", "[1,2]", "{\"a\":\"unterminated}"}) {
+            try {
+                new JsonReader(s).readDocument();
+                assert (false) : s;
+            } catch (IOException e) {
+                //expected
+            }
+        }
+    }
+
+    private static class Hints implements JsonReader.TypeHints {
+        private final Class<?> type;
+        private final Map<String, JsonReader.TypeHints> fields;
+        private final JsonReader.TypeHints element;
+
+        Hints(Class<?> type, Map<String, JsonReader.TypeHints> fields) {
+            this.type = type;
+            this.fields = fields;
+            element = null;
+        }
+
+        Hints(Class<?> type, JsonReader.TypeHints element) {
+            this.type = type;
+            this.element = element;
+            fields = null;
+        }
+
+        @Override
+        public Class<?> getType() {
+            return type;
+        }
+
+        @Override
+        public JsonReader.TypeHints getField(String key) {
+            return fields == null ? null : fields.get(key);
+        }
+
+        @Override
+        public JsonReader.TypeHints getElement() {
+            return element;
+        }
+    }
+}
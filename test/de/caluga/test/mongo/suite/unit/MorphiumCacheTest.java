@@ -1,15 +1,21 @@
 package de.caluga.test.mongo.suite.unit;
 
+import de.caluga.morphium.ObjectMapperImpl;
 import de.caluga.morphium.Utils;
+import de.caluga.morphium.annotations.caching.Cache;
 import de.caluga.morphium.cache.*;
 import de.caluga.morphium.driver.bson.MorphiumId;
 import de.caluga.test.mongo.suite.data.CachedObject;
 import org.junit.Test;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
  * User: Stephan Bösebeck
@@ -70,6 +76,56 @@ public class MorphiumCacheTest {
 
     }
 
+    @Test
+    public void testExpiry() throws Exception {
+        MorphiumCacheImpl imp = new MorphiumCacheImpl();
+        imp.setValidCacheTime(CachedObject.class, 100);
+        List<CachedObject> lst = new ArrayList<>();
+        CachedObject o = new CachedObject();
+        o.setId(new MorphiumId());
+        lst.add(o);
+        imp.addToCache("key", CachedObject.class, lst);
+        assert (imp.isCached(CachedObject.class, "key"));
+        Thread.sleep(1000);
+        //removed by housekeeper, not only invisible
+        assert (imp.getCache().get(CachedObject.class).isEmpty());
+        assert (imp.getFromIDCache(CachedObject.class, o.getId()) == null);
+    }
+
+    @Test
+    public void testByteBudget() throws Exception {
+        MorphiumCacheImpl imp = new MorphiumCacheImpl();
+        imp.setWeigher(new ResultCountWeigher());
+        imp.setMaxBytes(100);
+        for (int i = 0; i < 100; i++) {
+            List<CachedObject> lst = new ArrayList<>();
+            for (int j = 0; j < 10; j++) {
+                CachedObject o = new CachedObject();
+                o.setId(new MorphiumId());
+                lst.add(o);
+            }
+            imp.addToCache("key" + i, CachedObject.class, lst);
+            assert (imp.getTotalWeight() <= 100);
+        }
+        assert (imp.getCache().get(CachedObject.class).size() == 10);
+
+        List<CachedObject> lst = new ArrayList<>();
+        long small = new ObjectSizeWeigher().weigh(CachedObject.class, lst);
+        for (int j = 0; j < 10; j++) {
+            CachedObject o = new CachedObject();
+            o.setValue("value " + j);
+            lst.add(o);
+        }
+        long full = new ObjectSizeWeigher().weigh(CachedObject.class, lst);
+        assert (full > small + 10 * 16);
+
+        //limit reached: extrapolated from the entities walked
+        ObjectSizeWeigher limited = new ObjectSizeWeigher();
+        limited.setMaxObjects(10);
+        long estimate = limited.weigh(CachedObject.class, lst);
+        assert (estimate > full / 2 && estimate < full * 2) : estimate + " vs " + full;
+    }
+
     @Test
     public void testClearCacheIfNecessary() throws Exception {
         MorphiumCacheImpl imp = new MorphiumCacheImpl();
@@ -102,6 +158,491 @@ public class MorphiumCacheTest {
         assert (k.equals("{counter=999} c:uncached_object l:321 s:123 sort: counter:-1"));
     }
 
+    @Test
+    public void testCreateCacheKey() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        Map<String, Object> q = Utils.getMap("counter", 999);
+        Map<String, Integer> sort = Utils.getIntMap("counter", -1);
+
+        CacheKey k = imp.createCacheKey(q, sort, "uncached_object", 123, 321);
+        assert (k.toString().equals(imp.getCacheKey(q, sort, "uncached_object", 123, 321)));
+        assert (!k.equals(imp.createCacheKey(q, sort, "uncached_object", 124, 321)));
+        assert (!k.equals(k.toIdListKey()));
+    }
+
+    @Test
+    public void testCacheKeyCanonical() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        Map<String, Object> q1 = new LinkedHashMap<>();
+        q1.put("a", 1);
+        q1.put("b", Utils.getMap("$in", Arrays.asList(1, 2)));
+        Map<String, Object> q2 = new LinkedHashMap<>();
+        q2.put("b", Utils.getMap("$in", Arrays.asList(1, 2)));
+        q2.put("a", 1);
+        CacheKey k1 = imp.createCacheKey(q1, null, "coll", 0, 0);
+        CacheKey k2 = imp.createCacheKey(q2, null, "coll", 0, 0);
+        assert (k1.equals(k2));
+        assert (k1.hashCode() == k2.hashCode());
+
+        //key must not change, if query is modified afterwards
+        q1.put("c", 3);
+        assert (k1.equals(k2));
+
+        imp.addToCache(k1, CachedObject.class, new ArrayList<>());
+        assert (imp.isCached(CachedObject.class, k2));
+        assert (!imp.isCached(CachedObject.class, imp.createCacheKey(q1, null, "coll", 0, 0)));
+    }
+
+    @Test
+    public void testCacheKeyEmbeddedOrder() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        Map<String, Object> a1 = new LinkedHashMap<>();
+        a1.put("city", "Munich");
+        a1.put("zip", "80331");
+        Map<String, Object> a2 = new LinkedHashMap<>();
+        a2.put("zip", "80331");
+        a2.put("city", "Munich");
+        //mongo compares embedded documents order sensitive
+        assert (!imp.createCacheKey(Utils.getMap("addr", a1), null, "coll", 0, 0).equals(imp.createCacheKey(Utils.getMap("addr", a2), null, "coll", 0, 0)));
+
+        Map<String, Object> range1 = new LinkedHashMap<>();
+        range1.put("$gt", 1);
+        range1.put("$lt", 10);
+        Map<String, Object> range2 = new LinkedHashMap<>();
+        range2.put("$lt", 10);
+        range2.put("$gt", 1);
+        Map<String, Object> q1 = new LinkedHashMap<>();
+        q1.put("addr", a1);
+        q1.put("counter", range1);
+        Map<String, Object> q2 = new LinkedHashMap<>();
+        q2.put("counter", range2);
+        q2.put("addr", a1);
+        assert (imp.createCacheKey(q1, null, "coll", 0, 0).equals(imp.createCacheKey(q2, null, "coll", 0, 0)));
+
+        //filters in $or are sorted as well
+        assert (imp.createCacheKey(Utils.getMap("$or", Arrays.asList(q1)), null, "coll", 0, 0).equals(imp.createCacheKey(Utils.getMap("$or", Arrays.asList(q2)), null, "coll", 0, 0)));
+    }
+
+
+    @Test
+    public void testPreciseInvalidation() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        CachedObject o1 = new CachedObject();
+        o1.setId(new MorphiumId());
+        o1.setCounter(1);
+        CachedObject o2 = new CachedObject();
+        o2.setId(new MorphiumId());
+        o2.setCounter(2);
+        CacheKey k1 = imp.createCacheKey(Utils.getMap("counter", 1), null, "cached_object", 0, 0);
+        CacheKey k2 = imp.createCacheKey(Utils.getMap("counter", 2), null, "cached_object", 0, 0);
+        CacheKey lt = imp.createCacheKey(Utils.getMap("counter", Utils.getMap("$lt", 10)), null, "cached_object", 0, 0);
+        CacheKey gt = imp.createCacheKey(Utils.getMap("counter", Utils.getMap("$gt", 100)), null, "cached_object", 0, 0);
+        CacheKey rx = imp.createCacheKey(Utils.getMap("value", Pattern.compile("^v")), null, "cached_object", 0, 0);
+        imp.addToCache(k1, CachedObject.class, Collections.singletonList(o1));
+        imp.addToCache(k2, CachedObject.class, Collections.singletonList(o2));
+        imp.addToCache(lt, CachedObject.class, Arrays.asList(o1, o2));
+        imp.addToCache(gt, CachedObject.class, new ArrayList<>());
+        imp.addToCache(rx, CachedObject.class, new ArrayList<>());
+
+        //o1 changes counter from 1 to 200
+        Map<String, Object> before = Utils.getMap("_id", o1.getId());
+        before.put("counter", 1);
+        Map<String, Object> after = Utils.getMap("_id", o1.getId());
+        after.put("counter", 200);
+        imp.clearCacheIfNecessary(CachedObject.class, o1.getId(), before, after);
+        assert (!imp.isCached(CachedObject.class, k1));
+        assert (!imp.isCached(CachedObject.class, lt));
+        assert (!imp.isCached(CachedObject.class, gt));
+        //cannot be evaluated, removed to be safe
+        assert (!imp.isCached(CachedObject.class, rx));
+        assert (imp.isCached(CachedObject.class, k2));
+
+        imp.removeEntryFromCache(CachedObject.class, o2.getId());
+        assert (!imp.isCached(CachedObject.class, k2));
+        assert (imp.getFromIDCache(CachedObject.class, o2.getId()) == null);
+
+        //removing a result cleans up the id index of all entities in it
+        imp.addToCache(lt, CachedObject.class, Arrays.asList(o1, o2));
+        imp.removeEntryFromCache(CachedObject.class, o1.getId());
+        assert (!imp.isCached(CachedObject.class, lt));
+        CachedObject o3 = new CachedObject();
+        o3.setId(new MorphiumId());
+        imp.addToCache(lt, CachedObject.class, Collections.singletonList(o3));
+        imp.removeEntryFromCache(CachedObject.class, o2.getId());
+        assert (imp.isCached(CachedObject.class, lt));
+    }
+
+    @Test
+    public void testOffHeapCache() throws Exception {
+        MorphiumCacheImpl imp = new MorphiumCacheImpl();
+        imp.setWeigher(new ResultCountWeigher());
+        imp.setMaxBytesPerType(5);
+        OffHeapCache l2 = new OffHeapCache(new ObjectMapperImpl(), 1024 * 1024, null);
+        imp.setOffHeapCache(l2);
+        for (int i = 0; i < 20; i++) {
+            CachedObject o = new CachedObject();
+            o.setId(new MorphiumId());
+            o.setCounter(i);
+            o.setValue("value " + i);
+            imp.addToCache("key" + i, CachedObject.class, Collections.singletonList(o));
+        }
+        assert (imp.getCache().get(CachedObject.class).size() <= 5);
+        assert (l2.size() >= 15) : "L2 size " + l2.size();
+
+        //evicted entries are read back from second level cache
+        for (int i = 0; i < 20; i++) {
+            assert (imp.isCached(CachedObject.class, "key" + i)) : "key" + i;
+            List<CachedObject> lst = imp.getFromCache(CachedObject.class, "key" + i);
+            assert (lst.size() == 1);
+            assert (lst.get(0).getCounter() == i);
+            assert (lst.get(0).getValue().equals("value " + i));
+        }
+        imp.clearCachefor(CachedObject.class);
+        assert (l2.size() == 0);
+        assert (!imp.isCached(CachedObject.class, "key0"));
+    }
+
+    @Test
+    public void testOffHeapSkipsStaleEvictions() throws Exception {
+        MorphiumCacheImpl imp = new MorphiumCacheImpl();
+        AtomicInteger writeWhileEvicting = new AtomicInteger();
+        imp.setWeigher((type, result) -> {
+            if (writeWhileEvicting.get() > 0) {
+                //a write happening while the entry is added and another one evicted
+                imp.removeEntryFromCache(CachedObject.class, new MorphiumId());
+            }
+            return result.size();
+        });
+        imp.setMaxBytesPerType(5);
+        OffHeapCache l2 = new OffHeapCache(new ObjectMapperImpl(), 1024 * 1024, null);
+        imp.setOffHeapCache(l2);
+        for (int i = 0; i < 7; i++) {
+            CachedObject o = new CachedObject();
+            o.setId(new MorphiumId());
+            writeWhileEvicting.set(i == 5 ? 1 : 0);
+            imp.addToCache("key" + i, CachedObject.class, Collections.singletonList(o));
+            assert (l2.size() == (i < 6 ? 0 : 1)) : i + ": " + l2.size();
+        }
+    }
+
+    @Test
+    public void testOffHeapInvalidation() throws Exception {
+        MorphiumCacheImpl imp = new MorphiumCacheImpl();
+        imp.setWeigher(new ResultCountWeigher());
+        imp.setMaxBytesPerType(5);
+        OffHeapCache l2 = new OffHeapCache(new ObjectMapperImpl(), 1024 * 1024, null);
+        imp.setOffHeapCache(l2);
+        List<CachedObject> objs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            CachedObject o = new CachedObject();
+            o.setId(new MorphiumId());
+            o.setCounter(i);
+            objs.add(o);
+            imp.addToCache(imp.createCacheKey(Utils.getMap("counter", i), null, "cached_object", 0, 0), CachedObject.class, Collections.singletonList(o));
+        }
+        int size = l2.size();
+        assert (size >= 15);
+        //only the results containing the entity or matching it are dropped
+        Map<String, Object> before = Utils.getMap("_id", objs.get(0).getId());
+        before.put("counter", 0);
+        Map<String, Object> after = Utils.getMap("_id", objs.get(0).getId());
+        after.put("counter", 1);
+        imp.clearCacheIfNecessary(CachedObject.class, objs.get(0).getId(), before, after);
+        assert (!imp.isCached(CachedObject.class, imp.createCacheKey(Utils.getMap("counter", 0), null, "cached_object", 0, 0)));
+        assert (!imp.isCached(CachedObject.class, imp.createCacheKey(Utils.getMap("counter", 1), null, "cached_object", 0, 0)));
+        assert (l2.size() >= size - 2) : l2.size();
+        for (int i = 2; i < 20; i++) {
+            assert (imp.isCached(CachedObject.class, imp.createCacheKey(Utils.getMap("counter", i), null, "cached_object", 0, 0))) : i;
+        }
+        imp.removeEntryFromCache(CachedObject.class, objs.get(5).getId());
+        assert (!imp.isCached(CachedObject.class, imp.createCacheKey(Utils.getMap("counter", 5), null, "cached_object", 0, 0)));
+        assert (imp.isCached(CachedObject.class, imp.createCacheKey(Utils.getMap("counter", 6), null, "cached_object", 0, 0)));
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        CacheKey k = imp.createCacheKey(Utils.getMap("counter", 1), null, "cached_object", 0, 0);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<List<CachedObject>> results = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 10; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                results.add(imp.getFromCache(CachedObject.class, k, () -> {
+                    loads.incrementAndGet();
+                    Thread.sleep(200);
+                    CachedObject o = new CachedObject();
+                    o.setId(new MorphiumId());
+                    return Collections.singletonList(o);
+                }));
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assert (loads.get() == 1) : "Loads: " + loads.get();
+        assert (results.size() == 10);
+        assert (imp.isCached(CachedObject.class, k));
+    }
+
+    @Test
+    public void testSingleFlightReadMode() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        imp.setReadMode(CachedObject.class, Cache.ReadMode.UNMODIFIABLE);
+        CacheKey k = imp.createCacheKey(Utils.getMap("counter", 1), null, "cached_object", 0, 0);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<List<CachedObject>> results = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 5; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                results.add(imp.getFromCache(CachedObject.class, k, () -> {
+                    loads.incrementAndGet();
+                    Thread.sleep(200);
+                    //written meanwhile, result is not cached
+                    imp.clearCachefor(CachedObject.class);
+                    CachedObject o = new CachedObject();
+                    o.setId(new MorphiumId());
+                    return new ArrayList<>(Collections.singletonList(o));
+                }));
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assert (!imp.isCached(CachedObject.class, k));
+        int modifiable = 0;
+        for (List<CachedObject> r : results) {
+            try {
+                r.add(new CachedObject());
+                modifiable++;
+            } catch (UnsupportedOperationException e) {
+                //expected for all callers
+            }
+        }
+        //the loaders get unmodifiable lists as well
+        assert (loads.get() < 5);
+        assert (modifiable == 0) : modifiable;
+    }
+
+    @Test
+    public void testMissAndHitSameList() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        CacheKey k = imp.createCacheKey(Utils.getMap("counter", 1), null, "cached_object", 0, 0);
+        CachedObject o = new CachedObject();
+        o.setId(new MorphiumId());
+        List<CachedObject> miss = imp.getFromCache(CachedObject.class, k, () -> new ArrayList<>(Collections.singletonList(o)));
+        List<CachedObject> hit = imp.getFromCache(CachedObject.class, k, () -> {
+            throw new AssertionError("not cached");
+        });
+        //shared by default
+        assert (hit == miss);
+
+        imp.setReadMode(CachedObject.class, Cache.ReadMode.UNMODIFIABLE);
+        imp.clearCachefor(CachedObject.class);
+        miss = imp.getFromCache(CachedObject.class, k, () -> new ArrayList<>(Collections.singletonList(o)));
+        hit = imp.getFromCache(CachedObject.class, k, () -> {
+            throw new AssertionError("not cached");
+        });
+        assert (miss.getClass() == hit.getClass()) : miss.getClass() + " / " + hit.getClass();
+        assert (miss.get(0) == hit.get(0));
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        imp.setGlobalCacheTimeout(1000);
+        imp.setValidCacheTime(CachedObject.class, 1000);
+        imp.setRefreshAheadPercent(50);
+        CacheKey k = imp.createCacheKey(Utils.getMap("counter", 1), null, "cached_object", 0, 0);
+        AtomicInteger loads = new AtomicInteger();
+        Callable<List<CachedObject>> loader = () -> {
+            CachedObject o = new CachedObject();
+            o.setId(new MorphiumId());
+            o.setCounter(loads.incrementAndGet());
+            return Collections.singletonList(o);
+        };
+        assert (imp.getFromCache(CachedObject.class, k, loader).get(0).getCounter() == 1);
+        assert (imp.getFromCache(CachedObject.class, k, loader).get(0).getCounter() == 1);
+        Thread.sleep(600);
+        //old value is returned, reload happens in background
+        assert (imp.getFromCache(CachedObject.class, k, loader).get(0).getCounter() == 1);
+        Thread.sleep(200);
+        assert (loads.get() == 2);
+        assert (imp.getFromCache(CachedObject.class, k, loader).get(0).getCounter() == 2);
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        CacheKey k1 = imp.createCacheKey(Utils.getMap("counter", 1), null, "cached_object", 0, 0);
+        CacheKey k2 = imp.createCacheKey(Utils.getMap("counter", 2), null, "cached_object", 0, 0);
+        CacheKey k3 = imp.createCacheKey(Utils.getMap("value", "v"), null, "cached_object", 0, 0);
+        assert (k1.getShape().equals(k2.getShape()));
+        assert (!k1.getShape().equals(k3.getShape()));
+        Callable<List<CachedObject>> loader = () -> {
+            CachedObject o = new CachedObject();
+            o.setId(new MorphiumId());
+            return Collections.singletonList(o);
+        };
+        imp.getFromCache(CachedObject.class, k1, loader);
+        imp.getFromCache(CachedObject.class, k1, loader);
+        imp.getFromCache(CachedObject.class, k2, loader);
+        imp.getFromCache(CachedObject.class, k3, loader);
+
+        CacheStats st = imp.getStatistics(CachedObject.class);
+        assert (st.getHits() == 1);
+        assert (st.getMisses() == 3);
+        assert (st.getLoads() == 3);
+        assert (st.getEntries() == 3);
+        assert (st.getLoadTimeHistogram()[0] + st.getLoadTimeHistogram()[1] == 3);
+        CacheStats shape = st.getShapes().get(k1.getShape());
+        assert (shape.getHits() == 1);
+        assert (shape.getMisses() == 2);
+
+        imp.clearCachefor(CachedObject.class, RemovalReason.SYNC);
+        assert (st.getSyncEvictions() == 3);
+        assert (st.getEntries() == 0);
+        assert (imp.getStatistics().containsKey(CachedObject.class));
+    }
+
+    @Test
+    public void testReadModes() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        imp.setObjectMapper(new ObjectMapperImpl());
+        CachedObject o = new CachedObject();
+        o.setId(new MorphiumId());
+        o.setCounter(1);
+        o.setValue("v");
+
+        //default: the cached list itself
+        List<CachedObject> cached = new ArrayList<>(Collections.singletonList(o));
+        imp.addToCache("key", CachedObject.class, cached);
+        assert (imp.getFromCache(CachedObject.class, "key") == cached);
+
+        imp.setReadMode(CachedObject.class, Cache.ReadMode.UNMODIFIABLE);
+        imp.addToCache("key", CachedObject.class, Collections.singletonList(o));
+        List<CachedObject> lst = imp.getFromCache(CachedObject.class, "key");
+        try {
+            lst.clear();
+            assert (false) : "list is modifiable";
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        assert (lst.get(0) == o);
+
+        imp.setReadMode(CachedObject.class, Cache.ReadMode.COPY);
+        imp.addToCache("key", CachedObject.class, Collections.singletonList(o));
+        o.setCounter(2);
+        lst = imp.getFromCache(CachedObject.class, "key");
+        assert (lst.get(0) != o);
+        assert (lst.get(0).getCounter() == 1);
+        assert (lst.get(0).getValue().equals("v"));
+        lst.get(0).setCounter(3);
+        lst = imp.getFromCache(CachedObject.class, "key");
+        assert (lst.get(0).getCounter() == 1);
+        assert (imp.getFromCache(CachedObject.class, "key").get(0) != lst.get(0));
+        CachedObject byId = imp.getFromIDCache(CachedObject.class, o.getId());
+        byId.setCounter(4);
+        assert (imp.getFromIDCache(CachedObject.class, o.getId()).getCounter() == 1);
+        //only the snapshot is kept
+        byte[][] snapshot = imp.getCacheEntries().get(CachedObject.class).get(CacheKey.of("key")).getSnapshot();
+        assert (snapshot.length == 1);
+        assert (imp.getIdCache().get(CachedObject.class).get(o.getId()) == snapshot[0]);
+    }
+
+    @Test
+    public void testWriteThrough() throws Exception {
+        MorphiumCache imp = new MorphiumCacheImpl();
+        ObjectMapperImpl om = new ObjectMapperImpl();
+        imp.setObjectMapper(om);
+        WriteThroughObject o1 = new WriteThroughObject();
+        o1.setId(new MorphiumId());
+        o1.setCounter(1);
+        WriteThroughObject o2 = new WriteThroughObject();
+        o2.setId(new MorphiumId());
+        o2.setCounter(5);
+        CacheKey eq = imp.createCacheKey(Utils.getMap("counter", 1), null, "cached_object", 0, 0);
+        CacheKey lt = imp.createCacheKey(Utils.getMap("counter", Utils.getMap("$lt", 10)), Utils.getIntMap("counter", 1), "cached_object", 0, 0);
+        CacheKey gt = imp.createCacheKey(Utils.getMap("counter", Utils.getMap("$gt", 100)), null, "cached_object", 0, 0);
+        CacheKey limited = imp.createCacheKey(Utils.getMap("counter", Utils.getMap("$lt", 10)), Utils.getIntMap("counter", 1), "cached_object", 0, 1);
+        imp.addToCache(eq, WriteThroughObject.class, Collections.singletonList(o1));
+        imp.addToCache(lt, WriteThroughObject.class, Arrays.asList(o1, o2));
+        imp.addToCache(gt, WriteThroughObject.class, new ArrayList<>());
+        imp.addToCache(limited, WriteThroughObject.class, Collections.singletonList(o1));
+
+        CacheElement ltElement = imp.getCacheEntries().get(WriteThroughObject.class).get(lt);
+        List gtFound = imp.getCacheEntries().get(WriteThroughObject.class).get(gt).getFound();
+
+        //o1 written with counter 7
+        WriteThroughObject w = new WriteThroughObject();
+        w.setId(o1.getId());
+        w.setCounter(7);
+        imp.updateCacheEntry(WriteThroughObject.class, w.getId(), w, null, om.marshall(w));
+        assert (imp.getFromIDCache(WriteThroughObject.class, w.getId()) == w);
+        //patched in place, results not containing or matching the entity are untouched
+        assert (imp.getCacheEntries().get(WriteThroughObject.class).get(lt) == ltElement);
+        assert (imp.getCacheEntries().get(WriteThroughObject.class).get(gt).getFound() == gtFound);
+        assert (imp.getFromCache(WriteThroughObject.class, eq).isEmpty());
+        List<WriteThroughObject> lst = imp.getFromCache(WriteThroughObject.class, lt);
+        assert (lst.size() == 2);
+        assert (lst.get(0) == o2);
+        assert (lst.get(1) == w);
+        assert (imp.getFromCache(WriteThroughObject.class, gt).isEmpty());
+        //position within limit changed
+        assert (!imp.isCached(WriteThroughObject.class, limited));
+
+        //counter 200
+        w.setCounter(200);
+        imp.updateCacheEntry(WriteThroughObject.class, w.getId(), w, null, om.marshall(w));
+        assert (imp.getFromCache(WriteThroughObject.class, lt).size() == 1);
+        assert (imp.getFromCache(WriteThroughObject.class, gt).get(0) == w);
+        assert (imp.getFromCache(WriteThroughObject.class, eq).isEmpty());
+
+        //snapshots of other entities are kept
+        imp.setReadMode(WriteThroughObject.class, Cache.ReadMode.COPY);
+        imp.addToCache(lt, WriteThroughObject.class, Collections.singletonList(o2));
+        byte[] o2Snapshot = imp.getCacheEntries().get(WriteThroughObject.class).get(lt).getSnapshot()[0];
+        w.setCounter(3);
+        imp.updateCacheEntry(WriteThroughObject.class, w.getId(), w, null, om.marshall(w));
+        byte[][] snapshot = imp.getCacheEntries().get(WriteThroughObject.class).get(lt).getSnapshot();
+        assert (snapshot.length == 2);
+        assert (snapshot[0] == imp.getIdCache().get(WriteThroughObject.class).get(w.getId()));
+        assert (snapshot[1] == o2Snapshot);
+        lst = imp.getFromCache(WriteThroughObject.class, lt);
+        assert (lst.get(0).getCounter() == 3 && lst.get(0) != w);
+        assert (lst.get(1).getCounter() == 5);
+
+        //other types are only cleared
+        CachedObject c = new CachedObject();
+        c.setId(new MorphiumId());
+        c.setCounter(1);
+        imp.addToCache(eq, CachedObject.class, Collections.singletonList(c));
+        imp.updateCacheEntry(CachedObject.class, c.getId(), c, null, om.marshall(c));
+        assert (!imp.isCached(CachedObject.class, eq));
+    }
+
+    @Cache(syncCache = Cache.SyncCacheStrategy.UPDATE_ENTRY)
+    public static class WriteThroughObject extends CachedObject {
+
+    }
 
     @Test
     public void testClearCachefor() throws Exception {
@@ -123,13 +664,36 @@ public class MorphiumCacheTest {
         assert (imp.getFromCache(CachedObject.class, "key") == null);
     }
 
+    @Test
+    public void testStatisticsMBeans() throws Exception {
+        MorphiumCacheImpl imp = new MorphiumCacheImpl();
+        imp.setStatisticsJmx(true);
+        ObjectName names = new ObjectName("de.caluga.morphium:type=CacheStats,cache=" + System.identityHashCode(imp) + ",*");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        imp.getStatistics(CachedObject.class);
+        assert (server.queryNames(names, null).size() == 1);
+        imp.clearCachefor(CachedObject.class);
+        assert (server.queryNames(names, null).isEmpty());
+        imp.getStatistics(CachedObject.class);
+        imp.getStatistics(WriteThroughObject.class);
+        assert (server.queryNames(names, null).size() == 2);
+        imp.resetCache();
+        assert (server.queryNames(names, null).isEmpty());
+        imp.getStatistics(CachedObject.class);
+        imp.close();
+        assert (server.queryNames(names, null).isEmpty());
+    }
+
     @Test
     public void testSetCache() throws Exception {
         MorphiumCache imp = new MorphiumCacheImpl();
         Map<Class<?>, Map<String, CacheElement>> o = new HashMap<>();
+        o.put(CachedObject.class, new HashMap<>());
+        o.get(CachedObject.class).put("key", new CacheElement(new ArrayList<>()));
         imp.setCache(o);
-        imp.addToCache("key", CachedObject.class, new ArrayList<>());
-        assert (o.size() != 0);
+        assert (imp.isCached(CachedObject.class, "key"));
+        imp.addToCache("key2", CachedObject.class, new ArrayList<>());
+        assert (imp.getCache().get(CachedObject.class).size() == 2);
     }
 
 
@@ -0,0 +1,40 @@
+package de.caluga.test.mongo.suite.unit;
+
+import de.caluga.morphium.TimerWheel;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests for the timer wheel used for TTL indexes and cache expiry
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void advanceTest() throws Exception {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 16);
+        long now = System.currentTimeMillis();
+        wheel.schedule("past", now - 1000);
+        wheel.schedule("soon", now + 50);
+        //more than one rotation ahead
+        wheel.schedule("later", now + 500);
+        assert (wheel.size() == 3);
+
+        List<String> due = wheel.advance(now + 10);
+        assert (due.size() == 1);
+        assert (due.get(0).equals("past"));
+
+        due = wheel.advance(now + 60);
+        assert (due.size() == 1);
+        assert (due.get(0).equals("soon"));
+
+        //one rotation later, "later" is still not due
+        due = wheel.advance(now + 220);
+        assert (due.isEmpty());
+
+        due = wheel.advance(now + 1000);
+        assert (due.size() == 1);
+        assert (due.get(0).equals("later"));
+        assert (wheel.size() == 0);
+    }
+}
@@ -0,0 +1,111 @@
+package de.caluga.test.mongo.suite.unit;
+
+import de.caluga.morphium.annotations.caching.Cache;
+import de.caluga.morphium.cache.CacheElement;
+import de.caluga.morphium.cache.CacheKey;
+import de.caluga.morphium.cache.TypeCache;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * bounded cache of one type
+ */
+public class TypeCacheTest {
+    private static final CacheKey KEY = CacheKey.of("key");
+
+    @Test
+    public void fifoTest() throws Exception {
+        List<CacheKey> removed = new ArrayList<>();
+        TypeCache c = new TypeCache(Cache.ClearStrategy.FIFO, 10, 60000, (k, e) -> removed.add(k));
+        for (int i = 0; i < 100; i++) {
+            c.put(CacheKey.of("k" + i), new CacheElement<>(Collections.singletonList(i)));
+            assert (c.size() <= 10);
+        }
+        assert (c.size() == 10);
+        assert (removed.size() == 90);
+        assert (removed.get(0).equals(CacheKey.of("k0")));
+        for (int i = 90; i < 100; i++) {
+            assert (c.get(CacheKey.of("k" + i)) != null);
+        }
+    }
+
+    @Test
+    public void lruTest() throws Exception {
+        TypeCache c = new TypeCache(Cache.ClearStrategy.LRU, 100, 60000, null);
+        for (int i = 0; i < 50; i++) {
+            c.put(CacheKey.of("hot" + i), new CacheElement<>(Collections.singletonList(i)));
+        }
+        for (int r = 0; r < 5; r++) {
+            for (int i = 0; i < 50; i++) {
+                assert (c.get(CacheKey.of("hot" + i)) != null);
+            }
+        }
+        //a scan of one time keys does not evict the frequently used ones
+        for (int i = 0; i < 1000; i++) {
+            c.put(CacheKey.of("scan" + i), new CacheElement<>(Collections.singletonList(i)));
+            assert (c.size() <= 100);
+        }
+        int hits = 0;
+        for (int i = 0; i < 50; i++) {
+            if (c.get(CacheKey.of("hot" + i)) != null) {
+                hits++;
+            }
+        }
+        assert (hits >= 45) : "Hits: " + hits;
+    }
+
+    @Test
+    public void randomTest() throws Exception {
+        TypeCache c = new TypeCache(Cache.ClearStrategy.RANDOM, 10, 60000, null);
+        for (int i = 0; i < 100; i++) {
+            c.put(CacheKey.of("k" + i), new CacheElement<>(Collections.singletonList(i)));
+        }
+        assert (c.size() == 10);
+        c.remove(c.keySet().iterator().next());
+        assert (c.size() == 9);
+        c.clear();
+        assert (c.isEmpty());
+    }
+
+    @Test
+    public void weightTest() throws Exception {
+        AtomicLong global = new AtomicLong();
+        TypeCache c = new TypeCache(Cache.ClearStrategy.LRU, -1, 1000, 60000, global, null);
+        for (int i = 0; i < 100; i++) {
+            CacheElement e = new CacheElement<>(Collections.singletonList(i));
+            e.setWeight(i % 2 == 0 ? 10 : 300);
+            c.put(CacheKey.of("k" + i), e);
+            assert (c.getWeight() <= 1000);
+        }
+        assert (global.get() == c.getWeight());
+        c.clear();
+        assert (global.get() == 0);
+    }
+
+    @Test
+    public void expiryTest() throws Exception {
+        List<CacheKey> removed = new ArrayList<>();
+        TypeCache c = new TypeCache(Cache.ClearStrategy.LRU, -1, 100, (k, e) -> removed.add(k));
+        CacheElement e = new CacheElement<>(Collections.singletonList(1));
+        c.put(KEY, e);
+        assert (c.get(KEY) != null);
+        assert (c.expireIfDue(KEY, e.getCreated(), System.currentTimeMillis()) > 0);
+        Thread.sleep(150);
+        assert (!c.containsKey(KEY));
+        assert (c.expireIfDue(KEY, e.getCreated(), System.currentTimeMillis()) == 0);
+        assert (c.isEmpty());
+        assert (removed.size() == 1);
+
+        //entry replaced meanwhile
+        c.put(KEY, e);
+        CacheElement replacement = new CacheElement<>(Collections.singletonList(2));
+        replacement.setCreated(e.getCreated() + 1000);
+        c.put(KEY, replacement);
+        assert (c.expireIfDue(KEY, e.getCreated(), e.getCreated() + 500) == 0);
+        assert (c.containsKey(KEY));
+    }
+}